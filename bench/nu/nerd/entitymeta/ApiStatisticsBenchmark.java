@@ -0,0 +1,118 @@
+package nu.nerd.entitymeta;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.entity.Entity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nu.nerd.entitymeta.ApiStatistics.Operation;
+
+// ----------------------------------------------------------------------------
+/**
+ * Measures the overhead of recording {@link ApiStatistics}.
+ * <p>
+ * 
+ * The get benchmark reads a cached value with the {@code api-statistics}
+ * setting off and on; the difference is the cost of recording a call. The
+ * beginEnd benchmark times an empty call, which is the recording cost alone,
+ * and nanoTime the two clock reads that it includes.
+ * <p>
+ * 
+ * Outside of a server, {@code Bukkit.isPrimaryThread()} is a stub that
+ * returns true, so it costs less here than on a server.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ApiStatisticsBenchmark {
+    /**
+     * The {@code api-statistics} setting.
+     */
+    @Param({ "false", "true" })
+    public boolean statistics;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Create an entity and cache its metadata.
+     */
+    @Setup
+    public void setup() {
+        BenchEntities.configure();
+        EntityMeta.CONFIG.API_STATISTICS = statistics;
+        _api = EntityMeta.api();
+        _api.rebuildCache();
+        Set<String> tags = new HashSet<>();
+        tags.add(PLUGIN + "." + NAME + ":i:1");
+        _entity = BenchEntities.create(tags);
+        _api.get(_entity, PLUGIN, NAME);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read a cached value.
+     * 
+     * @return the value.
+     */
+    @Benchmark
+    public Object get() {
+        return _api.get(_entity, PLUGIN, NAME);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record an empty call.
+     */
+    @Benchmark
+    public void beginEnd() {
+        long start = ApiStatistics.INSTANCE.begin(PLUGIN);
+        ApiStatistics.INSTANCE.end(PLUGIN, Operation.GET, start);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read the clock twice, as beginEnd does.
+     * 
+     * @return the elapsed time.
+     */
+    @Benchmark
+    public long nanoTime() {
+        long start = System.nanoTime();
+        return System.nanoTime() - start;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The plugin name of the key.
+     */
+    private static final String PLUGIN = "Bench";
+
+    /**
+     * The name of the key.
+     */
+    private static final String NAME = "level";
+
+    /**
+     * The API.
+     */
+    private EntityMetaAPI _api;
+
+    /**
+     * The entity.
+     */
+    private Entity _entity;
+} // class ApiStatisticsBenchmark
@@ -0,0 +1,89 @@
+package nu.nerd.entitymeta;
+
+import java.lang.reflect.Proxy;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bukkit.entity.Entity;
+
+// ----------------------------------------------------------------------------
+/**
+ * Creates stand-in entities and configuration for benchmarks, which run
+ * outside of a server.
+ * <p>
+ * 
+ * The entities are dynamic proxies of {@link Entity} that implement only the
+ * methods EntityMeta calls on its hot paths: the scoreboard tag accessors,
+ * {@code getUniqueId()}, {@code getEntityId()} and {@code isValid()}. Other
+ * methods return null.
+ */
+final class BenchEntities {
+    // ------------------------------------------------------------------------
+    /**
+     * Set the configuration to the defaults of config.yml.
+     * 
+     * Since the configuration is not loaded from a plugin, this must be
+     * called before any cache is created.
+     */
+    static void configure() {
+        Configuration config = EntityMeta.CONFIG;
+        config.CACHE_SIZE = 10000;
+        config.CACHE_SECONDS = 400;
+        config.CACHE_MAX_BYTES = 0;
+        config.CACHE_ADMISSION = true;
+        config.API_STATISTICS = false;
+        config.SLOW_OPERATION_MICROS = 5000;
+        config.SLOW_OPERATION_MAX_LOGS_PER_SECOND = 5;
+        config.METRICS_ENABLED = false;
+        config.COUNTER_FLUSH_TICKS = 100;
+        config.EXPIRY_REMOVALS_PER_TICK = 1000;
+        config.SIDE_STORE_ENABLED = false;
+        config.SIDE_STORE_THRESHOLD_BYTES = 1024;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a new entity with the specified scoreboard tags.
+     * 
+     * @param tags the tags, which are copied.
+     * @return the entity.
+     */
+    static Entity create(Set<String> tags) {
+        Set<String> entityTags = new HashSet<>(tags);
+        UUID uuid = UUID.randomUUID();
+        int entityId = _nextEntityId.incrementAndGet();
+        return (Entity) Proxy.newProxyInstance(BenchEntities.class.getClassLoader(), new Class<?>[] { Entity.class },
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                case "getScoreboardTags":
+                    return entityTags;
+                case "addScoreboardTag":
+                    return entityTags.add((String) args[0]);
+                case "removeScoreboardTag":
+                    return entityTags.remove(args[0]);
+                case "getUniqueId":
+                    return uuid;
+                case "getEntityId":
+                    return entityId;
+                case "isValid":
+                    return true;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "Entity " + uuid;
+                default:
+                    return null;
+                }
+            });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The entity ID of the most recently created entity.
+     */
+    private static final AtomicInteger _nextEntityId = new AtomicInteger();
+} // class BenchEntities
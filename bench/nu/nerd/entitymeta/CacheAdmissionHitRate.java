@@ -0,0 +1,158 @@
+package nu.nerd.entitymeta;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import org.bukkit.entity.Entity;
+
+// ----------------------------------------------------------------------------
+/**
+ * Measures the cache hit rate of a hot working set of entities while other
+ * entities are scanned, with and without cache admission.
+ * <p>
+ * 
+ * Each round reads one value of every hot entity, as plugins handling events
+ * every tick would, then reads one value of each of a batch of scanned
+ * entities, as a plugin iterating over all loaded entities would. The scanned
+ * entities are taken in turn from a pool larger than the cache. The hit rate
+ * of the hot reads is reported once the cache has reached a steady state.
+ * <p>
+ * 
+ * Run with {@code -Dbench.main=nu.nerd.entitymeta.CacheAdmissionHitRate}.
+ */
+public class CacheAdmissionHitRate {
+    // ------------------------------------------------------------------------
+    /**
+     * Run the measurement.
+     * 
+     * @param args ignored.
+     */
+    public static void main(String[] args) {
+        BenchEntities.configure();
+        List<Entity> hot = createEntities(HOT_ENTITIES);
+        List<Entity> scanned = createEntities(SCANNED_ENTITIES);
+
+        System.out.println("Cache size " + EntityMeta.CONFIG.CACHE_SIZE + ", " + HOT_ENTITIES +
+                           " hot entities, scan pool of " + SCANNED_ENTITIES + " entities.");
+        System.out.println("Hot hit rate (%) by entities scanned per round:");
+        System.out.printf("%-24s", "");
+        for (int scanSize : SCAN_SIZES) {
+            System.out.printf("%8d", scanSize);
+        }
+        System.out.println();
+        printRow("LRU (admission off)", false, false, hot, scanned);
+        printRow("Admission on", true, false, hot, scanned);
+        printRow("Scan by peekEntry()", true, true, hot, scanned);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Measure and print the hot hit rate for each scan size.
+     * 
+     * @param label the label of the row.
+     * @param admission the cache admission setting.
+     * @param peek if true, scans use {@link MetadataStore#peekEntry}.
+     * @param hot the hot entities.
+     * @param scanned the pool of scanned entities.
+     */
+    private static void printRow(String label, boolean admission, boolean peek, List<Entity> hot, List<Entity> scanned) {
+        System.out.printf("%-24s", label);
+        for (int scanSize : SCAN_SIZES) {
+            System.out.printf("%8.1f", 100 * measure(admission, peek, hot, scanned, scanSize));
+        }
+        System.out.println();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the hit rate of hot reads in steady state.
+     * 
+     * @param admission the cache admission setting.
+     * @param peek if true, scans use {@link MetadataStore#peekEntry}.
+     * @param hot the hot entities.
+     * @param scanned the pool of scanned entities.
+     * @param scanSize the number of entities scanned per round.
+     * @return the hit rate, from 0 to 1.
+     */
+    private static double measure(boolean admission, boolean peek, List<Entity> hot, List<Entity> scanned, int scanSize) {
+        EntityMeta.CONFIG.CACHE_ADMISSION = admission;
+        MetadataStore store = new MetadataStore();
+        int next = 0;
+        long hits = 0;
+        long reads = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; ++round) {
+            long hitsBefore = store.getReadHits();
+            for (Entity entity : hot) {
+                store.getValue(entity, KEY);
+            }
+            if (round >= WARMUP_ROUNDS) {
+                hits += store.getReadHits() - hitsBefore;
+                reads += hot.size();
+            }
+
+            for (int i = 0; i < scanSize; ++i) {
+                Entity entity = scanned.get(next);
+                next = (next + 1) % scanned.size();
+                if (peek) {
+                    store.peekEntry(entity, KEY);
+                } else {
+                    store.getValue(entity, KEY);
+                }
+            }
+        }
+        return (double) hits / reads;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Create entities with three metadata values each.
+     * 
+     * @param count the number of entities.
+     * @return the entities.
+     */
+    private static List<Entity> createEntities(int count) {
+        List<Entity> entities = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            Set<String> tags = new HashSet<>();
+            tags.add(KEY + ":i:" + i);
+            tags.add("Bench.owner:u:" + new UUID(0, i));
+            tags.add("Bench.name:S:mob" + i);
+            entities.add(BenchEntities.create(tags));
+        }
+        return entities;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The key that is read.
+     */
+    private static final String KEY = "Bench.level";
+
+    /**
+     * The number of entities read every round.
+     */
+    private static final int HOT_ENTITIES = 5000;
+
+    /**
+     * The number of entities that scans cycle through.
+     */
+    private static final int SCANNED_ENTITIES = 50000;
+
+    /**
+     * The numbers of entities scanned per round.
+     */
+    private static final int[] SCAN_SIZES = { 0, 2000, 10000, 20000, 50000 };
+
+    /**
+     * The number of rounds before measurement starts.
+     */
+    private static final int WARMUP_ROUNDS = 10;
+
+    /**
+     * The number of measured rounds.
+     */
+    private static final int MEASURED_ROUNDS = 20;
+} // class CacheAdmissionHitRate
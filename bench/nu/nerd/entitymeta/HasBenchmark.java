@@ -0,0 +1,222 @@
+package nu.nerd.entitymeta;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.entity.Entity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// ----------------------------------------------------------------------------
+/**
+ * Compares {@link EntityMetaAPI#has(Entity, String, String)} with testing the
+ * result of {@link EntityMetaAPI#get(Entity, String, String)} for null, in a
+ * workload modelled on an {@code EntityDamageByEntityEvent} handler.
+ * <p>
+ * 
+ * Each operation checks whether the damager and the victim of one event
+ * carry a marker key. A quarter of the entities have the key, half have
+ * other metadata and a quarter have no scoreboard tags. The cached
+ * benchmarks use entities whose metadata has been read before. The uncached
+ * benchmarks draw on a pool of entities several times larger than the cache,
+ * so that get() almost always misses and parses the entity's tags.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HasBenchmark {
+    // ------------------------------------------------------------------------
+    /**
+     * Create the entities and cache the metadata of the cached set.
+     */
+    @Setup
+    public void setup() {
+        BenchEntities.configure();
+        _api = EntityMeta.api();
+        _api.rebuildCache();
+        for (int i = 0; i < CACHED_ENTITIES; ++i) {
+            _cached[i] = createEntity(i);
+            _api.get(_cached[i], PLUGIN, NAME);
+        }
+        for (int i = 0; i < UNCACHED_ENTITIES; ++i) {
+            _uncached[i] = createEntity(i);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Check cached entities with get().
+     * 
+     * @return the number of entities with the key.
+     */
+    @Benchmark
+    public int getCached() {
+        return countWithGet(_cached);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Check cached entities with has().
+     * 
+     * @return the number of entities with the key.
+     */
+    @Benchmark
+    public int hasCached() {
+        return countWithHas(_cached);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Check uncached entities with get(), which parses and caches them.
+     * 
+     * @return the number of entities with the key.
+     */
+    @Benchmark
+    public int getUncached() {
+        return countWithGet(_uncached);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Check uncached entities with has(), which does not cache them.
+     * 
+     * @return the number of entities with the key.
+     */
+    @Benchmark
+    public int hasUncached() {
+        return countWithHas(_uncached);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Check the damager and victim of the next event with get().
+     * 
+     * @param entities the entities involved in events; a power of 2 in
+     *        number.
+     * @return the number of entities with the key.
+     */
+    private int countWithGet(Entity[] entities) {
+        int event = _event++;
+        int count = (_api.get(entities[damager(event, entities.length)], PLUGIN, NAME) != null) ? 1 : 0;
+        return (_api.get(entities[victim(event, entities.length)], PLUGIN, NAME) != null) ? count + 1 : count;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Check the damager and victim of the next event with has().
+     * 
+     * @param entities the entities involved in events; a power of 2 in
+     *        number.
+     * @return the number of entities with the key.
+     */
+    private int countWithHas(Entity[] entities) {
+        int event = _event++;
+        int count = _api.has(entities[damager(event, entities.length)], PLUGIN, NAME) ? 1 : 0;
+        return _api.has(entities[victim(event, entities.length)], PLUGIN, NAME) ? count + 1 : count;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the index of the damager in an event.
+     * 
+     * @param event the event number.
+     * @param entities the number of entities; a power of 2.
+     * @return the index of the entity.
+     */
+    private static int damager(int event, int entities) {
+        return event & (entities - 1);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the index of the victim in an event.
+     * 
+     * @param event the event number.
+     * @param entities the number of entities; a power of 2.
+     * @return the index of the entity.
+     */
+    private static int victim(int event, int entities) {
+        return (event * 7 + 3) & (entities - 1);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Create an entity: every fourth has the key, and every fourth has no
+     * tags.
+     * 
+     * @param i the index of the entity.
+     * @return the entity.
+     */
+    private static Entity createEntity(int i) {
+        Set<String> tags = new HashSet<>();
+        switch (i % 4) {
+        case 0:
+            tags.add(PLUGIN + "." + NAME + ":b:1");
+            // Fall through.
+        case 1:
+        case 2:
+            tags.add("Other.level:i:" + i);
+            tags.add("Other.owner:u:" + new UUID(0, i));
+            tags.add("Other.name:S:Mob " + i);
+            break;
+        default:
+            break;
+        }
+        return BenchEntities.create(tags);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The number of entities whose metadata is cached; a power of 2.
+     */
+    private static final int CACHED_ENTITIES = 1024;
+
+    /**
+     * The number of entities whose metadata is not cached; a power of 2, much
+     * larger than the cache.
+     */
+    private static final int UNCACHED_ENTITIES = 65536;
+
+    /**
+     * The plugin name of the key.
+     */
+    private static final String PLUGIN = "Bench";
+
+    /**
+     * The name of the key.
+     */
+    private static final String NAME = "marked";
+
+    /**
+     * The API.
+     */
+    private EntityMetaAPI _api;
+
+    /**
+     * Entities whose metadata is cached.
+     */
+    private final Entity[] _cached = new Entity[CACHED_ENTITIES];
+
+    /**
+     * Entities whose metadata is not cached.
+     */
+    private final Entity[] _uncached = new Entity[UNCACHED_ENTITIES];
+
+    /**
+     * The number of the next event.
+     */
+    private int _event;
+} // class HasBenchmark
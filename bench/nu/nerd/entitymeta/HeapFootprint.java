@@ -0,0 +1,243 @@
+package nu.nerd.entitymeta;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.bukkit.entity.Entity;
+import org.openjdk.jol.info.ClassLayout;
+import org.openjdk.jol.info.GraphLayout;
+import org.openjdk.jol.util.Multiset;
+
+// ----------------------------------------------------------------------------
+/**
+ * Measures the heap used by cached metadata with JOL.
+ * <p>
+ * 
+ * The metadata of {@link #ENTITIES} entities, each with {@link #KEYS} typical
+ * values and optionally one large value, is parsed and held as it would be
+ * in the cache.
+ * <p>
+ * 
+ * Run with {@code -Dbench.main=nu.nerd.entitymeta.HeapFootprint}.
+ */
+public class HeapFootprint {
+    // ------------------------------------------------------------------------
+    /**
+     * Run the measurements.
+     * 
+     * @param args ignored.
+     * @throws Exception if a field cannot be accessed.
+     */
+    public static void main(String[] args) throws Exception {
+        BenchEntities.configure();
+        List<Entity> entities = createEntities(null);
+        List<PerEntityMetadata> metas = parse(entities);
+        System.out.println(ENTITIES + " entities with " + KEYS + " values each.");
+        measureMaps(metas);
+        measureKeys(metas);
+
+        StringBuilder lore = new StringBuilder();
+        while (lore.length() < LARGE_VALUE_LENGTH) {
+            lore.append("A zombie that has risen from the depths. ");
+        }
+        lore.setLength(LARGE_VALUE_LENGTH);
+        entities = createEntities(lore.toString());
+        metas = parse(entities);
+        System.out.println();
+        System.out.println(ENTITIES + " entities with " + KEYS + " values each and a " + LARGE_VALUE_LENGTH +
+                           " character String value.");
+        measureTags(entities, metas);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Create entities with {@link #KEYS} typical values, and optionally an
+     * additional large value.
+     * 
+     * @param largeValue the large value, or null.
+     * @return the entities.
+     */
+    private static List<Entity> createEntities(String largeValue) {
+        List<Entity> entities = new ArrayList<>(ENTITIES);
+        for (int i = 0; i < ENTITIES; ++i) {
+            Set<String> tags = new HashSet<>();
+            tags.add("MobLevels.level:i:" + (i % 50));
+            tags.add("MobLevels.xp:l:" + (i * 1000L));
+            tags.add("MobLevels.spawner:u:" + new UUID(i, i));
+            tags.add("MobLevels.name:S:Level " + (i % 50) + " Zombie");
+            if (largeValue != null) {
+                tags.add("MobLevels.lore:S:" + i + largeValue);
+            }
+            entities.add(BenchEntities.create(tags));
+        }
+        return entities;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Parse the metadata of entities, as when it is cached.
+     * 
+     * @param entities the entities.
+     * @return the metadata of each entity.
+     */
+    private static List<PerEntityMetadata> parse(List<Entity> entities) {
+        List<PerEntityMetadata> metas = new ArrayList<>(entities.size());
+        for (Entity entity : entities) {
+            metas.add(new PerEntityMetadata(entity));
+        }
+        return metas;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Compare the size of the per-entity entry maps with the HashMaps they
+     * replaced, excluding the keys and entries that both hold.
+     * 
+     * @param metas the metadata.
+     * @throws Exception if a field cannot be accessed.
+     */
+    private static void measureMaps(List<PerEntityMetadata> metas) throws Exception {
+        Field entriesField = PerEntityMetadata.class.getDeclaredField("_entries");
+        entriesField.setAccessible(true);
+        List<Object> compactMaps = new ArrayList<>(metas.size());
+        List<Object> hashMaps = new ArrayList<>(metas.size());
+        for (PerEntityMetadata meta : metas) {
+            CompactEntryMap entries = (CompactEntryMap) entriesField.get(meta);
+            compactMaps.add(entries);
+            // Filled as PerEntityMetadata filled its HashMap, rather than
+            // presized by copying.
+            HashMap<String, MetadataEntry> map = new HashMap<>();
+            for (Map.Entry<String, MetadataEntry> entry : entries.entrySet()) {
+                map.put(entry.getKey(), entry.getValue());
+            }
+            hashMaps.add(map);
+        }
+
+        long compactBytes = containerBytes(GraphLayout.parseInstance(compactMaps.toArray()));
+        long hashBytes = containerBytes(GraphLayout.parseInstance(hashMaps.toArray()));
+        System.out.println();
+        System.out.println("Entry maps, excluding keys and entries:");
+        print("HashMap", hashBytes, metas.size());
+        print("CompactEntryMap", compactBytes, metas.size());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Compare the size of interned keys with per-entity copies of each key, as
+     * returned by the tag regular expression before keys were interned.
+     * 
+     * @param metas the metadata.
+     */
+    private static void measureKeys(List<PerEntityMetadata> metas) {
+        List<Object> copiedKeys = new ArrayList<>();
+        List<Object> internedKeys = new ArrayList<>();
+        for (PerEntityMetadata meta : metas) {
+            for (Map.Entry<String, MetadataEntry> entry : meta.getTagEntries().entrySet()) {
+                String key = entry.getKey();
+                copiedKeys.add(entry.getValue().getTag().substring(0, key.length()));
+                internedKeys.add(KeyRegistry.INSTANCE.lookup(key));
+            }
+        }
+
+        long copiedBytes = GraphLayout.parseInstance(copiedKeys.toArray()).totalSize();
+        long internedBytes = GraphLayout.parseInstance(internedKeys.toArray()).totalSize();
+        long registryBytes = GraphLayout.parseInstance(KeyRegistry.INSTANCE).totalSize();
+        System.out.println();
+        System.out.println("Keys (" + KeyRegistry.INSTANCE.size() + " registered):");
+        print("Per-entity key Strings", copiedBytes, metas.size());
+        print("Interned MetadataKeys", internedBytes, metas.size());
+        print("KeyRegistry, including its keys", registryBytes, metas.size());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Measure the heap held only by cached metadata, given that cached entries
+     * share their tag strings with the entity's scoreboard tags.
+     * 
+     * @param entities the entities.
+     * @param metas the metadata of each entity.
+     */
+    private static void measureTags(List<Entity> entities, List<PerEntityMetadata> metas) {
+        List<Object> tagSets = new ArrayList<>(entities.size());
+        List<Object> entryTags = new ArrayList<>();
+        for (int i = 0; i < entities.size(); ++i) {
+            tagSets.add(entities.get(i).getScoreboardTags());
+            for (MetadataEntry entry : metas.get(i).getTagEntries().values()) {
+                entryTags.add(entry.getTag());
+            }
+        }
+        List<Object> both = new ArrayList<>(tagSets);
+        both.addAll(metas);
+
+        // Entries reference their types, and through them the type registry,
+        // which is not per entity.
+        long registryBytes = GraphLayout.parseInstance(MetadataTypeManager.INSTANCE).totalSize();
+        long tagSetBytes = GraphLayout.parseInstance(tagSets.toArray()).totalSize();
+        long cacheBytes = GraphLayout.parseInstance(metas.toArray()).totalSize() - registryBytes;
+        long cacheOnlyBytes = GraphLayout.parseInstance(both.toArray()).totalSize() - tagSetBytes - registryBytes;
+        long entryTagBytes = GraphLayout.parseInstance(entryTags.toArray()).totalSize();
+        long entryBytes = ClassLayout.parseClass(MetadataEntry.class).instanceSize();
+
+        System.out.println("Entity scoreboard tags and cached metadata:");
+        print("Entity tag sets", tagSetBytes, entities.size());
+        print("Cached metadata, including tags", cacheBytes, entities.size());
+        print("Cached metadata, excluding shared tags", cacheOnlyBytes, entities.size());
+        print("Tag strings referenced by entries", entryTagBytes, entities.size());
+        System.out.println("  MetadataEntry instance size: " + entryBytes + " bytes");
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the total size of the map objects, tables, nodes and arrays in a
+     * layout.
+     * 
+     * @param layout the layout.
+     * @return the size in bytes.
+     */
+    private static long containerBytes(GraphLayout layout) {
+        Multiset<Class<?>> sizes = layout.getClassSizes();
+        long total = 0;
+        for (Class<?> c : sizes.keys()) {
+            if (c == CompactEntryMap.class || c == MetadataKey[].class || c == MetadataEntry[].class ||
+                c == HashMap.class || c.getName().startsWith("java.util.HashMap$Node") ||
+                c.getName().startsWith("[Ljava.util.HashMap$Node")) {
+                total += sizes.count(c);
+            }
+        }
+        return total;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Print a measurement as a total and per entity.
+     * 
+     * @param label the label.
+     * @param bytes the total size in bytes.
+     * @param entities the number of entities.
+     */
+    private static void print(String label, long bytes, int entities) {
+        System.out.printf("  %-40s %,12d bytes %8.1f bytes/entity%n", label, bytes, (double) bytes / entities);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The number of entities.
+     */
+    private static final int ENTITIES = 10000;
+
+    /**
+     * The number of values per entity.
+     */
+    private static final int KEYS = 4;
+
+    /**
+     * The length of the large value.
+     */
+    private static final int LARGE_VALUE_LENGTH = 400;
+} // class HeapFootprint
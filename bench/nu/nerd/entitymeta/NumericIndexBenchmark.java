@@ -0,0 +1,115 @@
+package nu.nerd.entitymeta;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.entity.Entity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// ----------------------------------------------------------------------------
+/**
+ * Measures a {@link NumericIndex} of {@link #ENTITIES} entities.
+ * <p>
+ * 
+ * Values are uniformly distributed in [0, {@link #ENTITIES}), so a range of
+ * width 100 holds about 100 entities. Each update moves a random entity to a
+ * new random value, which deletes it from one block and inserts it into
+ * another.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NumericIndexBenchmark {
+    // ------------------------------------------------------------------------
+    /**
+     * Create and fill the index.
+     */
+    @Setup
+    public void setup() {
+        _index = new NumericIndex("Bench.score");
+        for (int i = 0; i < ENTITIES; ++i) {
+            _entities[i] = BenchEntities.create(Collections.emptySet());
+            _index.put(_entities[i], _random.nextDouble() * ENTITIES);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Change the value of a random entity.
+     */
+    @Benchmark
+    public void update() {
+        _index.put(_entities[_random.nextInt(ENTITIES)], _random.nextDouble() * ENTITIES);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the 10 entities with the largest values.
+     * 
+     * @return the entities.
+     */
+    @Benchmark
+    public List<Entity> top10() {
+        return _index.top(10);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the entities in a random range of width 100.
+     * 
+     * @return the entities.
+     */
+    @Benchmark
+    public List<Entity> range100() {
+        double min = _random.nextDouble() * (ENTITIES - 100);
+        return _index.range(min, min + 100, Integer.MAX_VALUE);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Count the entities in a random range of width 100, as the query planner
+     * does to choose an index.
+     * 
+     * @return the number of entities.
+     */
+    @Benchmark
+    public int count100() {
+        double min = _random.nextDouble() * (ENTITIES - 100);
+        return _index.count(min, min + 100);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The number of indexed entities.
+     */
+    private static final int ENTITIES = 100000;
+
+    /**
+     * The index.
+     */
+    private NumericIndex _index;
+
+    /**
+     * The indexed entities.
+     */
+    private final Entity[] _entities = new Entity[ENTITIES];
+
+    /**
+     * The source of values and entity choices; seeded for repeatability.
+     */
+    private final Random _random = new Random(1);
+} // class NumericIndexBenchmark
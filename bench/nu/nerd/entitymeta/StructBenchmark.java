@@ -0,0 +1,189 @@
+package nu.nerd.entitymeta;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.entity.Entity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// ----------------------------------------------------------------------------
+/**
+ * Compares ten small integer fields stored as separate keys (ten tags) with
+ * the same fields packed into one {@link MetadataStruct} (one tag).
+ * <p>
+ * 
+ * The load benchmarks parse an entity's tags, as on a cache miss, and read
+ * every field. The update benchmarks change one field of cached metadata,
+ * which rewrites one tag in either layout.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StructBenchmark {
+    // ------------------------------------------------------------------------
+    /**
+     * Create entities holding the fields in each layout.
+     */
+    @Setup
+    public void setup() {
+        BenchEntities.configure();
+        StructSchema schema = MetadataTypeManager.INSTANCE.getSchema(SCHEMA_NAME);
+        if (schema == null) {
+            schema = new StructSchema(SCHEMA_NAME);
+            for (int i = 0; i < FIELDS; ++i) {
+                schema.addField("f" + i, Integer.class);
+            }
+            MetadataTypeManager.INSTANCE.addSchema(schema);
+        }
+
+        Set<String> separateTags = new HashSet<>();
+        StringBuilder structTag = new StringBuilder(STRUCT_KEY).append(":R:").append(SCHEMA_NAME);
+        for (int i = 0; i < FIELDS; ++i) {
+            _fieldKeys[i] = "Bench.f" + i;
+            separateTags.add(_fieldKeys[i] + ":i:" + (i * 100));
+            structTag.append(';').append(i * 100);
+        }
+        Set<String> structTags = new HashSet<>();
+        structTags.add(structTag.toString());
+
+        _separate = BenchEntities.create(separateTags);
+        _struct = BenchEntities.create(structTags);
+        _separateMeta = new PerEntityMetadata(_separate);
+        _structMeta = new PerEntityMetadata(_struct);
+        _intType = MetadataTypeManager.INSTANCE.getTypeByClass(Integer.class);
+        _structType = MetadataTypeManager.INSTANCE.getTypeByClass(MetadataStruct.class);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Parse ten tags and read the value of each.
+     * 
+     * @return the sum of the fields.
+     */
+    @Benchmark
+    public int loadSeparateKeys() {
+        PerEntityMetadata meta = new PerEntityMetadata(_separate);
+        int sum = 0;
+        for (String key : _fieldKeys) {
+            sum += (Integer) meta.getEntry(key).getValue();
+        }
+        return sum;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Parse one struct tag and read each of its fields.
+     * 
+     * @return the sum of the fields.
+     */
+    @Benchmark
+    public int loadStruct() {
+        PerEntityMetadata meta = new PerEntityMetadata(_struct);
+        MetadataStruct struct = (MetadataStruct) meta.getEntry(STRUCT_KEY).getValue();
+        int sum = 0;
+        for (int i = 0; i < FIELDS; ++i) {
+            sum += struct.getInt(i);
+        }
+        return sum;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Parse one struct tag and read one of its fields.
+     * 
+     * @return the field value.
+     */
+    @Benchmark
+    public int loadStructOneField() {
+        PerEntityMetadata meta = new PerEntityMetadata(_struct);
+        return ((MetadataStruct) meta.getEntry(STRUCT_KEY).getValue()).getInt(0);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Change the value of one of the separate keys.
+     */
+    @Benchmark
+    public void updateSeparateKey() {
+        _separateMeta.setEntry(_separate, _fieldKeys[0], ++_counter, _intType);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Change the value of one field of the struct.
+     */
+    @Benchmark
+    public void updateStructField() {
+        MetadataStruct struct = (MetadataStruct) _structMeta.getEntry(STRUCT_KEY).getValue();
+        _structMeta.setEntry(_struct, STRUCT_KEY, struct.with(0, ++_counter), _structType);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The number of fields.
+     */
+    private static final int FIELDS = 10;
+
+    /**
+     * The name of the struct schema.
+     */
+    private static final String SCHEMA_NAME = "Bench.stats";
+
+    /**
+     * The key of the struct.
+     */
+    private static final String STRUCT_KEY = "Bench.stats";
+
+    /**
+     * The keys of the separate fields.
+     */
+    private final String[] _fieldKeys = new String[FIELDS];
+
+    /**
+     * The entity with separate keys.
+     */
+    private Entity _separate;
+
+    /**
+     * The entity with a struct.
+     */
+    private Entity _struct;
+
+    /**
+     * The cached metadata of the entity with separate keys.
+     */
+    private PerEntityMetadata _separateMeta;
+
+    /**
+     * The cached metadata of the entity with a struct.
+     */
+    private PerEntityMetadata _structMeta;
+
+    /**
+     * The Integer type.
+     */
+    private MetadataType _intType;
+
+    /**
+     * The struct type.
+     */
+    private MetadataType _structType;
+
+    /**
+     * The next value written.
+     */
+    private int _counter;
+} // class StructBenchmark
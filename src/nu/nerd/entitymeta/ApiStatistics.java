@@ -0,0 +1,246 @@
+package nu.nerd.entitymeta;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bukkit.Bukkit;
+
+// ----------------------------------------------------------------------------
+/**
+ * Records the number and latency of {@link EntityMetaAPI} calls, by the name
+ * of the plugin that owns the metadata accessed.
+ * <p>
+ * 
+ * Recording is only performed when the {@code api-statistics} configuration
+ * setting is true. When it is false, the API does not call this class at all.
+ * When enabled, each call costs two reads of {@link System#nanoTime()} and
+ * a few atomic updates. The histograms of the most recently recorded plugin
+ * are kept at hand, so that a run of calls by one plugin does not look up the
+ * plugin by name each time.
+ * <p>
+ * 
+ * Cache loads (parsing of an entity's tags) are attributed to the plugin whose
+ * call on the main thread caused them.
+ */
+public final class ApiStatistics {
+    /**
+     * The single instance of this class.
+     */
+    public static final ApiStatistics INSTANCE = new ApiStatistics();
+
+    /**
+     * The pseudo plugin name to which loads not caused by an instrumented call
+     * are attributed.
+     */
+    public static final String UNKNOWN_PLUGIN = "(other)";
+
+    // ------------------------------------------------------------------------
+    /**
+     * Measured operations.
+     */
+    public enum Operation {
+        /**
+         * {@link EntityMetaAPI#get(org.bukkit.entity.Entity, String, String)}.
+         */
+        GET,
+
+        /**
+         * {@link EntityMetaAPI#set(org.bukkit.entity.Entity, String, String, Object)}
+         * and its overloads.
+         */
+        SET,
+
+        /**
+         * {@link EntityMetaAPI#clear(org.bukkit.entity.Entity, String, String)}.
+         */
+        CLEAR,
+
+        /**
+         * {@link EntityMetaAPI#getPluginEntries(org.bukkit.entity.Entity, String)}.
+         */
+        GET_PLUGIN_ENTRIES,
+
+        /**
+         * Parsing an entity's tags when its metadata is not cached.
+         */
+        LOAD
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the names of the plugins for which calls have been recorded.
+     * 
+     * @return an unmodifiable view of the plugin names.
+     */
+    public Set<String> getPluginNames() {
+        return Collections.unmodifiableSet(_plugins.keySet());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the histogram of latencies of an operation by a plugin.
+     * 
+     * @param pluginName the plugin name.
+     * @param operation the operation.
+     * @return the histogram, or null if no calls have been recorded for the
+     *         plugin.
+     */
+    public LatencyHistogram getHistogram(String pluginName, Operation operation) {
+        LatencyHistogram[] histograms = _plugins.get(pluginName);
+        return (histograms != null) ? histograms[operation.ordinal()] : null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Discard all recorded statistics.
+     */
+    public void reset() {
+        _plugins.clear();
+        _last = null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Begin timing a call by a plugin.
+     * 
+     * @param pluginName the name of the plugin that owns the metadata.
+     * @return the start time, to be passed to
+     *         {@link #end(String, Operation, long)}.
+     */
+    long begin(String pluginName) {
+        if (isMainThread()) {
+            _caller = pluginName;
+        }
+        return System.nanoTime();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Finish timing a call by a plugin and record its latency.
+     * 
+     * @param pluginName the name of the plugin that owns the metadata.
+     * @param operation the operation.
+     * @param start the value returned by {@link #begin(String)}.
+     */
+    void end(String pluginName, Operation operation, long start) {
+        record(pluginName, operation, System.nanoTime() - start);
+        if (isMainThread()) {
+            _caller = null;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record the latency of a cache load, attributing it to the plugin whose
+     * call on the main thread caused it.
+     * 
+     * @param nanos the latency in nanoseconds.
+     */
+    void recordLoad(long nanos) {
+        String caller = isMainThread() ? _caller : null;
+        record((caller != null) ? caller : UNKNOWN_PLUGIN, Operation.LOAD, nanos);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record the latency of an operation.
+     * 
+     * @param pluginName the plugin name.
+     * @param operation the operation.
+     * @param nanos the latency in nanoseconds.
+     */
+    private void record(String pluginName, Operation operation, long nanos) {
+        PluginHistograms last = _last;
+        if (last == null || !last._pluginName.equals(pluginName)) {
+            LatencyHistogram[] histograms = _plugins.get(pluginName);
+            if (histograms == null) {
+                histograms = _plugins.computeIfAbsent(pluginName, name -> {
+                    LatencyHistogram[] created = new LatencyHistogram[OPERATIONS];
+                    for (int i = 0; i < created.length; ++i) {
+                        created[i] = new LatencyHistogram();
+                    }
+                    return created;
+                });
+            }
+            last = _last = new PluginHistograms(pluginName, histograms);
+        }
+        last._histograms[operation.ordinal()].record(nanos);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the current thread is the server's main thread.
+     * 
+     * The main thread is remembered the first time it is seen, so that
+     * subsequent checks are a reference comparison rather than a call to
+     * {@link Bukkit#isPrimaryThread()}.
+     * 
+     * @return true if the current thread is the main thread.
+     */
+    private boolean isMainThread() {
+        Thread current = Thread.currentThread();
+        if (current == _mainThread) {
+            return true;
+        }
+        if (_mainThread == null && Bukkit.isPrimaryThread()) {
+            _mainThread = current;
+            return true;
+        }
+        return false;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The histograms of one plugin, paired with its name.
+     */
+    private static final class PluginHistograms {
+        /**
+         * Constructor.
+         * 
+         * @param pluginName the plugin name.
+         * @param histograms the histograms, indexed by operation ordinal.
+         */
+        PluginHistograms(String pluginName, LatencyHistogram[] histograms) {
+            _pluginName = pluginName;
+            _histograms = histograms;
+        }
+
+        /**
+         * The plugin name.
+         */
+        final String _pluginName;
+
+        /**
+         * The histograms, indexed by operation ordinal.
+         */
+        final LatencyHistogram[] _histograms;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The number of operations.
+     */
+    private static final int OPERATIONS = Operation.values().length;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Map from plugin name to histograms, indexed by operation ordinal.
+     */
+    private final ConcurrentHashMap<String, LatencyHistogram[]> _plugins = new ConcurrentHashMap<>();
+
+    /**
+     * The histograms of the most recently recorded plugin, or null.
+     */
+    private volatile PluginHistograms _last;
+
+    /**
+     * The server's main thread, once seen.
+     */
+    private volatile Thread _mainThread;
+
+    /**
+     * The plugin whose call is in progress on the main thread, if any.
+     */
+    private String _caller;
+} // class ApiStatistics
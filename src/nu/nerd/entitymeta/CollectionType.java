@@ -0,0 +1,618 @@
+package nu.nerd.entitymeta;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+
+// ----------------------------------------------------------------------------
+/**
+ * A {@link MetadataType} for a collection of elements, supporting the
+ * addition and removal of single elements.
+ * <p>
+ * 
+ * All collections are serialised between square brackets, so that an empty
+ * collection still has a non-empty serialised form. Appending an element
+ * splices its encoding in before the closing bracket, without re-encoding the
+ * existing elements.
+ * <p>
+ * 
+ * Collections are held in memory as primitive arrays ({@code int[]},
+ * {@code long[]} and {@code double[]}) or as the array-backed
+ * {@link UUIDList} and {@link StringList}. Like all metadata values, they
+ * must not be modified; {@link #append(Object, Object)} and
+ * {@link #remove(Object, Object)} return new instances.
+ */
+abstract class CollectionType extends MetadataType {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     * 
+     * @param code the type code.
+     * @param clazz the Java class of the collection.
+     * @param elementClass the Java class of elements, boxed if primitive.
+     */
+    CollectionType(char code, Class<?> clazz, Class<?> elementClass) {
+        super(code, clazz);
+        _elementClass = elementClass;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the class of elements, boxed if primitive.
+     * 
+     * @return the class of elements.
+     */
+    Class<?> getElementClass() {
+        return _elementClass;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Check that an element can be added to a collection of this type without
+     * loss, and return it as an instance of the element class.
+     * 
+     * By default, the element must be an instance of the element class.
+     * Primitive arrays also accept other boxed numbers that convert exactly.
+     * 
+     * @param element the element; must be non-null.
+     * @return the element, as an instance of the element class.
+     * @throws EntityMetadataException if the element is of the wrong type or
+     *         out of range.
+     */
+    Object checkElement(Object element) throws EntityMetadataException {
+        if (!_elementClass.isInstance(element)) {
+            throw new EntityMetadataException("wrong collection element type");
+        }
+        return element;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a new collection with the element appended.
+     * 
+     * @param collection the collection, or null to create a new collection.
+     * @param element the element; must be an instance of the element class.
+     * @return the new collection.
+     */
+    abstract Object append(Object collection, Object element);
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a new collection without the first occurrence of the element, or
+     * the same collection if it does not contain the element.
+     * 
+     * @param collection the collection.
+     * @param element the element.
+     * @return the new collection, or the original if unchanged.
+     */
+    abstract Object remove(Object collection, Object element);
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the encoding of a single element, as it appears in the serialised
+     * collection, including any separator.
+     * 
+     * @param element the element.
+     * @param first true if the element will be the first in the collection.
+     * @return the encoded element.
+     */
+    abstract String encodeElement(Object element, boolean first);
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the serialised form of a collection after appending an element,
+     * without re-encoding the other elements.
+     * 
+     * @param serialised the serialised collection.
+     * @param element the element to append.
+     * @return the serialised form of the new collection.
+     */
+    String appendToString(String serialised, Object element) {
+        boolean first = (serialised.length() <= 2);
+        return serialised.substring(0, serialised.length() - 1) + encodeElement(element, first) + ']';
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if an object is a boxed integral number: a Byte, Short,
+     * Integer or Long.
+     * 
+     * @param element the object.
+     * @return true if the object is a boxed integral number.
+     */
+    static boolean isIntegral(Object element) {
+        return element instanceof Integer || element instanceof Long ||
+               element instanceof Short || element instanceof Byte;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the contents of a serialised collection between the brackets.
+     * 
+     * @param value the serialised collection.
+     * @return the contents.
+     * @throws IllegalArgumentException if the brackets are missing.
+     */
+    static String unwrap(String value) throws IllegalArgumentException {
+        if (value.length() < 2 || value.charAt(0) != '[' || value.charAt(value.length() - 1) != ']') {
+            throw new IllegalArgumentException("collection must be enclosed in []");
+        }
+        return value.substring(1, value.length() - 1);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Encodes int[] as comma-separated decimal.
+     */
+    static final class IntArrayType extends CollectionType {
+        /**
+         * Constructor.
+         */
+        IntArrayType() {
+            super('I', int[].class, Integer.class);
+        }
+
+        @Override
+        public String toString(Object value) {
+            int[] array = (int[]) value;
+            StringBuilder s = new StringBuilder(2 + 4 * array.length).append('[');
+            for (int i = 0; i < array.length; ++i) {
+                if (i > 0) {
+                    s.append(',');
+                }
+                s.append(array[i]);
+            }
+            return s.append(']').toString();
+        }
+
+        @Override
+        public Object fromString(String value) {
+            String contents = unwrap(value);
+            if (contents.isEmpty()) {
+                return new int[0];
+            }
+            String[] parts = contents.split(",");
+            int[] array = new int[parts.length];
+            for (int i = 0; i < parts.length; ++i) {
+                array[i] = Integer.parseInt(parts[i]);
+            }
+            return array;
+        }
+
+        @Override
+        Object checkElement(Object element) throws EntityMetadataException {
+            if (!isIntegral(element)) {
+                throw new EntityMetadataException("wrong collection element type");
+            }
+            long value = ((Number) element).longValue();
+            if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+                throw new EntityMetadataException(value + " is out of range for an int[] element");
+            }
+            return (int) value;
+        }
+
+        @Override
+        Object append(Object collection, Object element) {
+            int[] array = (collection != null) ? (int[]) collection : new int[0];
+            int[] result = Arrays.copyOf(array, array.length + 1);
+            result[array.length] = ((Number) element).intValue();
+            return result;
+        }
+
+        @Override
+        Object remove(Object collection, Object element) {
+            if (!isIntegral(element) || ((Number) element).longValue() != ((Number) element).intValue()) {
+                return collection;
+            }
+            int[] array = (int[]) collection;
+            int value = ((Number) element).intValue();
+            for (int i = 0; i < array.length; ++i) {
+                if (array[i] == value) {
+                    int[] result = new int[array.length - 1];
+                    System.arraycopy(array, 0, result, 0, i);
+                    System.arraycopy(array, i + 1, result, i, result.length - i);
+                    return result;
+                }
+            }
+            return collection;
+        }
+
+        @Override
+        String encodeElement(Object element, boolean first) {
+            String encoded = Integer.toString(((Number) element).intValue());
+            return first ? encoded : "," + encoded;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Encodes long[] as comma-separated decimal.
+     */
+    static final class LongArrayType extends CollectionType {
+        /**
+         * Constructor.
+         */
+        LongArrayType() {
+            super('L', long[].class, Long.class);
+        }
+
+        @Override
+        public String toString(Object value) {
+            long[] array = (long[]) value;
+            StringBuilder s = new StringBuilder(2 + 8 * array.length).append('[');
+            for (int i = 0; i < array.length; ++i) {
+                if (i > 0) {
+                    s.append(',');
+                }
+                s.append(array[i]);
+            }
+            return s.append(']').toString();
+        }
+
+        @Override
+        public Object fromString(String value) {
+            String contents = unwrap(value);
+            if (contents.isEmpty()) {
+                return new long[0];
+            }
+            String[] parts = contents.split(",");
+            long[] array = new long[parts.length];
+            for (int i = 0; i < parts.length; ++i) {
+                array[i] = Long.parseLong(parts[i]);
+            }
+            return array;
+        }
+
+        @Override
+        Object checkElement(Object element) throws EntityMetadataException {
+            if (!isIntegral(element)) {
+                throw new EntityMetadataException("wrong collection element type");
+            }
+            return ((Number) element).longValue();
+        }
+
+        @Override
+        Object append(Object collection, Object element) {
+            long[] array = (collection != null) ? (long[]) collection : new long[0];
+            long[] result = Arrays.copyOf(array, array.length + 1);
+            result[array.length] = ((Number) element).longValue();
+            return result;
+        }
+
+        @Override
+        Object remove(Object collection, Object element) {
+            if (!isIntegral(element)) {
+                return collection;
+            }
+            long[] array = (long[]) collection;
+            long value = ((Number) element).longValue();
+            for (int i = 0; i < array.length; ++i) {
+                if (array[i] == value) {
+                    long[] result = new long[array.length - 1];
+                    System.arraycopy(array, 0, result, 0, i);
+                    System.arraycopy(array, i + 1, result, i, result.length - i);
+                    return result;
+                }
+            }
+            return collection;
+        }
+
+        @Override
+        String encodeElement(Object element, boolean first) {
+            String encoded = Long.toString(((Number) element).longValue());
+            return first ? encoded : "," + encoded;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Encodes double[] as the concatenated, unpadded, URL-safe Base64 encoding
+     * of the 8-byte IEEE 754 representation of each element (11 characters
+     * per element, exactly preserving the value).
+     */
+    static final class DoubleArrayType extends CollectionType {
+        /**
+         * Constructor.
+         */
+        DoubleArrayType() {
+            super('D', double[].class, Double.class);
+        }
+
+        @Override
+        public String toString(Object value) {
+            double[] array = (double[]) value;
+            ByteBuffer buffer = ByteBuffer.allocate(8 * array.length);
+            for (double d : array) {
+                buffer.putDouble(d);
+            }
+            return '[' + encodeChunks(buffer.array(), 8) + ']';
+        }
+
+        @Override
+        public Object fromString(String value) {
+            ByteBuffer buffer = ByteBuffer.wrap(decodeChunks(unwrap(value), 8));
+            double[] array = new double[buffer.remaining() / 8];
+            for (int i = 0; i < array.length; ++i) {
+                array[i] = buffer.getDouble();
+            }
+            return array;
+        }
+
+        @Override
+        Object checkElement(Object element) throws EntityMetadataException {
+            if (!(element instanceof Number)) {
+                throw new EntityMetadataException("wrong collection element type");
+            }
+            return ((Number) element).doubleValue();
+        }
+
+        @Override
+        Object append(Object collection, Object element) {
+            double[] array = (collection != null) ? (double[]) collection : new double[0];
+            double[] result = Arrays.copyOf(array, array.length + 1);
+            result[array.length] = ((Number) element).doubleValue();
+            return result;
+        }
+
+        @Override
+        Object remove(Object collection, Object element) {
+            if (!(element instanceof Number)) {
+                return collection;
+            }
+            double[] array = (double[]) collection;
+            long bits = Double.doubleToLongBits(((Number) element).doubleValue());
+            for (int i = 0; i < array.length; ++i) {
+                if (Double.doubleToLongBits(array[i]) == bits) {
+                    double[] result = new double[array.length - 1];
+                    System.arraycopy(array, 0, result, 0, i);
+                    System.arraycopy(array, i + 1, result, i, result.length - i);
+                    return result;
+                }
+            }
+            return collection;
+        }
+
+        @Override
+        String encodeElement(Object element, boolean first) {
+            return ENCODER.encodeToString(ByteBuffer.allocate(8).putDouble(((Number) element).doubleValue()).array());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Encodes {@link UUIDList} as the concatenated, unpadded, URL-safe Base64
+     * encoding of each 16-byte UUID (22 characters per element).
+     */
+    static final class UUIDListType extends CollectionType {
+        /**
+         * Constructor.
+         */
+        UUIDListType() {
+            super('U', UUIDList.class, UUID.class);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object normalise(Object value) {
+            return (value instanceof UUIDList) ? value : new UUIDList((List<UUID>) value);
+        }
+
+        @Override
+        public String toString(Object value) {
+            long[] bits = ((UUIDList) normalise(value)).getBits();
+            ByteBuffer buffer = ByteBuffer.allocate(8 * bits.length);
+            for (long b : bits) {
+                buffer.putLong(b);
+            }
+            return '[' + encodeChunks(buffer.array(), 16) + ']';
+        }
+
+        @Override
+        public Object fromString(String value) {
+            ByteBuffer buffer = ByteBuffer.wrap(decodeChunks(unwrap(value), 16));
+            long[] bits = new long[buffer.remaining() / 8];
+            for (int i = 0; i < bits.length; ++i) {
+                bits[i] = buffer.getLong();
+            }
+            return new UUIDList(bits);
+        }
+
+        @Override
+        Object append(Object collection, Object element) {
+            long[] bits = (collection != null) ? ((UUIDList) collection).getBits() : new long[0];
+            long[] result = Arrays.copyOf(bits, bits.length + 2);
+            UUID uuid = (UUID) element;
+            result[bits.length] = uuid.getMostSignificantBits();
+            result[bits.length + 1] = uuid.getLeastSignificantBits();
+            return new UUIDList(result);
+        }
+
+        @Override
+        Object remove(Object collection, Object element) {
+            UUIDList list = (UUIDList) collection;
+            int index = list.indexOf(element);
+            if (index < 0) {
+                return collection;
+            }
+            long[] bits = list.getBits();
+            long[] result = new long[bits.length - 2];
+            System.arraycopy(bits, 0, result, 0, 2 * index);
+            System.arraycopy(bits, 2 * index + 2, result, 2 * index, result.length - 2 * index);
+            return new UUIDList(result);
+        }
+
+        @Override
+        String encodeElement(Object element, boolean first) {
+            UUID uuid = (UUID) element;
+            ByteBuffer buffer = ByteBuffer.allocate(16);
+            buffer.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+            return ENCODER.encodeToString(buffer.array());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Encodes {@link StringList} with each element followed by a comma, and
+     * backslashes and commas within elements escaped with a backslash. An
+     * empty list is therefore "[]" and a list of one empty string is "[,]".
+     */
+    static final class StringListType extends CollectionType {
+        /**
+         * Constructor.
+         */
+        StringListType() {
+            super('T', StringList.class, String.class);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object normalise(Object value) {
+            return (value instanceof StringList) ? value : new StringList((List<String>) value);
+        }
+
+        @Override
+        public String toString(Object value) {
+            StringBuilder s = new StringBuilder().append('[');
+            for (String element : ((StringList) normalise(value)).getStrings()) {
+                s.append(encodeElement(element, false));
+            }
+            return s.append(']').toString();
+        }
+
+        @Override
+        public Object fromString(String value) {
+            String contents = unwrap(value);
+            String[] strings = new String[countTerminators(contents)];
+            StringBuilder element = new StringBuilder();
+            int count = 0;
+            for (int i = 0; i < contents.length(); ++i) {
+                char c = contents.charAt(i);
+                if (c == '\\' && i + 1 < contents.length()) {
+                    element.append(contents.charAt(++i));
+                } else if (c == ',') {
+                    strings[count++] = element.toString();
+                    element.setLength(0);
+                } else {
+                    element.append(c);
+                }
+            }
+            if (element.length() != 0) {
+                throw new IllegalArgumentException("unterminated string list element");
+            }
+            return new StringList(strings);
+        }
+
+        @Override
+        Object append(Object collection, Object element) {
+            String[] strings = (collection != null) ? ((StringList) collection).getStrings() : new String[0];
+            String[] result = Arrays.copyOf(strings, strings.length + 1);
+            result[strings.length] = (String) element;
+            return new StringList(result);
+        }
+
+        @Override
+        Object remove(Object collection, Object element) {
+            StringList list = (StringList) collection;
+            int index = list.indexOf(element);
+            if (index < 0) {
+                return collection;
+            }
+            String[] strings = list.getStrings();
+            String[] result = new String[strings.length - 1];
+            System.arraycopy(strings, 0, result, 0, index);
+            System.arraycopy(strings, index + 1, result, index, result.length - index);
+            return new StringList(result);
+        }
+
+        @Override
+        String encodeElement(Object element, boolean first) {
+            String string = (String) element;
+            StringBuilder s = new StringBuilder(string.length() + 1);
+            for (int i = 0; i < string.length(); ++i) {
+                char c = string.charAt(i);
+                if (c == '\\' || c == ',') {
+                    s.append('\\');
+                }
+                s.append(c);
+            }
+            return s.append(',').toString();
+        }
+
+        /**
+         * Count the unescaped commas that terminate elements.
+         * 
+         * @param contents the serialised list without brackets.
+         * @return the number of elements.
+         */
+        private static int countTerminators(String contents) {
+            int count = 0;
+            for (int i = 0; i < contents.length(); ++i) {
+                char c = contents.charAt(i);
+                if (c == '\\') {
+                    ++i;
+                } else if (c == ',') {
+                    ++count;
+                }
+            }
+            return count;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Encode bytes as concatenated Base64 chunks, each encoding a fixed
+     * number of bytes.
+     * 
+     * @param bytes the bytes; the length must be a multiple of chunkSize.
+     * @param chunkSize the number of bytes per chunk.
+     * @return the encoded chunks.
+     */
+    static String encodeChunks(byte[] bytes, int chunkSize) {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < bytes.length; i += chunkSize) {
+            s.append(ENCODER.encodeToString(Arrays.copyOfRange(bytes, i, i + chunkSize)));
+        }
+        return s.toString();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Decode concatenated Base64 chunks, each encoding a fixed number of bytes.
+     * 
+     * @param encoded the encoded chunks.
+     * @param chunkSize the number of bytes per chunk.
+     * @return the decoded bytes.
+     * @throws IllegalArgumentException if the encoding is invalid.
+     */
+    static byte[] decodeChunks(String encoded, int chunkSize) throws IllegalArgumentException {
+        int chunkChars = (4 * chunkSize + 2) / 3;
+        if (encoded.length() % chunkChars != 0) {
+            throw new IllegalArgumentException("invalid Base64 collection length");
+        }
+        int chunks = encoded.length() / chunkChars;
+        byte[] bytes = new byte[chunks * chunkSize];
+        for (int i = 0; i < chunks; ++i) {
+            byte[] chunk = DECODER.decode(encoded.substring(i * chunkChars, (i + 1) * chunkChars));
+            System.arraycopy(chunk, 0, bytes, i * chunkSize, chunkSize);
+        }
+        return bytes;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Base64 encoder of elements.
+     */
+    static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    /**
+     * Base64 decoder of elements.
+     */
+    static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    /**
+     * The class of elements, boxed if primitive.
+     */
+    private final Class<?> _elementClass;
+} // class CollectionType
@@ -0,0 +1,447 @@
+package nu.nerd.entitymeta;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+// ----------------------------------------------------------------------------
+/**
+ * A map from key to {@link MetadataEntry} that is optimised for the small
+ * number of entries that most entities have.
+ * <p>
+ * 
+ * Up to {@link #THRESHOLD} entries are held in parallel arrays of keys and
+ * values, which are searched linearly. That costs two small arrays, rather
+ * than a HashMap, its table and one node per entry.
+ * <p>
+ * 
+ * Keys are interned by the {@link KeyRegistry}, so that all entities share
+ * one instance of each key, and are compared by identity. Lookups by String
+ * first find the registered key; a key that was never registered cannot be
+ * present.
+ * <p>
+ * 
+ * A 64-bit mask records which key ids, modulo 64, may be present, so that
+ * most lookups of absent registered keys are answered without a search.
+ * <p>
+ * 
+ * When an entry is added beyond the threshold, the entries are moved to a
+ * HashMap, which is then used for the lifetime of this map.
+ * <p>
+ * 
+ * Iteration order is unspecified. Like HashMap, this class is not thread
+ * safe.
+ */
+final class CompactEntryMap extends AbstractMap<String, MetadataEntry> {
+    /**
+     * The maximum number of entries held in arrays.
+     */
+    static final int THRESHOLD = 8;
+
+    /**
+     * The initial capacity of the arrays.
+     */
+    static final int INITIAL_CAPACITY = 4;
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see java.util.AbstractMap#size()
+     */
+    @Override
+    public int size() {
+        return (_map != null) ? _map.size() : _size;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see java.util.AbstractMap#isEmpty()
+     */
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see java.util.AbstractMap#containsKey(java.lang.Object)
+     */
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see java.util.AbstractMap#get(java.lang.Object)
+     */
+    @Override
+    public MetadataEntry get(Object key) {
+        if (_map != null) {
+            if (key instanceof MetadataKey && !mayContain((MetadataKey) key)) {
+                return null;
+            }
+            return _map.get(toName(key));
+        }
+        int index = indexOf(toKey(key));
+        return (index >= 0) ? _values[index] : null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see java.util.AbstractMap#put(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public MetadataEntry put(String key, MetadataEntry value) {
+        return put(KeyRegistry.INSTANCE.intern(key), value);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Associate a value with a key.
+     * 
+     * @param key the key.
+     * @param value the value.
+     * @return the previous value, or null.
+     * @see java.util.AbstractMap#put(java.lang.Object, java.lang.Object)
+     */
+    MetadataEntry put(MetadataKey key, MetadataEntry value) {
+        _mask |= bit(key);
+        if (_map != null) {
+            return _map.put(key.getName(), value);
+        }
+
+        int index = indexOf(key);
+        if (index >= 0) {
+            MetadataEntry old = _values[index];
+            _values[index] = value;
+            return old;
+        }
+
+        if (_size == THRESHOLD) {
+            _map = new HashMap<>(2 * THRESHOLD);
+            for (int i = 0; i < _size; ++i) {
+                _map.put(_keys[i].getName(), _values[i]);
+            }
+            _keys = null;
+            _values = null;
+            _size = 0;
+            return _map.put(key.getName(), value);
+        }
+
+        if (_keys == null) {
+            _keys = new MetadataKey[INITIAL_CAPACITY];
+            _values = new MetadataEntry[INITIAL_CAPACITY];
+        } else if (_size == _keys.length) {
+            MetadataKey[] keys = new MetadataKey[Math.min(2 * _size, THRESHOLD)];
+            MetadataEntry[] values = new MetadataEntry[keys.length];
+            System.arraycopy(_keys, 0, keys, 0, _size);
+            System.arraycopy(_values, 0, values, 0, _size);
+            _keys = keys;
+            _values = values;
+        }
+        _keys[_size] = key;
+        _values[_size] = value;
+        ++_size;
+        return null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see java.util.AbstractMap#remove(java.lang.Object)
+     */
+    @Override
+    public MetadataEntry remove(Object key) {
+        if (_map != null) {
+            return _map.remove(toName(key));
+        }
+        int index = indexOf(toKey(key));
+        if (index < 0) {
+            return null;
+        }
+        MetadataEntry old = _values[index];
+        removeAt(index);
+        return old;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see java.util.AbstractMap#clear()
+     */
+    @Override
+    public void clear() {
+        _mask = 0;
+        _map = null;
+        _keys = null;
+        _values = null;
+        _size = 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see java.util.AbstractMap#entrySet()
+     */
+    @Override
+    public Set<Map.Entry<String, MetadataEntry>> entrySet() {
+        if (_map != null) {
+            return _map.entrySet();
+        }
+        return new AbstractSet<Map.Entry<String, MetadataEntry>>() {
+            @Override
+            public Iterator<Map.Entry<String, MetadataEntry>> iterator() {
+                return new ArrayIterator();
+            }
+
+            @Override
+            public int size() {
+                return _size;
+            }
+        };
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return an estimate of the heap memory used by this map, excluding keys
+     * and values, in bytes.
+     * 
+     * @return the estimated size in bytes.
+     */
+    int estimateSize() {
+        if (_map != null) {
+            // HashMap, its table at the default load factor and its nodes.
+            int tableLength = Math.max(2 * THRESHOLD, Integer.highestOneBit(2 * _map.size()));
+            return 48 + 16 + 4 * tableLength + 32 * _map.size();
+        }
+        return 32 + ((_keys == null) ? 0 : 2 * (16 + 4 * _keys.length));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Iterates over the entries held in arrays.
+     */
+    private final class ArrayIterator implements Iterator<Map.Entry<String, MetadataEntry>> {
+        @Override
+        public boolean hasNext() {
+            return _next < _size;
+        }
+
+        @Override
+        public Map.Entry<String, MetadataEntry> next() {
+            if (_next >= _size) {
+                throw new NoSuchElementException();
+            }
+            _last = _next++;
+            return new ArrayEntry(_last);
+        }
+
+        @Override
+        public void remove() {
+            if (_last < 0) {
+                throw new IllegalStateException();
+            }
+            // The last entry is moved into the removed slot, so visit it next.
+            removeAt(_last);
+            _next = _last;
+            _last = -1;
+        }
+
+        /**
+         * Index of the next entry to return.
+         */
+        private int _next;
+
+        /**
+         * Index of the entry last returned, or -1 if removed.
+         */
+        private int _last = -1;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * An entry held in arrays, which writes through to the arrays.
+     */
+    private final class ArrayEntry implements Map.Entry<String, MetadataEntry> {
+        /**
+         * Constructor.
+         * 
+         * @param index the index of the entry in the arrays.
+         */
+        ArrayEntry(int index) {
+            _key = _keys[index].getName();
+            _index = index;
+        }
+
+        @Override
+        public String getKey() {
+            return _key;
+        }
+
+        @Override
+        public MetadataEntry getValue() {
+            return _values[_index];
+        }
+
+        @Override
+        public MetadataEntry setValue(MetadataEntry value) {
+            MetadataEntry old = _values[_index];
+            _values[_index] = value;
+            return old;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> other = (Map.Entry<?, ?>) o;
+            return _key.equals(other.getKey()) && getValue().equals(other.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return _key.hashCode() ^ getValue().hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return _key + "=" + getValue();
+        }
+
+        /**
+         * The key.
+         */
+        private final String _key;
+
+        /**
+         * The index of the entry in the arrays.
+         */
+        private final int _index;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the index of a key in the arrays, or -1 if not present.
+     * 
+     * @param key the key, or null for a key that cannot be present.
+     * @return the index, or -1.
+     */
+    private int indexOf(MetadataKey key) {
+        if (key != null && mayContain(key)) {
+            for (int i = 0; i < _size; ++i) {
+                if (_keys[i].sameAs(key)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Convert a key passed to a Map method to a {@link MetadataKey} without
+     * registering it.
+     * 
+     * @param key a String or {@link MetadataKey}.
+     * @return the {@link MetadataKey}, or null if the key cannot be present.
+     */
+    private static MetadataKey toKey(Object key) {
+        if (key instanceof MetadataKey) {
+            return (MetadataKey) key;
+        } else if (!(key instanceof String)) {
+            return null;
+        }
+        MetadataKey metadataKey = KeyRegistry.INSTANCE.lookup((String) key);
+        if (metadataKey == null && KeyRegistry.INSTANCE.isFull()) {
+            metadataKey = new MetadataKey((String) key, -1);
+        }
+        return metadataKey;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Convert a key passed to a Map method to the String key of the HashMap.
+     * 
+     * @param key a String or {@link MetadataKey}.
+     * @return the String key.
+     */
+    private static Object toName(Object key) {
+        return (key instanceof MetadataKey) ? ((MetadataKey) key).getName() : key;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove the entry at an index of the arrays by moving the last entry
+     * into its place.
+     * 
+     * @param index the index.
+     */
+    private void removeAt(int index) {
+        --_size;
+        _keys[index] = _keys[_size];
+        _values[index] = _values[_size];
+        _keys[_size] = null;
+        _values[_size] = null;
+
+        _mask = 0;
+        for (int i = 0; i < _size; ++i) {
+            _mask |= bit(_keys[i]);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the mask indicates that a key may be present.
+     * 
+     * In HashMap mode, bits are not cleared when keys are removed, so the mask
+     * may report removed keys as possibly present.
+     * 
+     * @param key the key.
+     * @return false if the key is definitely not present.
+     */
+    private boolean mayContain(MetadataKey key) {
+        return (_mask & bit(key)) != 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the bit of the mask corresponding to a key.
+     * 
+     * Unregistered keys correspond to all bits.
+     * 
+     * @param key the key.
+     * @return the bit.
+     */
+    private static long bit(MetadataKey key) {
+        // Shifts of a long use the low 6 bits of the id.
+        return (key.getId() < 0) ? -1L : 1L << key.getId();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Keys, when not using the HashMap; null until the first entry is added.
+     */
+    private MetadataKey[] _keys;
+
+    /**
+     * Values corresponding to _keys.
+     */
+    private MetadataEntry[] _values;
+
+    /**
+     * Number of entries in the arrays.
+     */
+    private int _size;
+
+    /**
+     * Bits corresponding to the ids of keys that may be present.
+     */
+    private long _mask;
+
+    /**
+     * The HashMap used once the number of entries has exceeded THRESHOLD.
+     */
+    private HashMap<String, MetadataEntry> _map;
+} // class CompactEntryMap
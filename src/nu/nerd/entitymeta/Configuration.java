@@ -1,7 +1,10 @@
 package nu.nerd.entitymeta;
 
+import java.util.HashMap;
 import java.util.logging.Logger;
 
+import org.bukkit.configuration.ConfigurationSection;
+
 import org.bukkit.configuration.file.FileConfiguration;
 
 // ----------------------------------------------------------------------------
@@ -30,6 +33,89 @@ public class Configuration {
      */
     public int CACHE_SECONDS;
 
+    /**
+     * If positive, the cache is bounded by the estimated memory of the cached
+     * metadata in bytes, rather than by CACHE_SIZE.
+     */
+    public long CACHE_MAX_BYTES;
+
+    /**
+     * If true, reads only insert metadata into a full cache if the entity has
+     * been looked up recently.
+     */
+    public boolean CACHE_ADMISSION;
+
+    /**
+     * If true, record the number and latency of API calls by plugin.
+     */
+    public boolean API_STATISTICS;
+
+    /**
+     * Parsing, encoding, decoding and tag writes that take at least this many
+     * microseconds are logged; 0 disables detection.
+     */
+    public int SLOW_OPERATION_MICROS;
+
+    /**
+     * Maximum number of slow operations logged per second.
+     */
+    public int SLOW_OPERATION_MAX_LOGS_PER_SECOND;
+
+    /**
+     * If true, record metrics and serve them over HTTP. Only read when the
+     * plugin is enabled.
+     */
+    public boolean METRICS_ENABLED;
+
+    /**
+     * The address the metrics endpoint binds to. Only read when the plugin is
+     * enabled.
+     */
+    public String METRICS_ADDRESS;
+
+    /**
+     * The port of the metrics endpoint. Only read when the plugin is enabled.
+     */
+    public int METRICS_PORT;
+
+    /**
+     * Maximum number of records applied per tick by a bulk import.
+     */
+    public int IMPORT_RECORDS_PER_TICK;
+
+    /**
+     * Maximum number of ticks between writes of changed counters to tags.
+     */
+    public int COUNTER_FLUSH_TICKS;
+
+    /**
+     * Maximum number of expired metadata values removed per tick.
+     */
+    public int EXPIRY_REMOVALS_PER_TICK;
+
+    /**
+     * If true, values larger than SIDE_STORE_THRESHOLD_BYTES are written to
+     * the side store. Only read when the plugin is enabled.
+     */
+    public boolean SIDE_STORE_ENABLED;
+
+    /**
+     * The side store file, relative to the plugin's data folder. Only read
+     * when the plugin is enabled.
+     */
+    public String SIDE_STORE_FILE;
+
+    /**
+     * Serialised values longer than this many bytes are side-stored.
+     */
+    public int SIDE_STORE_THRESHOLD_BYTES;
+
+    /**
+     * The side store is compacted when the bytes of superseded records exceed
+     * the bytes of live records times this ratio.
+     */
+    public double SIDE_STORE_COMPACT_RATIO;
+
     // ------------------------------------------------------------------------
     /**
      * Reload the configuration file.
@@ -41,15 +127,72 @@ public class Configuration {
         DEBUG_EXPIRY = getConfig().getBoolean("debug.expiry");
         CACHE_SIZE = getConfig().getInt("cache-size");
         CACHE_SECONDS = getConfig().getInt("cache-seconds");
+        CACHE_MAX_BYTES = getConfig().getLong("cache-max-bytes");
+        CACHE_ADMISSION = getConfig().getBoolean("cache-admission");
+        API_STATISTICS = getConfig().getBoolean("api-statistics");
+        SLOW_OPERATION_MICROS = getConfig().getInt("slow-operations.threshold-micros");
+        SLOW_OPERATION_MAX_LOGS_PER_SECOND = getConfig().getInt("slow-operations.max-logs-per-second");
+        METRICS_ENABLED = getConfig().getBoolean("metrics.enabled");
+        METRICS_ADDRESS = getConfig().getString("metrics.address");
+        METRICS_PORT = getConfig().getInt("metrics.port");
+        IMPORT_RECORDS_PER_TICK = getConfig().getInt("import.records-per-tick");
+        COUNTER_FLUSH_TICKS = getConfig().getInt("counter-flush-ticks");
+        EXPIRY_REMOVALS_PER_TICK = getConfig().getInt("expiry.removals-per-tick");
+        SIDE_STORE_ENABLED = getConfig().getBoolean("side-store.enabled");
+        SIDE_STORE_FILE = getConfig().getString("side-store.file");
+        SIDE_STORE_THRESHOLD_BYTES = getConfig().getInt("side-store.threshold-bytes");
+        SIDE_STORE_COMPACT_RATIO = getConfig().getDouble("side-store.compact-ratio");
+
+        _defaultTagLimits = TagLimits.load(getConfig().getConfigurationSection("tag-limits"),
+            new TagLimits(0, 0, 0, 0));
+        _pluginTagLimits.clear();
+        ConfigurationSection plugins = getConfig().getConfigurationSection("tag-limits.plugins");
+        if (plugins != null) {
+            for (String pluginName : plugins.getKeys(false)) {
+                _pluginTagLimits.put(pluginName, TagLimits.load(plugins.getConfigurationSection(pluginName), _defaultTagLimits));
+            }
+        }
+
         if (DEBUG_CONFIG) {
             getLogger().info("Configuration:");
             getLogger().info("DEBUG_EXPIRY: " + DEBUG_EXPIRY);
             getLogger().info("CACHE_SIZE: " + CACHE_SIZE);
             getLogger().info("CACHE_SECONDS: " + CACHE_SECONDS);
+            getLogger().info("CACHE_MAX_BYTES: " + CACHE_MAX_BYTES);
+            getLogger().info("CACHE_ADMISSION: " + CACHE_ADMISSION);
+            getLogger().info("API_STATISTICS: " + API_STATISTICS);
+            getLogger().info("SLOW_OPERATION_MICROS: " + SLOW_OPERATION_MICROS);
+            getLogger().info("SLOW_OPERATION_MAX_LOGS_PER_SECOND: " + SLOW_OPERATION_MAX_LOGS_PER_SECOND);
+            getLogger().info("METRICS_ENABLED: " + METRICS_ENABLED);
+            getLogger().info("METRICS_ADDRESS: " + METRICS_ADDRESS);
+            getLogger().info("METRICS_PORT: " + METRICS_PORT);
+            getLogger().info("IMPORT_RECORDS_PER_TICK: " + IMPORT_RECORDS_PER_TICK);
+            getLogger().info("COUNTER_FLUSH_TICKS: " + COUNTER_FLUSH_TICKS);
+            getLogger().info("EXPIRY_REMOVALS_PER_TICK: " + EXPIRY_REMOVALS_PER_TICK);
+            getLogger().info("SIDE_STORE_ENABLED: " + SIDE_STORE_ENABLED);
+            getLogger().info("SIDE_STORE_FILE: " + SIDE_STORE_FILE);
+            getLogger().info("SIDE_STORE_THRESHOLD_BYTES: " + SIDE_STORE_THRESHOLD_BYTES);
+            getLogger().info("SIDE_STORE_COMPACT_RATIO: " + SIDE_STORE_COMPACT_RATIO);
+            getLogger().info("Default tag limits: " + _defaultTagLimits);
+            for (String pluginName : _pluginTagLimits.keySet()) {
+                getLogger().info(pluginName + " tag limits: " + _pluginTagLimits.get(pluginName));
+            }
             EntityMeta.api().rebuildCache();
         }
     }
 
+    // ------------------------------------------------------------------------
+    /**
+     * Return the tag limits that apply to the specified plugin.
+     * 
+     * @param pluginName the plugin name.
+     * @return the tag limits.
+     */
+    TagLimits getTagLimits(String pluginName) {
+        TagLimits limits = _pluginTagLimits.get(pluginName);
+        return (limits != null) ? limits : _defaultTagLimits;
+    }
+
     // ------------------------------------------------------------------------
     /**
      * Return the plugin's FileConfiguration.
@@ -69,4 +212,15 @@ public class Configuration {
     protected Logger getLogger() {
         return EntityMeta.PLUGIN.getLogger();
     }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Tag limits applying to plugins not listed in {@link #_pluginTagLimits}.
+     */
+    private TagLimits _defaultTagLimits = new TagLimits(0, 0, 0, 0);
+
+    /**
+     * Map from plugin name to tag limits specific to that plugin.
+     */
+    private final HashMap<String, TagLimits> _pluginTagLimits = new HashMap<>();
 } // class Configuration
\ No newline at end of file
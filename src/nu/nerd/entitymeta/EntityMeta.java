@@ -1,15 +1,22 @@
 package nu.nerd.entitymeta;
 
+import java.io.File;
 import java.util.List;
 
 import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.entity.EntityDeathEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
 import org.bukkit.event.player.PlayerInteractAtEntityEvent;
 import org.bukkit.event.player.PlayerInteractEntityEvent;
 import org.bukkit.event.player.PlayerInteractEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.metadata.MetadataValue;
 import org.bukkit.plugin.java.JavaPlugin;
@@ -17,10 +24,15 @@ import org.bukkit.plugin.java.JavaPlugin;
 import nu.nerd.entitymeta.commands.ClearCommand;
 import nu.nerd.entitymeta.commands.FindCommand;
 import nu.nerd.entitymeta.commands.GetCommand;
+import nu.nerd.entitymeta.commands.ImportCommand;
 import nu.nerd.entitymeta.commands.ListCommand;
+import nu.nerd.entitymeta.commands.QueryCommand;
 import nu.nerd.entitymeta.commands.ReloadCommand;
+import nu.nerd.entitymeta.commands.ReportCommand;
 import nu.nerd.entitymeta.commands.SetCommand;
 import nu.nerd.entitymeta.commands.SetTestCommand;
+import nu.nerd.entitymeta.commands.StatsCommand;
+import nu.nerd.entitymeta.jfr.MetadataEvents;
 
 // ----------------------------------------------------------------------------
 /**
@@ -58,18 +70,95 @@ public class EntityMeta extends JavaPlugin implements Listener {
 
         saveDefaultConfig();
         CONFIG.reload();
+        SideStore.open(new File(getDataFolder(), CONFIG.SIDE_STORE_FILE), CONFIG.SIDE_STORE_ENABLED);
+        MetricsExporter.open(_api.getStore());
 
         getCommand("entitymeta-reload").setExecutor(new ReloadCommand());
         getCommand("entitymeta-list").setExecutor(new ListCommand());
         getCommand("entitymeta-list-raw").setExecutor(new ListCommand());
         getCommand("entitymeta-find").setExecutor(new FindCommand());
+        getCommand("entitymeta-query").setExecutor(new QueryCommand());
         getCommand("entitymeta-set").setExecutor(new SetCommand());
         getCommand("entitymeta-set-test").setExecutor(new SetTestCommand());
         getCommand("entitymeta-get").setExecutor(new GetCommand());
         getCommand("entitymeta-get-raw").setExecutor(new GetCommand());
         getCommand("entitymeta-clear").setExecutor(new ClearCommand());
+        getCommand("entitymeta-import").setExecutor(new ImportCommand());
+        getCommand("entitymeta-report").setExecutor(new ReportCommand());
+        getCommand("entitymeta-stats").setExecutor(new StatsCommand());
+
+        // Index entities loaded before the plugin was enabled.
+        for (World world : Bukkit.getWorlds()) {
+            List<Entity> entities = world.getEntities();
+            _api.loadEntities(entities.toArray(new Entity[entities.size()]));
+        }
 
         Bukkit.getPluginManager().registerEvents(this, this);
+        Bukkit.getScheduler().runTaskTimer(this, () -> _api.tick(), 1, 1);
+        Bukkit.getScheduler().runTaskTimerAsynchronously(this, () -> SlowOperationLog.INSTANCE.drain(getLogger(), 1), 20, 20);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see org.bukkit.plugin.java.JavaPlugin#onDisable()
+     */
+    @Override
+    public void onDisable() {
+        MetadataImport.cancelAll();
+        _api.cancelAsyncReads();
+        _api.flushCounters();
+        SideStore.close();
+        MetricsExporter.close();
+        MetadataEvents.INSTANCE.close();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Purge the side-stored values of dead mobs and remove them from the
+     * indexes.
+     * 
+     * The purge is deferred until the next tick so that other plugins can
+     * still read metadata while handling the death. Players keep their
+     * metadata when they respawn.
+     * 
+     * @param event the event.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onEntityDeath(EntityDeathEvent event) {
+        if (event.getEntity() instanceof Player) {
+            return;
+        }
+        Entity entity = event.getEntity();
+        SideStore sideStore = SideStore.getInstance();
+        Bukkit.getScheduler().runTask(this, () -> {
+            if (sideStore != null) {
+                sideStore.purge(entity.getUniqueId());
+            }
+            _api.unloadEntities(new Entity[] { entity });
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Index the metadata of entities in loading chunks.
+     * 
+     * @param event the event.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onChunkLoad(ChunkLoadEvent event) {
+        _api.loadEntities(event.getChunk().getEntities());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Persist the counters and release the transient values of entities in
+     * unloading chunks.
+     * 
+     * @param event the event.
+     */
+    @EventHandler(ignoreCancelled = true, priority = EventPriority.MONITOR)
+    void onChunkUnload(ChunkUnloadEvent event) {
+        _api.unloadEntities(event.getChunk().getEntities());
     }
 
     // ------------------------------------------------------------------------
@@ -99,13 +188,26 @@ public class EntityMeta extends JavaPlugin implements Listener {
 
     // ------------------------------------------------------------------------
     /**
-     * Clear any pending entity interactions on logout.
+     * Index the metadata of joining players.
+     * 
+     * @param event the event.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onPlayerJoin(PlayerJoinEvent event) {
+        _api.loadEntities(new Entity[] { event.getPlayer() });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Clear any pending entity interactions on logout, and write the player's
+     * changed counters.
      * 
      * @param event the event.
      */
     @EventHandler(ignoreCancelled = true, priority = EventPriority.HIGHEST)
     void onPlayerQuit(PlayerQuitEvent event) {
         event.getPlayer().removeMetadata(IPendingInteraction.METADATA_KEY, this);
+        _api.unloadEntities(new Entity[] { event.getPlayer() });
     }
 
     // ------------------------------------------------------------------------
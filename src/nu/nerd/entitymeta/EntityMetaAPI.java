@@ -1,14 +1,28 @@
 package nu.nerd.entitymeta;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
+import org.bukkit.ChatColor;
 import org.bukkit.Location;
+import org.bukkit.command.CommandSender;
 import org.bukkit.configuration.serialization.ConfigurationSerializable;
 import org.bukkit.entity.Entity;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.plugin.Plugin;
 
+import com.google.common.cache.CacheStats;
+
+import nu.nerd.entitymeta.ApiStatistics.Operation;
+
 // --------------------------------------------------------------------------
 /**
  * This is the public API for accessing type-safe, persistent entity metadata.
@@ -46,11 +60,31 @@ import org.bukkit.plugin.Plugin;
  * API that implements {@link ConfigurationSerializable} (e.g. {@link Location},
  * {@link ItemStack}, etc.). Note, however, that
  * {@link ConfigurationSerializable} instances are serialised to YAML and are
- * therefore not as efficient as simpler types. Support for additional types can
- * be added using
+ * therefore not as efficient as simpler types. Arrays of {@code int},
+ * {@code long} and {@code double}, and lists of UUIDs or Strings (stored as
+ * {@link UUIDList} and {@link StringList}) have compact native encodings; see
+ * {@link EntityMetaAPI#append(Entity, String, String, Object)}. Several small
+ * primitive values can be packed into a single tag as a
+ * {@link MetadataStruct}, declared by a {@link StructSchema}. Support for
+ * additional types can be added using
  * {@link nu.nerd.entitymeta.MetadataTypeManager#addType(MetadataType)}.<br>
  * <br>
  * 
+ * <h3>Expiry</h3> Values such as cooldowns and temporary effects can be set
+ * with a time to live, using
+ * {@link EntityMetaAPI#set(Entity, Plugin, String, Object, long, TimeUnit)},
+ * instead of scheduling a task to clear them.<br>
+ * <br>
+ * 
+ * <h3>Transient Values</h3> State that need not survive a restart (AI
+ * targets, last-hit times, etc.) can be stored with
+ * {@link EntityMetaAPI#setTransient(Entity, Plugin, String, Object)}, or by
+ * registering the name with
+ * {@link EntityMetaAPI#registerTransientKey(Plugin, String)}. Transient values
+ * are held in memory only, can be of any class, and are discarded when the
+ * entity is removed or unloaded.<br>
+ * <br>
+ * 
  * <h3>Null</h3> An unset metadata value is indistinguishable from one that has
  * been set to {@code null}. You can clear a metadata value by calling
  * {@link nu.nerd.entitymeta.EntityMetaAPI#clear(Entity, Plugin, String)}, or
@@ -68,7 +102,32 @@ import org.bukkit.plugin.Plugin;
  * <br>
  * 
  * <h3>Thread Safety</h3> This API is <i>not</i> thread safe. Metadata should
- * only be accessed from the Bukkit main thread.<br>
+ * only be accessed from the Bukkit main thread, with the exception of the
+ * counter methods,
+ * {@link EntityMetaAPI#increment(Entity, String, String, long)} and
+ * {@link EntityMetaAPI#addAndGet(Entity, String, String, long)} (and their
+ * overloads), which can be called from any thread.<br>
+ * <br>
+ * 
+ * <h3>Counters</h3> Numeric values that change frequently (kill counts,
+ * damage totals, etc.) should be updated with
+ * {@link EntityMetaAPI#increment(Entity, String, String, long)} rather than
+ * {@code get()} followed by {@code set()}. Counters are updated atomically in
+ * memory and written to the scoreboard tag at most once per
+ * {@code counter-flush-ticks}, when the entity's chunk unloads, or when the
+ * plugin is disabled. Reads through this API always see the latest value.
+ * If the server crashes, updates since the last flush are lost.<br>
+ * <br>
+ * 
+ * <h3>Indexes</h3> Finding the entities with a particular range of values,
+ * or the highest values, would otherwise mean reading the value of every
+ * loaded entity. Numeric values can be indexed with
+ * {@link EntityMetaAPI#createNumericIndex(Plugin, String)} and then queried
+ * with {@link EntityMetaAPI#getRange(Plugin, String, double, double, int)}
+ * and {@link EntityMetaAPI#getTop(Plugin, String, int)}. UUID values are
+ * always indexed, so that, for example, the pets of a player can be found
+ * with {@link EntityMetaAPI#findReferencing(UUID, Plugin, String)}. Indexes
+ * are also used by {@link EntityMetaAPI#compileQuery(String) queries}.<br>
  * <br>
  * 
  * <h3>How It Works</h3> Metadata values are serialised into strings and stored
@@ -115,15 +174,20 @@ public final class EntityMetaAPI {
      * @param value the value.
      * 
      * @throws EntityMetadataException if the entity is null, the key
-     *         ({@code <plugin>.<name>}) contains nulls or invalid characters or
-     *         the value is an unsupported type.
+     *         ({@code <plugin>.<name>}) contains nulls or invalid characters,
+     *         the value is an unsupported type, or the scoreboard tag would
+     *         exceed a tag limit or was refused by the server.
      */
     public void set(Entity entity, String pluginName, String name, Object value) throws EntityMetadataException {
-        String key = key(pluginName, name);
-        if (value == null) {
-            _store.removeValue(entity, key);
+        if (EntityMeta.CONFIG.API_STATISTICS) {
+            long start = ApiStatistics.INSTANCE.begin(pluginName);
+            try {
+                setValue(entity, key(pluginName, name), value);
+            } finally {
+                ApiStatistics.INSTANCE.end(pluginName, Operation.SET, start);
+            }
         } else {
-            _store.setValue(entity, key, value);
+            setValue(entity, key(pluginName, name), value);
         }
     }
 
@@ -137,13 +201,197 @@ public final class EntityMetaAPI {
      * @param value the value.
      * 
      * @throws EntityMetadataException if the entity is null, the key
-     *         ({@code <plugin>.<name>}) contains nulls or invalid characters or
-     *         the value is an unsupported type.
+     *         ({@code <plugin>.<name>}) contains nulls or invalid characters,
+     *         the value is an unsupported type, or the scoreboard tag would
+     *         exceed a tag limit or was refused by the server.
      */
     public void set(Entity entity, Plugin plugin, String name, Object value) throws EntityMetadataException {
         set(entity, plugin.getName(), name, value);
     }
 
+    // ------------------------------------------------------------------------
+    /**
+     * Set a metadata value on an {@link org.bukkit.entity.Entity} that is
+     * cleared automatically after the specified time to live.
+     * 
+     * The expiry time is stored in the scoreboard tag, so it is honoured
+     * across entity unloads and server restarts. Expired values are never
+     * returned by the getters, and their tags are removed shortly after
+     * expiry (or when the entity is next loaded). Setting the value again,
+     * with or without a TTL, replaces the expiry time. Appending to or
+     * removing from a collection preserves it.
+     * 
+     * @param entity the Entity.
+     * @param pluginName the name of the plugin that owns the value.
+     * @param name the name of the value.
+     * @param value the value; if null, the value is cleared.
+     * @param ttl the time to live; must be positive.
+     * @param unit the unit of the time to live.
+     * 
+     * @throws EntityMetadataException if the entity is null, the key
+     *         ({@code <plugin>.<name>}) contains nulls or invalid characters,
+     *         the value is an unsupported type, the TTL is not positive or
+     *         is too large to represent as an expiry time, or the scoreboard
+     *         tag would exceed a tag limit or was refused by the server.
+     */
+    public void set(Entity entity, String pluginName, String name, Object value, long ttl, TimeUnit unit) throws EntityMetadataException {
+        if (EntityMeta.CONFIG.API_STATISTICS) {
+            long start = ApiStatistics.INSTANCE.begin(pluginName);
+            try {
+                setValue(entity, key(pluginName, name), value, ttl, unit);
+            } finally {
+                ApiStatistics.INSTANCE.end(pluginName, Operation.SET, start);
+            }
+        } else {
+            setValue(entity, key(pluginName, name), value, ttl, unit);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set a metadata value on an {@link org.bukkit.entity.Entity} that is
+     * cleared automatically after the specified time to live.
+     * 
+     * @param entity the Entity.
+     * @param plugin the plugin that owns the value.
+     * @param name the name of the value.
+     * @param value the value; if null, the value is cleared.
+     * @param ttl the time to live; must be positive.
+     * @param unit the unit of the time to live.
+     * 
+     * @throws EntityMetadataException if the entity is null, the key
+     *         ({@code <plugin>.<name>}) contains nulls or invalid characters,
+     *         the value is an unsupported type, the TTL is not positive or
+     *         is too large to represent as an expiry time, or the scoreboard
+     *         tag would exceed a tag limit or was refused by the server.
+     * @see #set(Entity, String, String, Object, long, TimeUnit)
+     */
+    public void set(Entity entity, Plugin plugin, String name, Object value, long ttl, TimeUnit unit) throws EntityMetadataException {
+        set(entity, plugin.getName(), name, value, ttl, unit);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set a transient metadata value on an {@link org.bukkit.entity.Entity}.
+     * 
+     * Transient values are held in memory only, for as long as the entity
+     * remains loaded. They are not serialised or written to scoreboard tags,
+     * so they can be of any class and are much cheaper to set than persistent
+     * values. They are visible to all of the getters, and
+     * {@link MetadataEntry#isTransient()} distinguishes them. Setting a
+     * transient value replaces any persistent value with the same key, and
+     * vice versa.
+     * 
+     * @param entity the Entity.
+     * @param pluginName the name of the plugin that owns the value.
+     * @param name the name of the value.
+     * @param value the value; if null, the value is cleared.
+     * 
+     * @throws EntityMetadataException if the entity is null, or the key
+     *         ({@code <plugin>.<name>}) contains nulls or invalid characters.
+     * @see #registerTransientKey(String, String)
+     */
+    public void setTransient(Entity entity, String pluginName, String name, Object value) throws EntityMetadataException {
+        String key = key(pluginName, name);
+        if (value == null) {
+            _store.removeValue(entity, key);
+        } else {
+            _store.setTransientValue(entity, key, value);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set a transient metadata value on an {@link org.bukkit.entity.Entity}.
+     * 
+     * @param entity the Entity.
+     * @param plugin the plugin that owns the value.
+     * @param name the name of the value.
+     * @param value the value; if null, the value is cleared.
+     * 
+     * @throws EntityMetadataException if the entity is null, or the key
+     *         ({@code <plugin>.<name>}) contains nulls or invalid characters.
+     * @see #setTransient(Entity, String, String, Object)
+     */
+    public void setTransient(Entity entity, Plugin plugin, String name, Object value) throws EntityMetadataException {
+        setTransient(entity, plugin.getName(), name, value);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Register a metadata name whose values are always transient.
+     * 
+     * Subsequent calls to {@link #set(Entity, String, String, Object)},
+     * {@link #set(Entity, String, String, Object, long, TimeUnit)} and
+     * {@link #append(Entity, String, String, Object)} with this name store
+     * transient values, as if by
+     * {@link #setTransient(Entity, String, String, Object)}. Transient values
+     * cannot be used as counters.
+     * 
+     * @param pluginName the name of the plugin that owns the value.
+     * @param name the name of the value.
+     * 
+     * @throws EntityMetadataException if the key ({@code <plugin>.<name>})
+     *         contains nulls or invalid characters.
+     */
+    public void registerTransientKey(String pluginName, String name) throws EntityMetadataException {
+        _store.registerTransientKey(key(pluginName, name));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Register a metadata name whose values are always transient.
+     * 
+     * @param plugin the plugin that owns the value.
+     * @param name the name of the value.
+     * 
+     * @throws EntityMetadataException if the key ({@code <plugin>.<name>})
+     *         contains nulls or invalid characters.
+     * @see #registerTransientKey(String, String)
+     */
+    public void registerTransientKey(Plugin plugin, String name) throws EntityMetadataException {
+        registerTransientKey(plugin.getName(), name);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if a metadata value is set.
+     * 
+     * This is cheaper than testing the result of
+     * {@link EntityMetaAPI#get(Entity, String, String)} for null, and is
+     * intended for event handlers that only need to know whether an entity is
+     * marked. If the entity's metadata is not cached, its tags are searched
+     * without decoding any values and without caching them.
+     * 
+     * @param entity the Entity.
+     * @param pluginName the name of the plugin that owns the value.
+     * @param name the name of the value.
+     * @return true if the value is set.
+     * 
+     * @throws EntityMetadataException if the entity is null or the key
+     *         ({@code <plugin>.<name>}) contains nulls or invalid characters.
+     */
+    public boolean has(Entity entity, String pluginName, String name) throws EntityMetadataException {
+        return _store.hasValue(entity, key(pluginName, name));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if a metadata value is set.
+     * 
+     * @param entity the Entity.
+     * @param plugin the plugin that owns the value.
+     * @param name the name of the value.
+     * @return true if the value is set.
+     * 
+     * @throws EntityMetadataException if the entity is null or the key
+     *         ({@code <plugin>.<name>}) contains nulls or invalid characters.
+     * @see EntityMetaAPI#has(Entity, String, String)
+     */
+    public boolean has(Entity entity, Plugin plugin, String name) throws EntityMetadataException {
+        return has(entity, plugin.getName(), name);
+    }
+
     // ------------------------------------------------------------------------
     /**
      * Get a metadata value.
@@ -157,7 +405,16 @@ public final class EntityMetaAPI {
      *         ({@code <plugin>.<name>}) contains nulls or invalid characters.
      */
     public Object get(Entity entity, String pluginName, String name) throws EntityMetadataException {
-        return _store.getValue(entity, key(pluginName, name));
+        if (!EntityMeta.CONFIG.API_STATISTICS) {
+            return _store.getValue(entity, key(pluginName, name));
+        }
+
+        long start = ApiStatistics.INSTANCE.begin(pluginName);
+        try {
+            return _store.getValue(entity, key(pluginName, name));
+        } finally {
+            ApiStatistics.INSTANCE.end(pluginName, Operation.GET, start);
+        }
     }
 
     // ------------------------------------------------------------------------
@@ -176,6 +433,179 @@ public final class EntityMetaAPI {
         return get(entity, plugin.getName(), name);
     }
 
+    // ------------------------------------------------------------------------
+    /**
+     * Get a metadata value of many entities, identified by UUID, from any
+     * thread.
+     * 
+     * The entities are looked up in a single batch on the main thread, at the
+     * next tick if this method is called from another thread. Values that are
+     * not already in memory are decoded from their scoreboard tags in an
+     * asynchronous task, rather than on the main thread. The future is then
+     * completed on that task's thread, or on the main thread if no decoding
+     * was needed.
+     * 
+     * @param uuids the UUIDs of the entities.
+     * @param pluginName the name of the plugin that owns the value.
+     * @param name the name of the value.
+     * @return a future map from UUID to value, containing only entities that
+     *         are loaded and have the value set.
+     * 
+     * @throws EntityMetadataException if the key ({@code <plugin>.<name>})
+     *         contains nulls or invalid characters.
+     */
+    public CompletableFuture<Map<UUID, Object>> getAsync(Collection<UUID> uuids, String pluginName, String name) throws EntityMetadataException {
+        return _store.getAsync(uuids, key(pluginName, name));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Get a metadata value of many entities, identified by UUID, from any
+     * thread.
+     * 
+     * @param uuids the UUIDs of the entities.
+     * @param plugin the plugin that owns the value.
+     * @param name the name of the value.
+     * @return a future map from UUID to value, containing only entities that
+     *         are loaded and have the value set.
+     * 
+     * @throws EntityMetadataException if the key ({@code <plugin>.<name>})
+     *         contains nulls or invalid characters.
+     * @see EntityMetaAPI#getAsync(Collection, String, String)
+     */
+    public CompletableFuture<Map<UUID, Object>> getAsync(Collection<UUID> uuids, Plugin plugin, String name) throws EntityMetadataException {
+        return getAsync(uuids, plugin.getName(), name);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Get a numeric metadata value of many entities, as doubles.
+     * 
+     * This is equivalent to calling {@link #get(Entity, String, String)} for
+     * each entity, but the key is validated and resolved once, and nothing is
+     * allocated per entity whose metadata is cached. It suits plugins that
+     * evaluate one value over many mobs every tick.
+     * 
+     * @param entities the entities.
+     * @param pluginName the name of the plugin that owns the value.
+     * @param name the name of the value.
+     * @param out the array to fill, at least as long as entities; element i is
+     *        set to the value of the i'th entity.
+     * @param defaultValue the value stored for entities that do not have the
+     *        value set, or whose value is not numeric.
+     * @return the number of entities that have a numeric value set.
+     * 
+     * @throws EntityMetadataException if any entity is null, out is too
+     *         short, or the key ({@code <plugin>.<name>}) contains nulls or
+     *         invalid characters.
+     */
+    public int getDoubles(List<? extends Entity> entities, String pluginName, String name, double[] out, double defaultValue) throws EntityMetadataException {
+        return _store.getDoubles(entities, key(pluginName, name), out, defaultValue);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Get a numeric metadata value of many entities, as doubles.
+     * 
+     * @param entities the entities.
+     * @param plugin the plugin that owns the value.
+     * @param name the name of the value.
+     * @param out the array to fill, at least as long as entities.
+     * @param defaultValue the value stored for entities that do not have the
+     *        value set, or whose value is not numeric.
+     * @return the number of entities that have a numeric value set.
+     * 
+     * @throws EntityMetadataException if any entity is null, out is too
+     *         short, or the key ({@code <plugin>.<name>}) contains nulls or
+     *         invalid characters.
+     * @see EntityMetaAPI#getDoubles(List, String, String, double[], double)
+     */
+    public int getDoubles(List<? extends Entity> entities, Plugin plugin, String name, double[] out, double defaultValue) throws EntityMetadataException {
+        return getDoubles(entities, plugin.getName(), name, out, defaultValue);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Get a numeric metadata value of many entities, as longs.
+     * 
+     * @param entities the entities.
+     * @param pluginName the name of the plugin that owns the value.
+     * @param name the name of the value.
+     * @param out the array to fill, at least as long as entities; element i is
+     *        set to the value of the i'th entity.
+     * @param defaultValue the value stored for entities that do not have the
+     *        value set, or whose value is not numeric.
+     * @return the number of entities that have a numeric value set.
+     * 
+     * @throws EntityMetadataException if any entity is null, out is too
+     *         short, or the key ({@code <plugin>.<name>}) contains nulls or
+     *         invalid characters.
+     * @see EntityMetaAPI#getDoubles(List, String, String, double[], double)
+     */
+    public int getLongs(List<? extends Entity> entities, String pluginName, String name, long[] out, long defaultValue) throws EntityMetadataException {
+        return _store.getLongs(entities, key(pluginName, name), out, defaultValue);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Get a numeric metadata value of many entities, as longs.
+     * 
+     * @param entities the entities.
+     * @param plugin the plugin that owns the value.
+     * @param name the name of the value.
+     * @param out the array to fill, at least as long as entities.
+     * @param defaultValue the value stored for entities that do not have the
+     *        value set, or whose value is not numeric.
+     * @return the number of entities that have a numeric value set.
+     * 
+     * @throws EntityMetadataException if any entity is null, out is too
+     *         short, or the key ({@code <plugin>.<name>}) contains nulls or
+     *         invalid characters.
+     * @see EntityMetaAPI#getLongs(List, String, String, long[], long)
+     */
+    public int getLongs(List<? extends Entity> entities, Plugin plugin, String name, long[] out, long defaultValue) throws EntityMetadataException {
+        return getLongs(entities, plugin.getName(), name, out, defaultValue);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Get a metadata value of many entities.
+     * 
+     * @param entities the entities.
+     * @param pluginName the name of the plugin that owns the value.
+     * @param name the name of the value.
+     * @param out the array to fill, at least as long as entities; element i is
+     *        set to the value of the i'th entity, or null if not set.
+     * @return the number of entities that have the value set.
+     * 
+     * @throws EntityMetadataException if any entity is null, out is too
+     *         short, or the key ({@code <plugin>.<name>}) contains nulls or
+     *         invalid characters.
+     * @see EntityMetaAPI#getDoubles(List, String, String, double[], double)
+     */
+    public int getValues(List<? extends Entity> entities, String pluginName, String name, Object[] out) throws EntityMetadataException {
+        return _store.getValues(entities, key(pluginName, name), out);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Get a metadata value of many entities.
+     * 
+     * @param entities the entities.
+     * @param plugin the plugin that owns the value.
+     * @param name the name of the value.
+     * @param out the array to fill, at least as long as entities.
+     * @return the number of entities that have the value set.
+     * 
+     * @throws EntityMetadataException if any entity is null, out is too
+     *         short, or the key ({@code <plugin>.<name>}) contains nulls or
+     *         invalid characters.
+     * @see EntityMetaAPI#getValues(List, String, String, Object[])
+     */
+    public int getValues(List<? extends Entity> entities, Plugin plugin, String name, Object[] out) throws EntityMetadataException {
+        return getValues(entities, plugin.getName(), name, out);
+    }
+
     // ------------------------------------------------------------------------
     /**
      * Clear a metadata value.
@@ -191,7 +621,17 @@ public final class EntityMetaAPI {
      *         ({@code <plugin>.<name>}) contains nulls or invalid characters.
      */
     public void clear(Entity entity, String pluginName, String name) throws EntityMetadataException {
-        _store.removeValue(entity, key(pluginName, name));
+        if (!EntityMeta.CONFIG.API_STATISTICS) {
+            _store.removeValue(entity, key(pluginName, name));
+            return;
+        }
+
+        long start = ApiStatistics.INSTANCE.begin(pluginName);
+        try {
+            _store.removeValue(entity, key(pluginName, name));
+        } finally {
+            ApiStatistics.INSTANCE.end(pluginName, Operation.CLEAR, start);
+        }
     }
 
     // ------------------------------------------------------------------------
@@ -214,95 +654,741 @@ public final class EntityMetaAPI {
 
     // ------------------------------------------------------------------------
     /**
-     * Return a {@link MetadataEntry} corresponding to a stored metadata value,
-     * or null if not found.
+     * Append an element to a collection-valued metadata value, creating the
+     * collection if it is not set.
+     * 
+     * A new collection is created according to the class of the element:
+     * {@code int[]} for Integer, {@code long[]} for Long, {@code double[]} for
+     * Double, {@link UUIDList} for UUID and {@link StringList} for String. The
+     * encoded element is appended to the existing tag without re-encoding the
+     * rest of the collection.
      * 
      * @param entity the Entity.
      * @param pluginName the name of the plugin that owns the value.
      * @param name the name of the value.
-     * @return a {@link MetadataEntry} corresponding to a stored metadata value,
-     *         or null if not found.
+     * @param element the element to append; must be non-null.
      * 
-     * @throws EntityMetadataException if the entity is null or the key
-     *         ({@code <plugin>.<name>}) contains nulls or invalid characters.
+     * @throws EntityMetadataException if the entity or element is null, the
+     *         key ({@code <plugin>.<name>}) contains nulls or invalid
+     *         characters, the existing value is not a collection, or the
+     *         element is of the wrong type or out of range. Elements of int[]
+     *         and long[] must be Byte, Short, Integer or Long.
      */
-    public MetadataEntry getEntry(Entity entity, String pluginName, String name) throws EntityMetadataException {
-        return _store.getEntry(entity, key(pluginName, name));
+    public void append(Entity entity, String pluginName, String name, Object element) throws EntityMetadataException {
+        if (element == null) {
+            throw new EntityMetadataException("null element");
+        }
+        _store.appendElement(entity, key(pluginName, name), element);
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Return a {@link MetadataEntry} corresponding to a stored metadata value,
-     * or null if not found.
+     * Append an element to a collection-valued metadata value, creating the
+     * collection if it is not set.
      * 
      * @param entity the Entity.
      * @param plugin the plugin that owns the value.
      * @param name the name of the value.
-     * @return a {@link MetadataEntry} corresponding to a stored metadata value,
-     *         or null if not found.
+     * @param element the element to append; must be non-null.
      * 
-     * @throws EntityMetadataException if the entity is null or the key
-     *         ({@code <plugin>.<name>}) contains nulls or invalid characters.
+     * @throws EntityMetadataException if the entity or element is null, the
+     *         key ({@code <plugin>.<name>}) contains nulls or invalid
+     *         characters, the existing value is not a collection, or the
+     *         element is of the wrong type.
+     * @see #append(Entity, String, String, Object)
      */
-    public MetadataEntry getEntry(Entity entity, Plugin plugin, String name) throws EntityMetadataException {
-        return getEntry(entity, plugin.getName(), name);
+    public void append(Entity entity, Plugin plugin, String name, Object element) throws EntityMetadataException {
+        append(entity, plugin.getName(), name, element);
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Return all {@link MetadataEntry metadata entries} associated with an
-     * {@link org.bukkit.entity.Entity}.
+     * Remove the first occurrence of an element from a collection-valued
+     * metadata value.
      * 
      * @param entity the Entity.
-     * @return all {@link MetadataEntry metadata entries} associated with an
-     *         {@link org.bukkit.entity.Entity}.
+     * @param pluginName the name of the plugin that owns the value.
+     * @param name the name of the value.
+     * @param element the element to remove.
+     * @return true if the element was found and removed.
      * 
-     * @throws EntityMetadataException if the entity is null.
+     * @throws EntityMetadataException if the entity is null, the key
+     *         ({@code <plugin>.<name>}) contains nulls or invalid characters,
+     *         or the existing value is not a collection.
      */
-    public Map<String, MetadataEntry> getAllEntries(Entity entity) throws EntityMetadataException {
-        return _store.getAllEntries(entity);
+    public boolean remove(Entity entity, String pluginName, String name, Object element) throws EntityMetadataException {
+        return element != null && _store.removeElement(entity, key(pluginName, name), element);
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Return all {@link MetadataEntry metadata entries} associated with an
-     * {@link org.bukkit.entity.Entity} that belong to a specified plugin.
+     * Remove the first occurrence of an element from a collection-valued
+     * metadata value.
      * 
      * @param entity the Entity.
-     * @param pluginName the name of the plugin, or null to return all entries.
-     * @return all {@link MetadataEntry metadata entries} associated with an
-     *         {@link org.bukkit.entity.Entity} that belong to a specified
-     *         plugin (or all entries if the plugin name is null).
+     * @param plugin the plugin that owns the value.
+     * @param name the name of the value.
+     * @param element the element to remove.
+     * @return true if the element was found and removed.
      * 
-     * @throws EntityMetadataException if the entity is null.
+     * @throws EntityMetadataException if the entity is null, the key
+     *         ({@code <plugin>.<name>}) contains nulls or invalid characters,
+     *         or the existing value is not a collection.
      */
-    public Map<String, MetadataEntry> getPluginEntries(Entity entity, String pluginName) throws EntityMetadataException {
-        if (pluginName == null) {
-            return _store.getAllEntries(entity);
-        } else {
-            if (!PLUGIN_PATTERN.matcher(pluginName).matches()) {
-                throw new EntityMetadataException("invalid characters in plugin name");
-            }
-            return _store.getPluginEntries(entity, pluginName);
-        }
+    public boolean remove(Entity entity, Plugin plugin, String name, Object element) throws EntityMetadataException {
+        return remove(entity, plugin.getName(), name, element);
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Format the key of metadata.
+     * Add to an integral counter without waiting for the result.
      * 
-     * @param pluginName the name of the plugin; must be only letters, digits
-     *        and underscores.
-     * @param name the name of the metadata; must be only letters, digits,
-     *        underscores and hyphens.
-     * @return a key of the form {@code <plugin>.<name>}.
+     * If the value is not set, it is created as a Long. If it is a floating
+     * point value, the delta is converted to a double. The new value is
+     * written to the scoreboard tag at the next flush.
      * 
-     * @throws EntityMetadataException if the key would contain invalid
-     *         characters.
+     * This method can be called from any thread and never blocks. If called
+     * asynchronously for an entity whose metadata is not cached, the delta is
+     * applied at the next flush.
+     * 
+     * @param entity the Entity.
+     * @param pluginName the name of the plugin that owns the value.
+     * @param name the name of the value.
+     * @param delta the amount to add.
+     * 
+     * @throws EntityMetadataException if the entity is null, the key
+     *         ({@code <plugin>.<name>}) contains nulls or invalid characters,
+     *         the existing value is not numeric, or the new value would be
+     *         outside the range of its type.
      */
-    public String key(String pluginName, String name) throws EntityMetadataException {
-        if (pluginName == null) {
-            throw new EntityMetadataException("null plugin name");
+    public void increment(Entity entity, String pluginName, String name, long delta) throws EntityMetadataException {
+        _store.increment(entity, key(pluginName, name), delta);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add to an integral counter without waiting for the result.
+     * 
+     * @param entity the Entity.
+     * @param plugin the plugin that owns the value.
+     * @param name the name of the value.
+     * @param delta the amount to add.
+     * 
+     * @throws EntityMetadataException if the entity is null, the key
+     *         ({@code <plugin>.<name>}) contains nulls or invalid characters,
+     *         the existing value is not numeric, or the new value would be
+     *         outside the range of its type.
+     * @see #increment(Entity, String, String, long)
+     */
+    public void increment(Entity entity, Plugin plugin, String name, long delta) throws EntityMetadataException {
+        increment(entity, plugin.getName(), name, delta);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add to a floating point counter without waiting for the result.
+     * 
+     * If the value is not set, it is created as a Double.
+     * 
+     * @param entity the Entity.
+     * @param pluginName the name of the plugin that owns the value.
+     * @param name the name of the value.
+     * @param delta the amount to add.
+     * 
+     * @throws EntityMetadataException if the entity is null, the key
+     *         ({@code <plugin>.<name>}) contains nulls or invalid characters,
+     *         or the existing value is not a Float or Double.
+     * @see #increment(Entity, String, String, long)
+     */
+    public void increment(Entity entity, String pluginName, String name, double delta) throws EntityMetadataException {
+        _store.increment(entity, key(pluginName, name), delta);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add to a floating point counter without waiting for the result.
+     * 
+     * @param entity the Entity.
+     * @param plugin the plugin that owns the value.
+     * @param name the name of the value.
+     * @param delta the amount to add.
+     * 
+     * @throws EntityMetadataException if the entity is null, the key
+     *         ({@code <plugin>.<name>}) contains nulls or invalid characters,
+     *         or the existing value is not a Float or Double.
+     * @see #increment(Entity, String, String, long)
+     */
+    public void increment(Entity entity, Plugin plugin, String name, double delta) throws EntityMetadataException {
+        increment(entity, plugin.getName(), name, delta);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add to an integral counter and return the new value.
+     * 
+     * This method can be called from any thread. If called asynchronously for
+     * an entity whose metadata is not cached, it blocks until the main thread
+     * has loaded the metadata.
+     * 
+     * @param entity the Entity.
+     * @param pluginName the name of the plugin that owns the value.
+     * @param name the name of the value.
+     * @param delta the amount to add.
+     * @return the new value.
+     * 
+     * @throws EntityMetadataException if the entity is null, the key
+     *         ({@code <plugin>.<name>}) contains nulls or invalid characters,
+     *         the existing value is not numeric, or the new value would be
+     *         outside the range of its type.
+     * @see #increment(Entity, String, String, long)
+     */
+    public long addAndGet(Entity entity, String pluginName, String name, long delta) throws EntityMetadataException {
+        return _store.addAndGet(entity, key(pluginName, name), delta);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add to an integral counter and return the new value.
+     * 
+     * @param entity the Entity.
+     * @param plugin the plugin that owns the value.
+     * @param name the name of the value.
+     * @param delta the amount to add.
+     * @return the new value.
+     * 
+     * @throws EntityMetadataException if the entity is null, the key
+     *         ({@code <plugin>.<name>}) contains nulls or invalid characters,
+     *         the existing value is not numeric, or the new value would be
+     *         outside the range of its type.
+     * @see #addAndGet(Entity, String, String, long)
+     */
+    public long addAndGet(Entity entity, Plugin plugin, String name, long delta) throws EntityMetadataException {
+        return addAndGet(entity, plugin.getName(), name, delta);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add to a floating point counter and return the new value.
+     * 
+     * @param entity the Entity.
+     * @param pluginName the name of the plugin that owns the value.
+     * @param name the name of the value.
+     * @param delta the amount to add.
+     * @return the new value.
+     * 
+     * @throws EntityMetadataException if the entity is null, the key
+     *         ({@code <plugin>.<name>}) contains nulls or invalid characters,
+     *         or the existing value is not a Float or Double.
+     * @see #addAndGet(Entity, String, String, long)
+     */
+    public double addAndGet(Entity entity, String pluginName, String name, double delta) throws EntityMetadataException {
+        return _store.addAndGet(entity, key(pluginName, name), delta);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add to a floating point counter and return the new value.
+     * 
+     * @param entity the Entity.
+     * @param plugin the plugin that owns the value.
+     * @param name the name of the value.
+     * @param delta the amount to add.
+     * @return the new value.
+     * 
+     * @throws EntityMetadataException if the entity is null, the key
+     *         ({@code <plugin>.<name>}) contains nulls or invalid characters,
+     *         or the existing value is not a Float or Double.
+     * @see #addAndGet(Entity, String, String, long)
+     */
+    public double addAndGet(Entity entity, Plugin plugin, String name, double delta) throws EntityMetadataException {
+        return addAndGet(entity, plugin.getName(), name, delta);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a {@link MetadataEntry} corresponding to a stored metadata value,
+     * or null if not found.
+     * 
+     * @param entity the Entity.
+     * @param pluginName the name of the plugin that owns the value.
+     * @param name the name of the value.
+     * @return a {@link MetadataEntry} corresponding to a stored metadata value,
+     *         or null if not found.
+     * 
+     * @throws EntityMetadataException if the entity is null or the key
+     *         ({@code <plugin>.<name>}) contains nulls or invalid characters.
+     */
+    public MetadataEntry getEntry(Entity entity, String pluginName, String name) throws EntityMetadataException {
+        return _store.getEntry(entity, key(pluginName, name));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a {@link MetadataEntry} corresponding to a stored metadata value,
+     * or null if not found.
+     * 
+     * @param entity the Entity.
+     * @param plugin the plugin that owns the value.
+     * @param name the name of the value.
+     * @return a {@link MetadataEntry} corresponding to a stored metadata value,
+     *         or null if not found.
+     * 
+     * @throws EntityMetadataException if the entity is null or the key
+     *         ({@code <plugin>.<name>}) contains nulls or invalid characters.
+     */
+    public MetadataEntry getEntry(Entity entity, Plugin plugin, String name) throws EntityMetadataException {
+        return getEntry(entity, plugin.getName(), name);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a {@link MetadataEntry} corresponding to a stored metadata value,
+     * or null if not found, without caching the entity's metadata.
+     * 
+     * Use this instead of
+     * {@link EntityMetaAPI#getEntry(Entity, String, String)} when examining
+     * many entities once, e.g. to search for those with a particular value,
+     * so that the metadata of frequently accessed entities is not evicted from
+     * the cache.
+     * 
+     * @param entity the Entity.
+     * @param pluginName the name of the plugin that owns the value.
+     * @param name the name of the value.
+     * @return a {@link MetadataEntry} corresponding to a stored metadata value,
+     *         or null if not found.
+     * 
+     * @throws EntityMetadataException if the entity is null or the key
+     *         ({@code <plugin>.<name>}) contains nulls or invalid characters.
+     */
+    public MetadataEntry peekEntry(Entity entity, String pluginName, String name) throws EntityMetadataException {
+        return _store.peekEntry(entity, key(pluginName, name));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a {@link MetadataEntry} corresponding to a stored metadata value,
+     * or null if not found, without caching the entity's metadata.
+     * 
+     * @param entity the Entity.
+     * @param plugin the plugin that owns the value.
+     * @param name the name of the value.
+     * @return a {@link MetadataEntry} corresponding to a stored metadata value,
+     *         or null if not found.
+     * 
+     * @throws EntityMetadataException if the entity is null or the key
+     *         ({@code <plugin>.<name>}) contains nulls or invalid characters.
+     * @see EntityMetaAPI#peekEntry(Entity, String, String)
+     */
+    public MetadataEntry peekEntry(Entity entity, Plugin plugin, String name) throws EntityMetadataException {
+        return peekEntry(entity, plugin.getName(), name);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return all {@link MetadataEntry metadata entries} associated with an
+     * {@link org.bukkit.entity.Entity}.
+     * 
+     * The returned map may be a read-only view of the cached metadata, which
+     * changes as metadata is set. To pass metadata to another thread, use
+     * {@link #snapshot(Entity)}.
+     * 
+     * @param entity the Entity.
+     * @return all {@link MetadataEntry metadata entries} associated with an
+     *         {@link org.bukkit.entity.Entity}.
+     * 
+     * @throws EntityMetadataException if the entity is null.
+     */
+    public Map<String, MetadataEntry> getAllEntries(Entity entity) throws EntityMetadataException {
+        return _store.getAllEntries(entity);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return an immutable snapshot of all metadata associated with an
+     * {@link org.bukkit.entity.Entity}.
+     * 
+     * This must be called from the main thread, but the snapshot can be read
+     * from any thread without locking, e.g. by an asynchronous task that
+     * saves metadata to a database. Taking a snapshot of metadata that has
+     * not changed since the last snapshot returns the same instance.
+     * 
+     * @param entity the Entity.
+     * @return the snapshot.
+     * 
+     * @throws EntityMetadataException if the entity is null.
+     */
+    public MetadataSnapshot snapshot(Entity entity) throws EntityMetadataException {
+        return _store.snapshot(entity);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Create a sorted index of a numeric metadata value across all loaded
+     * entities, for use by {@link #getRange(String, String, double, double, int)},
+     * {@link #getTop(String, String, int)} and {@link MetadataQuery queries}.
+     * 
+     * Values of any numeric type ({@code Integer}, {@code Long},
+     * {@code Float}, {@code Double}, etc.) are indexed; other values are
+     * ignored. The index is kept up to date as values are set, cleared and
+     * expired, and as entities are loaded and unloaded. Changes made with
+     * {@link #increment(Entity, String, String, long)} and
+     * {@link #addAndGet(Entity, String, String, long)} are seen when the
+     * counter is next written to the scoreboard tag.
+     * 
+     * Indexes are not persistent; create them in your plugin's
+     * {@code onEnable()}. Creating an index scans all loaded entities, and
+     * creating one that already exists does nothing.
+     * 
+     * @param pluginName the name of the plugin that owns the value.
+     * @param name the name of the value.
+     * 
+     * @throws EntityMetadataException if the key ({@code <plugin>.<name>})
+     *         contains nulls or invalid characters.
+     */
+    public void createNumericIndex(String pluginName, String name) throws EntityMetadataException {
+        _store.createNumericIndex(key(pluginName, name));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Create a sorted index of a numeric metadata value across all loaded
+     * entities.
+     * 
+     * @param plugin the plugin that owns the value.
+     * @param name the name of the value.
+     * 
+     * @throws EntityMetadataException if the key ({@code <plugin>.<name>})
+     *         contains nulls or invalid characters.
+     * @see EntityMetaAPI#createNumericIndex(String, String)
+     */
+    public void createNumericIndex(Plugin plugin, String name) throws EntityMetadataException {
+        createNumericIndex(plugin.getName(), name);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the loaded entities whose indexed numeric value is within the
+     * specified range, in ascending order of value.
+     * 
+     * This takes O(log n + k) time, for n indexed entities and k results.
+     * 
+     * @param pluginName the name of the plugin that owns the value.
+     * @param name the name of the value.
+     * @param min the inclusive minimum value.
+     * @param max the inclusive maximum value.
+     * @param limit the maximum number of entities to return.
+     * @return the entities.
+     * 
+     * @throws EntityMetadataException if the key ({@code <plugin>.<name>})
+     *         contains nulls or invalid characters, or is not indexed.
+     * @see #createNumericIndex(String, String)
+     */
+    public List<Entity> getRange(String pluginName, String name, double min, double max, int limit) throws EntityMetadataException {
+        return _store.getNumericIndex(key(pluginName, name)).range(min, max, limit);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the loaded entities whose indexed numeric value is within the
+     * specified range, in ascending order of value.
+     * 
+     * @param plugin the plugin that owns the value.
+     * @param name the name of the value.
+     * @param min the inclusive minimum value.
+     * @param max the inclusive maximum value.
+     * @param limit the maximum number of entities to return.
+     * @return the entities.
+     * 
+     * @throws EntityMetadataException if the key ({@code <plugin>.<name>})
+     *         contains nulls or invalid characters, or is not indexed.
+     * @see EntityMetaAPI#getRange(String, String, double, double, int)
+     */
+    public List<Entity> getRange(Plugin plugin, String name, double min, double max, int limit) throws EntityMetadataException {
+        return getRange(plugin.getName(), name, min, max, limit);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the loaded entities with the largest indexed numeric values, in
+     * descending order of value, e.g. for a leaderboard.
+     * 
+     * This takes O(log n + k) time, for n indexed entities and k results.
+     * 
+     * @param pluginName the name of the plugin that owns the value.
+     * @param name the name of the value.
+     * @param count the maximum number of entities to return.
+     * @return the entities.
+     * 
+     * @throws EntityMetadataException if the key ({@code <plugin>.<name>})
+     *         contains nulls or invalid characters, or is not indexed.
+     * @see #createNumericIndex(String, String)
+     */
+    public List<Entity> getTop(String pluginName, String name, int count) throws EntityMetadataException {
+        return _store.getNumericIndex(key(pluginName, name)).top(count);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the loaded entities with the largest indexed numeric values, in
+     * descending order of value.
+     * 
+     * @param plugin the plugin that owns the value.
+     * @param name the name of the value.
+     * @param count the maximum number of entities to return.
+     * @return the entities.
+     * 
+     * @throws EntityMetadataException if the key ({@code <plugin>.<name>})
+     *         contains nulls or invalid characters, or is not indexed.
+     * @see EntityMetaAPI#getTop(String, String, int)
+     */
+    public List<Entity> getTop(Plugin plugin, String name, int count) throws EntityMetadataException {
+        return getTop(plugin.getName(), name, count);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return all loaded entities that have metadata values referring to the
+     * specified UUID, and the keys of those values.
+     * 
+     * Values of type {@link UUID} and {@link UUIDList} are indexed
+     * automatically, so this takes time proportional to the number of
+     * references rather than the number of loaded entities.
+     * 
+     * @param uuid the UUID, e.g. of a player.
+     * @return a map from entity to the keys ({@code <plugin>.<name>}) of its
+     *         values that refer to the UUID.
+     * 
+     * @throws EntityMetadataException if the UUID is null.
+     */
+    public Map<Entity, List<String>> findReferencing(UUID uuid) throws EntityMetadataException {
+        if (uuid == null) {
+            throw new EntityMetadataException("null UUID");
+        }
+        return _store.findReferencing(uuid, null);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return all loaded entities whose metadata value with the specified key
+     * refers to the specified UUID, e.g. all pets owned by a player.
+     * 
+     * A value refers to the UUID if it is equal to it, or is a
+     * {@link UUIDList} containing it. This takes time proportional to the
+     * number of references to the UUID rather than the number of loaded
+     * entities.
+     * 
+     * @param uuid the UUID, e.g. of a player.
+     * @param pluginName the name of the plugin that owns the value.
+     * @param name the name of the value.
+     * @return the entities.
+     * 
+     * @throws EntityMetadataException if the UUID is null, or the key
+     *         ({@code <plugin>.<name>}) contains nulls or invalid characters.
+     */
+    public List<Entity> findReferencing(UUID uuid, String pluginName, String name) throws EntityMetadataException {
+        if (uuid == null) {
+            throw new EntityMetadataException("null UUID");
+        }
+        return new ArrayList<>(_store.findReferencing(uuid, key(pluginName, name)).keySet());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return all loaded entities whose metadata value with the specified key
+     * refers to the specified UUID.
+     * 
+     * @param uuid the UUID, e.g. of a player.
+     * @param plugin the plugin that owns the value.
+     * @param name the name of the value.
+     * @return the entities.
+     * 
+     * @throws EntityMetadataException if the UUID is null, or the key
+     *         ({@code <plugin>.<name>}) contains nulls or invalid characters.
+     * @see EntityMetaAPI#findReferencing(UUID, String, String)
+     */
+    public List<Entity> findReferencing(UUID uuid, Plugin plugin, String name) throws EntityMetadataException {
+        return findReferencing(uuid, plugin.getName(), name);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Compile a query over entity types and metadata values, which can then
+     * be evaluated against many entities.
+     * 
+     * The query language is described in {@link MetadataQuery}.
+     * 
+     * @param query the query text, e.g.
+     *        {@code type = ZOMBIE and Boss.level >= 10}.
+     * @return the compiled query.
+     * 
+     * @throws EntityMetadataException if the query is invalid.
+     */
+    public MetadataQuery compileQuery(String query) throws EntityMetadataException {
+        return MetadataQuery.compile(query);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return all {@link MetadataEntry metadata entries} associated with an
+     * {@link org.bukkit.entity.Entity} that belong to a specified plugin.
+     * 
+     * @param entity the Entity.
+     * @param pluginName the name of the plugin, or null to return all entries.
+     * @return all {@link MetadataEntry metadata entries} associated with an
+     *         {@link org.bukkit.entity.Entity} that belong to a specified
+     *         plugin (or all entries if the plugin name is null).
+     * 
+     * @throws EntityMetadataException if the entity is null.
+     */
+    public Map<String, MetadataEntry> getPluginEntries(Entity entity, String pluginName) throws EntityMetadataException {
+        if (pluginName == null) {
+            return _store.getAllEntries(entity);
+        } else {
+            if (!PLUGIN_PATTERN.matcher(pluginName).matches()) {
+                throw new EntityMetadataException("invalid characters in plugin name");
+            }
+            if (!EntityMeta.CONFIG.API_STATISTICS) {
+                return _store.getPluginEntries(entity, pluginName);
+            }
+
+            long start = ApiStatistics.INSTANCE.begin(pluginName);
+            try {
+                return _store.getPluginEntries(entity, pluginName);
+            } finally {
+                ApiStatistics.INSTANCE.end(pluginName, Operation.GET_PLUGIN_ENTRIES, start);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Format a report of the entities and keys with the largest scoreboard
+     * tags, together with counts of tag limit violations by plugin.
+     * 
+     * Only entities whose metadata is currently cached are considered.
+     * 
+     * @param count the maximum number of entities and keys to list.
+     * @return the lines of the report, including Bukkit colour codes.
+     */
+    public List<String> getTagReport(int count) {
+        return TagBudget.INSTANCE.formatReport(_store.getCachedMetadata(), count);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a report of the metadata cache: the number of cached entities,
+     * their estimated memory, and the hit rate and evictions since the cache
+     * was last rebuilt.
+     * 
+     * @return the lines of the report.
+     */
+    public List<String> getCacheReport() {
+        CacheStats stats = _store.getCacheStats();
+        List<String> lines = new ArrayList<>();
+        String bound = (EntityMeta.CONFIG.CACHE_MAX_BYTES > 0) ? EntityMeta.CONFIG.CACHE_MAX_BYTES + " bytes"
+                                                               : EntityMeta.CONFIG.CACHE_SIZE + " entities";
+        lines.add(ChatColor.GOLD + "Cache: " + ChatColor.YELLOW + _store.getCachedMetadata().size() +
+                  ChatColor.GOLD + " entities, " + ChatColor.YELLOW + _store.getCacheBytes() +
+                  ChatColor.GOLD + " bytes (estimated), bounded by " + ChatColor.YELLOW + bound +
+                  ChatColor.GOLD + ", distinct keys: " + ChatColor.YELLOW + KeyRegistry.INSTANCE.size());
+        long hits = _store.getReadHits();
+        long reads = hits + _store.getReadMisses() + _store.getUntaggedReads() + _store.getAdmissionRejections();
+        lines.add(ChatColor.GOLD + "Read hit rate: " + ChatColor.YELLOW +
+                  String.format("%.1f%%", (reads == 0) ? 100.0 : 100.0 * hits / reads) +
+                  ChatColor.GOLD + " of " + ChatColor.YELLOW + reads +
+                  ChatColor.GOLD + " reads, evictions: " + ChatColor.YELLOW + stats.evictionCount() +
+                  ChatColor.GOLD + ", uncached reads: " + ChatColor.YELLOW + _store.getAdmissionRejections() +
+                  ChatColor.GOLD + ", untagged reads: " + ChatColor.YELLOW + _store.getUntaggedReads());
+        return lines;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the metadata store.
+     * 
+     * @return the metadata store.
+     */
+    MetadataStore getStore() {
+        return _store;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the statistics of API calls by plugin.
+     * 
+     * Statistics are only recorded when the {@code api-statistics}
+     * configuration setting is true.
+     * 
+     * @return the {@link ApiStatistics}.
+     */
+    public ApiStatistics getStatistics() {
+        return ApiStatistics.INSTANCE;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return descriptions of the most recent slow operations, oldest first.
+     * 
+     * Slow operations are only recorded when the
+     * {@code slow-operations.threshold-micros} configuration setting is
+     * positive.
+     * 
+     * @return descriptions of up to 64 recent slow operations.
+     */
+    public List<String> getSlowOperations() {
+        List<String> descriptions = new ArrayList<>();
+        for (SlowOperationLog.SlowOperation slow : SlowOperationLog.INSTANCE.getRecent()) {
+            descriptions.add(slow.toString());
+        }
+        return descriptions;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start a bulk import of metadata from a file, applying records to
+     * entities by UUID over successive ticks.
+     * 
+     * See {@link MetadataImport} for the file format. Only entities in loaded
+     * chunks can be updated.
+     * 
+     * @param file the file to import.
+     * @param dryRun if true, records are decoded and their entities looked up,
+     *        but no metadata is set.
+     * @param resume if true, skip the lines consumed by a previous import of
+     *        the same file.
+     * @param sender the recipient of progress reports, or null to only log
+     *        them.
+     * @return the {@link MetadataImport}, which can be used to monitor
+     *         progress or cancel the import.
+     * 
+     * @throws EntityMetadataException if the file could not be opened.
+     */
+    public MetadataImport importFile(File file, boolean dryRun, boolean resume, CommandSender sender) throws EntityMetadataException {
+        try {
+            MetadataImport metadataImport = new MetadataImport(_store, file, dryRun, resume, sender);
+            metadataImport.start();
+            return metadataImport;
+        } catch (IOException ex) {
+            throw new EntityMetadataException("unable to open " + file.getName(), ex);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Format the key of metadata.
+     * 
+     * @param pluginName the name of the plugin; must be only letters, digits
+     *        and underscores.
+     * @param name the name of the metadata; must be only letters, digits,
+     *        underscores and hyphens.
+     * @return a key of the form {@code <plugin>.<name>}.
+     * 
+     * @throws EntityMetadataException if the key would contain invalid
+     *         characters.
+     */
+    public String key(String pluginName, String name) throws EntityMetadataException {
+        if (pluginName == null) {
+            throw new EntityMetadataException("null plugin name");
         }
         if (name == null) {
             throw new EntityMetadataException("null metadata name");
@@ -323,6 +1409,90 @@ public final class EntityMetaAPI {
         _store.rebuildCache();
     }
 
+    // ------------------------------------------------------------------------
+    /**
+     * Perform periodic work on every tick.
+     */
+    void tick() {
+        _store.tick();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write all changed counters to scoreboard tags.
+     */
+    void flushCounters() {
+        _store.flushCounters();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Complete all unfinished asynchronous reads exceptionally.
+     */
+    void cancelAsyncReads() {
+        _store.cancelAsyncReads();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write the changed counters and release the transient values of entities
+     * that are about to be unloaded.
+     * 
+     * @param entities the entities.
+     */
+    void unloadEntities(Entity[] entities) {
+        _store.unloadEntities(entities);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add the values of newly loaded entities to the indexes.
+     * 
+     * @param entities the entities.
+     */
+    void loadEntities(Entity[] entities) {
+        _store.loadEntities(entities);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set or, if the value is null, remove a metadata value.
+     * 
+     * @param entity the Entity.
+     * @param key the key, of the form {@code <plugin>.<name>}.
+     * @param value the value, or null.
+     */
+    private void setValue(Entity entity, String key, Object value) throws EntityMetadataException {
+        if (value == null) {
+            _store.removeValue(entity, key);
+        } else {
+            _store.setValue(entity, key, value);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set or, if the value is null, remove a metadata value with a time to
+     * live.
+     * 
+     * @param entity the Entity.
+     * @param key the key, of the form {@code <plugin>.<name>}.
+     * @param value the value, or null.
+     * @param ttl the time to live; must be positive.
+     * @param unit the unit of ttl.
+     */
+    private void setValue(Entity entity, String key, Object value, long ttl, TimeUnit unit) throws EntityMetadataException {
+        if (value == null) {
+            _store.removeValue(entity, key);
+        } else {
+            long ttlMillis = unit.toMillis(ttl);
+            if (ttlMillis <= 0) {
+                throw new EntityMetadataException("TTL must be positive");
+            }
+            _store.setValue(entity, key, value, ttlMillis);
+        }
+    }
+
     // ------------------------------------------------------------------------
     /**
      * Implementation of metadata storage.
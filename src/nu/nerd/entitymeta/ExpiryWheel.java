@@ -0,0 +1,313 @@
+package nu.nerd.entitymeta;
+
+import java.lang.ref.WeakReference;
+
+import org.bukkit.entity.Entity;
+
+// ----------------------------------------------------------------------------
+/**
+ * A hierarchical timer wheel that schedules the expiry of metadata values.
+ * <p>
+ * 
+ * Time is divided into ticks of {@link #TICK_MILLIS} milliseconds. The wheel
+ * has {@link #LEVELS} levels of {@link #SLOTS} slots; each slot of level N
+ * spans {@code SLOTS^N} ticks. A timer is inserted into the lowest level that
+ * can represent its deadline and is moved ("cascaded") to lower levels as the
+ * wheel turns. Scheduling is O(1) and each tick only visits one slot per
+ * level that wraps, regardless of the number of timers. Deadlines beyond the
+ * range of the top level (about 9.7 days) are parked in its furthest slot and
+ * re-inserted each time that slot cascades.
+ * <p>
+ * 
+ * Timers that come due are queued and handed to an {@link Expirer} in batches
+ * of bounded size, so that a large number of simultaneous expiries is spread
+ * over several ticks.
+ * <p>
+ * 
+ * Timers cannot be cancelled. Instead, the {@link Expirer} checks whether the
+ * metadata value still has the deadline the timer was scheduled for. Timers
+ * hold weak references to entities.
+ * <p>
+ * 
+ * This class is not thread safe; it is only used from the main thread.
+ */
+final class ExpiryWheel {
+    /**
+     * The duration of one wheel tick in milliseconds.
+     */
+    static final long TICK_MILLIS = 50;
+
+    /**
+     * Number of bits of the tick count consumed by each level.
+     */
+    static final int SLOT_BITS = 6;
+
+    /**
+     * Number of slots per level.
+     */
+    static final int SLOTS = 1 << SLOT_BITS;
+
+    /**
+     * Number of levels.
+     */
+    static final int LEVELS = 4;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Callback interface invoked for timers that are due.
+     */
+    interface Expirer {
+        /**
+         * Expire the metadata value with the specified key, if it still
+         * expires at the specified deadline.
+         * 
+         * @param entity the entity.
+         * @param key the key of the metadata value.
+         * @param deadline the deadline the timer was scheduled for.
+         */
+        void expire(Entity entity, String key, long deadline);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     * 
+     * @param nowMillis the current system time in milliseconds.
+     */
+    ExpiryWheel(long nowMillis) {
+        _now = nowMillis / TICK_MILLIS;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Schedule the expiry of a metadata value.
+     * 
+     * @param entity the entity.
+     * @param key the key of the metadata value.
+     * @param deadline the system time in milliseconds when the value expires.
+     */
+    void schedule(Entity entity, String key, long deadline) {
+        insert(new Timer(entity, key, deadline));
+        ++_size;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Advance the wheel to the current time and pass up to the specified
+     * number of due timers to the {@link Expirer}.
+     * 
+     * Due timers in excess of the budget remain queued for the next call.
+     * 
+     * @param nowMillis the current system time in milliseconds.
+     * @param budget the maximum number of timers to expire.
+     * @param expirer the callback that expires metadata.
+     * @return the number of timers expired.
+     */
+    int advance(long nowMillis, int budget, Expirer expirer) {
+        long target = nowMillis / TICK_MILLIS;
+        while (_now < target) {
+            ++_now;
+            for (int level = 1; level < LEVELS; ++level) {
+                if ((_now & ((1L << (level * SLOT_BITS)) - 1)) != 0) {
+                    break;
+                }
+                cascade(level, slotIndex(_now, level));
+            }
+            int slot = slotIndex(_now, 0);
+            Timer timer = _slots[0][slot];
+            _slots[0][slot] = null;
+            while (timer != null) {
+                Timer next = timer._next;
+                enqueueDue(timer);
+                timer = next;
+            }
+        }
+
+        int expired = 0;
+        while (_dueHead != null && expired < budget) {
+            Timer timer = _dueHead;
+            _dueHead = timer._next;
+            if (_dueHead == null) {
+                _dueTail = null;
+            }
+            --_size;
+            ++expired;
+
+            Entity entity = timer._entity.get();
+            if (entity != null) {
+                expirer.expire(entity, timer._key, timer._deadline);
+            }
+        }
+        return expired;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of scheduled timers, including those that are due
+     * but not yet processed.
+     * 
+     * @return the number of scheduled timers.
+     */
+    int size() {
+        return _size;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A scheduled expiry, linked into a slot or the due queue.
+     */
+    private static final class Timer {
+        /**
+         * Constructor.
+         * 
+         * @param entity the entity.
+         * @param key the key of the metadata value.
+         * @param deadline the system time in milliseconds when the value
+         *        expires.
+         */
+        Timer(Entity entity, String key, long deadline) {
+            _entity = new WeakReference<>(entity);
+            _key = key;
+            _deadline = deadline;
+            // Round up so that timers never fire early.
+            _tick = (deadline + TICK_MILLIS - 1) / TICK_MILLIS;
+        }
+
+        /**
+         * Weak reference to the entity.
+         */
+        final WeakReference<Entity> _entity;
+
+        /**
+         * The key of the metadata value.
+         */
+        final String _key;
+
+        /**
+         * The deadline in milliseconds.
+         */
+        final long _deadline;
+
+        /**
+         * The wheel tick at which the timer is due.
+         */
+        final long _tick;
+
+        /**
+         * The next timer in the same slot or queue.
+         */
+        Timer _next;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Insert a timer into the slot corresponding to its deadline, or the due
+     * queue if the deadline has passed.
+     * 
+     * @param timer the timer.
+     */
+    private void insert(Timer timer) {
+        long delta = timer._tick - _now;
+        if (delta <= 0) {
+            enqueueDue(timer);
+            return;
+        }
+
+        for (int level = 0; level < LEVELS; ++level) {
+            if (delta < (1L << ((level + 1) * SLOT_BITS))) {
+                link(level, slotIndex(timer._tick, level), timer);
+                return;
+            }
+        }
+
+        // Beyond the range of the wheel: park in the furthest top level slot.
+        long furthest = _now + (1L << (LEVELS * SLOT_BITS)) - 1;
+        link(LEVELS - 1, slotIndex(furthest, LEVELS - 1), timer);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Re-insert all timers in a slot of a higher level into lower levels.
+     * 
+     * @param level the level.
+     * @param slot the slot index.
+     */
+    private void cascade(int level, int slot) {
+        Timer timer = _slots[level][slot];
+        _slots[level][slot] = null;
+        while (timer != null) {
+            Timer next = timer._next;
+            timer._next = null;
+            insert(timer);
+            timer = next;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Link a timer at the head of a slot's list.
+     * 
+     * @param level the level.
+     * @param slot the slot index.
+     * @param timer the timer.
+     */
+    private void link(int level, int slot, Timer timer) {
+        timer._next = _slots[level][slot];
+        _slots[level][slot] = timer;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append a timer to the due queue.
+     * 
+     * @param timer the timer.
+     */
+    private void enqueueDue(Timer timer) {
+        timer._next = null;
+        if (_dueTail == null) {
+            _dueHead = timer;
+        } else {
+            _dueTail._next = timer;
+        }
+        _dueTail = timer;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the index of the slot at the specified level corresponding to a
+     * tick.
+     * 
+     * @param tick the tick.
+     * @param level the level.
+     * @return the slot index.
+     */
+    private static int slotIndex(long tick, int level) {
+        return (int) ((tick >>> (level * SLOT_BITS)) & (SLOTS - 1));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Slot lists, indexed by level and then slot.
+     */
+    private final Timer[][] _slots = new Timer[LEVELS][SLOTS];
+
+    /**
+     * The current wheel tick.
+     */
+    private long _now;
+
+    /**
+     * Head of the queue of due timers.
+     */
+    private Timer _dueHead;
+
+    /**
+     * Tail of the queue of due timers.
+     */
+    private Timer _dueTail;
+
+    /**
+     * Number of timers scheduled or due.
+     */
+    private int _size;
+} // class ExpiryWheel
@@ -0,0 +1,171 @@
+package nu.nerd.entitymeta;
+
+// ----------------------------------------------------------------------------
+/**
+ * A compact, approximate record of how often entities have been looked up
+ * recently, used to decide whether their metadata is worth caching.
+ * <p>
+ * 
+ * This is a count-min sketch of 4-bit counters, as used by the TinyLFU cache
+ * admission policy. Each hash selects one counter in each of {@link #DEPTH}
+ * rows and the estimated frequency is the minimum of those counters, which
+ * never underestimates the true count (up to the saturation value of 15).
+ * Counters for 16 items are packed into each long, so the sketch costs 8
+ * bytes per expected item.
+ * <p>
+ * 
+ * To favour recent lookups, all counters are halved ("aged") once the number
+ * of increments reaches ten times the capacity.
+ * <p>
+ * 
+ * This class is not thread safe; it is only used from the main thread.
+ */
+final class FrequencySketch {
+    /**
+     * Number of counters incremented per item.
+     */
+    static final int DEPTH = 4;
+
+    /**
+     * The maximum value of a counter.
+     */
+    static final int MAX_COUNT = 15;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     * 
+     * @param capacity the expected number of distinct items of interest,
+     *        normally the maximum size of the cache.
+     */
+    FrequencySketch(int capacity) {
+        int size = Integer.highestOneBit(Math.max(16, Math.min(capacity, 1 << 24)) - 1) << 1;
+        _table = new long[size];
+        _sampleSize = 10 * Math.max(capacity, 1);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record a lookup of an item and return its estimated frequency,
+     * including this lookup.
+     * 
+     * @param item the hash code of the item.
+     * @return the estimated number of recent lookups of the item.
+     */
+    int increment(int item) {
+        int hash = spread(item);
+        int frequency = MAX_COUNT;
+        boolean added = false;
+        for (int i = 0; i < DEPTH; ++i) {
+            int index = indexOf(hash, i);
+            int shift = counterShift(hash, i);
+            int count = (int) ((_table[index] >>> shift) & 0xF);
+            if (count < MAX_COUNT) {
+                _table[index] += 1L << shift;
+                ++count;
+                added = true;
+            }
+            frequency = Math.min(frequency, count);
+        }
+
+        if (added && ++_additions >= _sampleSize) {
+            age();
+        }
+        return frequency;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the estimated frequency of an item without recording a lookup.
+     * 
+     * @param item the hash code of the item.
+     * @return the estimated number of recent lookups of the item.
+     */
+    int frequency(int item) {
+        int hash = spread(item);
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < DEPTH; ++i) {
+            int count = (int) ((_table[indexOf(hash, i)] >>> counterShift(hash, i)) & 0xF);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Halve all counters.
+     */
+    private void age() {
+        for (int i = 0; i < _table.length; ++i) {
+            // Shift right and clear the bit carried in from the neighbouring
+            // counter.
+            _table[i] = (_table[i] >>> 1) & 0x7777_7777_7777_7777L;
+        }
+        _additions /= 2;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the index of the long holding the counter of a hash in the
+     * specified row.
+     * 
+     * @param hash the spread hash.
+     * @param row the row, in [0, DEPTH).
+     * @return the index in the table.
+     */
+    private int indexOf(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return (int) h & (_table.length - 1);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the bit offset of the counter of a hash in the specified row,
+     * within its long.
+     * 
+     * @param hash the spread hash.
+     * @param row the row, in [0, DEPTH).
+     * @return the bit offset, a multiple of 4.
+     */
+    private static int counterShift(int hash, int row) {
+        return ((hash >>> (row << 3)) & 0xF) << 2;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Apply a supplemental hash function to defend against poor quality hash
+     * codes.
+     * 
+     * @param x the hash code.
+     * @return the spread hash.
+     */
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Multipliers used to derive the counter index in each row.
+     */
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+
+    /**
+     * Packed 4-bit counters.
+     */
+    private final long[] _table;
+
+    /**
+     * Number of increments after which counters are aged.
+     */
+    private final int _sampleSize;
+
+    /**
+     * Number of increments since counters were last aged, approximately.
+     */
+    private int _additions;
+} // class FrequencySketch
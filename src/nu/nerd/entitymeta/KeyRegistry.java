@@ -0,0 +1,127 @@
+package nu.nerd.entitymeta;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+// ----------------------------------------------------------------------------
+/**
+ * Assigns each distinct metadata key a single, shared {@link MetadataKey}
+ * instance and a small integer id.
+ * <p>
+ * 
+ * Without interning, every entity's parsed metadata holds its own copy of
+ * each key String. Interned keys are shared by all entities, their String
+ * hash codes are computed once, and per-entity lookups can compare keys by
+ * identity.
+ * <p>
+ * 
+ * Keys are never removed. To bound memory if a plugin generates keys
+ * dynamically, at most {@link #MAX_KEYS} keys are registered; further keys
+ * are returned unregistered, which is correct but forgoes the benefits.
+ * <p>
+ * 
+ * This class is thread safe.
+ */
+final class KeyRegistry {
+    /**
+     * The single instance of this class.
+     */
+    static final KeyRegistry INSTANCE = new KeyRegistry();
+
+    /**
+     * The maximum number of registered keys.
+     */
+    static final int MAX_KEYS = 1 << 16;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the canonical {@link MetadataKey} corresponding to a key String,
+     * registering it if necessary.
+     * 
+     * @param key the key, of the form plugin.name.
+     * @return the {@link MetadataKey}.
+     */
+    MetadataKey intern(String key) {
+        MetadataKey metadataKey = _keys.get(key);
+        if (metadataKey != null) {
+            return metadataKey;
+        }
+        synchronized (this) {
+            metadataKey = _keys.get(key);
+            if (metadataKey == null) {
+                if (_count == MAX_KEYS) {
+                    return new MetadataKey(key, -1);
+                }
+                metadataKey = new MetadataKey(key, _count);
+                if (_count == _byId.length) {
+                    _byId = Arrays.copyOf(_byId, 2 * _count);
+                }
+                _byId[_count++] = metadataKey;
+                _keys.put(key, metadataKey);
+            }
+            return metadataKey;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the registered {@link MetadataKey} corresponding to a key String,
+     * or null if the key has not been registered.
+     * 
+     * A key that is not registered is not present on any entity, unless the
+     * registry is full.
+     * 
+     * @param key the key, of the form plugin.name.
+     * @return the {@link MetadataKey}, or null.
+     */
+    MetadataKey lookup(String key) {
+        return _keys.get(key);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the registered key with the specified id.
+     * 
+     * @param id the id.
+     * @return the {@link MetadataKey}, or null if there is no such key.
+     */
+    synchronized MetadataKey getKey(int id) {
+        return (id >= 0 && id < _count) ? _byId[id] : null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if no more keys can be registered.
+     * 
+     * @return true if the registry is full.
+     */
+    synchronized boolean isFull() {
+        return _count == MAX_KEYS;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of registered keys.
+     * 
+     * @return the number of registered keys.
+     */
+    synchronized int size() {
+        return _count;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Map from key String to registered key.
+     */
+    private final ConcurrentHashMap<String, MetadataKey> _keys = new ConcurrentHashMap<>();
+
+    /**
+     * Registered keys, indexed by id.
+     */
+    private MetadataKey[] _byId = new MetadataKey[64];
+
+    /**
+     * Number of registered keys.
+     */
+    private int _count;
+} // class KeyRegistry
@@ -0,0 +1,221 @@
+package nu.nerd.entitymeta;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// ----------------------------------------------------------------------------
+/**
+ * A lock-free histogram of latencies in nanoseconds, with logarithmic
+ * buckets.
+ * <p>
+ * 
+ * As in HdrHistogram, each power of two range of values is divided into
+ * {@link #SUB_BUCKETS} linear sub-buckets, so that recorded values are
+ * accurate to within 1/{@link #SUB_BUCKETS} of their magnitude. Recording a
+ * value is a few atomic increments, without allocation or locking, and
+ * values of any magnitude can be recorded in a fixed amount of memory.
+ */
+public final class LatencyHistogram {
+    /**
+     * Number of bits of precision below the most significant bit.
+     */
+    static final int SUB_BUCKET_BITS = 2;
+
+    /**
+     * Number of linear sub-buckets per power of two.
+     */
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record a latency.
+     * 
+     * @param nanos the latency in nanoseconds.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        _counts.incrementAndGet(bucketIndex(nanos));
+        _totalNanos.add(nanos);
+        long max = _maxNanos.get();
+        while (nanos > max && !_maxNanos.compareAndSet(max, nanos)) {
+            max = _maxNanos.get();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of recorded latencies.
+     * 
+     * The count is summed from the buckets, rather than kept separately, so
+     * that recording a latency costs one less atomic update.
+     * 
+     * @return the number of recorded latencies.
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            count += _counts.get(i);
+        }
+        return count;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the sum of recorded latencies in nanoseconds.
+     * 
+     * @return the sum of recorded latencies in nanoseconds.
+     */
+    public long getTotalNanos() {
+        return _totalNanos.sum();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the mean recorded latency in nanoseconds, or 0 if there are no
+     * recorded latencies.
+     * 
+     * @return the mean latency in nanoseconds.
+     */
+    public long getMeanNanos() {
+        long count = getCount();
+        return (count == 0) ? 0 : getTotalNanos() / count;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the maximum recorded latency in nanoseconds.
+     * 
+     * @return the maximum latency in nanoseconds.
+     */
+    public long getMaxNanos() {
+        return _maxNanos.get();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the latency in nanoseconds at or below which the specified
+     * percentage of recorded latencies fall.
+     * 
+     * The result is the upper bound of the bucket containing the percentile,
+     * limited to the maximum recorded latency.
+     * 
+     * @param percent the percentile, in [0, 100].
+     * @return the latency at the percentile in nanoseconds, or 0 if there are
+     *         no recorded latencies.
+     */
+    public long getPercentileNanos(double percent) {
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; ++i) {
+            counts[i] = _counts.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long threshold = Math.max(1, (long) Math.ceil(total * percent / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += counts[i];
+            if (seen >= threshold) {
+                return Math.min(bucketUpperBound(i), getMaxNanos());
+            }
+        }
+        return getMaxNanos();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of recorded latencies in buckets whose values are all
+     * at or below the specified latency.
+     * 
+     * Latencies in the bucket that straddles the limit are not counted, so the
+     * result can be low by up to 1/{@link #SUB_BUCKETS} of the limit's
+     * magnitude.
+     * 
+     * @param nanos the limit in nanoseconds.
+     * @return the number of recorded latencies at or below the limit.
+     */
+    public long getCountAtOrBelow(long nanos) {
+        long count = 0;
+        for (int i = 0; i < BUCKETS && bucketUpperBound(i) <= nanos; ++i) {
+            count += _counts.get(i);
+        }
+        return count;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Discard all recorded latencies.
+     * 
+     * Latencies recorded concurrently may be partially discarded.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; ++i) {
+            _counts.set(i, 0);
+        }
+        _totalNanos.reset();
+        _maxNanos.set(0);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the index of the bucket holding a value.
+     * 
+     * Values below SUB_BUCKETS have their own buckets. Above that, the
+     * index combines the position of the most significant bit with the
+     * SUB_BUCKET_BITS bits below it.
+     * 
+     * @param value the non-negative value.
+     * @return the bucket index.
+     */
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return ((magnitude - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + subBucket;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the largest value held by a bucket.
+     * 
+     * @param index the bucket index.
+     * @return the largest value in the bucket.
+     */
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int magnitude = (index >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+        long lower = (1L << magnitude) | ((long) (index & (SUB_BUCKETS - 1)) << (magnitude - SUB_BUCKET_BITS));
+        return lower + (1L << (magnitude - SUB_BUCKET_BITS)) - 1;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Number of buckets needed to hold any non-negative long.
+     */
+    private static final int BUCKETS = bucketIndex(Long.MAX_VALUE) + 1;
+
+    /**
+     * Number of recorded latencies in each bucket.
+     */
+    private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Sum of recorded latencies in nanoseconds.
+     */
+    private final LongAdder _totalNanos = new LongAdder();
+
+    /**
+     * Maximum recorded latency in nanoseconds.
+     */
+    private final AtomicLong _maxNanos = new AtomicLong();
+} // class LatencyHistogram
@@ -0,0 +1,266 @@
+package nu.nerd.entitymeta;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// ----------------------------------------------------------------------------
+/**
+ * A numeric metadata value held as a primitive that can be updated atomically
+ * from any thread, and is persisted to its scoreboard tag periodically rather
+ * than on every update.
+ * <p>
+ * 
+ * Integral counters hold their value directly; floating point counters hold
+ * the raw long bits of a double. The counter retains the {@link MetadataType}
+ * of the value it was created from, so that, for example, an Integer value
+ * remains an Integer when persisted. Integral updates that would take the
+ * value outside the range of that type are rejected, rather than wrapping
+ * silently when the value is narrowed.
+ */
+final class MetadataCounter {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     * 
+     * @param type the type of the value; must be one of the built-in numeric
+     *        types.
+     * @param initial the initial value.
+     */
+    MetadataCounter(MetadataType type, Number initial) {
+        _type = type;
+        _floating = isFloatingPoint(type);
+        _bits = new AtomicLong(_floating ? Double.doubleToRawLongBits(initial.doubleValue()) : initial.longValue());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if values of the specified type can be held in a counter.
+     * 
+     * @param type the type.
+     * @return true if the type is numeric.
+     */
+    static boolean isNumeric(MetadataType type) {
+        return "Bsilfd".indexOf(type.getCode()) >= 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if this counter holds a floating point value.
+     * 
+     * @return true if this counter holds a floating point value.
+     */
+    boolean isFloatingPoint() {
+        return _floating;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add to an integral or floating point counter, marking it dirty.
+     * 
+     * @param delta the amount to add.
+     * @return the new value.
+     * @throws EntityMetadataException if the new value of an integral counter
+     *         would be outside the range of the counter's type.
+     */
+    long add(long delta) throws EntityMetadataException {
+        if (_floating) {
+            return (long) add((double) delta);
+        }
+        for (;;) {
+            long bits = _bits.get();
+            long value = bits + delta;
+            if (((bits ^ value) & (delta ^ value)) < 0 || value < minValue(_type) || value > maxValue(_type)) {
+                throw new EntityMetadataException("counter value " + bits + " + " + delta + " is out of range for " +
+                                                  _type.getValueClass().getSimpleName());
+            }
+            if (_bits.compareAndSet(bits, value)) {
+                _dirty = true;
+                return value;
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add to a floating point counter, marking it dirty.
+     * 
+     * @param delta the amount to add.
+     * @return the new value.
+     * @throws EntityMetadataException if the counter is integral.
+     */
+    double add(double delta) throws EntityMetadataException {
+        if (!_floating) {
+            throw new EntityMetadataException("cannot add a floating point amount to an integral counter");
+        }
+        for (;;) {
+            long bits = _bits.get();
+            double value = Double.longBitsToDouble(bits) + delta;
+            if (_bits.compareAndSet(bits, Double.doubleToRawLongBits(value))) {
+                _dirty = true;
+                return value;
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add the accumulated value of another counter to this one.
+     * 
+     * @param other the other counter.
+     */
+    void add(MetadataCounter other) {
+        if (other._floating) {
+            add(Double.longBitsToDouble(other._bits.get()));
+        } else {
+            add(other._bits.get());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the current value, boxed as the class of the counter's type.
+     * 
+     * @return the boxed value.
+     */
+    Object getValue() {
+        long bits = _bits.get();
+        switch (_type.getCode()) {
+        case 'B':
+            return (byte) bits;
+        case 's':
+            return (short) bits;
+        case 'i':
+            return (int) bits;
+        case 'f':
+            return (float) Double.longBitsToDouble(bits);
+        case 'd':
+            return Double.longBitsToDouble(bits);
+        default:
+            return bits;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the current value as a double.
+     * 
+     * @return the current value as a double.
+     */
+    double getDouble() {
+        long bits = _bits.get();
+        return _floating ? Double.longBitsToDouble(bits) : bits;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the type of the value.
+     * 
+     * @return the type of the value.
+     */
+    MetadataType getType() {
+        return _type;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the value has changed since it was last persisted.
+     * 
+     * @return true if the value has changed since it was last persisted.
+     */
+    boolean isDirty() {
+        return _dirty;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Clear the dirty flag prior to persisting the current value.
+     * 
+     * The flag is cleared before the value is read, so that a concurrent
+     * update marks the counter dirty again.
+     */
+    void clearDirty() {
+        _dirty = false;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set the dirty flag after a failed attempt to persist the current value,
+     * so that it is retried at the next flush.
+     */
+    void markDirty() {
+        _dirty = true;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the type is floating point.
+     * 
+     * @param type the type.
+     * @return true if the type is floating point.
+     */
+    private static boolean isFloatingPoint(MetadataType type) {
+        return type.getCode() == 'f' || type.getCode() == 'd';
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the smallest value that an integral counter of the specified type
+     * can hold.
+     * 
+     * @param type the type.
+     * @return the minimum value.
+     */
+    private static long minValue(MetadataType type) {
+        switch (type.getCode()) {
+        case 'B':
+            return Byte.MIN_VALUE;
+        case 's':
+            return Short.MIN_VALUE;
+        case 'i':
+            return Integer.MIN_VALUE;
+        default:
+            return Long.MIN_VALUE;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the largest value that an integral counter of the specified type
+     * can hold.
+     * 
+     * @param type the type.
+     * @return the maximum value.
+     */
+    private static long maxValue(MetadataType type) {
+        switch (type.getCode()) {
+        case 'B':
+            return Byte.MAX_VALUE;
+        case 's':
+            return Short.MAX_VALUE;
+        case 'i':
+            return Integer.MAX_VALUE;
+        default:
+            return Long.MAX_VALUE;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The type of the value.
+     */
+    private final MetadataType _type;
+
+    /**
+     * True if the value is floating point.
+     */
+    private final boolean _floating;
+
+    /**
+     * The integral value, or the raw long bits of the floating point value.
+     */
+    private final AtomicLong _bits;
+
+    /**
+     * True if the value has changed since it was last persisted.
+     */
+    private volatile boolean _dirty;
+} // class MetadataCounter
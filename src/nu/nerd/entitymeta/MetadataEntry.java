@@ -1,5 +1,7 @@
 package nu.nerd.entitymeta;
 
+import java.util.Arrays;
+
 import org.bukkit.ChatColor;
 
 // ----------------------------------------------------------------------------
@@ -25,9 +27,46 @@ public final class MetadataEntry {
      *        including the key prefix and type code.
      */
     public MetadataEntry(Object value, MetadataType type, String tag) {
+        this(value, type, tag, 0);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor for an entry that expires.
+     * 
+     * @param value the deserialised value.
+     * @param type its type.
+     * @param tag the serialised form of the value as a scoreboard tag,
+     *        including the key prefix, expiry and type code.
+     * @param expiry the system time in milliseconds when the value expires, or
+     *        0 if it does not expire.
+     */
+    public MetadataEntry(Object value, MetadataType type, String tag, long expiry) {
         _value = value;
         _type = type;
         _tag = tag;
+        _tagBytes = TagBudget.byteLength(tag);
+        _expiry = expiry;
+        _key = null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor for a transient entry, which has no scoreboard tag.
+     * 
+     * @param key the key, of the form plugin.name.
+     * @param value the value.
+     * @param type its type.
+     * @param expiry the system time in milliseconds when the value expires, or
+     *        0 if it does not expire.
+     */
+    MetadataEntry(String key, Object value, MetadataType type, long expiry) {
+        _value = value;
+        _type = type;
+        _tag = null;
+        _tagBytes = 0;
+        _expiry = expiry;
+        _key = key;
     }
 
     // ------------------------------------------------------------------------
@@ -56,12 +95,100 @@ public final class MetadataEntry {
      * the key prefix and type code.
      * 
      * @return the serialised form of the value as a scoreboard tag, including
-     *         the key prefix and type code.
+     *         the key prefix and type code, or null if the entry is transient.
      */
     public String getTag() {
         return _tag;
     }
 
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if this entry is transient, i.e. it is only held in memory
+     * and is not persisted in a scoreboard tag.
+     * 
+     * @return true if this entry is transient.
+     */
+    public boolean isTransient() {
+        return _tag == null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the system time in milliseconds when the value expires, or 0 if
+     * it does not expire.
+     * 
+     * @return the expiry time in milliseconds, or 0.
+     */
+    public long getExpiry() {
+        return _expiry;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the value has expired.
+     * 
+     * @return true if the value has expired.
+     */
+    public boolean isExpired() {
+        return _expiry != 0 && _expiry <= System.currentTimeMillis();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the serialised value, without the key prefix and type code.
+     * 
+     * @return the serialised value.
+     */
+    String getSerialisedValue() {
+        if (isTransient() || isSideStored()) {
+            return _type.toString(_value);
+        }
+        // The key and expiry cannot contain ':' and the type code is a single
+        // character.
+        return _tag.substring(_tag.indexOf(':') + 3);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the value is held in the {@link SideStore} and the tag is
+     * only a pointer to it.
+     * 
+     * @return true if the value is held in the side store.
+     */
+    public boolean isSideStored() {
+        return _tag != null && _tag.charAt(_tag.indexOf(':') + 1) == SideStore.POINTER_CODE;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the length of the scoreboard tag in bytes, as written to NBT.
+     * 
+     * @return the length of the scoreboard tag in bytes.
+     */
+    public int getTagBytes() {
+        return _tagBytes;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return an estimate of the heap memory retained by this entry and its
+     * value, in bytes.
+     * 
+     * The tag is not counted, since it is shared with the entity's scoreboard
+     * tags and is retained by the entity whether or not the entry is cached.
+     * 
+     * @return the estimated size in bytes.
+     */
+    int estimateSize() {
+        if (isTransient()) {
+            return ENTRY_OVERHEAD + _type.estimateSize(_value, 0);
+        }
+
+        int serialisedLength = isSideStored() ? Math.max(_tag.length(), EntityMeta.CONFIG.SIDE_STORE_THRESHOLD_BYTES)
+                                              : _tag.length() - _tag.indexOf(':') - 3;
+        return ENTRY_OVERHEAD + _type.estimateSize(_value, serialisedLength);
+    }
+
     // ------------------------------------------------------------------------
     /**
      * Format this entry for presentation to the user.
@@ -75,25 +202,62 @@ public final class MetadataEntry {
      * @return the formatted entry.
      */
     public String format(boolean raw) {
+        if (isTransient()) {
+            String[] nameParts = _key.split("\\.", 2);
+            return ChatColor.YELLOW + nameParts[0] + ChatColor.WHITE + '.' + ChatColor.YELLOW + nameParts[1] +
+                   ChatColor.WHITE + " (" + ChatColor.GOLD + getType().getCode() +
+                   ChatColor.WHITE + ", transient)" + ChatColor.GOLD + " -> " +
+                   ChatColor.YELLOW + formatValue(getValue());
+        }
+
         String[] tagParts = getTag().split(":", 3);
-        String key = tagParts[0];
-        String[] keyParts = key.split("\\.", 2);
-        String pluginName = keyParts[0];
-        String name = keyParts[1];
+        String[] keyParts = tagParts[0].split("@", 2);
+        String[] nameParts = keyParts[0].split("\\.", 2);
+        String pluginName = nameParts[0];
+        String name = nameParts[1];
 
         if (raw) {
             return ChatColor.YELLOW + pluginName + ChatColor.WHITE + '.' + ChatColor.YELLOW + name +
+                   (keyParts.length > 1 ? ChatColor.GOLD + "@" + ChatColor.YELLOW + keyParts[1] : "") +
                    ChatColor.GOLD + ':' + ChatColor.YELLOW + tagParts[1] +
                    ChatColor.GOLD + ':' + ChatColor.YELLOW + tagParts[2];
         } else {
             return ChatColor.YELLOW + pluginName + ChatColor.WHITE + '.' + ChatColor.YELLOW + name +
                    ChatColor.WHITE + " (" + ChatColor.GOLD + getType().getCode() +
                    ChatColor.WHITE + ")" + ChatColor.GOLD + " -> " +
-                   ChatColor.YELLOW + getValue();
+                   ChatColor.YELLOW + formatValue(getValue()) +
+                   (_expiry != 0 ? ChatColor.WHITE + " (expires in " +
+                                   Math.max(0, (_expiry - System.currentTimeMillis()) / 1000) + "s)"
+                                 : "");
         }
     }
 
     // ------------------------------------------------------------------------
+    /**
+     * Convert a value to a String for presentation, listing the elements of
+     * primitive arrays.
+     * 
+     * @param value the value.
+     * @return the value as a String.
+     */
+    static String formatValue(Object value) {
+        if (value instanceof int[]) {
+            return Arrays.toString((int[]) value);
+        } else if (value instanceof long[]) {
+            return Arrays.toString((long[]) value);
+        } else if (value instanceof double[]) {
+            return Arrays.toString((double[]) value);
+        } else {
+            return String.valueOf(value);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Estimated size of a MetadataEntry object, in bytes.
+     */
+    private static final int ENTRY_OVERHEAD = 40;
+
     /**
      * The deserialised value.
      */
@@ -106,7 +270,27 @@ public final class MetadataEntry {
 
     /**
      * The serialised form of the value as a scoreboard tag, including the key
-     * prefix and type code.
+     * prefix and type code, or null if the entry is transient.
+     * 
+     * This is the same String instance that is held in the entity's set of
+     * scoreboard tags, so it costs the cache only a reference.
      */
     private final String _tag;
+
+    /**
+     * The key of a transient entry; null for a persistent entry, whose key is
+     * a prefix of the tag.
+     */
+    private final String _key;
+
+    /**
+     * The length of the scoreboard tag in bytes.
+     */
+    private final int _tagBytes;
+
+    /**
+     * The system time in milliseconds when the value expires, or 0 if it
+     * does not expire.
+     */
+    private final long _expiry;
 } // class MetadataEntry
\ No newline at end of file
@@ -0,0 +1,637 @@
+package nu.nerd.entitymeta;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import org.bukkit.Bukkit;
+import org.bukkit.ChatColor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Entity;
+import org.bukkit.scheduler.BukkitTask;
+
+// ----------------------------------------------------------------------------
+/**
+ * A bulk import of metadata from a file, applied to entities by UUID over
+ * successive ticks.
+ * <p>
+ * 
+ * The file is read as a stream of UTF-8 lines, one record per line, with
+ * fields separated by tabs:
+ * 
+ * <pre>
+ * &lt;entity-uuid&gt;	&lt;plugin&gt;.&lt;name&gt;	&lt;type-code&gt;	&lt;serialised-value&gt;
+ * </pre>
+ * 
+ * The serialised value is the same string that would appear after the type
+ * code in a scoreboard tag, except that backslashes, tabs, carriage returns
+ * and newlines are escaped as {@code \\}, {@code \t}, {@code \r} and
+ * {@code \n}, respectively. Blank lines and lines starting with '#' are
+ * ignored.
+ * <p>
+ * 
+ * At most {@link Configuration#IMPORT_RECORDS_PER_TICK} records are processed
+ * per tick. The number of lines consumed is periodically saved to a progress
+ * file alongside the import file (with the suffix ".progress"), so that an
+ * interrupted import can be resumed. When resuming, the lines consumed by the
+ * previous run are skipped over successive ticks, along with the records.
+ * <p>
+ * 
+ * Entities are looked up with {@link Bukkit#getEntity(UUID)}, so only
+ * entities in loaded chunks can be updated; records for other entities are
+ * counted as missing and copied to a file alongside the import file (with the
+ * suffix ".missing"), which can be imported later when those entities are
+ * loaded. A dry run writes neither file.
+ * <p>
+ * 
+ * Instances are created with
+ * {@link EntityMetaAPI#importFile(File, boolean, boolean, CommandSender)}.
+ */
+public final class MetadataImport implements Runnable {
+    // ------------------------------------------------------------------------
+    /**
+     * Return the import file.
+     * 
+     * @return the import file.
+     */
+    public File getFile() {
+        return _file;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the file to which records whose entity could not be found are
+     * copied, so that they can be imported later.
+     * 
+     * @return the file of missing records, which is not written in a dry run.
+     */
+    public File getMissingFile() {
+        return _missingFile;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if this import only validates records, without setting any
+     * metadata.
+     * 
+     * @return true if this import only validates records.
+     */
+    public boolean isDryRun() {
+        return _dryRun;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the import has finished, either by reaching the end of
+     * the file, by failing with an I/O error, or by being cancelled.
+     * 
+     * @return true if the import has finished.
+     */
+    public boolean isFinished() {
+        return _finished;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of lines consumed from the file, including lines
+     * skipped when resuming.
+     * 
+     * @return the number of lines consumed from the file.
+     */
+    public long getLines() {
+        return _lines;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of records successfully applied (or, in a dry run,
+     * that would have been applied).
+     * 
+     * @return the number of records applied.
+     */
+    public long getApplied() {
+        return _applied;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of records whose entity could not be found.
+     * 
+     * These records are copied to the file returned by
+     * {@link #getMissingFile()}.
+     * 
+     * @return the number of records whose entity could not be found.
+     */
+    public long getMissing() {
+        return _missing;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of records that were malformed or could not be
+     * applied.
+     * 
+     * @return the number of records that were malformed or could not be
+     *         applied.
+     */
+    public long getErrors() {
+        return _errors;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Format a one-line summary of the progress of this import.
+     * 
+     * @return a summary of progress, including Bukkit colour codes.
+     */
+    public String formatProgress() {
+        return ChatColor.GOLD + "Import of " + ChatColor.YELLOW + _file.getName() +
+               (_dryRun ? ChatColor.GOLD + " (dry run)" : "") +
+               ChatColor.GOLD + (_finished ? " finished" : " in progress") +
+               ": lines " + ChatColor.YELLOW + _lines +
+               ChatColor.GOLD + ", applied " + ChatColor.YELLOW + _applied +
+               ChatColor.GOLD + ", missing " + ChatColor.YELLOW + _missing +
+               ChatColor.GOLD + ", errors " + ChatColor.YELLOW + _errors;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop the import, saving the current position in the progress file so
+     * that it can be resumed later.
+     */
+    public void cancel() {
+        if (!_finished) {
+            finish(ChatColor.GOLD + "Import cancelled.");
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Process up to the configured number of records in the current tick.
+     * 
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+        if (_finished) {
+            return;
+        }
+
+        try {
+            int budget = Math.max(1, EntityMeta.CONFIG.IMPORT_RECORDS_PER_TICK);
+            if (_lines < _skip) {
+                long skipped = 0;
+                long maxSkipped = (long) budget * SKIPPED_LINES_PER_RECORD;
+                while (_lines < _skip && skipped < maxSkipped) {
+                    if (_reader.readLine() == null) {
+                        finish(ChatColor.GOLD + "Import complete.");
+                        return;
+                    }
+                    ++_lines;
+                    ++skipped;
+                }
+                budget = (int) Math.max(0, budget - skipped / SKIPPED_LINES_PER_RECORD);
+            }
+            for (int i = 0; i < budget; ++i) {
+                String line = _reader.readLine();
+                if (line == null) {
+                    finish(ChatColor.GOLD + "Import complete.");
+                    return;
+                }
+                ++_lines;
+                processLine(line);
+            }
+        } catch (IOException ex) {
+            ++_errors;
+            finish(ChatColor.RED + "Import stopped by an I/O error: " + ex.getMessage());
+            return;
+        }
+
+        if (++_ticks % PROGRESS_INTERVAL_TICKS == 0) {
+            saveProgress();
+            report(formatProgress());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     * 
+     * @param store the metadata store to update.
+     * @param file the file to import.
+     * @param dryRun if true, records are validated but not applied.
+     * @param resume if true, lines consumed by a previous run (as recorded in
+     *        the progress file) are skipped.
+     * @param sender the recipient of progress reports, or null to only log
+     *        them.
+     * @throws IOException if the file could not be opened.
+     */
+    MetadataImport(MetadataStore store, File file, boolean dryRun, boolean resume, CommandSender sender) throws IOException {
+        _store = store;
+        _file = file;
+        _progressFile = new File(file.getPath() + ".progress");
+        _missingFile = new File(file.getPath() + ".missing");
+        _dryRun = dryRun;
+        _resume = resume && _progressFile.isFile();
+        _sender = sender;
+        _reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        if (_resume) {
+            _skip = loadProgress();
+        } else if (!dryRun) {
+            // Don't leave missing records of a previous run to be imported twice.
+            _missingFile.delete();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start processing records on successive ticks.
+     */
+    void start() {
+        RUNNING.add(this);
+        _task = Bukkit.getScheduler().runTaskTimer(EntityMeta.PLUGIN, this, 1L, 1L);
+        report(ChatColor.GOLD + "Importing " + ChatColor.YELLOW + _file.getName() +
+               (_skip > 0 ? ChatColor.GOLD + ", resuming after line " + ChatColor.YELLOW + _skip : "") +
+               ChatColor.GOLD + ".");
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Cancel all imports that are in progress, saving their progress so that
+     * they can be resumed.
+     * 
+     * This is called when the plugin is disabled.
+     */
+    static void cancelAll() {
+        for (MetadataImport metadataImport : new ArrayList<>(RUNNING)) {
+            metadataImport.cancel();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Parse and apply a single line of the import file.
+     * 
+     * @param line the line.
+     */
+    private void processLine(String line) {
+        if (line.isEmpty() || line.charAt(0) == '#') {
+            return;
+        }
+
+        String[] fields = line.split("\t", 4);
+        if (fields.length != 4 || fields[2].length() != 1) {
+            error("malformed record");
+            return;
+        }
+
+        UUID uuid;
+        try {
+            uuid = UUID.fromString(fields[0]);
+        } catch (IllegalArgumentException ex) {
+            error("invalid UUID " + fields[0]);
+            return;
+        }
+
+        String key = fields[1];
+        if (!EntityMetaAPI.KEY_PATTERN.matcher(key).matches()) {
+            error("invalid key " + key);
+            return;
+        }
+
+        MetadataType type = MetadataTypeManager.INSTANCE.getTypeByCode(fields[2].charAt(0));
+        if (type == null) {
+            error("unsupported type code " + fields[2]);
+            return;
+        }
+
+        Object value;
+        try {
+            value = type.fromString(unescape(fields[3]));
+        } catch (IllegalArgumentException ex) {
+            error("value could not be decoded as " + type.getValueClass().getName());
+            return;
+        }
+
+        Entity entity = Bukkit.getEntity(uuid);
+        if (entity == null) {
+            ++_missing;
+            saveMissing(line);
+            return;
+        }
+
+        if (!_dryRun) {
+            try {
+                _store.setValue(entity, key, value, type);
+            } catch (EntityMetadataException ex) {
+                error(ex.getMessage());
+                return;
+            }
+        }
+        ++_applied;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Count and log an erroneous record.
+     * 
+     * @param message describes the error.
+     */
+    private void error(String message) {
+        ++_errors;
+        if (_errors <= MAX_LOGGED_ERRORS) {
+            getLogger().warning(_file.getName() + " line " + _lines + ": " + message);
+            if (_errors == MAX_LOGGED_ERRORS) {
+                getLogger().warning(_file.getName() + ": further errors will not be logged.");
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop processing, close the file, save progress and report the outcome.
+     * 
+     * @param message the message describing the reason for finishing.
+     */
+    private void finish(String message) {
+        _finished = true;
+        RUNNING.remove(this);
+        if (_task != null) {
+            _task.cancel();
+        }
+        try {
+            _reader.close();
+        } catch (IOException ex) {
+            getLogger().warning("Unable to close " + _file.getName() + ": " + ex.getMessage());
+        }
+        if (_missingWriter != null) {
+            try {
+                _missingWriter.close();
+            } catch (IOException ex) {
+                getLogger().warning("Unable to save " + _missingFile.getName() + ": " + ex.getMessage());
+            }
+            _missingWriter = null;
+        }
+        saveProgress();
+        report(message);
+        report(formatProgress());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Send a message to the sender of the import command, and the log.
+     * 
+     * @param message the message.
+     */
+    private void report(String message) {
+        if (_sender != null) {
+            _sender.sendMessage(message);
+        }
+        getLogger().info(ChatColor.stripColor(message));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of lines recorded in the progress file, or 0 if it
+     * could not be read.
+     * 
+     * @return the number of lines to skip when resuming.
+     */
+    private long loadProgress() {
+        try {
+            String text = new String(Files.readAllBytes(_progressFile.toPath()), StandardCharsets.UTF_8);
+            return Long.parseLong(text.trim());
+        } catch (IOException | NumberFormatException ex) {
+            getLogger().warning("Unable to read " + _progressFile.getName() + "; starting from the beginning.");
+            return 0;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Copy a record whose entity could not be found to the file of missing
+     * records.
+     * 
+     * The file is created by the first missing record, unless resuming, in
+     * which case records are appended to it. In a dry run, nothing is
+     * written.
+     * 
+     * @param line the record.
+     */
+    private void saveMissing(String line) {
+        if (_dryRun || _missingFailed) {
+            return;
+        }
+        try {
+            if (_missingWriter == null) {
+                _missingWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(_missingFile, _resume),
+                                                                           StandardCharsets.UTF_8));
+            }
+            _missingWriter.write(line);
+            _missingWriter.newLine();
+        } catch (IOException ex) {
+            // Keep importing; the missing records are still counted.
+            _missingFailed = true;
+            getLogger().warning("Unable to save missing records to " + _missingFile.getName() + ": " + ex.getMessage());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record the number of lines consumed in the progress file.
+     * 
+     * Missing records are flushed first, so that resuming from the saved
+     * position does not lose them. In a dry run, the progress file is left
+     * unchanged.
+     */
+    private void saveProgress() {
+        if (!_dryRun) {
+            if (_missingWriter != null) {
+                try {
+                    _missingWriter.flush();
+                } catch (IOException ex) {
+                    getLogger().warning("Unable to save " + _missingFile.getName() + ": " + ex.getMessage());
+                }
+            }
+            try {
+                Files.write(_progressFile.toPath(), Long.toString(_lines).getBytes(StandardCharsets.UTF_8));
+            } catch (IOException ex) {
+                getLogger().warning("Unable to save " + _progressFile.getName() + ": " + ex.getMessage());
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Reverse the escaping of backslashes, tabs, carriage returns and
+     * newlines in a serialised value.
+     * 
+     * @param field the escaped field.
+     * @return the serialised value.
+     */
+    static String unescape(String field) {
+        if (field.indexOf('\\') < 0) {
+            return field;
+        }
+
+        StringBuilder value = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); ++i) {
+            char c = field.charAt(i);
+            if (c == '\\' && i + 1 < field.length()) {
+                char next = field.charAt(++i);
+                switch (next) {
+                case 't':
+                    value.append('\t');
+                    break;
+                case 'r':
+                    value.append('\r');
+                    break;
+                case 'n':
+                    value.append('\n');
+                    break;
+                default:
+                    value.append(next);
+                    break;
+                }
+            } else {
+                value.append(c);
+            }
+        }
+        return value.toString();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the plugin's Logger.
+     * 
+     * @return the plugin's Logger.
+     */
+    private static Logger getLogger() {
+        return EntityMeta.PLUGIN.getLogger();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Number of ticks between progress reports and progress file updates.
+     */
+    private static final int PROGRESS_INTERVAL_TICKS = 100;
+
+    /**
+     * Maximum number of erroneous records logged individually.
+     */
+    private static final int MAX_LOGGED_ERRORS = 50;
+
+    /**
+     * The number of lines that can be skipped when resuming in place of
+     * processing one record, since skipping a line only reads it.
+     */
+    private static final int SKIPPED_LINES_PER_RECORD = 64;
+
+    /**
+     * Imports that have been started and have not finished.
+     */
+    private static final Set<MetadataImport> RUNNING = new HashSet<>();
+
+    /**
+     * The store to which metadata is written.
+     */
+    private final MetadataStore _store;
+
+    /**
+     * The import file.
+     */
+    private final File _file;
+
+    /**
+     * The file recording the number of lines consumed so far.
+     */
+    private final File _progressFile;
+
+    /**
+     * The file to which records whose entity could not be found are copied.
+     */
+    private final File _missingFile;
+
+    /**
+     * If true, records are validated but not applied.
+     */
+    private final boolean _dryRun;
+
+    /**
+     * If true, this import resumes a previous run of the same file.
+     */
+    private final boolean _resume;
+
+    /**
+     * The recipient of progress reports, or null.
+     */
+    private final CommandSender _sender;
+
+    /**
+     * Reads the import file.
+     */
+    private final BufferedReader _reader;
+
+    /**
+     * Writes missing records, or null if none have been written yet.
+     */
+    private BufferedWriter _missingWriter;
+
+    /**
+     * True if writing missing records failed, so no more are written.
+     */
+    private boolean _missingFailed;
+
+    /**
+     * The repeating task that calls {@link #run()}.
+     */
+    private BukkitTask _task;
+
+    /**
+     * True when the import has finished.
+     */
+    private boolean _finished;
+
+    /**
+     * Number of ticks run so far.
+     */
+    private long _ticks;
+
+    /**
+     * Number of lines consumed from the file.
+     */
+    private long _lines;
+
+    /**
+     * Number of lines consumed by a previous run, to be skipped when
+     * resuming.
+     */
+    private long _skip;
+
+    /**
+     * Number of records applied.
+     */
+    private long _applied;
+
+    /**
+     * Number of records whose entity was not found.
+     */
+    private long _missing;
+
+    /**
+     * Number of erroneous records.
+     */
+    private long _errors;
+} // class MetadataImport
@@ -0,0 +1,157 @@
+package nu.nerd.entitymeta;
+
+import java.util.HashMap;
+
+import org.bukkit.entity.Entity;
+
+// ----------------------------------------------------------------------------
+/**
+ * Holds the secondary indexes over metadata values of loaded entities, and
+ * keeps them up to date as values are set, removed and unloaded.
+ * <p>
+ * 
+ * The {@link ReferenceIndex} of UUID values is always maintained;
+ * {@link NumericIndex numeric indexes} are created on request.
+ * {@link PerEntityMetadata} reports every value that it parses, sets or
+ * removes, and {@link MetadataStore} reports entities as they are loaded and
+ * unloaded. Indexes reflect persisted values: changes to counters are seen
+ * when the counter is flushed.
+ * <p>
+ * 
+ * This class is not thread safe and must only be used from the main thread.
+ */
+final class MetadataIndexes {
+    /**
+     * The single instance of this class.
+     */
+    static final MetadataIndexes INSTANCE = new MetadataIndexes();
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if values with the specified key and type code are
+     * indexed.
+     * 
+     * @param key the key, of the form plugin.name.
+     * @param code the type code.
+     * @return true if such values are indexed.
+     */
+    boolean isIndexed(String key, char code) {
+        return code == 'u' || code == 'U' || _numeric.containsKey(key);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the index of UUID references, which is always maintained.
+     * 
+     * @return the reference index.
+     */
+    ReferenceIndex getReferenceIndex() {
+        return _references;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the numeric index of the specified key.
+     * 
+     * @param key the key, of the form plugin.name.
+     * @return the index, or null if the key is not indexed.
+     */
+    NumericIndex getNumericIndex(String key) {
+        return _numeric.get(key);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add an empty numeric index of the specified key, if it is not already
+     * indexed.
+     * 
+     * @param key the key, of the form plugin.name.
+     * @return true if the index was added; false if it already existed.
+     */
+    boolean addNumericIndex(String key) {
+        if (_numeric.containsKey(key)) {
+            return false;
+        }
+        _numeric.put(key, new NumericIndex(key));
+        return true;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Update the indexes when a value is set.
+     * 
+     * Values of entities that are no longer valid are not indexed.
+     * 
+     * @param entity the entity.
+     * @param key the key, of the form plugin.name.
+     * @param value the new value.
+     */
+    void updated(Entity entity, String key, Object value) {
+        if (!entity.isValid()) {
+            return;
+        }
+        _references.put(entity, key, value);
+        NumericIndex index = _numeric.get(key);
+        if (index != null) {
+            if (value instanceof Number) {
+                index.put(entity, ((Number) value).doubleValue());
+            } else {
+                index.remove(entity);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Update the indexes when a value is removed.
+     * 
+     * @param entity the entity.
+     * @param key the key, of the form plugin.name.
+     */
+    void removed(Entity entity, String key) {
+        _references.remove(entity, key);
+        NumericIndex index = _numeric.get(key);
+        if (index != null) {
+            index.remove(entity);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove all of an entity's values from the indexes, when it is unloaded
+     * or removed.
+     * 
+     * @param entity the entity.
+     */
+    void removeEntity(Entity entity) {
+        _references.removeEntity(entity);
+        for (NumericIndex index : _numeric.values()) {
+            index.remove(entity);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove entities that are no longer valid from the indexes.
+     * 
+     * This is called periodically to remove entities that were removed from
+     * the world without being unloaded.
+     */
+    void removeInvalid() {
+        _references.removeInvalid();
+        for (NumericIndex index : _numeric.values()) {
+            index.removeInvalid();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The index of UUID references.
+     */
+    private final ReferenceIndex _references = new ReferenceIndex();
+
+    /**
+     * Map from key to numeric index of that key.
+     */
+    private final HashMap<String, NumericIndex> _numeric = new HashMap<>();
+} // class MetadataIndexes
@@ -0,0 +1,79 @@
+package nu.nerd.entitymeta;
+
+// ----------------------------------------------------------------------------
+/**
+ * The canonical representation of a metadata key ({@code <plugin>.<name>}),
+ * with a small integer id, as allocated by the {@link KeyRegistry}.
+ * <p>
+ * 
+ * Registered keys are unique, so they can be compared by identity and their
+ * ids used as array indices. If the registry is full, keys are created
+ * unregistered, with an id of -1, and must be compared by name.
+ */
+final class MetadataKey {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     * 
+     * @param name the key, of the form plugin.name.
+     * @param id the id, or -1 if unregistered.
+     */
+    MetadataKey(String name, int id) {
+        _name = name;
+        _id = id;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the canonical String form of the key.
+     * 
+     * @return the key, of the form plugin.name.
+     */
+    String getName() {
+        return _name;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the id of the key, or -1 if the key is unregistered.
+     * 
+     * @return the id, or -1.
+     */
+    int getId() {
+        return _id;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if this key is the same as another.
+     * 
+     * Registered keys are equal only if identical, so this is a reference
+     * comparison unless either key is unregistered.
+     * 
+     * @param other the other key.
+     * @return true if the keys are the same.
+     */
+    boolean sameAs(MetadataKey other) {
+        return this == other || ((_id < 0 || other._id < 0) && _name.equals(other._name));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return _name;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The key, of the form plugin.name.
+     */
+    private final String _name;
+
+    /**
+     * The id, or -1 if unregistered.
+     */
+    private final int _id;
+} // class MetadataKey
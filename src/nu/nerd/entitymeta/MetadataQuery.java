@@ -0,0 +1,1202 @@
+package nu.nerd.entitymeta;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.EntityType;
+
+// ----------------------------------------------------------------------------
+/**
+ * A query over entity metadata, compiled once into a tree of predicates and
+ * then evaluated against any number of entities.
+ * <p>
+ * 
+ * The query language has the following predicates, where {@code <key>} is of
+ * the form {@code <plugin>.<name>}:
+ * <ul>
+ * <li>{@code <key>} - the value is set.</li>
+ * <li>{@code <key> = <value>}, {@code <key> != <value>} - the value is set
+ * and is (or is not) equal to {@code <value>}. Numeric values are compared
+ * numerically; a UUID literal is only equal to a value of type UUID; other
+ * values are compared by their string form.</li>
+ * <li>{@code <key> < <number>}, also {@code <=}, {@code >} and {@code >=} -
+ * the value is numeric and in range.</li>
+ * <li>{@code <key> ^= <prefix>} - the string form of the value starts with
+ * {@code <prefix>}.</li>
+ * <li>{@code <key> is <code>} - the value has the specified type code.</li>
+ * <li>{@code type = <types>}, {@code type != <types>} - the entity type is
+ * (or is not) one of a comma separated list, e.g. {@code ZOMBIE,SKELETON}.</li>
+ * </ul>
+ * Predicates can be combined with {@code and}, {@code or}, {@code not} and
+ * parentheses; {@code and} binds more tightly than {@code or}. Values
+ * containing spaces or operator characters can be double-quoted.
+ * <p>
+ * 
+ * For example: {@code type = ZOMBIE and (Boss.level > 10 or Boss.name ^= "King")}.
+ * <p>
+ * 
+ * Compilation orders the operands of each {@code and} and {@code or} so that
+ * cheap tests (entity type) run before tests that need metadata, and metadata
+ * is only loaded for entities that pass the cheap tests. Metadata is read
+ * without being cached, as by
+ * {@link EntityMetaAPI#peekEntry(Entity, String, String)}.
+ * <p>
+ * 
+ * Queries must be evaluated on the main thread. A compiled query is
+ * immutable and can be reused.
+ */
+public final class MetadataQuery {
+    // ------------------------------------------------------------------------
+    /**
+     * Compile a query.
+     * 
+     * @param query the query text.
+     * @return the compiled query.
+     * @throws EntityMetadataException if the query is invalid.
+     */
+    public static MetadataQuery compile(String query) throws EntityMetadataException {
+        Parser parser = new Parser(query);
+        Node root = parser.parseOr();
+        if (parser.hasNext()) {
+            throw new EntityMetadataException("unexpected " + parser.next() + " in query");
+        }
+        return new MetadataQuery(root.optimise());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The result of evaluating a query against a collection of entities.
+     */
+    public static final class Result {
+        /**
+         * Constructor.
+         * 
+         * @param entities the matching entities.
+         * @param plan a description of the evaluation plan.
+         * @param examined the number of entities examined.
+         * @param nanos the time taken in nanoseconds.
+         */
+        Result(List<Entity> entities, String plan, int examined, long nanos) {
+            _entities = Collections.unmodifiableList(entities);
+            _plan = plan;
+            _examined = examined;
+            _nanos = nanos;
+        }
+
+        /**
+         * Return the matching entities, in the order they were examined.
+         * 
+         * @return the matching entities.
+         */
+        public List<Entity> getEntities() {
+            return _entities;
+        }
+
+        /**
+         * Return a description of the plan chosen to evaluate the query.
+         * 
+         * @return the plan.
+         */
+        public String getPlan() {
+            return _plan;
+        }
+
+        /**
+         * Return the number of entities examined.
+         * 
+         * @return the number of entities examined.
+         */
+        public int getExamined() {
+            return _examined;
+        }
+
+        /**
+         * Return the time taken to evaluate the query in nanoseconds.
+         * 
+         * @return the time taken in nanoseconds.
+         */
+        public long getNanos() {
+            return _nanos;
+        }
+
+        /**
+         * The matching entities.
+         */
+        private final List<Entity> _entities;
+
+        /**
+         * A description of the plan.
+         */
+        private final String _plan;
+
+        /**
+         * The number of entities examined.
+         */
+        private final int _examined;
+
+        /**
+         * The time taken in nanoseconds.
+         */
+        private final long _nanos;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if an entity matches this query.
+     * 
+     * @param entity the entity.
+     * @return true if the entity matches.
+     * @throws EntityMetadataException if the entity is null, or enclosing any
+     *         exception thrown when loading metadata.
+     */
+    public boolean test(Entity entity) throws EntityMetadataException {
+        Context context = new Context(EntityMeta.api().getStore());
+        context.reset(entity);
+        return _root.test(context);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the loaded entities, in all worlds, that match this query.
+     * 
+     * If the query requires a numeric value to be within a range and that
+     * value is {@link EntityMetaAPI#createNumericIndex(String, String)
+     * indexed}, or requires a value to equal a UUID, only the entities found
+     * in the corresponding index are examined.
+     * 
+     * @return the result, including the matching entities, the plan and the
+     *         time taken.
+     * @throws EntityMetadataException enclosing any exception thrown when
+     *         loading metadata.
+     */
+    public Result find() throws EntityMetadataException {
+        long start = System.nanoTime();
+        IndexScan scan = chooseIndex(Integer.MAX_VALUE);
+        if (scan != null) {
+            return filter(scan.getEntities(), null, scan + ", filter " + _root, start);
+        }
+
+        List<Entity> all = new ArrayList<>();
+        for (World world : Bukkit.getWorlds()) {
+            all.addAll(world.getEntities());
+        }
+        return filter(all, null, "scan " + all.size() + " loaded entities, filter " + _root, start);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the entities that match this query, from the specified
+     * candidates.
+     * 
+     * If the query requires a numeric value to be within a range and that
+     * value is {@link EntityMetaAPI#createNumericIndex(String, String)
+     * indexed}, or requires a value to equal a UUID, and the index holds
+     * fewer matching entities than there are candidates, only the candidates
+     * found in the index are examined.
+     * 
+     * @param candidates the entities to consider.
+     * @return the result, including the matching entities, the plan and the
+     *         time taken.
+     * @throws EntityMetadataException if any entity is null, or enclosing any
+     *         exception thrown when loading metadata.
+     */
+    public Result find(Collection<? extends Entity> candidates) throws EntityMetadataException {
+        long start = System.nanoTime();
+        IndexScan scan = chooseIndex(candidates.size());
+        if (scan != null) {
+            Set<? extends Entity> candidateSet = (candidates instanceof Set) ? (Set<? extends Entity>) candidates
+                                                                           : new HashSet<>(candidates);
+            return filter(scan.getEntities(), candidateSet,
+                          scan + " within " + candidates.size() + " candidates, filter " + _root, start);
+        }
+        return filter(candidates, null, "scan " + candidates.size() + " entities, filter " + _root, start);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the query in canonical form, with operands in evaluation order.
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return _root.toString();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Evaluate the query against a sequence of entities.
+     * 
+     * @param entities the entities to examine.
+     * @param candidates if not null, entities not in this set are skipped.
+     * @param plan the description of the plan.
+     * @param start the start time, from {@link System#nanoTime()}.
+     * @return the result.
+     */
+    private Result filter(Collection<? extends Entity> entities, Set<? extends Entity> candidates, String plan, long start) {
+        Context context = new Context(EntityMeta.api().getStore());
+        List<Entity> matches = new ArrayList<>();
+        int examined = 0;
+        for (Entity entity : entities) {
+            if (candidates == null || candidates.contains(entity)) {
+                ++examined;
+                context.reset(entity);
+                if (_root.test(context)) {
+                    matches.add(entity);
+                }
+            }
+        }
+        return new Result(matches, plan, examined, System.nanoTime() - start);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Choose the most selective index scan implied by the query, if any.
+     * 
+     * Only comparisons at the root of the query, or operands of an
+     * {@code and} at the root, can use an index: ordering comparisons
+     * ({@code <, <=, >, >=}) on numerically indexed keys, and equality with
+     * a UUID. Numeric ranges are inclusive, so the index may return extra
+     * entities, which are removed by evaluating the whole query.
+     * 
+     * @param limit only scans of fewer than this many entries are
+     *        considered worthwhile.
+     * @return the scan, or null if no index can be used.
+     */
+    private IndexScan chooseIndex(int limit) {
+        List<Node> operands = (_root instanceof Junction && ((Junction) _root)._and)
+            ? Arrays.asList(((Junction) _root)._operands)
+            : Collections.singletonList(_root);
+
+        IndexScan best = null;
+        for (Node operand : operands) {
+            if (operand instanceof Comparison) {
+                IndexScan scan = ((Comparison) operand).getIndexScan();
+                if (scan != null && scan._count < limit && (best == null || scan._count < best._count)) {
+                    best = scan;
+                }
+            }
+        }
+        return best;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A lookup in an index, returning a superset of the matching entities.
+     */
+    private abstract static class IndexScan {
+        /**
+         * Constructor.
+         * 
+         * @param count the estimated number of entities returned.
+         */
+        IndexScan(int count) {
+            _count = count;
+        }
+
+        /**
+         * Return the entities found in the index.
+         * 
+         * @return the entities.
+         */
+        abstract List<Entity> getEntities();
+
+        /**
+         * The estimated number of entities returned.
+         */
+        final int _count;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * An inclusive range of values in a {@link NumericIndex}.
+     */
+    private static final class IndexRange extends IndexScan {
+        /**
+         * Constructor.
+         * 
+         * @param index the index.
+         * @param min the inclusive minimum value.
+         * @param max the inclusive maximum value.
+         */
+        IndexRange(NumericIndex index, double min, double max) {
+            super(index.count(min, max));
+            _index = index;
+            _min = min;
+            _max = max;
+        }
+
+        @Override
+        List<Entity> getEntities() {
+            return _index.range(_min, _max, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Describe the range for the plan.
+         * 
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return "index range " + _index.getKey() + " in [" + _min + ", " + _max + "] (" +
+                   _count + " of " + _index.size() + " indexed)";
+        }
+
+        /**
+         * The index.
+         */
+        final NumericIndex _index;
+
+        /**
+         * The inclusive minimum value.
+         */
+        final double _min;
+
+        /**
+         * The inclusive maximum value.
+         */
+        final double _max;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A lookup of the values with a particular key that refer to a UUID, in
+     * the {@link ReferenceIndex}.
+     */
+    private static final class ReferenceLookup extends IndexScan {
+        /**
+         * Constructor.
+         * 
+         * @param key the key.
+         * @param uuid the UUID.
+         */
+        ReferenceLookup(String key, UUID uuid) {
+            super(MetadataIndexes.INSTANCE.getReferenceIndex().count(uuid));
+            _key = key;
+            _uuid = uuid;
+        }
+
+        @Override
+        List<Entity> getEntities() {
+            return new ArrayList<>(MetadataIndexes.INSTANCE.getReferenceIndex().find(_uuid, _key).keySet());
+        }
+
+        /**
+         * Describe the lookup for the plan.
+         * 
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return "reference index " + _key + " = " + _uuid + " (at most " + _count + " references)";
+        }
+
+        /**
+         * The key.
+         */
+        final String _key;
+
+        /**
+         * The UUID.
+         */
+        final UUID _uuid;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     * 
+     * @param root the root of the predicate tree.
+     */
+    private MetadataQuery(Node root) {
+        _root = root;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The state of evaluation of one entity, reused across entities.
+     */
+    static final class Context {
+        /**
+         * Constructor.
+         * 
+         * @param store the metadata store.
+         */
+        Context(MetadataStore store) {
+            _store = store;
+        }
+
+        /**
+         * Begin evaluating an entity.
+         * 
+         * @param entity the entity.
+         */
+        void reset(Entity entity) {
+            _entity = entity;
+            _meta = null;
+        }
+
+        /**
+         * Return the entry with the specified key, loading the entity's
+         * metadata on first use.
+         * 
+         * @param key the key.
+         * @return the entry, or null if not set.
+         */
+        MetadataEntry getEntry(String key) {
+            if (_meta == null) {
+                _meta = _store.peekMetadata(_entity);
+            }
+            return _meta.getEntry(key);
+        }
+
+        /**
+         * The metadata store.
+         */
+        private final MetadataStore _store;
+
+        /**
+         * The entity being evaluated.
+         */
+        Entity _entity;
+
+        /**
+         * The entity's metadata, or null if not yet loaded.
+         */
+        private PerEntityMetadata _meta;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A node of the predicate tree.
+     */
+    abstract static class Node {
+        /**
+         * Return true if the entity being evaluated matches.
+         * 
+         * @param context the evaluation context.
+         * @return true if matched.
+         */
+        abstract boolean test(Context context);
+
+        /**
+         * Return the relative cost of evaluating this node; nodes that need
+         * metadata cost more than those that don't.
+         * 
+         * @return the cost.
+         */
+        abstract int cost();
+
+        /**
+         * Return an equivalent node with operands in evaluation order.
+         * 
+         * @return the optimised node.
+         */
+        Node optimise() {
+            return this;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A conjunction or disjunction of operands.
+     */
+    static final class Junction extends Node {
+        /**
+         * Constructor.
+         * 
+         * @param and true for a conjunction, false for a disjunction.
+         * @param operands the operands.
+         */
+        Junction(boolean and, List<Node> operands) {
+            _and = and;
+            _operands = operands.toArray(new Node[operands.size()]);
+        }
+
+        @Override
+        boolean test(Context context) {
+            for (Node operand : _operands) {
+                if (operand.test(context) != _and) {
+                    return !_and;
+                }
+            }
+            return _and;
+        }
+
+        @Override
+        int cost() {
+            int cost = 0;
+            for (Node operand : _operands) {
+                cost = Math.max(cost, operand.cost());
+            }
+            return cost;
+        }
+
+        @Override
+        Node optimise() {
+            List<Node> operands = new ArrayList<>();
+            for (Node operand : _operands) {
+                Node optimised = operand.optimise();
+                // Flatten nested junctions of the same kind.
+                if (optimised instanceof Junction && ((Junction) optimised)._and == _and) {
+                    Collections.addAll(operands, ((Junction) optimised)._operands);
+                } else {
+                    operands.add(optimised);
+                }
+            }
+            operands.sort(Comparator.comparingInt(Node::cost));
+            return new Junction(_and, operands);
+        }
+
+        @Override
+        public String toString() {
+            String separator = _and ? " and " : " or ";
+            StringBuilder result = new StringBuilder("(");
+            for (int i = 0; i < _operands.length; ++i) {
+                result.append((i == 0) ? "" : separator).append(_operands[i]);
+            }
+            return result.append(')').toString();
+        }
+
+        /**
+         * True for a conjunction, false for a disjunction.
+         */
+        final boolean _and;
+
+        /**
+         * The operands, in evaluation order.
+         */
+        final Node[] _operands;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A negation.
+     */
+    static final class Not extends Node {
+        /**
+         * Constructor.
+         * 
+         * @param operand the negated node.
+         */
+        Not(Node operand) {
+            _operand = operand;
+        }
+
+        @Override
+        boolean test(Context context) {
+            return !_operand.test(context);
+        }
+
+        @Override
+        int cost() {
+            return _operand.cost();
+        }
+
+        @Override
+        Node optimise() {
+            Node operand = _operand.optimise();
+            return (operand instanceof Not) ? ((Not) operand)._operand : new Not(operand);
+        }
+
+        @Override
+        public String toString() {
+            return "not " + _operand;
+        }
+
+        /**
+         * The negated node.
+         */
+        final Node _operand;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Tests the type of the entity.
+     */
+    static final class EntityTypeTest extends Node {
+        /**
+         * Constructor.
+         * 
+         * @param types the matching entity types.
+         */
+        EntityTypeTest(EnumSet<EntityType> types) {
+            _types = types;
+        }
+
+        @Override
+        boolean test(Context context) {
+            return _types.contains(context._entity.getType());
+        }
+
+        @Override
+        int cost() {
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return "type = " + _types.stream().map(Enum::name).collect(Collectors.joining(","));
+        }
+
+        /**
+         * The matching entity types.
+         */
+        final EnumSet<EntityType> _types;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Tests that a value is set and, in subclasses, satisfies a condition.
+     */
+    static class KeyTest extends Node {
+        /**
+         * Constructor.
+         * 
+         * @param key the key.
+         */
+        KeyTest(String key) {
+            _key = key;
+        }
+
+        @Override
+        final boolean test(Context context) {
+            MetadataEntry entry = context.getEntry(_key);
+            return entry != null && test(entry);
+        }
+
+        /**
+         * Return true if the entry satisfies the condition.
+         * 
+         * @param entry the non-null entry.
+         * @return true if the condition is satisfied.
+         */
+        boolean test(MetadataEntry entry) {
+            return true;
+        }
+
+        @Override
+        int cost() {
+            return 1;
+        }
+
+        @Override
+        public String toString() {
+            return _key;
+        }
+
+        /**
+         * The key.
+         */
+        final String _key;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Tests the type code of a value.
+     */
+    static final class TypeCodeTest extends KeyTest {
+        /**
+         * Constructor.
+         * 
+         * @param key the key.
+         * @param code the type code.
+         */
+        TypeCodeTest(String key, char code) {
+            super(key);
+            _code = code;
+        }
+
+        @Override
+        boolean test(MetadataEntry entry) {
+            return entry.getType().getCode() == _code;
+        }
+
+        @Override
+        public String toString() {
+            return _key + " is " + _code;
+        }
+
+        /**
+         * The type code.
+         */
+        final char _code;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Compares a value with a literal.
+     */
+    static final class Comparison extends KeyTest {
+        /**
+         * Constructor.
+         * 
+         * @param key the key.
+         * @param operator the operator: =, !=, <, <=, >, >= or ^=.
+         * @param literal the literal.
+         * @throws EntityMetadataException if the operator requires a numeric
+         *         literal and the literal is not numeric.
+         */
+        Comparison(String key, String operator, String literal) throws EntityMetadataException {
+            super(key);
+            _operator = operator;
+            _literal = literal;
+
+            Long integral = null;
+            Double floating = null;
+            try {
+                integral = Long.parseLong(literal);
+                floating = integral.doubleValue();
+            } catch (NumberFormatException ex) {
+                try {
+                    floating = Double.parseDouble(literal);
+                } catch (NumberFormatException ex2) {
+                    // Not numeric.
+                }
+            }
+            _numeric = (floating != null);
+            _integral = (integral != null);
+            _long = _integral ? integral : 0;
+            _double = _numeric ? floating : 0;
+
+            UUID uuid = null;
+            if (!_numeric && (operator.equals("=") || operator.equals("!="))) {
+                try {
+                    uuid = UUID.fromString(literal);
+                } catch (IllegalArgumentException ex) {
+                    // Not a UUID.
+                }
+            }
+            _uuid = uuid;
+
+            boolean ordered = !operator.equals("=") && !operator.equals("!=") && !operator.equals("^=");
+            if (ordered && !_numeric) {
+                throw new EntityMetadataException(key + " " + operator + " requires a number, not " + literal);
+            }
+        }
+
+        @Override
+        boolean test(MetadataEntry entry) {
+            Object value = entry.getValue();
+            if (_operator.equals("^=")) {
+                return String.valueOf(value).startsWith(_literal);
+            }
+
+            int comparison;
+            if (value instanceof Number && _numeric) {
+                comparison = compare((Number) value);
+            } else if (_uuid != null) {
+                // As in the reference index, only a value of type UUID can
+                // equal a UUID literal, not a String of the same text.
+                comparison = _uuid.equals(value) ? 0 : 1;
+            } else if (_operator.equals("=")) {
+                return String.valueOf(value).equals(_literal);
+            } else if (_operator.equals("!=")) {
+                return !String.valueOf(value).equals(_literal);
+            } else {
+                return false;
+            }
+
+            switch (_operator) {
+            case "=":
+                return comparison == 0;
+            case "!=":
+                return comparison != 0;
+            case "<":
+                return comparison < 0;
+            case "<=":
+                return comparison <= 0;
+            case ">":
+                return comparison > 0;
+            default:
+                return comparison >= 0;
+            }
+        }
+
+        /**
+         * Return a scan of the index that can find entities that satisfy this
+         * comparison, or null if there is none.
+         * 
+         * @return the index scan, or null.
+         */
+        IndexScan getIndexScan() {
+            if (_uuid != null && _operator.equals("=")) {
+                return new ReferenceLookup(_key, _uuid);
+            }
+            NumericIndex index = MetadataIndexes.INSTANCE.getNumericIndex(_key);
+            if (index == null || !_numeric || _operator.equals("=") || _operator.equals("!=") || _operator.equals("^=")) {
+                return null;
+            }
+            boolean below = _operator.startsWith("<");
+            return new IndexRange(index, below ? Double.NEGATIVE_INFINITY : _double,
+                                  below ? _double : Double.POSITIVE_INFINITY);
+        }
+
+        @Override
+        public String toString() {
+            return _key + " " + _operator + " " + quote(_literal);
+        }
+
+        /**
+         * Compare a numeric value with the literal.
+         * 
+         * @param value the value.
+         * @return negative, zero or positive as the value is less than, equal
+         *         to or greater than the literal.
+         */
+        private int compare(Number value) {
+            if (_integral && (value instanceof Long || value instanceof Integer ||
+                              value instanceof Short || value instanceof Byte)) {
+                return Long.compare(value.longValue(), _long);
+            }
+            return Double.compare(value.doubleValue(), _double);
+        }
+
+        /**
+         * The operator.
+         */
+        final String _operator;
+
+        /**
+         * The literal text.
+         */
+        final String _literal;
+
+        /**
+         * True if the literal is a number.
+         */
+        final boolean _numeric;
+
+        /**
+         * True if the literal is an integer.
+         */
+        final boolean _integral;
+
+        /**
+         * The literal as a long, if integral.
+         */
+        final long _long;
+
+        /**
+         * The literal as a double, if numeric.
+         */
+        final double _double;
+
+        /**
+         * The literal as a UUID, if it is one and the operator is = or !=.
+         */
+        final UUID _uuid;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A token of query text.
+     */
+    private static final class Token {
+        /**
+         * Constructor.
+         * 
+         * @param text the text, without quotes.
+         * @param quoted true if the text was quoted.
+         */
+        Token(String text, boolean quoted) {
+            _text = text;
+            _quoted = quoted;
+        }
+
+        /**
+         * Return true if this is an unquoted token with the specified text,
+         * ignoring case.
+         * 
+         * @param text the text.
+         * @return true if matched.
+         */
+        boolean is(String text) {
+            return !_quoted && _text.equalsIgnoreCase(text);
+        }
+
+        /**
+         * Return true if this is a comparison operator.
+         * 
+         * @return true if this is an operator.
+         */
+        boolean isOperator() {
+            return !_quoted && OPERATORS.contains(_text);
+        }
+
+        @Override
+        public String toString() {
+            return "'" + _text + "'";
+        }
+
+        /**
+         * The text, without quotes.
+         */
+        final String _text;
+
+        /**
+         * True if the text was quoted.
+         */
+        final boolean _quoted;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A recursive descent parser of query text.
+     */
+    private static final class Parser {
+        /**
+         * Constructor.
+         * 
+         * @param text the query text.
+         * @throws EntityMetadataException if the text cannot be tokenised.
+         */
+        Parser(String text) throws EntityMetadataException {
+            _tokens = tokenise(text);
+        }
+
+        /**
+         * Return true if there are more tokens.
+         * 
+         * @return true if there are more tokens.
+         */
+        boolean hasNext() {
+            return _index < _tokens.size();
+        }
+
+        /**
+         * Return the next token, without consuming it, or null at the end.
+         * 
+         * @return the next token, or null.
+         */
+        Token peek() {
+            return hasNext() ? _tokens.get(_index) : null;
+        }
+
+        /**
+         * Consume and return the next token.
+         * 
+         * @return the next token.
+         * @throws EntityMetadataException at the end of the query.
+         */
+        Token next() throws EntityMetadataException {
+            if (!hasNext()) {
+                throw new EntityMetadataException("unexpected end of query");
+            }
+            return _tokens.get(_index++);
+        }
+
+        /**
+         * Parse: and-expression ('or' and-expression)*
+         * 
+         * @return the node.
+         * @throws EntityMetadataException if the query is invalid.
+         */
+        Node parseOr() throws EntityMetadataException {
+            List<Node> operands = new ArrayList<>();
+            operands.add(parseAnd());
+            while (hasNext() && peek().is("or")) {
+                next();
+                operands.add(parseAnd());
+            }
+            return (operands.size() == 1) ? operands.get(0) : new Junction(false, operands);
+        }
+
+        /**
+         * Parse: unary ('and' unary)*
+         * 
+         * @return the node.
+         * @throws EntityMetadataException if the query is invalid.
+         */
+        Node parseAnd() throws EntityMetadataException {
+            List<Node> operands = new ArrayList<>();
+            operands.add(parseUnary());
+            while (hasNext() && peek().is("and")) {
+                next();
+                operands.add(parseUnary());
+            }
+            return (operands.size() == 1) ? operands.get(0) : new Junction(true, operands);
+        }
+
+        /**
+         * Parse: 'not' unary | '(' or-expression ')' | predicate
+         * 
+         * @return the node.
+         * @throws EntityMetadataException if the query is invalid.
+         */
+        Node parseUnary() throws EntityMetadataException {
+            Token token = next();
+            if (token.is("not")) {
+                return new Not(parseUnary());
+            } else if (token.is("(")) {
+                Node node = parseOr();
+                if (!next().is(")")) {
+                    throw new EntityMetadataException("expected ')' in query");
+                }
+                return node;
+            } else if (token.is("type")) {
+                return parseEntityType();
+            } else if (!token._quoted && EntityMetaAPI.KEY_PATTERN.matcher(token._text).matches()) {
+                return parseKeyTest(token._text);
+            } else {
+                throw new EntityMetadataException("expected a key of the form <plugin>.<name>, 'type', 'not' or '(', not " + token);
+            }
+        }
+
+        /**
+         * Parse the remainder of: 'type' ('=' | '!=') types
+         * 
+         * @return the node.
+         * @throws EntityMetadataException if the query is invalid.
+         */
+        Node parseEntityType() throws EntityMetadataException {
+            Token operator = next();
+            if (!operator.is("=") && !operator.is("!=")) {
+                throw new EntityMetadataException("expected '=' or '!=' after 'type', not " + operator);
+            }
+            EnumSet<EntityType> types = EnumSet.noneOf(EntityType.class);
+            for (String name : next()._text.split(",")) {
+                if (!name.isEmpty()) {
+                    try {
+                        types.add(EntityType.valueOf(name.toUpperCase()));
+                    } catch (IllegalArgumentException ex) {
+                        throw new EntityMetadataException(name + " is not a valid entity type");
+                    }
+                }
+            }
+            Node node = new EntityTypeTest(types);
+            return operator.is("=") ? node : new Not(node);
+        }
+
+        /**
+         * Parse the remainder of a predicate on a key.
+         * 
+         * @param key the key.
+         * @return the node.
+         * @throws EntityMetadataException if the query is invalid.
+         */
+        Node parseKeyTest(String key) throws EntityMetadataException {
+            Token token = peek();
+            if (token != null && token.isOperator()) {
+                next();
+                return new Comparison(key, token._text, next()._text);
+            } else if (token != null && token.is("is")) {
+                next();
+                Token code = next();
+                if (code._text.length() != 1) {
+                    throw new EntityMetadataException("expected a single character type code, not " + code);
+                }
+                return new TypeCodeTest(key, code._text.charAt(0));
+            } else {
+                return new KeyTest(key);
+            }
+        }
+
+        /**
+         * Split query text into tokens.
+         * 
+         * @param text the text.
+         * @return the tokens.
+         * @throws EntityMetadataException if a quoted string is unterminated
+         *         or an operator is invalid.
+         */
+        private static List<Token> tokenise(String text) throws EntityMetadataException {
+            List<Token> tokens = new ArrayList<>();
+            int i = 0;
+            while (i < text.length()) {
+                char c = text.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    ++i;
+                } else if (c == '(' || c == ')') {
+                    tokens.add(new Token(String.valueOf(c), false));
+                    ++i;
+                } else if (c == '"') {
+                    StringBuilder value = new StringBuilder();
+                    ++i;
+                    while (i < text.length() && text.charAt(i) != '"') {
+                        if (text.charAt(i) == '\\' && i + 1 < text.length()) {
+                            ++i;
+                        }
+                        value.append(text.charAt(i++));
+                    }
+                    if (i == text.length()) {
+                        throw new EntityMetadataException("unterminated quoted string in query");
+                    }
+                    ++i;
+                    tokens.add(new Token(value.toString(), true));
+                } else if (OPERATOR_CHARS.indexOf(c) >= 0) {
+                    int end = (i + 1 < text.length() && text.charAt(i + 1) == '=') ? i + 2 : i + 1;
+                    String operator = text.substring(i, end);
+                    if (!OPERATORS.contains(operator)) {
+                        throw new EntityMetadataException("invalid operator '" + operator + "' in query");
+                    }
+                    tokens.add(new Token(operator, false));
+                    i = end;
+                } else {
+                    int start = i;
+                    while (i < text.length() && !Character.isWhitespace(text.charAt(i)) &&
+                           "()\"".indexOf(text.charAt(i)) < 0 && OPERATOR_CHARS.indexOf(text.charAt(i)) < 0) {
+                        ++i;
+                    }
+                    tokens.add(new Token(text.substring(start, i), false));
+                }
+            }
+            return tokens;
+        }
+
+        /**
+         * The tokens.
+         */
+        private final List<Token> _tokens;
+
+        /**
+         * The index of the next token.
+         */
+        private int _index;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Quote a literal if it would not otherwise be read back as one token.
+     * 
+     * @param literal the literal.
+     * @return the literal, quoted if necessary.
+     */
+    static String quote(String literal) {
+        for (int i = 0; i < literal.length(); ++i) {
+            char c = literal.charAt(i);
+            if (Character.isWhitespace(c) || "()\"\\".indexOf(c) >= 0 || OPERATOR_CHARS.indexOf(c) >= 0) {
+                return '"' + literal.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+            }
+        }
+        return literal.isEmpty() ? "\"\"" : literal;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Characters that begin an operator.
+     */
+    private static final String OPERATOR_CHARS = "=!<>^";
+
+    /**
+     * Comparison operators.
+     */
+    private static final List<String> OPERATORS = Arrays.asList("=", "!=", "<", "<=", ">", ">=", "^=");
+
+    /**
+     * The root of the predicate tree.
+     */
+    private final Node _root;
+} // class MetadataQuery
@@ -0,0 +1,138 @@
+package nu.nerd.entitymeta;
+
+import java.util.Map;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+// ----------------------------------------------------------------------------
+/**
+ * An immutable snapshot of all of the metadata of an entity, as returned by
+ * {@link EntityMetaAPI#snapshot(org.bukkit.entity.Entity)}.
+ * <p>
+ * 
+ * Snapshots must be taken on the main thread, but can then be read from any
+ * thread without locking. They are intended to be handed to asynchronous
+ * tasks such as database synchronisation or web dashboards.
+ * <p>
+ * 
+ * An entity's snapshot is shared by all callers until the entity's metadata
+ * next changes, so taking a snapshot of unchanged metadata does not copy it.
+ * Values that expire after the snapshot was taken are omitted when read.
+ * <p>
+ * 
+ * The {@link MetadataEntry} instances are shared with the cache. Their values
+ * (e.g. {@link org.bukkit.Location}) must not be modified.
+ */
+public final class MetadataSnapshot {
+    /**
+     * The shared snapshot of entities that have no metadata.
+     */
+    static final MetadataSnapshot EMPTY = new MetadataSnapshot(ImmutableMap.of());
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the {@link MetadataEntry} with the specified key.
+     * 
+     * @param key the key, of the form plugin.name.
+     * @return the entry, or null if not set or expired.
+     */
+    public MetadataEntry getEntry(String key) {
+        MetadataEntry entry = _entries.get(key);
+        return (entry == null || (_hasExpiring && entry.isExpired())) ? null : entry;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the {@link MetadataEntry} with the specified plugin and name.
+     * 
+     * @param pluginName the name of the plugin that owns the metadata.
+     * @param name the name of the value.
+     * @return the entry, or null if not set or expired.
+     */
+    public MetadataEntry getEntry(String pluginName, String name) {
+        return getEntry(pluginName + '.' + name);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the value with the specified plugin and name.
+     * 
+     * @param pluginName the name of the plugin that owns the metadata.
+     * @param name the name of the value.
+     * @return the value, or null if not set or expired.
+     */
+    public Object getValue(String pluginName, String name) {
+        MetadataEntry entry = getEntry(pluginName, name);
+        return (entry != null) ? entry.getValue() : null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return all {@link MetadataEntry}s, in no particular order.
+     * 
+     * @return an immutable map from key to entry.
+     */
+    public Map<String, MetadataEntry> getAllEntries() {
+        if (!_hasExpiring) {
+            return _entries;
+        }
+        return ImmutableMap.copyOf(Maps.filterValues(_entries, e -> !e.isExpired()));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return all {@link MetadataEntry}s belonging to the specified plugin, in
+     * no particular order.
+     * 
+     * @param pluginName the name of the plugin that owns the metadata.
+     * @return an immutable map from key to entry.
+     */
+    public Map<String, MetadataEntry> getPluginEntries(String pluginName) {
+        String prefix = pluginName + '.';
+        return ImmutableMap.copyOf(Maps.filterEntries(_entries,
+            e -> e.getKey().startsWith(prefix) && !(_hasExpiring && e.getValue().isExpired())));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the system time in milliseconds when this snapshot was taken.
+     * 
+     * Since snapshots are shared until the metadata changes, this can be
+     * earlier than the call that returned the snapshot. All entities without
+     * metadata share one snapshot, taken when this class was loaded.
+     * 
+     * @return the time the snapshot was taken.
+     */
+    public long getTime() {
+        return _time;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     * 
+     * @param entries the entries, which are copied.
+     */
+    MetadataSnapshot(Map<String, MetadataEntry> entries) {
+        _entries = ImmutableMap.copyOf(entries);
+        _hasExpiring = _entries.values().stream().anyMatch(e -> e.getExpiry() != 0);
+        _time = System.currentTimeMillis();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Map from key to entry.
+     */
+    private final ImmutableMap<String, MetadataEntry> _entries;
+
+    /**
+     * True if any entry has an expiry time.
+     */
+    private final boolean _hasExpiring;
+
+    /**
+     * The system time in milliseconds when this snapshot was taken.
+     */
+    private final long _time;
+} // class MetadataSnapshot
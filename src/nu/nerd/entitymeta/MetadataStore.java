@@ -1,17 +1,36 @@
 package nu.nerd.entitymeta;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
+import org.bukkit.Bukkit;
+import org.bukkit.World;
 import org.bukkit.entity.Entity;
 
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
 import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalCause;
 import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.MapMaker;
+
+import nu.nerd.entitymeta.jfr.MetadataEvents;
 
 // ----------------------------------------------------------------------------
 /**
@@ -36,18 +55,55 @@ final class MetadataStore {
      * Rebuild the cache according to the new configuration settings.
      * 
      * Since Minecraft itself is responsible for storing tags when entities are
-     * unloaded, we don't need to carry over cache entries to the new cache.
+     * unloaded, we don't need to carry over cache entries to the new cache,
+     * except for those holding transient values, which are pinned.
      */
     public void rebuildCache() {
-        _entityMetadata = CacheBuilder.newBuilder()
+        if (_entityMetadata != null) {
+            flushCounters();
+            for (Map.Entry<Entity, PerEntityMetadata> entry : _entityMetadata.asMap().entrySet()) {
+                if (entry.getValue().hasTransientEntries() && entry.getKey().isValid()) {
+                    _pinned.put(entry.getKey(), entry.getValue());
+                }
+                entry.getValue().clearWeight();
+            }
+        }
+        _cacheWeight.set(0);
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
         .weakKeys()
-        .maximumSize(EntityMeta.CONFIG.CACHE_SIZE)
         .expireAfterAccess(EntityMeta.CONFIG.CACHE_SECONDS, TimeUnit.SECONDS)
+        .recordStats();
+        if (EntityMeta.CONFIG.CACHE_MAX_BYTES > 0) {
+            builder.maximumWeight(EntityMeta.CONFIG.CACHE_MAX_BYTES)
+            .weigher((Entity entity, PerEntityMetadata meta) -> {
+                int oldWeight = meta.getWeight();
+                int weight = meta.weigh();
+                _cacheWeight.addAndGet(weight - oldWeight);
+                return weight;
+            });
+        } else {
+            builder.maximumSize(EntityMeta.CONFIG.CACHE_SIZE);
+        }
+        _sketch = new FrequencySketch(EntityMeta.CONFIG.CACHE_SIZE);
+        _entityMetadata = builder
         .removalListener(REMOVAL_LISTENER)
         .build(new CacheLoader<Entity, PerEntityMetadata>() {
             @Override
             public PerEntityMetadata load(Entity entity) throws Exception {
-                return new PerEntityMetadata(entity);
+                // Metadata with unsaved counters or transient values may have
+                // been evicted.
+                PerEntityMetadata meta = _dirty.get(entity);
+                PerEntityMetadata pinned = _pinned.remove(entity);
+                if (meta == null) {
+                    meta = pinned;
+                }
+                if (meta == null) {
+                    meta = parse(entity);
+                    if (meta.hasExpiringEntries()) {
+                        scheduleExpiry(entity, meta);
+                    }
+                }
+                return meta;
             }
         });
     }
@@ -65,164 +121,1580 @@ final class MetadataStore {
      *         loading metadata.
      */
     public void setValue(Entity entity, String key, Object value) throws EntityMetadataException {
+        if (isTransientKey(key)) {
+            setTransientValue(entity, key, value);
+            return;
+        }
+
         MetadataType type = MetadataTypeManager.INSTANCE.getType(value);
         if (type == null) {
             throw new EntityMetadataException("unsuported metadata type", null);
         }
+        setValue(entity, key, value, type);
+    }
 
+    // ------------------------------------------------------------------------
+    /**
+     * Set a single metadata value on an Entity, encoding it with the specified
+     * type.
+     * 
+     * @param entity the entity.
+     * @param key must be of the form {@code <plugin>.<name>}.
+     * @param value the value; must be non-null.
+     * @param type the type used to encode the value.
+     * 
+     * @throws EntityMetadataException if the entity is null, if the write
+     *         would exceed a tag limit or was refused by the server, or
+     *         enclosing any exception thrown when loading metadata.
+     */
+    public void setValue(Entity entity, String key, Object value, MetadataType type) throws EntityMetadataException {
         PerEntityMetadata meta = getCached(entity);
-        meta.removeEntry(entity, key);
-        meta.setEntry(entity, key, value, type);
+        meta.setEntry(entity, key, type.normalise(value), type);
+        reweigh(entity, meta);
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Remove a metadata value from an entity.
+     * Set a single metadata value on an Entity, to be removed automatically
+     * after the specified time.
+     * 
+     * The expiry time is stored in the scoreboard tag, so that the value
+     * expires even if the entity is unloaded or the server restarts.
      * 
      * @param entity the entity.
      * @param key must be of the form {@code <plugin>.<name>}.
+     * @param value the value; must be non-null.
+     * @param ttlMillis the time to live in milliseconds; must be positive.
      * 
-     * @throws EntityMetadataException if the entity is null, or enclosing any
-     *         exception thrown when loading metadata.
+     * @throws EntityMetadataException if the entity is null, if the value is
+     *         of an unsupported type, if the expiry time would overflow, if
+     *         the write would exceed a tag limit or was refused by the
+     *         server, or enclosing any exception thrown when loading
+     *         metadata.
      */
-    public void removeValue(Entity entity, String key) throws EntityMetadataException {
-        PerEntityMetadata meta = getIfCached(entity);
-        if (meta != null) {
-            meta.removeEntry(entity, key);
+    public void setValue(Entity entity, String key, Object value, long ttlMillis) throws EntityMetadataException {
+        MetadataType type = isTransientKey(key) ? MetadataTypeManager.OBJECT_TYPE
+                                                : MetadataTypeManager.INSTANCE.getType(value);
+        if (type == null) {
+            throw new EntityMetadataException("unsuported metadata type", null);
+        }
+
+        long expiry;
+        try {
+            expiry = Math.addExact(System.currentTimeMillis(), ttlMillis);
+        } catch (ArithmeticException ex) {
+            throw new EntityMetadataException("TTL is too large", ex);
+        }
+
+        PerEntityMetadata meta = getCached(entity);
+        MetadataEntry oldEntry = meta.getEntry(key);
+        if (isTransientKey(key)) {
+            meta.setTransientEntry(entity, key, value, MetadataTypeManager.INSTANCE.getTransientType(value), expiry);
+        } else {
+            value = type.normalise(value);
+            meta.setEntry(entity, key, value, type, PerEntityMetadata.encode(entity, key, type, value), expiry);
+        }
+        reweigh(entity, meta);
+
+        // A pending timer that fires earlier will reschedule for the new expiry.
+        if (oldEntry == null || oldEntry.getExpiry() == 0 || oldEntry.getExpiry() > expiry) {
+            _expiryWheel.schedule(entity, key, expiry);
         }
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Return an entity's metadata value, or null if not set.
+     * Set a transient metadata value on an Entity.
+     * 
+     * The value is held only in the cached metadata of the entity, which is
+     * retained while the entity is valid. No tag is written and the value is
+     * not serialised, so it can be of any class.
      * 
      * @param entity the entity.
      * @param key must be of the form {@code <plugin>.<name>}.
-     * @return an entity's metadata value, or null if not set.
+     * @param value the value; must be non-null.
      * 
      * @throws EntityMetadataException if the entity is null, or enclosing any
      *         exception thrown when loading metadata.
      */
-    public Object getValue(Entity entity, String key) throws EntityMetadataException {
-        MetadataEntry entry = getEntry(entity, key);
-        return (entry != null) ? entry.getValue() : null;
+    public void setTransientValue(Entity entity, String key, Object value) throws EntityMetadataException {
+        PerEntityMetadata meta = getCached(entity);
+        meta.setTransientEntry(entity, key, value, MetadataTypeManager.INSTANCE.getTransientType(value), 0);
+        reweigh(entity, meta);
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Return a {@link MetadataEntry} of an entity.
+     * Register a key whose values are always transient.
+     * 
+     * @param key must be of the form {@code <plugin>.<name>}.
+     */
+    public void registerTransientKey(String key) {
+        _transientKeys.add(key);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if values of the specified key are always transient.
+     * 
+     * @param key the key.
+     * @return true if values of the specified key are always transient.
+     */
+    public boolean isTransientKey(String key) {
+        return !_transientKeys.isEmpty() && _transientKeys.contains(key);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append an element to a collection-valued metadata value, creating the
+     * collection if not set.
+     * 
+     * The serialised form of the new element is appended to that of the
+     * existing collection, without re-encoding the existing elements.
      * 
      * @param entity the entity.
      * @param key must be of the form {@code <plugin>.<name>}.
-     * @return the {@link MetadataEntry}, or null if not set.
+     * @param element the element; must be non-null.
      * 
-     * @throws EntityMetadataException if the entity is null, or enclosing any
-     *         exception thrown when loading metadata.
+     * @throws EntityMetadataException if the entity is null, the existing
+     *         value is not a collection, or the element is of the wrong type.
+     *         Elements of int[] and long[] must be Byte, Short, Integer or
+     *         Long, and in range.
      */
-    public MetadataEntry getEntry(Entity entity, String key) throws EntityMetadataException {
+    public void appendElement(Entity entity, String key, Object element) throws EntityMetadataException {
         PerEntityMetadata meta = getCached(entity);
-        return meta.getEntry(key);
+        MetadataEntry entry = meta.getEntry(key);
+        if (entry == null) {
+            CollectionType type = MetadataTypeManager.INSTANCE.getCollectionType(element.getClass());
+            if (type == null) {
+                throw new EntityMetadataException("unsupported collection element type");
+            }
+            element = type.checkElement(element);
+            if (isTransientKey(key)) {
+                meta.setTransientEntry(entity, key, type.append(null, element), type, 0);
+            } else {
+                meta.setEntry(entity, key, type.append(null, element), type);
+            }
+        } else {
+            CollectionType type = getCollectionType(entry);
+            element = type.checkElement(element);
+            if (entry.isTransient()) {
+                meta.setTransientEntry(entity, key, type.append(entry.getValue(), element), type, entry.getExpiry());
+            } else {
+                meta.setEntry(entity, key, type.append(entry.getValue(), element), type,
+                              type.appendToString(entry.getSerialisedValue(), element), entry.getExpiry());
+            }
+        }
+        reweigh(entity, meta);
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Return all {@link MetadataEntry}s, in no particular order.
+     * Remove the first occurrence of an element from a collection-valued
+     * metadata value.
      * 
      * @param entity the entity.
-     * @return all {@link MetadataEntry}s, in no particular order.
+     * @param key must be of the form {@code <plugin>.<name>}.
+     * @param element the element; must be non-null.
+     * @return true if the element was found and removed.
      * 
-     * @throws EntityMetadataException if the entity is null, or enclosing any
-     *         exception thrown when loading metadata.
+     * @throws EntityMetadataException if the entity is null or the existing
+     *         value is not a collection.
      */
-    public Map<String, MetadataEntry> getAllEntries(Entity entity) throws EntityMetadataException {
+    public boolean removeElement(Entity entity, String key, Object element) throws EntityMetadataException {
         PerEntityMetadata meta = getCached(entity);
-        return meta.getAllEntries();
+        MetadataEntry entry = meta.getEntry(key);
+        if (entry == null) {
+            return false;
+        }
+
+        CollectionType type = getCollectionType(entry);
+        Object collection = type.remove(entry.getValue(), element);
+        if (collection == entry.getValue()) {
+            return false;
+        }
+        if (entry.isTransient()) {
+            meta.setTransientEntry(entity, key, collection, type, entry.getExpiry());
+        } else {
+            meta.setEntry(entity, key, collection, type, PerEntityMetadata.encode(entity, key, type, collection), entry.getExpiry());
+        }
+        reweigh(entity, meta);
+        return true;
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Return all {@link MetadataEntry}s belonging to the specified plugin, in
-     * no particular order.
+     * Add to an integral counter without waiting for the result.
+     * 
+     * If called from an asynchronous thread for an entity whose metadata is
+     * not cached, or that does not yet have a counter for the key, the delta
+     * is queued and applied on the main thread at the next flush.
      * 
      * @param entity the entity.
-     * @return all {@link MetadataEntry}s, in no particular order.
+     * @param key must be of the form {@code <plugin>.<name>}.
+     * @param delta the amount to add.
      * 
-     * @throws EntityMetadataException if the entity is null, or enclosing any
-     *         exception thrown when loading metadata.
+     * @throws EntityMetadataException if the entity is null, or the current
+     *         value is not numeric, or the new value would be outside the
+     *         range of its type.
      */
-    public Map<String, MetadataEntry> getPluginEntries(Entity entity, String pluginName) throws EntityMetadataException {
-        PerEntityMetadata meta = getCached(entity);
-        return meta.getPluginEntries(pluginName);
+    public void increment(Entity entity, String key, long delta) throws EntityMetadataException {
+        PerEntityMetadata meta = getForCounter(entity);
+        MetadataCounter counter = (meta != null) ? getCounter(meta, key, false) : null;
+        if (counter == null) {
+            counter = new MetadataCounter(MetadataTypeManager.INSTANCE.getTypeByClass(Long.class), delta);
+            queueDelta(entity, key, counter);
+        } else {
+            counter.add(delta);
+            _dirty.put(entity, meta);
+        }
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Return metadata for the entity, caching it as necessary.
+     * Add to a floating point counter without waiting for the result.
+     * 
+     * If called from an asynchronous thread for an entity whose metadata is
+     * not cached, or that does not yet have a counter for the key, the delta
+     * is queued and applied on the main thread at the next flush.
      * 
      * @param entity the entity.
-     * @returns the cached metadata.
+     * @param key must be of the form {@code <plugin>.<name>}.
+     * @param delta the amount to add.
+     * 
+     * @throws EntityMetadataException if the entity is null, or the current
+     *         value is not numeric or is integral.
+     */
+    public void increment(Entity entity, String key, double delta) throws EntityMetadataException {
+        PerEntityMetadata meta = getForCounter(entity);
+        MetadataCounter counter = (meta != null) ? getCounter(meta, key, true) : null;
+        if (counter == null) {
+            counter = new MetadataCounter(MetadataTypeManager.INSTANCE.getTypeByClass(Double.class), delta);
+            queueDelta(entity, key, counter);
+        } else {
+            counter.add(delta);
+            _dirty.put(entity, meta);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add to an integral counter and return the new value.
+     * 
+     * If called from an asynchronous thread for an entity whose metadata is
+     * not cached, or that does not yet have a counter for the key, this
+     * method blocks until the main thread has updated the counter.
+     * 
+     * @param entity the entity.
+     * @param key must be of the form {@code <plugin>.<name>}.
+     * @param delta the amount to add.
+     * @return the new value.
+     * 
+     * @throws EntityMetadataException if the entity is null, or the current
+     *         value is not numeric, or the new value would be outside the
+     *         range of its type.
+     */
+    public long addAndGet(Entity entity, String key, long delta) throws EntityMetadataException {
+        PerEntityMetadata meta = getForCounter(entity);
+        MetadataCounter counter = (meta != null) ? getCounter(meta, key, false) : null;
+        if (counter == null) {
+            return callSync(() -> addAndGet(entity, key, delta));
+        }
+        long value = counter.add(delta);
+        _dirty.put(entity, meta);
+        return value;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add to a floating point counter and return the new value.
+     * 
+     * If called from an asynchronous thread for an entity whose metadata is
+     * not cached, or that does not yet have a counter for the key, this
+     * method blocks until the main thread has updated the counter.
+     * 
+     * @param entity the entity.
+     * @param key must be of the form {@code <plugin>.<name>}.
+     * @param delta the amount to add.
+     * @return the new value.
+     * 
+     * @throws EntityMetadataException if the entity is null, or the current
+     *         value is not numeric or is integral.
+     */
+    public double addAndGet(Entity entity, String key, double delta) throws EntityMetadataException {
+        PerEntityMetadata meta = getForCounter(entity);
+        MetadataCounter counter = (meta != null) ? getCounter(meta, key, true) : null;
+        if (counter == null) {
+            return callSync(() -> addAndGet(entity, key, delta));
+        }
+        double value = counter.add(delta);
+        _dirty.put(entity, meta);
+        return value;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Called on every tick to persist counters when the configured interval
+     * has elapsed, remove expired values, publish read counters for the
+     * metrics endpoint and service asynchronous reads.
+     */
+    public void tick() {
+        if (++_ticksSinceFlush >= EntityMeta.CONFIG.COUNTER_FLUSH_TICKS) {
+            flushCounters();
+        }
+        _expiryWheel.advance(System.currentTimeMillis(), EntityMeta.CONFIG.EXPIRY_REMOVALS_PER_TICK, _expirer);
+        if (EntityMeta.CONFIG.METRICS_ENABLED) {
+            Metrics.INSTANCE.publishReads(_readHits, _readMisses, _untaggedReads, _admissionRejections);
+        }
+        AsyncRead read;
+        while ((read = _asyncReads.poll()) != null) {
+            gather(read);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Apply queued counter deltas and write all changed counters to scoreboard
+     * tags.
+     * 
+     * This must only be called from the main thread.
+     */
+    public void flushCounters() {
+        _ticksSinceFlush = 0;
+        for (Entity entity : _pendingDeltas.keySet()) {
+            applyDeltas(entity);
+        }
+        for (Entity entity : _dirty.keySet()) {
+            flushCounters(entity);
+        }
+
+        // Release the transient and side-stored values of removed entities.
+        _pinned.keySet().removeIf(entity -> !entity.isValid());
+        MetadataIndexes.INSTANCE.removeInvalid();
+        SideStore sideStore = SideStore.getInstance();
+        if (sideStore != null) {
+            sideStore.purgeInvalid();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write the changed counters of the specified entities to scoreboard tags
+     * and release their transient values, because they are about to be
+     * unloaded.
+     * 
+     * This must only be called from the main thread.
+     * 
+     * @param entities the entities.
+     */
+    public void unloadEntities(Entity[] entities) {
+        SideStore sideStore = SideStore.getInstance();
+        for (Entity entity : entities) {
+            MetadataIndexes.INSTANCE.removeEntity(entity);
+            if (sideStore != null) {
+                sideStore.untrack(entity);
+            }
+        }
+        if (_dirty.isEmpty() && _pendingDeltas.isEmpty() && _pinned.isEmpty()) {
+            return;
+        }
+        for (Entity entity : entities) {
+            applyDeltas(entity);
+            flushCounters(entity);
+            _pinned.remove(entity);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add the values of newly loaded entities to the indexes.
+     * 
+     * The metadata of entities that are not in memory is not parsed; only
+     * the tags holding indexed values are decoded, as by
+     * {@link #indexValue(Entity, String)}.
+     * 
+     * This must only be called from the main thread.
+     * 
+     * @param entities the entities.
+     */
+    public void loadEntities(Entity[] entities) {
+        SideStore sideStore = SideStore.getInstance();
+        for (Entity entity : entities) {
+            if (PerEntityMetadata.mayHaveMetadata(entity)) {
+                if (sideStore != null) {
+                    sideStore.track(entity);
+                }
+                PerEntityMetadata meta = getResident(entity);
+                if (meta != null) {
+                    meta.index(entity);
+                } else {
+                    List<String> keys = PerEntityMetadata.getIndexedKeys(entity);
+                    if (keys != null) {
+                        for (String key : keys) {
+                            indexValue(entity, key);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Create a sorted index of the numeric values of the specified key, and
+     * add the values of all loaded entities to it.
+     * 
+     * This must only be called from the main thread. If the key is already
+     * indexed, this does nothing.
+     * 
+     * @param key must be of the form {@code <plugin>.<name>}.
+     */
+    public void createNumericIndex(String key) {
+        if (MetadataIndexes.INSTANCE.addNumericIndex(key)) {
+            for (World world : Bukkit.getWorlds()) {
+                for (Entity entity : world.getEntities()) {
+                    if (PerEntityMetadata.mayHaveMetadata(entity)) {
+                        indexValue(entity, key);
+                    }
+                }
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the loaded entities with UUID or UUID list values that refer to
+     * the specified UUID.
+     * 
+     * This must only be called from the main thread.
+     * 
+     * @param uuid the UUID.
+     * @param key if not null, only values with this key, of the form
+     *        {@code <plugin>.<name>}, are considered.
+     * @return a map from entity to the keys of its values that refer to the
+     *         UUID.
+     */
+    public Map<Entity, List<String>> findReferencing(UUID uuid, String key) {
+        return MetadataIndexes.INSTANCE.getReferenceIndex().find(uuid, key);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the sorted index of the numeric values of the specified key.
+     * 
+     * @param key must be of the form {@code <plugin>.<name>}.
+     * @return the index.
+     * @throws EntityMetadataException if the key is not indexed.
+     */
+    NumericIndex getNumericIndex(String key) throws EntityMetadataException {
+        NumericIndex index = MetadataIndexes.INSTANCE.getNumericIndex(key);
+        if (index == null) {
+            throw new EntityMetadataException(key + " is not indexed");
+        }
+        return index;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove a metadata value from an entity.
+     * 
+     * @param entity the entity.
+     * @param key must be of the form {@code <plugin>.<name>}.
      * 
      * @throws EntityMetadataException if the entity is null, or enclosing any
      *         exception thrown when loading metadata.
      */
-    private PerEntityMetadata getCached(Entity entity) throws EntityMetadataException {
+    public void removeValue(Entity entity, String key) throws EntityMetadataException {
         checkEntity(entity);
-        try {
-            return _entityMetadata.get(entity);
-        } catch (ExecutionException ex) {
-            throw new EntityMetadataException("error loading metadata", ex);
+        PerEntityMetadata meta = getResident(entity);
+        if (meta == null) {
+            // Metadata may have been read without being cached. Only load it
+            // if there is a tag to remove.
+            if (!PerEntityMetadata.mayHaveMetadata(entity) || PerEntityMetadata.findTag(entity, key) == null) {
+                return;
+            }
+            meta = getCached(entity);
         }
+        meta.removeEntry(entity, key);
+        reweigh(entity, meta);
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Return metadata for the entity if it is cached, or null if it is not.
+     * Return an entity's metadata value, or null if not set.
      * 
      * @param entity the entity.
-     * @returns the cached metadata, or null if not cached.
+     * @param key must be of the form {@code <plugin>.<name>}.
+     * @return an entity's metadata value, or null if not set.
      * 
-     * @throws EntityMetadataException if the entity is null.
+     * @throws EntityMetadataException if the entity is null, or enclosing any
+     *         exception thrown when loading metadata.
      */
-    private PerEntityMetadata getIfCached(Entity entity) throws EntityMetadataException {
-        checkEntity(entity);
-        return _entityMetadata.getIfPresent(entity);
+    public Object getValue(Entity entity, String key) throws EntityMetadataException {
+        MetadataEntry entry = getEntry(entity, key);
+        return (entry != null) ? entry.getValue() : null;
     }
 
-    // --------------------------------------------------------------------------
+    // ------------------------------------------------------------------------
     /**
-     * Check that the specified Entity is not null.
+     * Read a numeric metadata value of many entities into an array.
      * 
-     * @param entity the entity.
+     * The key is resolved to its interned {@link MetadataKey} once, rather
+     * than hashed once per entity, and nothing is allocated per entity whose
+     * metadata is already in memory.
      * 
-     * @throws EntityMetadataException if the entity is null.
+     * @param entities the entities.
+     * @param key must be of the form {@code <plugin>.<name>}.
+     * @param out the array to fill; element i is set to the value of the i'th
+     *        entity, converted to double.
+     * @param defaultValue the value stored in out for entities that do not
+     *        have the value set, or whose value is not numeric.
+     * @return the number of entities that have a numeric value set.
+     * 
+     * @throws EntityMetadataException if any entity is null, out is too short,
+     *         or enclosing any exception thrown when loading metadata.
      */
-    private void checkEntity(Entity entity) throws EntityMetadataException {
-        if (entity == null) {
-            throw new EntityMetadataException("null entity");
+    public int getDoubles(List<? extends Entity> entities, String key, double[] out, double defaultValue) throws EntityMetadataException {
+        checkLength(entities, out.length);
+        MetadataKey metadataKey = null;
+        int found = 0;
+        int i = 0;
+        for (Entity entity : entities) {
+            if (metadataKey == null) {
+                // Keys are registered when first parsed.
+                metadataKey = KeyRegistry.INSTANCE.lookup(key);
+            }
+            Object value = getBulkValue(entity, key, metadataKey);
+            if (value instanceof Number) {
+                out[i] = ((Number) value).doubleValue();
+                ++found;
+            } else {
+                out[i] = defaultValue;
+            }
+            ++i;
         }
+        return found;
     }
 
     // ------------------------------------------------------------------------
     /**
-     * If enabled in the configuration, log cache expiration of entity metadata.
+     * Read an integral metadata value of many entities into an array.
+     * 
+     * @param entities the entities.
+     * @param key must be of the form {@code <plugin>.<name>}.
+     * @param out the array to fill; element i is set to the value of the i'th
+     *        entity, converted to long.
+     * @param defaultValue the value stored in out for entities that do not
+     *        have the value set, or whose value is not numeric.
+     * @return the number of entities that have a numeric value set.
+     * 
+     * @throws EntityMetadataException if any entity is null, out is too short,
+     *         or enclosing any exception thrown when loading metadata.
+     * @see #getDoubles(List, String, double[], double)
      */
-    private final RemovalListener<Entity, PerEntityMetadata> REMOVAL_LISTENER = new RemovalListener<Entity, PerEntityMetadata>() {
-        @Override
-        public void onRemoval(RemovalNotification<Entity, PerEntityMetadata> notification) {
-            if (EntityMeta.CONFIG.DEBUG_EXPIRY) {
-                Logger logger = EntityMeta.PLUGIN.getLogger();
-                Entity entity = notification.getKey();
-                String entityText = (entity != null) ? entity.getType() + " " + entity.getUniqueId()
-                                                     : "null";
-                logger.info("Expiring " + entityText + " because " + notification.getCause());
+    public int getLongs(List<? extends Entity> entities, String key, long[] out, long defaultValue) throws EntityMetadataException {
+        checkLength(entities, out.length);
+        MetadataKey metadataKey = null;
+        int found = 0;
+        int i = 0;
+        for (Entity entity : entities) {
+            if (metadataKey == null) {
+                // Keys are registered when first parsed.
+                metadataKey = KeyRegistry.INSTANCE.lookup(key);
+            }
+            Object value = getBulkValue(entity, key, metadataKey);
+            if (value instanceof Number) {
+                out[i] = ((Number) value).longValue();
+                ++found;
+            } else {
+                out[i] = defaultValue;
             }
+            ++i;
         }
-    };
+        return found;
+    }
 
+    // ------------------------------------------------------------------------
     /**
-     * A map from entity to its metadata, which is automatically cached on
-     * get(). Weak keys are used to expire metadata automatically.
+     * Read a metadata value of many entities into an array.
+     * 
+     * @param entities the entities.
+     * @param key must be of the form {@code <plugin>.<name>}.
+     * @param out the array to fill; element i is set to the value of the i'th
+     *        entity, or null if not set.
+     * @return the number of entities that have the value set.
+     * 
+     * @throws EntityMetadataException if any entity is null, out is too short,
+     *         or enclosing any exception thrown when loading metadata.
+     * @see #getDoubles(List, String, double[], double)
      */
-    private LoadingCache<Entity, PerEntityMetadata> _entityMetadata;
+    public int getValues(List<? extends Entity> entities, String key, Object[] out) throws EntityMetadataException {
+        checkLength(entities, out.length);
+        MetadataKey metadataKey = null;
+        int found = 0;
+        int i = 0;
+        for (Entity entity : entities) {
+            if (metadataKey == null) {
+                // Keys are registered when first parsed.
+                metadataKey = KeyRegistry.INSTANCE.lookup(key);
+            }
+            out[i] = getBulkValue(entity, key, metadataKey);
+            if (out[i] != null) {
+                ++found;
+            }
+            ++i;
+        }
+        return found;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a {@link MetadataEntry} of an entity.
+     * 
+     * @param entity the entity.
+     * @param key must be of the form {@code <plugin>.<name>}.
+     * @return the {@link MetadataEntry}, or null if not set.
+     * 
+     * @throws EntityMetadataException if the entity is null, or enclosing any
+     *         exception thrown when loading metadata.
+     */
+    public MetadataEntry getEntry(Entity entity, String key) throws EntityMetadataException {
+        PerEntityMetadata meta = getForRead(entity);
+        return meta.getEntry(key);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if an entity has a value with the specified key.
+     * 
+     * If the entity's metadata is not cached, its tags are searched for the
+     * key without being parsed, and the metadata is not cached.
+     * 
+     * @param entity the entity.
+     * @param key must be of the form {@code <plugin>.<name>}.
+     * @return true if the value is set.
+     * 
+     * @throws EntityMetadataException if the entity is null.
+     */
+    public boolean hasValue(Entity entity, String key) throws EntityMetadataException {
+        checkEntity(entity);
+        PerEntityMetadata meta = getResident(entity);
+        if (meta != null) {
+            ++_readHits;
+            return meta.hasEntry(key);
+        }
+        if (!PerEntityMetadata.mayHaveMetadata(entity)) {
+            ++_untaggedReads;
+            return false;
+        }
+        return PerEntityMetadata.hasTag(entity, key);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read a metadata value of many entities, identified by UUID, without
+     * decoding tags on the main thread.
+     * 
+     * This can be called from any thread. Requests are collected on the main
+     * thread at the next tick (or immediately, if called on the main thread).
+     * Values of entities whose metadata is in memory are taken from memory;
+     * for other entities, only the raw tag holding the value is copied. The
+     * raw tags are then decoded in an asynchronous task, which completes the
+     * future.
+     * 
+     * If the plugin is disabled before the read completes, the future
+     * completes exceptionally.
+     * 
+     * @param uuids the UUIDs of the entities.
+     * @param key the key, of the form plugin.name.
+     * @return a future map from UUID to value, containing only the entities
+     *         that are loaded and have the value set.
+     */
+    public CompletableFuture<Map<UUID, Object>> getAsync(Collection<UUID> uuids, String key) {
+        AsyncRead read = new AsyncRead(new ArrayList<>(uuids), key);
+        if (Bukkit.isPrimaryThread()) {
+            gather(read);
+        } else {
+            _asyncReads.add(read);
+            // Checked after queueing, so that a concurrent cancelAsyncReads()
+            // either sees the read in the queue, or is seen here.
+            if (_asyncReadsCancelled) {
+                cancelAsyncReads();
+            }
+        }
+        return read._future;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Complete all unfinished asynchronous reads exceptionally, and any that
+     * are requested later.
+     * 
+     * This is called when the plugin is disabled, after which queued reads
+     * would not be gathered and scheduled decoding tasks might not run.
+     */
+    public void cancelAsyncReads() {
+        _asyncReadsCancelled = true;
+        EntityMetadataException ex = new EntityMetadataException("EntityMeta is disabled");
+        AsyncRead read;
+        while ((read = _asyncReads.poll()) != null) {
+            read._future.completeExceptionally(ex);
+        }
+        for (AsyncRead decoding : _decodingReads) {
+            decoding._future.completeExceptionally(ex);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return all {@link MetadataEntry}s, in no particular order.
+     * 
+     * @param entity the entity.
+     * @return all {@link MetadataEntry}s, in no particular order.
+     * 
+     * @throws EntityMetadataException if the entity is null, or enclosing any
+     *         exception thrown when loading metadata.
+     */
+    public Map<String, MetadataEntry> getAllEntries(Entity entity) throws EntityMetadataException {
+        PerEntityMetadata meta = getForRead(entity);
+        return meta.getAllEntries();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return an immutable snapshot of the metadata of an entity.
+     * 
+     * @param entity the entity.
+     * @return the snapshot.
+     * 
+     * @throws EntityMetadataException if the entity is null, or enclosing any
+     *         exception thrown when loading metadata.
+     */
+    public MetadataSnapshot snapshot(Entity entity) throws EntityMetadataException {
+        PerEntityMetadata meta = getForRead(entity);
+        return meta.snapshot();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return all {@link MetadataEntry}s belonging to the specified plugin, in
+     * no particular order.
+     * 
+     * @param entity the entity.
+     * @return all {@link MetadataEntry}s, in no particular order.
+     * 
+     * @throws EntityMetadataException if the entity is null, or enclosing any
+     *         exception thrown when loading metadata.
+     */
+    public Map<String, MetadataEntry> getPluginEntries(Entity entity, String pluginName) throws EntityMetadataException {
+        PerEntityMetadata meta = getForRead(entity);
+        return meta.getPluginEntries(pluginName);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a {@link MetadataEntry} of an entity without caching the entity's
+     * metadata or counting the lookup towards cache admission.
+     * 
+     * This is intended for one-off scans of many entities, which would
+     * otherwise displace frequently accessed metadata from the cache.
+     * 
+     * @param entity the entity.
+     * @param key must be of the form {@code <plugin>.<name>}.
+     * @return the {@link MetadataEntry}, or null if not set.
+     * 
+     * @throws EntityMetadataException if the entity is null, or enclosing any
+     *         exception thrown when loading metadata.
+     */
+    public MetadataEntry peekEntry(Entity entity, String key) throws EntityMetadataException {
+        return peekMetadata(entity).getEntry(key);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the metadata of an entity without caching it or counting the
+     * lookup towards cache admission.
+     * 
+     * @param entity the entity.
+     * @return the metadata, which is only cached if it already was.
+     * 
+     * @throws EntityMetadataException if the entity is null, or enclosing any
+     *         exception thrown when loading metadata.
+     * @see #peekEntry(Entity, String)
+     */
+    PerEntityMetadata peekMetadata(Entity entity) throws EntityMetadataException {
+        checkEntity(entity);
+        PerEntityMetadata meta = getResident(entity);
+        if (meta == null) {
+            meta = PerEntityMetadata.mayHaveMetadata(entity) ? parse(entity)
+                                                             : PerEntityMetadata.EMPTY;
+        }
+        return meta;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of reads that found the entity's metadata in memory.
+     * 
+     * @return the number of read cache hits.
+     */
+    public long getReadHits() {
+        return _readHits;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of reads that parsed metadata and cached it.
+     * 
+     * @return the number of read cache misses.
+     */
+    public long getReadMisses() {
+        return _readMisses;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of reads of entities that have no metadata tags, which
+     * were answered without parsing or caching.
+     * 
+     * @return the number of reads of untagged entities.
+     */
+    public long getUntaggedReads() {
+        return _untaggedReads;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of reads that parsed metadata without caching it
+     * because the entity was not accessed frequently enough.
+     * 
+     * @return the number of rejected cache admissions.
+     */
+    public long getAdmissionRejections() {
+        return _admissionRejections;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a live view of the cached metadata of all entities.
+     * 
+     * @return a map from entity to its cached metadata.
+     */
+    public Map<Entity, PerEntityMetadata> getCachedMetadata() {
+        return _entityMetadata.asMap();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return statistics of the metadata cache.
+     * 
+     * @return the cache statistics.
+     */
+    public CacheStats getCacheStats() {
+        return _entityMetadata.stats();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the estimated heap memory retained by all cached metadata, in
+     * bytes.
+     * 
+     * @return the estimated size in bytes.
+     */
+    public long getCacheBytes() {
+        long total = 0;
+        for (PerEntityMetadata meta : _entityMetadata.asMap().values()) {
+            total += meta.estimateSize();
+        }
+        return total;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return metadata for the entity, caching it as necessary.
+     * 
+     * @param entity the entity.
+     * @returns the cached metadata.
+     * 
+     * @throws EntityMetadataException if the entity is null, or enclosing any
+     *         exception thrown when loading metadata.
+     */
+    private PerEntityMetadata getCached(Entity entity) throws EntityMetadataException {
+        checkEntity(entity);
+        try {
+            return _entityMetadata.get(entity);
+        } catch (ExecutionException ex) {
+            throw new EntityMetadataException("error loading metadata", ex);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return metadata for the entity for the purpose of reading it, caching it
+     * only if admitted.
+     * 
+     * When cache admission is enabled and the cache is full, metadata that is
+     * not already cached is only inserted if the entity has been looked up
+     * recently, as estimated by a {@link FrequencySketch}. Otherwise, the
+     * metadata is parsed for this read alone. Entities touched once by a scan
+     * therefore do not displace the working set. Writes always cache
+     * metadata.
+     * 
+     * Entities without any metadata tags share {@link PerEntityMetadata#EMPTY}
+     * and are never cached, so that the many entities that have no metadata
+     * cost neither allocations nor cache capacity.
+     * 
+     * @param entity the entity.
+     * @returns the metadata.
+     * 
+     * @throws EntityMetadataException if the entity is null, or enclosing any
+     *         exception thrown when loading metadata.
+     */
+    private PerEntityMetadata getForRead(Entity entity) throws EntityMetadataException {
+        checkEntity(entity);
+        PerEntityMetadata meta = getResident(entity);
+        if (meta != null) {
+            ++_readHits;
+            return meta;
+        }
+        if (!PerEntityMetadata.mayHaveMetadata(entity)) {
+            ++_untaggedReads;
+            return PerEntityMetadata.EMPTY;
+        }
+        if (!EntityMeta.CONFIG.CACHE_ADMISSION) {
+            ++_readMisses;
+            return getCached(entity);
+        }
+
+        // Admit everything until the cache is full.
+        boolean full = (EntityMeta.CONFIG.CACHE_MAX_BYTES > 0) ? _cacheWeight.get() >= EntityMeta.CONFIG.CACHE_MAX_BYTES
+                                                               : _entityMetadata.size() >= EntityMeta.CONFIG.CACHE_SIZE;
+        int frequency = _sketch.increment(entity.getEntityId());
+        if (frequency >= ADMISSION_FREQUENCY || !full) {
+            ++_readMisses;
+            return getCached(entity);
+        }
+        ++_admissionRejections;
+        return parse(entity);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return one entity's value for a bulk read.
+     * 
+     * @param entity the entity.
+     * @param key the key.
+     * @param metadataKey the interned key, or null if not yet registered.
+     * @return the value, or null if not set.
+     * @throws EntityMetadataException if the entity is null, or enclosing any
+     *         exception thrown when loading metadata.
+     */
+    private Object getBulkValue(Entity entity, String key, MetadataKey metadataKey) throws EntityMetadataException {
+        PerEntityMetadata meta = getForRead(entity);
+        MetadataEntry entry = (metadataKey != null) ? meta.getEntry(metadataKey) : meta.getEntry(key);
+        return (entry != null) ? entry.getValue() : null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Check that an output array of a bulk read is large enough.
+     * 
+     * @param entities the entities.
+     * @param length the length of the output array.
+     * @throws EntityMetadataException if the array is too short.
+     */
+    private static void checkLength(List<? extends Entity> entities, int length) throws EntityMetadataException {
+        if (length < entities.size()) {
+            throw new EntityMetadataException("output array is shorter than the list of entities");
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A pending {@link MetadataStore#getAsync(Collection, String)} request.
+     */
+    private static final class AsyncRead {
+        /**
+         * Constructor.
+         * 
+         * @param uuids the UUIDs of the entities.
+         * @param key the key.
+         */
+        AsyncRead(List<UUID> uuids, String key) {
+            _uuids = uuids;
+            _key = key;
+        }
+
+        /**
+         * The UUIDs of the entities.
+         */
+        final List<UUID> _uuids;
+
+        /**
+         * The key.
+         */
+        final String _key;
+
+        /**
+         * The future result.
+         */
+        final CompletableFuture<Map<UUID, Object>> _future = new CompletableFuture<>();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Collect the values and raw tags of an asynchronous read on the main
+     * thread, then decode the raw tags and complete the read asynchronously.
+     * 
+     * Entity metadata that is not in memory is neither parsed nor cached, and
+     * the reads do not count towards cache admission or statistics.
+     * 
+     * @param read the read.
+     */
+    private void gather(AsyncRead read) {
+        if (_asyncReadsCancelled) {
+            read._future.completeExceptionally(new EntityMetadataException("EntityMeta is disabled"));
+            return;
+        }
+
+        String key = read._key;
+        Map<UUID, Object> values = new HashMap<>();
+        List<UUID> tagUuids = new ArrayList<>();
+        List<String> tags = new ArrayList<>();
+        try {
+            for (UUID uuid : read._uuids) {
+                Entity entity = Bukkit.getEntity(uuid);
+                if (entity == null) {
+                    continue;
+                }
+
+                PerEntityMetadata meta = getResident(entity);
+                if (meta == null) {
+                    String tag = PerEntityMetadata.findTag(entity, key);
+                    if (tag == null) {
+                        continue;
+                    } else if (!PerEntityMetadata.isPointerTag(tag, key)) {
+                        tagUuids.add(uuid);
+                        tags.add(tag);
+                        continue;
+                    }
+                    // Side store reads happen on the main thread.
+                    meta = parse(entity);
+                }
+                MetadataEntry entry = meta.getEntry(key);
+                if (entry != null) {
+                    values.put(uuid, entry.getValue());
+                }
+            }
+        } catch (RuntimeException ex) {
+            read._future.completeExceptionally(ex);
+            return;
+        }
+
+        if (tags.isEmpty()) {
+            read._future.complete(values);
+            return;
+        }
+        _decodingReads.add(read);
+        Bukkit.getScheduler().runTaskAsynchronously(EntityMeta.PLUGIN, () -> {
+            try {
+                for (int i = 0; i < tags.size(); ++i) {
+                    try {
+                        Object value = PerEntityMetadata.decodeTag(tags.get(i));
+                        if (value != null) {
+                            values.put(tagUuids.get(i), value);
+                        }
+                    } catch (IllegalArgumentException ex) {
+                        EntityMeta.PLUGIN.getLogger().severe("Error loading " + tagUuids.get(i) + " metadata: " + tags.get(i));
+                    }
+                }
+                read._future.complete(values);
+            } catch (RuntimeException ex) {
+                read._future.completeExceptionally(ex);
+            } finally {
+                _decodingReads.remove(read);
+            }
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add an entity's value of the specified key to the indexes.
+     * 
+     * The value is read from cached metadata if present; otherwise only the
+     * tag with that key is decoded, without parsing the entity's other tags.
+     * 
+     * @param entity the entity.
+     * @param key the key.
+     */
+    private void indexValue(Entity entity, String key) {
+        Object value = null;
+        PerEntityMetadata meta = getResident(entity);
+        if (meta != null) {
+            MetadataEntry entry = meta.getEntry(key);
+            value = (entry != null) ? entry.getValue() : null;
+        } else {
+            String tag = PerEntityMetadata.findTag(entity, key);
+            if (tag != null) {
+                if (PerEntityMetadata.isPointerTag(tag, key)) {
+                    MetadataEntry entry = parse(entity).getEntry(key);
+                    value = (entry != null) ? entry.getValue() : null;
+                } else {
+                    try {
+                        value = PerEntityMetadata.decodeTag(tag);
+                    } catch (IllegalArgumentException ex) {
+                        EntityMeta.PLUGIN.getLogger().severe("Error loading " + entity.getType() + " " + entity.getUniqueId() + " metadata: " + tag);
+                    }
+                }
+            }
+        }
+        if (value != null) {
+            MetadataIndexes.INSTANCE.updated(entity, key, value);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the metadata of an entity if it is already held in memory, either
+     * in the cache or because it has unsaved counters or transient values, or
+     * null if its tags would need to be parsed.
+     * 
+     * Metadata that is held outside of the cache is returned to the cache.
+     * The lookup does not count towards cache statistics.
+     * 
+     * @param entity the entity; must be non-null.
+     * @returns the metadata, or null if not held in memory.
+     */
+    private PerEntityMetadata getResident(Entity entity) {
+        PerEntityMetadata meta = _entityMetadata.asMap().get(entity);
+        if (meta == null && (_dirty.containsKey(entity) || _pinned.containsKey(entity))) {
+            meta = getCached(entity);
+        }
+        return meta;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return metadata for the entity if it is cached, or null if it is not.
+     * 
+     * @param entity the entity.
+     * @returns the cached metadata, or null if not cached.
+     * 
+     * @throws EntityMetadataException if the entity is null.
+     */
+    private PerEntityMetadata getIfCached(Entity entity) throws EntityMetadataException {
+        checkEntity(entity);
+        return _entityMetadata.getIfPresent(entity);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Parse the metadata of an entity from its tags, recording the latency if
+     * API statistics or metrics are enabled, and emitting a JFR event if
+     * recording.
+     * 
+     * @param entity the entity.
+     * @return the metadata.
+     */
+    private PerEntityMetadata parse(Entity entity) {
+        Object event = MetadataEvents.INSTANCE.beginCacheLoad();
+        PerEntityMetadata meta;
+        if (EntityMeta.CONFIG.API_STATISTICS || EntityMeta.CONFIG.METRICS_ENABLED) {
+            long start = System.nanoTime();
+            meta = new PerEntityMetadata(entity);
+            long nanos = System.nanoTime() - start;
+            if (EntityMeta.CONFIG.API_STATISTICS) {
+                ApiStatistics.INSTANCE.recordLoad(nanos);
+            }
+            if (EntityMeta.CONFIG.METRICS_ENABLED) {
+                Metrics.INSTANCE.recordLoad(nanos);
+            }
+        } else {
+            meta = new PerEntityMetadata(entity);
+        }
+        if (event != null) {
+            MetadataEvents.INSTANCE.endCacheLoad(event, entity, entity.getScoreboardTags().size(), meta.getTagBytes());
+        }
+        return meta;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the metadata of an entity for the purpose of updating a counter.
+     * 
+     * On the main thread, the metadata is loaded as necessary. On other
+     * threads, only metadata that is already in memory is returned.
+     * 
+     * @param entity the entity.
+     * @return the metadata, or null if called from an asynchronous thread and
+     *         the metadata is not in memory.
+     * 
+     * @throws EntityMetadataException if the entity is null, or enclosing any
+     *         exception thrown when loading metadata.
+     */
+    private PerEntityMetadata getForCounter(Entity entity) throws EntityMetadataException {
+        if (Bukkit.isPrimaryThread()) {
+            return getCached(entity);
+        }
+
+        PerEntityMetadata meta = getIfCached(entity);
+        return (meta != null) ? meta : _dirty.get(entity);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the counter of the specified key, for the purpose of updating
+     * it.
+     * 
+     * On the main thread, the counter is created from the current value as
+     * necessary. Creating a counter reads the entity's values, which are only
+     * modified on the main thread, so other threads can only update existing
+     * counters.
+     * 
+     * @param meta the metadata of the entity.
+     * @param key the key, of the form plugin.name.
+     * @param floating if true, and there is no current value, create a
+     *        floating point counter; otherwise create an integral counter.
+     * @return the counter, or null if called from an asynchronous thread and
+     *         there is no counter for the key.
+     * 
+     * @throws EntityMetadataException if the current value is not numeric.
+     */
+    private static MetadataCounter getCounter(PerEntityMetadata meta, String key, boolean floating) throws EntityMetadataException {
+        return Bukkit.isPrimaryThread() ? meta.getCounter(key, floating) : meta.getExistingCounter(key);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Run a task on the main thread and wait for its result.
+     * 
+     * @param task the task.
+     * @return the result of the task.
+     * 
+     * @throws EntityMetadataException if the task throws it, or enclosing any
+     *         other exception thrown while waiting.
+     */
+    private static <T> T callSync(Callable<T> task) throws EntityMetadataException {
+        try {
+            return Bukkit.getScheduler().callSyncMethod(EntityMeta.PLUGIN, task).get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof EntityMetadataException) {
+                throw (EntityMetadataException) ex.getCause();
+            }
+            throw new EntityMetadataException("error updating counter", ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new EntityMetadataException("interrupted updating counter", ex);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Queue a delta to be applied to an entity's counter on the main thread.
+     * 
+     * @param entity the entity.
+     * @param key the key of the counter.
+     * @param delta a counter holding the amount to add.
+     */
+    private void queueDelta(Entity entity, String key, MetadataCounter delta) {
+        // compute() is atomic with respect to the remove() in applyDeltas().
+        _pendingDeltas.compute(entity, (e, deltas) -> {
+            if (deltas == null) {
+                deltas = new ConcurrentHashMap<>();
+            }
+            MetadataCounter total = deltas.putIfAbsent(key, delta);
+            if (total != null) {
+                if (delta.isFloatingPoint() && !total.isFloatingPoint()) {
+                    deltas.put(key, delta);
+                    delta.add(total);
+                } else {
+                    total.add(delta);
+                }
+            }
+            return deltas;
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Apply deltas queued by asynchronous threads to an entity's counters.
+     * 
+     * @param entity the entity.
+     */
+    private void applyDeltas(Entity entity) {
+        ConcurrentHashMap<String, MetadataCounter> deltas = _pendingDeltas.remove(entity);
+        if (deltas == null || !entity.isValid()) {
+            return;
+        }
+
+        PerEntityMetadata meta = getCached(entity);
+        for (Map.Entry<String, MetadataCounter> entry : deltas.entrySet()) {
+            MetadataCounter delta = entry.getValue();
+            try {
+                meta.getCounter(entry.getKey(), delta.isFloatingPoint()).add(delta);
+            } catch (EntityMetadataException ex) {
+                EntityMeta.PLUGIN.getLogger().severe("Error updating counter " + entry.getKey() + " of " +
+                                                     entity.getType() + " " + entity.getUniqueId() + ": " + ex.getMessage());
+            }
+        }
+        _dirty.put(entity, meta);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write the changed counters of an entity to scoreboard tags.
+     * 
+     * Counters that could not be written remain dirty, and the entity is
+     * retained so that they are retried at the next flush.
+     * 
+     * @param entity the entity.
+     */
+    private void flushCounters(Entity entity) {
+        PerEntityMetadata meta = _dirty.remove(entity);
+        if (meta != null && entity.isValid()) {
+            meta.flushCounters(entity);
+            if (meta.hasDirtyCounters()) {
+                _dirty.put(entity, meta);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Update the weight of modified metadata in a memory-bounded cache.
+     * 
+     * The cache only weighs metadata when it is inserted, so the metadata is
+     * re-inserted when its estimated size has drifted significantly from its
+     * recorded weight. Small changes are ignored to avoid churning the cache on
+     * every write.
+     * 
+     * @param entity the entity.
+     * @param meta the modified metadata.
+     */
+    private void reweigh(Entity entity, PerEntityMetadata meta) {
+        if (EntityMeta.CONFIG.CACHE_MAX_BYTES <= 0) {
+            return;
+        }
+        int weight = meta.getWeight();
+        if (Math.abs(meta.estimateSize() - weight) > weight / 4 + 256) {
+            // Does nothing if the metadata has been evicted concurrently.
+            _entityMetadata.asMap().replace(entity, meta, meta);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Schedule the expiry of all expiring entries of newly loaded metadata.
+     * 
+     * @param entity the entity.
+     * @param meta the metadata.
+     */
+    private void scheduleExpiry(Entity entity, PerEntityMetadata meta) {
+        for (Map.Entry<String, MetadataEntry> entry : meta.getAllEntries().entrySet()) {
+            long expiry = entry.getValue().getExpiry();
+            if (expiry != 0) {
+                _expiryWheel.schedule(entity, entry.getKey(), expiry);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove a metadata value whose timer is due, if it has expired.
+     * 
+     * If the value was set again with a later expiry time, the timer is
+     * rescheduled. If the entity's metadata is not in memory, loading it
+     * drops expired values and schedules timers for the rest.
+     * 
+     * @param entity the entity.
+     * @param key the key.
+     * @param deadline the expiry time the timer was scheduled for.
+     */
+    private void expire(Entity entity, String key, long deadline) {
+        if (!entity.isValid()) {
+            // Expired tags will be removed when the entity is next loaded.
+            return;
+        }
+
+        PerEntityMetadata meta = _entityMetadata.getIfPresent(entity);
+        if (meta == null) {
+            // Metadata held only for its counters or transient values is
+            // cached again as is, rather than reloaded from tags.
+            boolean resident = _dirty.containsKey(entity) || _pinned.containsKey(entity);
+            meta = getCached(entity);
+            if (!resident) {
+                return;
+            }
+        }
+        long expiry = meta.expireEntry(entity, key);
+        if (expiry > deadline) {
+            _expiryWheel.schedule(entity, key, expiry);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the type of an entry, checking that it is a collection.
+     * 
+     * @param entry the entry.
+     * @return the {@link CollectionType}.
+     * @throws EntityMetadataException if the value is not a collection.
+     */
+    private CollectionType getCollectionType(MetadataEntry entry) throws EntityMetadataException {
+        if (!(entry.getType() instanceof CollectionType)) {
+            throw new EntityMetadataException("metadata value is not a collection");
+        }
+        return (CollectionType) entry.getType();
+    }
+
+    // --------------------------------------------------------------------------
+    /**
+     * Check that the specified Entity is not null.
+     * 
+     * @param entity the entity.
+     * 
+     * @throws EntityMetadataException if the entity is null.
+     */
+    private void checkEntity(Entity entity) throws EntityMetadataException {
+        if (entity == null) {
+            throw new EntityMetadataException("null entity");
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The minimum estimated number of recent lookups of an entity, including
+     * the current one, for its metadata to be admitted to a full cache.
+     */
+    private static final int ADMISSION_FREQUENCY = 2;
+
+    /**
+     * If enabled in the configuration, log cache expiration of entity metadata.
+     */
+    private final RemovalListener<Entity, PerEntityMetadata> REMOVAL_LISTENER = new RemovalListener<Entity, PerEntityMetadata>() {
+        @Override
+        public void onRemoval(RemovalNotification<Entity, PerEntityMetadata> notification) {
+            Entity entity = notification.getKey();
+            PerEntityMetadata meta = notification.getValue();
+            if (notification.wasEvicted() && entity != null && meta != null &&
+                meta.hasTransientEntries() && entity.isValid()) {
+                _pinned.put(entity, meta);
+            }
+
+            if (notification.getCause() == RemovalCause.REPLACED) {
+                return;
+            }
+            if (meta != null && EntityMeta.CONFIG.CACHE_MAX_BYTES > 0) {
+                _cacheWeight.addAndGet(-meta.getWeight());
+                meta.clearWeight();
+            }
+            MetadataEvents.INSTANCE.cacheEviction(entity, notification.getCause().name());
+            Metrics.INSTANCE.recordRemoval(notification.getCause());
+            if (EntityMeta.CONFIG.DEBUG_EXPIRY) {
+                Logger logger = EntityMeta.PLUGIN.getLogger();
+                String entityText = (entity != null) ? entity.getType() + " " + entity.getUniqueId()
+                                                     : "null";
+                logger.info("Expiring " + entityText + " because " + notification.getCause());
+            }
+        }
+    };
+
+    /**
+     * A map from entity to its metadata, which is automatically cached on
+     * get(). Weak keys are used to expire metadata automatically.
+     */
+    private LoadingCache<Entity, PerEntityMetadata> _entityMetadata;
+
+    /**
+     * Estimates how often entities have been looked up recently, for cache
+     * admission.
+     */
+    private FrequencySketch _sketch;
+
+    /**
+     * Number of reads that parsed metadata without caching it.
+     */
+    private long _admissionRejections;
+
+    /**
+     * The total weight of cached metadata, when the cache is bounded by
+     * cache-max-bytes.
+     */
+    private final AtomicLong _cacheWeight = new AtomicLong();
+
+    /**
+     * Number of reads that found metadata in memory.
+     */
+    private long _readHits;
+
+    /**
+     * Number of reads that parsed metadata and cached it.
+     */
+    private long _readMisses;
+
+    /**
+     * Number of reads of entities without metadata tags.
+     */
+    private long _untaggedReads;
+
+    /**
+     * Metadata with counters that have changed since they were last persisted.
+     * 
+     * This map holds strong references to entities until their counters are
+     * flushed, and allows the loader to recover metadata that was evicted
+     * before it could be flushed.
+     */
+    private final ConcurrentHashMap<Entity, PerEntityMetadata> _dirty = new ConcurrentHashMap<>();
+
+    /**
+     * Counter deltas queued by asynchronous threads for entities whose
+     * metadata was not cached.
+     */
+    private final ConcurrentHashMap<Entity, ConcurrentHashMap<String, MetadataCounter>> _pendingDeltas = new ConcurrentHashMap<>();
+
+    /**
+     * Number of ticks since counters were last flushed.
+     */
+    private int _ticksSinceFlush;
+
+    /**
+     * Schedules the removal of expiring metadata values.
+     */
+    private final ExpiryWheel _expiryWheel = new ExpiryWheel(System.currentTimeMillis());
+
+    /**
+     * Callback that removes expired values when their timers are due.
+     */
+    private final ExpiryWheel.Expirer _expirer = this::expire;
+
+    /**
+     * Metadata holding transient values that was evicted from the cache while
+     * its entity was still valid, keyed weakly by entity.
+     * 
+     * The loader takes metadata from here in preference to parsing tags.
+     */
+    private final ConcurrentMap<Entity, PerEntityMetadata> _pinned = new MapMaker().weakKeys().makeMap();
+
+    /**
+     * Keys whose values are always transient.
+     */
+    private final Set<String> _transientKeys = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Asynchronous reads requested off the main thread, to be gathered at the
+     * next tick.
+     */
+    private final ConcurrentLinkedQueue<AsyncRead> _asyncReads = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Asynchronous reads whose raw tags are being decoded asynchronously.
+     */
+    private final Set<AsyncRead> _decodingReads = ConcurrentHashMap.newKeySet();
+
+    /**
+     * True once the plugin is disabled, after which asynchronous reads
+     * complete exceptionally.
+     */
+    private volatile boolean _asyncReadsCancelled;
 
 } // class MetadataStore
\ No newline at end of file
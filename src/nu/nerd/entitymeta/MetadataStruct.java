@@ -0,0 +1,595 @@
+package nu.nerd.entitymeta;
+
+// ----------------------------------------------------------------------------
+/**
+ * An immutable record of primitive fields, declared by a {@link StructSchema},
+ * that is stored in a single scoreboard tag.
+ * <p>
+ * 
+ * The serialised form is the schema name followed by the field values, all
+ * separated by semicolons, e.g. {@code MobLevels.stats;5;1200;3;0}. All fields
+ * are decoded and checked against the schema when the struct is created, so
+ * that a malformed tag is rejected when it is parsed, and a struct can be
+ * shared between threads. The {@code with()} methods re-encode only the
+ * modified field when creating the updated struct.
+ * <p>
+ * 
+ * Accessors perform widening and narrowing conversions between numeric field
+ * types in the same way as a Java cast. Booleans are stored as 0 or 1.
+ */
+public final class MetadataStruct {
+    // ------------------------------------------------------------------------
+    /**
+     * Return the schema of this struct.
+     * 
+     * @return the schema of this struct.
+     */
+    public StructSchema getSchema() {
+        return _schema;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the value of a field as a boolean (true if non-zero).
+     * 
+     * @param fieldName the name of the field.
+     * @return the value of the field.
+     */
+    public boolean getBoolean(String fieldName) {
+        return getBoolean(_schema.getFieldIndex(fieldName));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the value of a field as a boolean (true if non-zero).
+     * 
+     * @param index the index of the field in the schema.
+     * @return the value of the field.
+     */
+    public boolean getBoolean(int index) {
+        return getLong(index) != 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the value of a field as a char.
+     * 
+     * @param fieldName the name of the field.
+     * @return the value of the field.
+     */
+    public char getChar(String fieldName) {
+        return (char) getLong(_schema.getFieldIndex(fieldName));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the value of a field as an int.
+     * 
+     * @param fieldName the name of the field.
+     * @return the value of the field.
+     */
+    public int getInt(String fieldName) {
+        return (int) getLong(_schema.getFieldIndex(fieldName));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the value of a field as an int.
+     * 
+     * @param index the index of the field in the schema.
+     * @return the value of the field.
+     */
+    public int getInt(int index) {
+        return (int) getLong(index);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the value of a field as a long.
+     * 
+     * @param fieldName the name of the field.
+     * @return the value of the field.
+     */
+    public long getLong(String fieldName) {
+        return getLong(_schema.getFieldIndex(fieldName));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the value of a field as a long.
+     * 
+     * @param index the index of the field in the schema.
+     * @return the value of the field.
+     */
+    public long getLong(int index) {
+        long bits = getBits(index);
+        return isFloatingPoint(_schema.getFieldCode(index)) ? (long) Double.longBitsToDouble(bits) : bits;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the value of a field as a float.
+     * 
+     * @param fieldName the name of the field.
+     * @return the value of the field.
+     */
+    public float getFloat(String fieldName) {
+        return (float) getDouble(_schema.getFieldIndex(fieldName));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the value of a field as a double.
+     * 
+     * @param fieldName the name of the field.
+     * @return the value of the field.
+     */
+    public double getDouble(String fieldName) {
+        return getDouble(_schema.getFieldIndex(fieldName));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the value of a field as a double.
+     * 
+     * @param index the index of the field in the schema.
+     * @return the value of the field.
+     */
+    public double getDouble(int index) {
+        long bits = getBits(index);
+        return isFloatingPoint(_schema.getFieldCode(index)) ? Double.longBitsToDouble(bits) : bits;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the value of a field boxed as the class declared in the schema.
+     * 
+     * @param fieldName the name of the field.
+     * @return the boxed value of the field.
+     */
+    public Object get(String fieldName) {
+        return get(_schema.getFieldIndex(fieldName));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the value of a field boxed as the class declared in the schema.
+     * 
+     * @param index the index of the field in the schema.
+     * @return the boxed value of the field.
+     */
+    public Object get(int index) {
+        switch (_schema.getFieldCode(index)) {
+        case 'b':
+            return getBoolean(index);
+        case 'B':
+            return (byte) getLong(index);
+        case 'c':
+            return (char) getLong(index);
+        case 's':
+            return (short) getLong(index);
+        case 'i':
+            return getInt(index);
+        case 'f':
+            return (float) getDouble(index);
+        case 'd':
+            return getDouble(index);
+        default:
+            return getLong(index);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a copy of this struct with the specified integral, char or
+     * floating point field set to a new value.
+     * 
+     * @param fieldName the name of the field.
+     * @param value the new value.
+     * @return the updated copy.
+     * @throws IllegalArgumentException if the field is boolean, or the value
+     *         is out of range for the field.
+     */
+    public MetadataStruct with(String fieldName, long value) throws IllegalArgumentException {
+        return with(_schema.getFieldIndex(fieldName), value);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a copy of this struct with the specified integral, char or
+     * floating point field set to a new value.
+     * 
+     * @param index the index of the field in the schema.
+     * @param value the new value.
+     * @return the updated copy.
+     * @throws IllegalArgumentException if the field is boolean, or the value
+     *         is out of range for the field.
+     */
+    public MetadataStruct with(int index, long value) throws IllegalArgumentException {
+        char code = _schema.getFieldCode(index);
+        if (isFloatingPoint(code)) {
+            return withBits(index, Double.doubleToRawLongBits(value));
+        }
+
+        if (code == 'b') {
+            throw new IllegalArgumentException(_schema.getFieldName(index) + " is boolean");
+        }
+        checkRange(_schema, index, value);
+        return withBits(index, value);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a copy of this struct with the specified floating point field set
+     * to a new value.
+     * 
+     * @param fieldName the name of the field.
+     * @param value the new value.
+     * @return the updated copy.
+     * @throws IllegalArgumentException if the field is not floating point.
+     */
+    public MetadataStruct with(String fieldName, double value) throws IllegalArgumentException {
+        return with(_schema.getFieldIndex(fieldName), value);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a copy of this struct with the specified floating point field set
+     * to a new value.
+     * 
+     * @param index the index of the field in the schema.
+     * @param value the new value.
+     * @return the updated copy.
+     * @throws IllegalArgumentException if the field is not floating point.
+     */
+    public MetadataStruct with(int index, double value) throws IllegalArgumentException {
+        if (!isFloatingPoint(_schema.getFieldCode(index))) {
+            throw new IllegalArgumentException(_schema.getFieldName(index) + " is not floating point");
+        }
+        return withBits(index, Double.doubleToRawLongBits(value));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a copy of this struct with the specified boolean field set to a
+     * new value.
+     * 
+     * @param fieldName the name of the field.
+     * @param value the new value.
+     * @return the updated copy.
+     * @throws IllegalArgumentException if the field is not boolean.
+     */
+    public MetadataStruct with(String fieldName, boolean value) throws IllegalArgumentException {
+        int index = _schema.getFieldIndex(fieldName);
+        if (_schema.getFieldCode(index) != 'b') {
+            throw new IllegalArgumentException(fieldName + " is not boolean");
+        }
+        return withBits(index, value ? 1 : 0);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the serialised form of this struct: the schema name followed by
+     * the encoded fields.
+     * 
+     * @return the serialised form of this struct.
+     */
+    public String encode() {
+        return _schema.getName() + SEPARATOR + _encoded;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Format all fields for presentation.
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder(_schema.getName()).append('{');
+        for (int i = 0; i < _schema.getFieldCount(); ++i) {
+            if (i > 0) {
+                s.append(", ");
+            }
+            s.append(_schema.getFieldName(i)).append('=').append(get(i));
+        }
+        return s.append('}').toString();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof MetadataStruct)) {
+            return false;
+        }
+        MetadataStruct struct = (MetadataStruct) other;
+        return _schema == struct._schema && _encoded.equals(struct._encoded);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        return _schema.getName().hashCode() * 31 + _encoded.hashCode();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Separator between the schema name and fields in the serialised form.
+     */
+    static final char SEPARATOR = ';';
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     * 
+     * Missing trailing fields, and empty fields, are zero.
+     * 
+     * @param schema the schema.
+     * @param encoded the encoded fields, excluding the schema name.
+     * @throws IllegalArgumentException if there are more fields than declared
+     *         in the schema, or a field is not a number in the range of its
+     *         type.
+     */
+    MetadataStruct(StructSchema schema, String encoded) throws IllegalArgumentException {
+        _schema = schema;
+        _encoded = encoded;
+        _offsets = findOffsets(encoded);
+        if (_offsets.length - 1 > schema.getFieldCount()) {
+            throw new IllegalArgumentException("too many fields for schema " + schema.getName());
+        }
+
+        _bits = new long[schema.getFieldCount()];
+        for (int i = 0; i < _offsets.length - 1; ++i) {
+            _bits[i] = decodeField(i);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor used by {@link #withBits(int, long)}, taking the already
+     * decoded fields.
+     * 
+     * @param schema the schema.
+     * @param encoded the encoded fields, excluding the schema name.
+     * @param bits the decoded fields, which become owned by the struct.
+     */
+    private MetadataStruct(StructSchema schema, String encoded, long[] bits) {
+        _schema = schema;
+        _encoded = encoded;
+        _offsets = findOffsets(encoded);
+        _bits = bits;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the decoded struct corresponding to a serialised struct.
+     * 
+     * @param serialised the schema name and encoded fields.
+     * @return the struct.
+     * @throws IllegalArgumentException if the schema is not registered,
+     *         there are too many fields, or a field is malformed.
+     */
+    static MetadataStruct decode(String serialised) throws IllegalArgumentException {
+        int separator = serialised.indexOf(SEPARATOR);
+        String schemaName = (separator < 0) ? serialised : serialised.substring(0, separator);
+        StructSchema schema = MetadataTypeManager.INSTANCE.getSchema(schemaName);
+        if (schema == null) {
+            throw new IllegalArgumentException("unknown struct schema " + schemaName);
+        }
+        return new MetadataStruct(schema, (separator < 0) ? "" : serialised.substring(separator + 1));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Encode the bits of a field value as a string.
+     * 
+     * @param code the type code of the field.
+     * @param bits the value of an integral field, or the raw long bits of the
+     *        double value of a floating point field.
+     * @return the encoded field.
+     */
+    static String encodeField(char code, long bits) {
+        switch (code) {
+        case 'f':
+            return Float.toString((float) Double.longBitsToDouble(bits));
+        case 'd':
+            return Double.toString(Double.longBitsToDouble(bits));
+        default:
+            return Long.toString(bits);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the field type code signifies a floating point field.
+     * 
+     * @param code the type code.
+     * @return true if floating point.
+     */
+    private static boolean isFloatingPoint(char code) {
+        return code == 'f' || code == 'd';
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Throw an exception if a value is out of range for an integral, char or
+     * boolean field.
+     * 
+     * @param schema the schema.
+     * @param index the index of the field.
+     * @param value the value.
+     * @throws IllegalArgumentException if the value is out of range.
+     */
+    private static void checkRange(StructSchema schema, int index, long value) throws IllegalArgumentException {
+        long min, max;
+        switch (schema.getFieldCode(index)) {
+        case 'b':
+            min = 0;
+            max = 1;
+            break;
+        case 'B':
+            min = Byte.MIN_VALUE;
+            max = Byte.MAX_VALUE;
+            break;
+        case 'c':
+            min = Character.MIN_VALUE;
+            max = Character.MAX_VALUE;
+            break;
+        case 's':
+            min = Short.MIN_VALUE;
+            max = Short.MAX_VALUE;
+            break;
+        case 'i':
+            min = Integer.MIN_VALUE;
+            max = Integer.MAX_VALUE;
+            break;
+        default:
+            return;
+        }
+        if (value < min || value > max) {
+            throw new IllegalArgumentException(value + " is out of range for " + schema.getFieldName(index));
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the bits of a field.
+     * 
+     * @param index the index of the field.
+     * @return the value of an integral field, or the raw long bits of the
+     *         double value of a floating point field.
+     */
+    private long getBits(int index) {
+        return _bits[index];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Decode and check a field that is present in the encoded string.
+     * 
+     * @param index the index of the field.
+     * @return the value of an integral field, or the raw long bits of the
+     *         double value of a floating point field; zero if the field is
+     *         empty.
+     * @throws IllegalArgumentException if the field is malformed.
+     */
+    private long decodeField(int index) throws IllegalArgumentException {
+        if (_offsets[index + 1] - 1 == _offsets[index]) {
+            return 0;
+        }
+
+        String field = _encoded.substring(_offsets[index], _offsets[index + 1] - 1);
+        try {
+            if (isFloatingPoint(_schema.getFieldCode(index))) {
+                return Double.doubleToRawLongBits(Double.parseDouble(field));
+            }
+            long value = Long.parseLong(field);
+            checkRange(_schema, index, value);
+            return value;
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("malformed field " + _schema.getFieldName(index) +
+                                               " of schema " + _schema.getName() + ": " + field);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a copy of this struct with one field replaced, re-encoding only
+     * that field.
+     * 
+     * @param index the index of the field.
+     * @param bits the new bits of the field.
+     * @return the updated copy.
+     */
+    private MetadataStruct withBits(int index, long bits) {
+        int[] offsets = _offsets;
+        int present = offsets.length - 1;
+        String field = encodeField(_schema.getFieldCode(index), bits);
+
+        String encoded;
+        if (index < present) {
+            encoded = _encoded.substring(0, offsets[index]) + field +
+                      _encoded.substring(Math.min(offsets[index + 1] - 1, _encoded.length()));
+        } else {
+            // Pad missing fields with zeroes.
+            StringBuilder s = new StringBuilder(_encoded);
+            for (int i = present; i <= index; ++i) {
+                if (i > 0) {
+                    s.append(SEPARATOR);
+                }
+                s.append((i == index) ? field : encodeField(_schema.getFieldCode(i), 0));
+            }
+            encoded = s.toString();
+        }
+
+        long[] newBits = _bits.clone();
+        newBits[index] = bits;
+        return new MetadataStruct(_schema, encoded, newBits);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of fields in an encoded string.
+     * 
+     * @param encoded the encoded fields.
+     * @return the number of fields.
+     */
+    private static int countFields(String encoded) {
+        if (encoded.isEmpty()) {
+            return 0;
+        }
+        int fields = 1;
+        for (int i = encoded.indexOf(SEPARATOR); i >= 0; i = encoded.indexOf(SEPARATOR, i + 1)) {
+            ++fields;
+        }
+        return fields;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the start offsets of the fields in an encoded string, followed
+     * by one past the end of the string.
+     * 
+     * @param encoded the encoded fields.
+     * @return the field offsets.
+     */
+    private static int[] findOffsets(String encoded) {
+        int fields = countFields(encoded);
+        int[] offsets = new int[fields + 1];
+        int field = 1;
+        for (int i = encoded.indexOf(SEPARATOR); i >= 0; i = encoded.indexOf(SEPARATOR, i + 1)) {
+            offsets[field++] = i + 1;
+        }
+        offsets[fields] = encoded.length() + 1;
+        return offsets;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The schema.
+     */
+    private final StructSchema _schema;
+
+    /**
+     * The encoded fields, excluding the schema name.
+     */
+    private final String _encoded;
+
+    /**
+     * Decoded field values; integral values as is, and floating point values
+     * as the raw long bits of a double.
+     */
+    private final long[] _bits;
+
+    /**
+     * Start offsets of the fields present in {@link #_encoded}, followed by
+     * one past its end.
+     */
+    private final int[] _offsets;
+} // class MetadataStruct
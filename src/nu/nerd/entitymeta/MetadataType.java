@@ -13,6 +13,11 @@ import org.bukkit.ChatColor;
  * error, which is a superclass of {@link java.lang.NumberFormatException}.
  * Checked Exceptions will be wrapped in
  * {@link java.lang.IllegalArgumentException}.
+ * <p>
+ * 
+ * {@link #fromString(String)} may be called from asynchronous tasks by
+ * {@link EntityMetaAPI#getAsync(java.util.Collection, String, String)}, so
+ * it must be thread safe.
  */
 public abstract class MetadataType {
     // ------------------------------------------------------------------------
@@ -62,6 +67,21 @@ public abstract class MetadataType {
                ChatColor.WHITE + ')';
     }
 
+    // ------------------------------------------------------------------------
+    /**
+     * Return the value to be cached in place of the specified value when it is
+     * stored.
+     * 
+     * The default implementation returns the value unchanged. Types can
+     * override this to convert values into a more compact representation.
+     * 
+     * @param value the value being stored.
+     * @return the value to cache.
+     */
+    public Object normalise(Object value) {
+        return value;
+    }
+
     // ------------------------------------------------------------------------
     /**
      * Return the string encoding of the specified metadata value.
@@ -76,6 +96,24 @@ public abstract class MetadataType {
         return value.toString();
     }
 
+    // ------------------------------------------------------------------------
+    /**
+     * Return an estimate of the heap memory retained by a deserialised value,
+     * in bytes.
+     * 
+     * The default implementation assumes that the value is about as large as
+     * its serialised form held in a String. Types whose deserialised values
+     * are much larger than that (e.g. object graphs) should override this.
+     * 
+     * @param value the deserialised value.
+     * @param serialisedLength the length of the serialised value in
+     *        characters.
+     * @return the estimated size in bytes.
+     */
+    public int estimateSize(Object value, int serialisedLength) {
+        return 16 + 2 * serialisedLength;
+    }
+
     // ------------------------------------------------------------------------
     /**
      * Return the value corresponding to the specified serialised metadata
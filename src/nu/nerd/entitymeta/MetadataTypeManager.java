@@ -1,8 +1,11 @@
 package nu.nerd.entitymeta;
 
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.configuration.file.YamlConfiguration;
@@ -19,6 +22,28 @@ public class MetadataTypeManager {
      */
     public static final MetadataTypeManager INSTANCE = new MetadataTypeManager();
 
+    /**
+     * The type of transient values of classes that cannot be serialised.
+     * 
+     * This type is not registered, so it is never used for tags.
+     */
+    static final MetadataType OBJECT_TYPE = new MetadataType('-', Object.class) {
+        @Override
+        public String toString(Object value) throws IllegalArgumentException {
+            throw new IllegalArgumentException("transient value cannot be serialised");
+        }
+
+        @Override
+        public Object fromString(String value) throws IllegalArgumentException {
+            throw new IllegalArgumentException("transient value cannot be deserialised");
+        }
+
+        @Override
+        public int estimateSize(Object value, int serialisedLength) {
+            return 64;
+        }
+    };
+
     // ------------------------------------------------------------------------
     /**
      * Return the {@link MetadataType} appropriate for serialising the specified
@@ -30,6 +55,9 @@ public class MetadataTypeManager {
      * @throws EntityMetadataException if the value is of an unsupported type.
      */
     public MetadataType getType(Object value) {
+        if (value instanceof List && !(value instanceof UUIDList) && !(value instanceof StringList)) {
+            return getListType((List<?>) value);
+        }
         return getTypeByClass(value.getClass());
     }
 
@@ -62,6 +90,62 @@ public class MetadataTypeManager {
         throw new EntityMetadataException("type not supported");
     }
 
+    // ------------------------------------------------------------------------
+    /**
+     * Return the type to record for a transient value.
+     * 
+     * Transient values are never serialised, so any object is accepted.
+     * Values whose exact class has a registered type are given that type (so
+     * that collection operations work on them); others are given
+     * {@link #OBJECT_TYPE}.
+     * 
+     * @param value the value; must be non-null.
+     * @return the type.
+     */
+    MetadataType getTransientType(Object value) {
+        MetadataType type = _classToType.get(value.getClass());
+        return (type != null) ? type : OBJECT_TYPE;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the {@link CollectionType} whose elements are of the specified
+     * class, or null if there is none.
+     * 
+     * @param elementClass the class of elements.
+     * @return the {@link CollectionType}, or null.
+     */
+    CollectionType getCollectionType(Class<?> elementClass) {
+        return _elementClassToType.get(elementClass);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the {@link MetadataType} for a {@link List}, inferred from the
+     * class of its elements.
+     * 
+     * @param list the list.
+     * @return the {@link UUIDList} or {@link StringList} type.
+     * @throws EntityMetadataException if the list is empty or the elements are
+     *         not all UUIDs or all Strings.
+     */
+    private MetadataType getListType(List<?> list) {
+        if (list.isEmpty()) {
+            throw new EntityMetadataException("element type of empty list is ambiguous; use UUIDList or StringList");
+        }
+        Class<?> elementClass = list.get(0).getClass();
+        for (Object element : list) {
+            if (element == null || element.getClass() != elementClass) {
+                throw new EntityMetadataException("list elements must be all UUIDs or all Strings");
+            }
+        }
+        CollectionType type = _elementClassToType.get(elementClass);
+        if (type == null || !List.class.isAssignableFrom(type.getValueClass())) {
+            throw new EntityMetadataException("list elements must be all UUIDs or all Strings");
+        }
+        return type;
+    }
+
     // ------------------------------------------------------------------------
     /**
      * Return the {@link MetadataType} corresponding to the single character
@@ -95,6 +179,41 @@ public class MetadataTypeManager {
     public void addType(MetadataType type) {
         _classToType.put(type.getValueClass(), type);
         _codeToType.put(type.getCode(), type);
+        if (type instanceof CollectionType) {
+            CollectionType collectionType = (CollectionType) type;
+            _elementClassToType.put(collectionType.getElementClass(), collectionType);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Register a {@link StructSchema}, allowing {@link MetadataStruct}s of that
+     * schema to be stored and loaded.
+     * 
+     * The schema cannot be modified after registration.
+     * 
+     * @param schema the schema.
+     * @throws EntityMetadataException if a different schema with the same
+     *         name is already registered.
+     */
+    public void addSchema(StructSchema schema) throws EntityMetadataException {
+        StructSchema existing = _schemas.putIfAbsent(schema.getName(), schema);
+        if (existing != null && existing != schema) {
+            throw new EntityMetadataException("schema " + schema.getName() + " is already registered");
+        }
+        schema.setRegistered();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the registered {@link StructSchema} with the specified name, or
+     * null if not found.
+     * 
+     * @param name the name of the schema.
+     * @return the schema, or null.
+     */
+    public StructSchema getSchema(String name) {
+        return _schemas.get(name);
     }
 
     // ------------------------------------------------------------------------
@@ -171,25 +290,50 @@ public class MetadataTypeManager {
                 return UUID.fromString(value);
             }
         });
+        addType(new CollectionType.IntArrayType());
+        addType(new CollectionType.LongArrayType());
+        addType(new CollectionType.DoubleArrayType());
+        addType(new CollectionType.UUIDListType());
+        addType(new CollectionType.StringListType());
+        addType(new MetadataType('R', MetadataStruct.class) {
+            @Override
+            public String toString(Object value) {
+                return ((MetadataStruct) value).encode();
+            }
+
+            @Override
+            public Object fromString(String value) {
+                return MetadataStruct.decode(value);
+            }
+        });
         addType(new MetadataType('*', ConfigurationSerializable.class) {
-            // Note: shared, not thread safe.
-            YamlConfiguration _config = new YamlConfiguration();
+            // One per thread, so that values can be decoded asynchronously.
+            ThreadLocal<YamlConfiguration> _config = ThreadLocal.withInitial(YamlConfiguration::new);
 
             @Override
             public String toString(Object value) {
-                _config.set("value", value);
-                return _config.saveToString();
+                YamlConfiguration config = _config.get();
+                config.set("value", value);
+                return config.saveToString();
             }
 
             @Override
             public Object fromString(String value) {
                 try {
-                    _config.loadFromString(value);
-                    return _config.get("value");
+                    YamlConfiguration config = _config.get();
+                    config.loadFromString(value);
+                    return config.get("value");
                 } catch (InvalidConfigurationException ex) {
                     throw new IllegalArgumentException(ex);
                 }
             }
+
+            @Override
+            public int estimateSize(Object value, int serialisedLength) {
+                // Deserialised object graphs (maps, lists, NBT) are several
+                // times larger than their YAML.
+                return 64 + 8 * serialisedLength;
+            }
         });
     } // constructor
 
@@ -204,4 +348,14 @@ public class MetadataTypeManager {
      */
     private final LinkedHashMap<Class<?>, MetadataType> _classToType = new LinkedHashMap<>();
 
+    /**
+     * Map from element class to the {@link CollectionType} of that class.
+     */
+    private final HashMap<Class<?>, CollectionType> _elementClassToType = new HashMap<>();
+
+    /**
+     * Map from name to registered {@link StructSchema}.
+     */
+    private final ConcurrentHashMap<String, StructSchema> _schemas = new ConcurrentHashMap<>();
+
 } // class MetadataTypeManager
\ No newline at end of file
@@ -0,0 +1,229 @@
+package nu.nerd.entitymeta;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.cache.RemovalCause;
+
+// ----------------------------------------------------------------------------
+/**
+ * Counters and latency histograms exported by the {@link MetricsExporter}.
+ * <p>
+ * 
+ * Everything here can be read from any thread without locking. Histograms
+ * and eviction counters are updated where the events occur. The read
+ * counters of the {@link MetadataStore} are plain fields updated on the main
+ * thread, so the store copies them here once per tick, into volatile fields.
+ * <p>
+ * 
+ * Latencies are only recorded when {@code metrics.enabled} is true.
+ */
+final class Metrics {
+    /**
+     * The single instance of this class.
+     */
+    static final Metrics INSTANCE = new Metrics();
+
+    /**
+     * Index of encode latencies in the arrays of {@link #getCodecHistograms()}.
+     */
+    static final int ENCODE = 0;
+
+    /**
+     * Index of decode latencies in the arrays of {@link #getCodecHistograms()}.
+     */
+    static final int DECODE = 1;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the start time of an operation to be timed, or 0 if metrics are
+     * disabled.
+     * 
+     * @return the value of {@link System#nanoTime()}, or 0.
+     */
+    long start() {
+        return EntityMeta.CONFIG.METRICS_ENABLED ? System.nanoTime() : 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record the latency of a cache load.
+     * 
+     * @param nanos the latency in nanoseconds.
+     */
+    void recordLoad(long nanos) {
+        _loads.record(nanos);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record the latency of encoding or decoding a value.
+     * 
+     * @param operation {@link #ENCODE} or {@link #DECODE}.
+     * @param code the type code.
+     * @param start the value returned by {@link #start()}.
+     */
+    void recordCodec(int operation, char code, long start) {
+        if (start == 0) {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        // Character.valueOf() does not allocate for ASCII codes.
+        LatencyHistogram[] histograms = _codecs.get(code);
+        if (histograms == null) {
+            histograms = _codecs.computeIfAbsent(code,
+                c -> new LatencyHistogram[] { new LatencyHistogram(), new LatencyHistogram() });
+        }
+        histograms[operation].record(nanos);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Count the removal of an entity's metadata from the cache.
+     * 
+     * @param cause the cause of removal.
+     */
+    void recordRemoval(RemovalCause cause) {
+        _removals[cause.ordinal()].increment();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Publish the read counters of the {@link MetadataStore}.
+     * 
+     * This must only be called from the main thread.
+     * 
+     * @param hits reads that found metadata in memory.
+     * @param misses reads that parsed and cached metadata.
+     * @param untagged reads of entities without metadata tags.
+     * @param uncached reads that parsed metadata without caching it.
+     */
+    void publishReads(long hits, long misses, long untagged, long uncached) {
+        _readHits = hits;
+        _readMisses = misses;
+        _untaggedReads = untagged;
+        _uncachedReads = uncached;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the histogram of cache load latencies.
+     * 
+     * @return the histogram.
+     */
+    LatencyHistogram getLoads() {
+        return _loads;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the codec latency histograms.
+     * 
+     * @return an unmodifiable map from type code to a pair of histograms,
+     *         indexed by {@link #ENCODE} and {@link #DECODE}.
+     */
+    Map<Character, LatencyHistogram[]> getCodecHistograms() {
+        return Collections.unmodifiableMap(_codecs);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of removals from the cache with the specified cause.
+     * 
+     * @param cause the cause.
+     * @return the number of removals.
+     */
+    long getRemovals(RemovalCause cause) {
+        return _removals[cause.ordinal()].sum();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the published number of reads that found metadata in memory.
+     * 
+     * @return the number of read cache hits.
+     */
+    long getReadHits() {
+        return _readHits;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the published number of reads that parsed and cached metadata.
+     * 
+     * @return the number of read cache misses.
+     */
+    long getReadMisses() {
+        return _readMisses;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the published number of reads of entities without metadata tags.
+     * 
+     * @return the number of untagged reads.
+     */
+    long getUntaggedReads() {
+        return _untaggedReads;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the published number of reads that parsed metadata without
+     * caching it.
+     * 
+     * @return the number of uncached reads.
+     */
+    long getUncachedReads() {
+        return _uncachedReads;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     */
+    private Metrics() {
+        _removals = new LongAdder[RemovalCause.values().length];
+        for (int i = 0; i < _removals.length; ++i) {
+            _removals[i] = new LongAdder();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Cache load latencies.
+     */
+    private final LatencyHistogram _loads = new LatencyHistogram();
+
+    /**
+     * Map from type code to encode and decode latencies.
+     */
+    private final ConcurrentHashMap<Character, LatencyHistogram[]> _codecs = new ConcurrentHashMap<>();
+
+    /**
+     * Cache removal counts, indexed by RemovalCause ordinal.
+     */
+    private final LongAdder[] _removals;
+
+    /**
+     * Published number of reads that found metadata in memory.
+     */
+    private volatile long _readHits;
+
+    /**
+     * Published number of reads that parsed and cached metadata.
+     */
+    private volatile long _readMisses;
+
+    /**
+     * Published number of reads of entities without metadata tags.
+     */
+    private volatile long _untaggedReads;
+
+    /**
+     * Published number of reads that parsed metadata without caching it.
+     */
+    private volatile long _uncachedReads;
+} // class Metrics
@@ -0,0 +1,255 @@
+package nu.nerd.entitymeta;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+
+import com.google.common.cache.RemovalCause;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+// ----------------------------------------------------------------------------
+/**
+ * Serves cache and codec statistics over HTTP in the Prometheus text
+ * exposition format, at {@code /metrics}.
+ * <p>
+ * 
+ * Requests are handled by a single daemon thread. The response is built from
+ * the lock-free counters of {@link Metrics}, the size of the cache and the
+ * tag byte counts of cached metadata, which are read without synchronisation
+ * and so may be slightly out of date. The main thread is never involved.
+ */
+final class MetricsExporter {
+    /**
+     * Upper bounds in seconds of the buckets of the cache load histogram,
+     * excluding +Inf.
+     */
+    static final double[] LOAD_BUCKETS = { 1e-5, 5e-5, 1e-4, 5e-4, 1e-3, 5e-3, 1e-2, 5e-2 };
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start the exporter if it is enabled in the configuration.
+     * 
+     * @param store the metadata store.
+     */
+    static void open(MetadataStore store) {
+        if (_instance != null || !EntityMeta.CONFIG.METRICS_ENABLED) {
+            return;
+        }
+        String address = EntityMeta.CONFIG.METRICS_ADDRESS;
+        int port = EntityMeta.CONFIG.METRICS_PORT;
+        try {
+            _instance = new MetricsExporter(store, new InetSocketAddress(address, port));
+            EntityMeta.PLUGIN.getLogger().info("Serving metrics at http://" + address + ":" + port + "/metrics");
+        } catch (IOException ex) {
+            EntityMeta.PLUGIN.getLogger().log(Level.SEVERE, "Unable to serve metrics on " + address + ":" + port, ex);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop the exporter, if running.
+     */
+    static void close() {
+        MetricsExporter exporter = _instance;
+        if (exporter != null) {
+            _instance = null;
+            exporter._server.stop(0);
+            exporter._executor.shutdown();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     * 
+     * @param store the metadata store.
+     * @param address the address to bind to.
+     * @throws IOException if the server could not be started.
+     */
+    private MetricsExporter(MetadataStore store, InetSocketAddress address) throws IOException {
+        _store = store;
+        _executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "EntityMeta metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        _server = HttpServer.create(address, 0);
+        _server.setExecutor(_executor);
+        _server.createContext("/metrics", this::handle);
+        _server.start();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Handle a request.
+     * 
+     * @param exchange the request and response.
+     * @throws IOException if the response could not be sent.
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            if (!method.equals("GET") && !method.equals("HEAD")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = format().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            if (method.equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Format all metrics.
+     * 
+     * @return the metrics in the Prometheus text format.
+     */
+    private String format() {
+        StringBuilder out = new StringBuilder(4096);
+        Metrics metrics = Metrics.INSTANCE;
+
+        long entities = 0;
+        long tagBytes = 0;
+        for (PerEntityMetadata meta : _store.getCachedMetadata().values()) {
+            ++entities;
+            tagBytes += meta.getTagBytes();
+        }
+        header(out, "entitymeta_cache_entities", "gauge", "Number of entities whose metadata is cached.");
+        out.append("entitymeta_cache_entities ").append(entities).append('\n');
+        header(out, "entitymeta_cache_tag_bytes", "gauge", "Total length of the metadata tags of cached entities.");
+        out.append("entitymeta_cache_tag_bytes ").append(tagBytes).append('\n');
+
+        header(out, "entitymeta_reads_total", "counter", "Metadata reads, by how they were served.");
+        sample(out, "entitymeta_reads_total", "result=\"hit\"", metrics.getReadHits());
+        sample(out, "entitymeta_reads_total", "result=\"miss\"", metrics.getReadMisses());
+        sample(out, "entitymeta_reads_total", "result=\"untagged\"", metrics.getUntaggedReads());
+        sample(out, "entitymeta_reads_total", "result=\"uncached\"", metrics.getUncachedReads());
+
+        header(out, "entitymeta_cache_removals_total", "counter", "Removals of metadata from the cache, by cause.");
+        for (RemovalCause cause : RemovalCause.values()) {
+            if (cause != RemovalCause.REPLACED) {
+                sample(out, "entitymeta_cache_removals_total", "cause=\"" + cause.name().toLowerCase() + "\"",
+                       metrics.getRemovals(cause));
+            }
+        }
+
+        LatencyHistogram loads = metrics.getLoads();
+        header(out, "entitymeta_cache_load_seconds", "histogram", "Time taken to parse the tags of an uncached entity.");
+        for (double bound : LOAD_BUCKETS) {
+            sample(out, "entitymeta_cache_load_seconds_bucket", "le=\"" + bound + "\"",
+                   loads.getCountAtOrBelow((long) (bound * 1e9)));
+        }
+        sample(out, "entitymeta_cache_load_seconds_bucket", "le=\"+Inf\"", loads.getCount());
+        out.append("entitymeta_cache_load_seconds_sum ").append(loads.getTotalNanos() / 1e9).append('\n');
+        out.append("entitymeta_cache_load_seconds_count ").append(loads.getCount()).append('\n');
+
+        header(out, "entitymeta_codec_seconds", "summary", "Time taken to encode or decode a value, by type code.");
+        List<Map.Entry<Character, LatencyHistogram[]>> codecs = new ArrayList<>(metrics.getCodecHistograms().entrySet());
+        codecs.sort(Map.Entry.comparingByKey());
+        for (Map.Entry<Character, LatencyHistogram[]> entry : codecs) {
+            String type = "type=\"" + escape(entry.getKey()) + "\"";
+            summary(out, type + ",operation=\"encode\"", entry.getValue()[Metrics.ENCODE]);
+            summary(out, type + ",operation=\"decode\"", entry.getValue()[Metrics.DECODE]);
+        }
+        return out.toString();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append the HELP and TYPE lines of a metric.
+     * 
+     * @param out the output.
+     * @param name the metric name.
+     * @param type the metric type.
+     * @param help the description.
+     */
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append a sample with labels.
+     * 
+     * @param out the output.
+     * @param name the sample name.
+     * @param labels the formatted labels.
+     * @param value the value.
+     */
+    private static void sample(StringBuilder out, String name, String labels, long value) {
+        out.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append the samples of a summary of the codec latencies.
+     * 
+     * @param out the output.
+     * @param labels the formatted labels, excluding the quantile.
+     * @param histogram the latencies.
+     */
+    private static void summary(StringBuilder out, String labels, LatencyHistogram histogram) {
+        if (histogram.getCount() == 0) {
+            return;
+        }
+        for (int percent : new int[] { 50, 99 }) {
+            out.append("entitymeta_codec_seconds{").append(labels).append(",quantile=\"0.").append(percent)
+                .append("\"} ").append(histogram.getPercentileNanos(percent) / 1e9).append('\n');
+        }
+        out.append("entitymeta_codec_seconds_sum{").append(labels).append("} ")
+            .append(histogram.getTotalNanos() / 1e9).append('\n');
+        out.append("entitymeta_codec_seconds_count{").append(labels).append("} ")
+            .append(histogram.getCount()).append('\n');
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Escape a type code for use as a label value.
+     * 
+     * @param code the type code.
+     * @return the escaped label value.
+     */
+    private static String escape(char code) {
+        return (code == '"' || code == '\\') ? "\\" + code : (code == '\n') ? "\\n" : String.valueOf(code);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The running exporter, or null.
+     */
+    private static volatile MetricsExporter _instance;
+
+    /**
+     * The metadata store.
+     */
+    private final MetadataStore _store;
+
+    /**
+     * The HTTP server.
+     */
+    private final HttpServer _server;
+
+    /**
+     * The executor running the request handler thread.
+     */
+    private final ExecutorService _executor;
+} // class MetricsExporter
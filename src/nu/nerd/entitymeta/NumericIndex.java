@@ -0,0 +1,530 @@
+package nu.nerd.entitymeta;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.bukkit.entity.Entity;
+
+// ----------------------------------------------------------------------------
+/**
+ * A sorted index of the numeric values of one metadata key across all loaded
+ * entities, supporting range scans and top-K queries.
+ * <p>
+ * 
+ * Values are held as doubles, ordered by value and then by the order in which
+ * entities were first indexed, so that every (value, entity) pair has a
+ * distinct position. Integral values with a magnitude above 2^53 lose
+ * precision, which only affects their order relative to very close values.
+ * <p>
+ * 
+ * The sorted sequence is split into blocks of parallel primitive arrays of at
+ * most {@link #MAX_BLOCK_SIZE} elements, so that an update costs a binary
+ * search and a copy within one block rather than within the whole index, and
+ * values are not boxed. A range scan or top-K query costs O(log n + k).
+ * <p>
+ * 
+ * The number of elements before each block is kept in a Fenwick tree over
+ * the blocks, so that {@link #count(double, double)}, which the query planner
+ * calls to choose an index, costs O(log n) rather than a pass over the
+ * blocks. An update adjusts the tree in O(log n). Splitting or removing a
+ * block rebuilds the tree, in time linear in the number of blocks, which
+ * happens at most once per {@link #MAX_BLOCK_SIZE} / 2 updates.
+ * <p>
+ * 
+ * This class is not thread safe and must only be used from the main thread.
+ */
+final class NumericIndex {
+    /**
+     * The maximum number of elements in a block. Full blocks are split in
+     * half.
+     */
+    static final int MAX_BLOCK_SIZE = 512;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     * 
+     * @param key the indexed key, of the form plugin.name.
+     */
+    NumericIndex(String key) {
+        _key = key;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the indexed key.
+     * 
+     * @return the indexed key, of the form plugin.name.
+     */
+    String getKey() {
+        return _key;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of indexed entities.
+     * 
+     * @return the number of indexed entities.
+     */
+    int size() {
+        return _positions.size();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set the indexed value of an entity, replacing any previous value.
+     * 
+     * NaN is not indexed.
+     * 
+     * @param entity the entity.
+     * @param value the value.
+     */
+    void put(Entity entity, double value) {
+        if (Double.isNaN(value)) {
+            remove(entity);
+            return;
+        }
+
+        Position position = _positions.get(entity);
+        if (position == null) {
+            position = new Position(_nextSequence++);
+            _positions.put(entity, position);
+        } else if (position._value == value) {
+            return;
+        } else {
+            delete(position._value, position._sequence);
+        }
+        position._value = value;
+        insert(value, position._sequence, entity);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove an entity from the index, if present.
+     * 
+     * @param entity the entity.
+     */
+    void remove(Entity entity) {
+        Position position = _positions.remove(entity);
+        if (position != null) {
+            delete(position._value, position._sequence);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove all entities that are no longer valid from the index.
+     * 
+     * Queries only remove the invalid entities that they visit, so entities
+     * that were removed from the world without being unloaded would otherwise
+     * remain in the index.
+     */
+    void removeInvalid() {
+        List<Entity> invalid = null;
+        for (Entity entity : _positions.keySet()) {
+            if (!entity.isValid()) {
+                invalid = addInvalid(invalid, entity);
+            }
+        }
+        removeAll(invalid);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if an entity is indexed.
+     * 
+     * @param entity the entity.
+     * @return true if the entity is indexed.
+     */
+    boolean contains(Entity entity) {
+        return _positions.containsKey(entity);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the entities whose values are in the specified range, in
+     * ascending order of value.
+     * 
+     * Entities that are no longer valid are removed from the index and not
+     * returned.
+     * 
+     * @param min the inclusive minimum value.
+     * @param max the inclusive maximum value.
+     * @param limit the maximum number of entities to return.
+     * @return the entities.
+     */
+    List<Entity> range(double min, double max, int limit) {
+        List<Entity> result = new ArrayList<>();
+        List<Entity> invalid = null;
+        int blockIndex = findBlock(min, Long.MIN_VALUE);
+        if (blockIndex < _blocks.size()) {
+            int i = _blocks.get(blockIndex).find(min, Long.MIN_VALUE);
+            scan: for (; blockIndex < _blocks.size(); ++blockIndex, i = 0) {
+                Block block = _blocks.get(blockIndex);
+                for (; i < block._size; ++i) {
+                    if (block._values[i] > max || result.size() >= limit) {
+                        break scan;
+                    }
+                    Entity entity = block._entities[i];
+                    if (entity.isValid()) {
+                        result.add(entity);
+                    } else {
+                        invalid = addInvalid(invalid, entity);
+                    }
+                }
+            }
+        }
+        removeAll(invalid);
+        return result;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the entities with the largest values, in descending order of
+     * value.
+     * 
+     * Entities that are no longer valid are removed from the index and not
+     * returned.
+     * 
+     * @param count the maximum number of entities to return.
+     * @return the entities.
+     */
+    List<Entity> top(int count) {
+        List<Entity> result = new ArrayList<>();
+        List<Entity> invalid = null;
+        scan: for (int blockIndex = _blocks.size() - 1; blockIndex >= 0; --blockIndex) {
+            Block block = _blocks.get(blockIndex);
+            for (int i = block._size - 1; i >= 0; --i) {
+                if (result.size() >= count) {
+                    break scan;
+                }
+                Entity entity = block._entities[i];
+                if (entity.isValid()) {
+                    result.add(entity);
+                } else {
+                    invalid = addInvalid(invalid, entity);
+                }
+            }
+        }
+        removeAll(invalid);
+        return result;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of indexed values in the specified range, which may
+     * include entities that are no longer valid.
+     * 
+     * @param min the inclusive minimum value.
+     * @param max the inclusive maximum value.
+     * @return the number of values in range.
+     */
+    int count(double min, double max) {
+        return (min > max) ? 0 : rank(max, Long.MAX_VALUE) - rank(min, Long.MIN_VALUE);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A run of consecutive elements of the sorted sequence, held in parallel
+     * arrays.
+     */
+    private static final class Block {
+        /**
+         * Return the index of the first element not less than (value,
+         * sequence).
+         * 
+         * @param value the value.
+         * @param sequence the sequence number.
+         * @return the index, in [0, _size].
+         */
+        int find(double value, long sequence) {
+            int low = 0;
+            int high = _size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (compare(_values[mid], _sequences[mid], value, sequence) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * The values, in ascending order.
+         */
+        final double[] _values = new double[MAX_BLOCK_SIZE];
+
+        /**
+         * The sequence numbers that break ties between equal values.
+         */
+        final long[] _sequences = new long[MAX_BLOCK_SIZE];
+
+        /**
+         * The entities.
+         */
+        final Entity[] _entities = new Entity[MAX_BLOCK_SIZE];
+
+        /**
+         * The number of elements in use.
+         */
+        int _size;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The indexed value and tie-breaking sequence number of an entity.
+     */
+    private static final class Position {
+        /**
+         * Constructor.
+         * 
+         * @param sequence the sequence number.
+         */
+        Position(long sequence) {
+            _sequence = sequence;
+        }
+
+        /**
+         * The indexed value.
+         */
+        double _value;
+
+        /**
+         * The sequence number.
+         */
+        final long _sequence;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Compare two (value, sequence) pairs.
+     * 
+     * @param value1 the first value.
+     * @param sequence1 the first sequence number.
+     * @param value2 the second value.
+     * @param sequence2 the second sequence number.
+     * @return negative, zero or positive as the first pair is less than,
+     *         equal to or greater than the second.
+     */
+    private static int compare(double value1, long sequence1, double value2, long sequence2) {
+        int comparison = Double.compare(value1, value2);
+        return (comparison != 0) ? comparison : Long.compare(sequence1, sequence2);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the index of the first block whose last element is not less
+     * than (value, sequence), or the number of blocks if there is none.
+     * 
+     * @param value the value.
+     * @param sequence the sequence number.
+     * @return the block index.
+     */
+    private int findBlock(double value, long sequence) {
+        int low = 0;
+        int high = _blocks.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            Block block = _blocks.get(mid);
+            int last = block._size - 1;
+            if (compare(block._values[last], block._sequences[last], value, sequence) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of elements less than (value, sequence).
+     * 
+     * @param value the value.
+     * @param sequence the sequence number.
+     * @return the rank.
+     */
+    private int rank(double value, long sequence) {
+        int blockIndex = findBlock(value, sequence);
+        int rank = countBefore(blockIndex);
+        return (blockIndex < _blocks.size()) ? rank + _blocks.get(blockIndex).find(value, sequence) : rank;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of elements in the blocks before the specified block.
+     * 
+     * @param blockIndex the block index, in [0, number of blocks].
+     * @return the number of elements.
+     */
+    private int countBefore(int blockIndex) {
+        int count = 0;
+        for (int i = blockIndex; i > 0; i -= i & -i) {
+            count += _blockCounts[i];
+        }
+        return count;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Adjust the recorded size of a block.
+     * 
+     * @param blockIndex the block index.
+     * @param delta the change in the number of elements.
+     */
+    private void addCount(int blockIndex, int delta) {
+        for (int i = blockIndex + 1; i < _blockCounts.length; i += i & -i) {
+            _blockCounts[i] += delta;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Rebuild the Fenwick tree of block sizes after blocks are added or
+     * removed.
+     */
+    private void rebuildCounts() {
+        int[] counts = new int[_blocks.size() + 1];
+        for (int i = 1; i < counts.length; ++i) {
+            counts[i] += _blocks.get(i - 1)._size;
+            int parent = i + (i & -i);
+            if (parent < counts.length) {
+                counts[parent] += counts[i];
+            }
+        }
+        _blockCounts = counts;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Insert an element into the sorted sequence.
+     * 
+     * @param value the value.
+     * @param sequence the sequence number.
+     * @param entity the entity.
+     */
+    private void insert(double value, long sequence, Entity entity) {
+        int blockIndex = Math.min(findBlock(value, sequence), _blocks.size() - 1);
+        boolean added = false;
+        if (blockIndex < 0) {
+            _blocks.add(new Block());
+            blockIndex = 0;
+            added = true;
+        }
+        Block block = _blocks.get(blockIndex);
+        if (block._size == MAX_BLOCK_SIZE) {
+            added = true;
+            Block upper = new Block();
+            int half = MAX_BLOCK_SIZE / 2;
+            upper._size = MAX_BLOCK_SIZE - half;
+            System.arraycopy(block._values, half, upper._values, 0, upper._size);
+            System.arraycopy(block._sequences, half, upper._sequences, 0, upper._size);
+            System.arraycopy(block._entities, half, upper._entities, 0, upper._size);
+            Arrays.fill(block._entities, half, MAX_BLOCK_SIZE, null);
+            block._size = half;
+            _blocks.add(blockIndex + 1, upper);
+            if (compare(value, sequence, upper._values[0], upper._sequences[0]) > 0) {
+                block = upper;
+            }
+        }
+
+        int i = block.find(value, sequence);
+        int moved = block._size - i;
+        System.arraycopy(block._values, i, block._values, i + 1, moved);
+        System.arraycopy(block._sequences, i, block._sequences, i + 1, moved);
+        System.arraycopy(block._entities, i, block._entities, i + 1, moved);
+        block._values[i] = value;
+        block._sequences[i] = sequence;
+        block._entities[i] = entity;
+        ++block._size;
+        if (added) {
+            rebuildCounts();
+        } else {
+            addCount(blockIndex, 1);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Delete an element from the sorted sequence.
+     * 
+     * @param value the value.
+     * @param sequence the sequence number.
+     */
+    private void delete(double value, long sequence) {
+        int blockIndex = findBlock(value, sequence);
+        Block block = _blocks.get(blockIndex);
+        int i = block.find(value, sequence);
+        int moved = block._size - i - 1;
+        System.arraycopy(block._values, i + 1, block._values, i, moved);
+        System.arraycopy(block._sequences, i + 1, block._sequences, i, moved);
+        System.arraycopy(block._entities, i + 1, block._entities, i, moved);
+        block._entities[--block._size] = null;
+        if (block._size == 0) {
+            _blocks.remove(blockIndex);
+            rebuildCounts();
+        } else {
+            addCount(blockIndex, -1);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add an invalid entity to a list, creating it if necessary.
+     * 
+     * @param invalid the list, or null.
+     * @param entity the entity.
+     * @return the list.
+     */
+    private static List<Entity> addInvalid(List<Entity> invalid, Entity entity) {
+        if (invalid == null) {
+            invalid = new ArrayList<>();
+        }
+        invalid.add(entity);
+        return invalid;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove the specified entities from the index.
+     * 
+     * @param entities the entities, or null.
+     */
+    private void removeAll(List<Entity> entities) {
+        if (entities != null) {
+            for (Entity entity : entities) {
+                remove(entity);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The indexed key.
+     */
+    private final String _key;
+
+    /**
+     * The sorted sequence of (value, sequence, entity), split into blocks.
+     */
+    private final ArrayList<Block> _blocks = new ArrayList<>();
+
+    /**
+     * The Fenwick tree of block sizes, indexed from 1 by block index + 1.
+     */
+    private int[] _blockCounts = new int[1];
+
+    /**
+     * Map from indexed entity to its position in the sorted sequence.
+     */
+    private final HashMap<Entity, Position> _positions = new HashMap<>();
+
+    /**
+     * The next sequence number to assign.
+     */
+    private long _nextSequence;
+} // class NumericIndex
@@ -1,14 +1,21 @@
 package nu.nerd.entitymeta;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import org.bukkit.entity.Entity;
 
+import nu.nerd.entitymeta.jfr.MetadataEvents;
+
 // ----------------------------------------------------------------------------
 /**
  * Holds loaded, cached metadata for one Entity.
@@ -17,15 +24,32 @@ import org.bukkit.entity.Entity;
  * persistent strings attached to the entity as a vanilla Minecraft feature.
  * Updated tags are immediately stored in the Entity's state. The corresponding
  * unserialised object values (before serialisation as tags) are cached in a
- * map.
+ * map. Entries reference the tag strings held in the entity's tag set, rather
+ * than copies, so caching a tag costs no more than a reference.
  * 
  * Each tag takes the form {@literal <plugin>.<name>:<type>:<value>}. The prefix
  * {@literal <plugin>.<name>} constitutes a unique key for the metadata value,
  * based on the name of the owning plugin and a name for the metadata dictated
  * by that plugin. The {@literal <type>} is a single character code identifying
  * the {@link MetadataType} used to encode and decode the value.
+ * 
+ * Values that expire have tags of the form
+ * {@literal <plugin>.<name>@<expiry>:<type>:<value>}, where {@literal <expiry>}
+ * is the system time in milliseconds when the value expires, in base 36.
+ * Expired values are dropped when the tags are parsed.
+ * 
+ * Transient entries are held in a separate map and have no tags.
+ * 
+ * Values held in the {@link SideStore} have pointer tags (type code '^') and
+ * are read from the side store the first time they are accessed.
  */
 class PerEntityMetadata {
+    /**
+     * Shared, empty metadata returned by reads of entities that have no
+     * metadata tags. It must never be modified.
+     */
+    static final PerEntityMetadata EMPTY = new PerEntityMetadata();
+
     // ------------------------------------------------------------------------
     /**
      * Create a new instance by parsing scoreboard tags and caching their
@@ -39,17 +63,189 @@ class PerEntityMetadata {
 
     // ------------------------------------------------------------------------
     /**
-     * Store a new metadata value.
+     * Constructor for {@link #EMPTY}.
+     */
+    private PerEntityMetadata() {
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if any scoreboard tag of an entity could hold metadata.
+     * 
+     * This is a cheap, allocation-free test that tags have the shape
+     * {@literal ...:<type>:<value>}, without running the regular expression.
+     * It may return true for tags that do not hold metadata, but never returns
+     * false for an entity that has metadata tags.
+     * 
+     * @param entity the entity.
+     * @return true if the entity may have metadata tags.
+     */
+    static boolean mayHaveMetadata(Entity entity) {
+        Set<String> tags = entity.getScoreboardTags();
+        if (tags.isEmpty()) {
+            return false;
+        }
+        for (String tag : tags) {
+            int length = tag.length();
+            // The shortest key is 3 characters, e.g. "a.b".
+            for (int colon = tag.indexOf(':'); colon >= 0 && colon + 3 < length; colon = tag.indexOf(':', colon + 1)) {
+                if (colon >= 3 && tag.charAt(colon + 2) == ':') {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Store a new metadata value, replacing any existing value with the same
+     * key.
+     * 
+     * The write is checked against the owning plugin's {@link TagLimits}. If
+     * the server refuses to add the scoreboard tag, the previous value (if
+     * any) is restored.
      * 
      * @param entity the entity whose metadata is accessed.
      * @param key the key, of the form plugin.name.
      * @param value the value to store.
      * @param type the type of the value.
+     * @throws EntityMetadataException if the write would exceed a hard limit,
+     *         or the server refused to add the tag.
      */
-    public void setEntry(Entity entity, String key, Object value, MetadataType type) {
-        String tag = key + ':' + type.getCode() + ':' + type.toString(value);
-        entity.addScoreboardTag(tag);
-        _entries.put(key, new MetadataEntry(value, type, tag));
+    public void setEntry(Entity entity, String key, Object value, MetadataType type) throws EntityMetadataException {
+        setEntry(entity, key, value, type, encode(entity, key, type, value), 0);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Store a new metadata value whose serialised form has already been
+     * computed, replacing any existing value with the same key.
+     * 
+     * @param entity the entity whose metadata is accessed.
+     * @param key the key, of the form plugin.name.
+     * @param value the value to store.
+     * @param type the type of the value.
+     * @param serialisedValue the value serialised by the type.
+     * @param expiry the system time in milliseconds when the value expires,
+     *        or 0 if it does not expire.
+     * @throws EntityMetadataException if the write would exceed a hard limit,
+     *         or the server refused to add the tag.
+     */
+    public void setEntry(Entity entity, String key, Object value, MetadataType type, String serialisedValue, long expiry) throws EntityMetadataException {
+        if (_counters != null) {
+            _counters.remove(key);
+        }
+        writeEntry(entity, key, value, type, serialisedValue, expiry);
+        if (_transient != null) {
+            _transient.remove(key);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Store a new transient metadata value, replacing any existing value with
+     * the same key.
+     * 
+     * Transient values are not serialised and no scoreboard tag is written.
+     * 
+     * @param entity the entity whose metadata is accessed.
+     * @param key the key, of the form plugin.name.
+     * @param value the value to store.
+     * @param type the type of the value.
+     * @param expiry the system time in milliseconds when the value expires,
+     *        or 0 if it does not expire.
+     */
+    public void setTransientEntry(Entity entity, String key, Object value, MetadataType type, long expiry) {
+        removeEntry(entity, key);
+        if (_transient == null) {
+            _transient = new HashMap<>();
+        }
+        key = KeyRegistry.INSTANCE.intern(key).getName();
+        _transient.put(key, new MetadataEntry(key, value, type, expiry));
+        _snapshot = null;
+        MetadataIndexes.INSTANCE.updated(entity, key, value);
+        if (expiry != 0) {
+            _hasExpiring = true;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write a scoreboard tag and cache the corresponding entry, replacing any
+     * existing value with the same key, but leaving any counter in place.
+     * 
+     * @param entity the entity whose metadata is accessed.
+     * @param key the key, of the form plugin.name.
+     * @param value the value to store.
+     * @param type the type of the value.
+     * @param serialisedValue the value serialised by the type.
+     * @param expiry the system time in milliseconds when the value expires,
+     *        or 0 if it does not expire.
+     * @throws EntityMetadataException if the write would exceed a hard limit,
+     *         or the server refused to add the tag.
+     */
+    private void writeEntry(Entity entity, String key, Object value, MetadataType type, String serialisedValue, long expiry) throws EntityMetadataException {
+        _snapshot = null;
+        SideStore sideStore = SideStore.getInstance();
+        long version = 0;
+        String tag;
+        if (sideStore != null && sideStore.accepts(serialisedValue)) {
+            version = sideStore.nextVersion();
+            tag = formatTag(key, expiry, SideStore.POINTER_TYPE, type.getCode() + Long.toString(version, 36));
+        } else {
+            tag = formatTag(key, expiry, type, serialisedValue);
+        }
+        MetadataEntry oldEntry = _entries.get(key);
+        if (oldEntry != null && tag.equals(oldEntry.getTag()) && entity.getScoreboardTags().contains(tag)) {
+            // Unchanged: don't rewrite the tag, and keep referencing the
+            // instance held by the entity rather than a duplicate.
+            if (oldEntry.getType() == SideStore.POINTER_TYPE) {
+                --_unresolved;
+            }
+            _entries.put(key, new MetadataEntry(value, type, oldEntry.getTag(), expiry));
+            MetadataIndexes.INSTANCE.updated(entity, key, value);
+            return;
+        }
+
+        MetadataEntry entry = new MetadataEntry(value, type, tag, expiry);
+        String pluginName = getPluginName(key);
+        checkBudget(entity, pluginName, entry, oldEntry);
+
+        long start = SlowOperationLog.INSTANCE.start();
+        Object event = MetadataEvents.INSTANCE.beginTagWrite();
+        if (oldEntry != null) {
+            entity.removeScoreboardTag(oldEntry.getTag());
+        }
+        // The entity's tag set retains this instance, which the entry shares.
+        boolean added = entity.addScoreboardTag(tag);
+        MetadataEvents.INSTANCE.endTagWrite(event, entity, key, tag.length());
+        SlowOperationLog.INSTANCE.check("Tag write", entity, key, type.getCode(), tag.length(), start);
+        if (!added && !entity.getScoreboardTags().contains(tag)) {
+            if (oldEntry != null) {
+                entity.addScoreboardTag(oldEntry.getTag());
+            }
+            TagBudget.INSTANCE.writeFailed(pluginName);
+            throw new EntityMetadataException("scoreboard tag refused by " + entity.getType() + " " +
+                                              entity.getUniqueId() + " (too many tags?)");
+        }
+
+        if (version != 0) {
+            sideStore.put(entity.getUniqueId(), key, version, serialisedValue);
+            sideStore.track(entity);
+        } else if (oldEntry != null && oldEntry.isSideStored() && sideStore != null) {
+            sideStore.remove(entity.getUniqueId(), key);
+        }
+        if (oldEntry != null && oldEntry.getType() == SideStore.POINTER_TYPE) {
+            --_unresolved;
+        }
+
+        _entries.put(key, entry);
+        _tagBytes += entry.getTagBytes() - (oldEntry != null ? oldEntry.getTagBytes() : 0);
+        if (expiry != 0) {
+            _hasExpiring = true;
+        }
+        MetadataIndexes.INSTANCE.updated(entity, key, value);
     }
 
     // ------------------------------------------------------------------------
@@ -60,31 +256,391 @@ class PerEntityMetadata {
      * @param key the key, of the form plugin.name.
      */
     public void removeEntry(Entity entity, String key) {
+        _snapshot = null;
+        MetadataIndexes.INSTANCE.removed(entity, key);
+        if (_counters != null) {
+            _counters.remove(key);
+        }
+        if (_transient != null && _transient.remove(key) != null) {
+            return;
+        }
         MetadataEntry entry = _entries.remove(key);
         if (entry != null) {
             entity.removeScoreboardTag(entry.getTag());
+            _tagBytes -= entry.getTagBytes();
+            if (entry.getType() == SideStore.POINTER_TYPE) {
+                --_unresolved;
+            }
+            if (entry.isSideStored()) {
+                SideStore sideStore = SideStore.getInstance();
+                if (sideStore != null) {
+                    sideStore.remove(entity.getUniqueId(), key);
+                }
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove the specified metadata value if it has expired.
+     * 
+     * @param entity the entity whose metadata is accessed.
+     * @param key the key, of the form plugin.name.
+     * @return the expiry time of the value if it is still set and expires
+     *         later, or 0 if it was removed, is not set or does not expire.
+     */
+    long expireEntry(Entity entity, String key) {
+        MetadataEntry entry = (_transient != null && _transient.containsKey(key)) ? _transient.get(key)
+                                                                                : _entries.get(key);
+        if (entry == null || entry.getExpiry() == 0) {
+            return 0;
+        }
+        if (entry.isExpired()) {
+            removeEntry(entity, key);
+            return 0;
         }
+        return entry.getExpiry();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if there is a value with the specified key.
+     * 
+     * In the common case of metadata with only non-expiring, tag-backed
+     * values, this is answered from the presence mask of the entry map, and
+     * side-stored values are not read.
+     * 
+     * @param key the key, of the form plugin.name.
+     * @return true if the value is set.
+     */
+    boolean hasEntry(String key) {
+        if (_transient != null || _counters != null || _hasExpiring) {
+            return getEntry(key) != null;
+        }
+
+        MetadataKey metadataKey = KeyRegistry.INSTANCE.lookup(key);
+        MetadataEntry entry = (metadataKey != null) ? _entries.get(metadataKey) : _entries.get(key);
+        if (entry == null || entry.getType() != SideStore.POINTER_TYPE) {
+            return entry != null;
+        }
+        // Failed side store pointers have a null value. Undecodable tags are
+        // retried, since their type may have been registered since.
+        return entry.isSideStored() ? entry.getValue() != null : getResolved(key) != null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the keys of an entity's scoreboard tags that hold values that
+     * would be added to the {@link MetadataIndexes}, without parsing or
+     * decoding its tags.
+     * 
+     * @param entity the entity.
+     * @return the keys, or null if the entity has no indexed values.
+     */
+    static List<String> getIndexedKeys(Entity entity) {
+        List<String> keys = null;
+        for (String tag : entity.getScoreboardTags()) {
+            int colon = tag.indexOf(':');
+            if (colon < 3 || colon + 3 >= tag.length() || tag.charAt(colon + 2) != ':') {
+                continue;
+            }
+            char code = tag.charAt(colon + 1);
+            if (code == SideStore.POINTER_CODE) {
+                // The pointer is prefixed by the type code of the value.
+                code = tag.charAt(colon + 3);
+            }
+            int at = tag.lastIndexOf('@', colon);
+            String key = tag.substring(0, (at >= 0) ? at : colon);
+            if (MetadataIndexes.INSTANCE.isIndexed(key, code)) {
+                if (keys == null) {
+                    keys = new ArrayList<>();
+                }
+                if (!keys.contains(key)) {
+                    keys.add(key);
+                }
+            }
+        }
+        return keys;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add all persistent and transient values to the {@link MetadataIndexes}.
+     * 
+     * Side-stored values are read only if they are indexed. Nothing is
+     * indexed if the entity is no longer valid.
+     * 
+     * @param entity the entity whose metadata is accessed.
+     */
+    void index(Entity entity) {
+        if (!entity.isValid()) {
+            return;
+        }
+
+        List<String> pointers = null;
+        for (Map.Entry<String, MetadataEntry> entry : _entries.entrySet()) {
+            MetadataEntry value = entry.getValue();
+            if (value.getType() == SideStore.POINTER_TYPE) {
+                String pointer = (String) value.getValue();
+                if (pointer != null && MetadataIndexes.INSTANCE.isIndexed(entry.getKey(), pointer.charAt(0))) {
+                    if (pointers == null) {
+                        pointers = new ArrayList<>();
+                    }
+                    pointers.add(entry.getKey());
+                }
+            } else if (!value.isExpired()) {
+                MetadataIndexes.INSTANCE.updated(entity, entry.getKey(), value.getValue());
+            }
+        }
+
+        // Resolving pointers replaces entries, so it is deferred until after
+        // the iteration.
+        if (pointers != null) {
+            for (String key : pointers) {
+                MetadataEntry resolved = getResolved(key);
+                if (resolved != null && !resolved.isExpired()) {
+                    MetadataIndexes.INSTANCE.updated(entity, key, resolved.getValue());
+                }
+            }
+        }
+        if (_transient != null) {
+            for (Map.Entry<String, MetadataEntry> entry : _transient.entrySet()) {
+                MetadataIndexes.INSTANCE.updated(entity, entry.getKey(), entry.getValue().getValue());
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if an entity has a scoreboard tag holding an unexpired value
+     * with the specified key, without parsing or decoding its tags.
+     * 
+     * @param entity the entity.
+     * @param key the key, of the form plugin.name.
+     * @return true if the value is set.
+     */
+    static boolean hasTag(Entity entity, String key) {
+        return findTag(entity, key) != null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the scoreboard tag of an entity that holds an unexpired value
+     * with the specified key, without parsing or decoding its tags.
+     * 
+     * @param entity the entity.
+     * @param key the key, of the form plugin.name.
+     * @return the tag, or null if the value is not set.
+     */
+    static String findTag(Entity entity, String key) {
+        int length = key.length();
+        for (String tag : entity.getScoreboardTags()) {
+            if (tag.length() <= length + 3 || !tag.startsWith(key)) {
+                continue;
+            }
+
+            int colon = length;
+            if (tag.charAt(length) == '@') {
+                colon = tag.indexOf(':', length);
+                if (colon < 0) {
+                    continue;
+                }
+                try {
+                    if (Long.parseLong(tag.substring(length + 1, colon), 36) <= System.currentTimeMillis()) {
+                        continue;
+                    }
+                } catch (NumberFormatException ex) {
+                    continue;
+                }
+            }
+
+            if (tag.charAt(colon) == ':' && colon + 3 < tag.length() && tag.charAt(colon + 2) == ':') {
+                char code = tag.charAt(colon + 1);
+                if (code == SideStore.POINTER_CODE || MetadataTypeManager.INSTANCE.getTypeByCode(code) != null) {
+                    return tag;
+                }
+            }
+        }
+        return null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if a tag found by {@link #findTag(Entity, String)} is a
+     * pointer to a side-stored value.
+     * 
+     * @param tag the tag.
+     * @param key the key of the tag.
+     * @return true if the tag holds a side store pointer.
+     */
+    static boolean isPointerTag(String tag, String key) {
+        return tag.charAt(tag.indexOf(':', key.length()) + 1) == SideStore.POINTER_CODE;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Decode the value held in a scoreboard tag.
+     * 
+     * This can be called from any thread, provided that the type's
+     * {@link MetadataType#fromString(String)} is thread safe, as are all of
+     * the built-in types.
+     * 
+     * @param tag the tag, which must not be a side store pointer.
+     * @return the value, or null if the tag is not a metadata tag, has
+     *         expired or has an unknown type.
+     * @throws IllegalArgumentException if the value cannot be decoded.
+     */
+    static Object decodeTag(String tag) {
+        Matcher matcher = TAG_PATTERN.matcher(tag);
+        if (!matcher.matches()) {
+            return null;
+        }
+        String expiryString = matcher.group(2);
+        if (expiryString != null && Long.parseLong(expiryString, 36) <= System.currentTimeMillis()) {
+            return null;
+        }
+        MetadataType type = MetadataTypeManager.INSTANCE.getTypeByCode(matcher.group(3).charAt(0));
+        return (type != null) ? type.fromString(matcher.group(4)) : null;
     }
 
     // ------------------------------------------------------------------------
     /**
      * Return the {@link MetadataEntry} corresponding to the specified key.
      * 
+     * Expired entries that have not yet been removed are not returned.
+     * 
      * @param key the key, of the form plugin.name.
      * @return the {@link MetadataEntry} corresponding to the specified key.
      */
     public MetadataEntry getEntry(String key) {
-        return _entries.get(key);
+        if (_transient != null) {
+            MetadataEntry entry = _transient.get(key);
+            if (entry != null) {
+                return entry.isExpired() ? null : entry;
+            }
+        }
+
+        MetadataEntry entry = getResolved(key);
+        if (entry != null && entry.isExpired()) {
+            entry = null;
+        }
+        if (_counters != null) {
+            MetadataCounter counter = _counters.get(key);
+            if (counter != null && counter.isDirty()) {
+                return counterEntry(key, counter, entry);
+            }
+        }
+        return entry;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the {@link MetadataEntry} corresponding to an interned key.
+     * 
+     * In the common case of metadata without transient values, counters or
+     * unresolved side-stored values, this finds the entry by key identity,
+     * without hashing the key's name.
+     * 
+     * @param key the interned key.
+     * @return the {@link MetadataEntry}, or null if not set or expired.
+     */
+    MetadataEntry getEntry(MetadataKey key) {
+        if (_transient != null || _counters != null || _unresolved > 0) {
+            return getEntry(key.getName());
+        }
+        MetadataEntry entry = _entries.get(key);
+        return (entry == null || (_hasExpiring && entry.isExpired())) ? null : entry;
     }
 
     // ------------------------------------------------------------------------
     /**
      * Return all {@link MetadataEntry}s, in no particular order.
      * 
+     * Transient entries are included and can be distinguished with
+     * {@link MetadataEntry#isTransient()}.
+     * 
      * @return all {@link MetadataEntry}s, in no particular order.
      */
     public Map<String, MetadataEntry> getAllEntries() {
-        return Collections.unmodifiableMap(_entries);
+        if (_entries.isEmpty() && !hasTransientEntries() && !hasDirtyCounters()) {
+            return Collections.emptyMap();
+        }
+        if (_unresolved > 0) {
+            for (String key : new ArrayList<>(_entries.keySet())) {
+                getResolved(key);
+            }
+        }
+        if (!_hasExpiring && !hasTransientEntries() && !hasDirtyCounters() && _unresolved == 0) {
+            return Collections.unmodifiableMap(_entries);
+        }
+
+        HashMap<String, MetadataEntry> entries = new HashMap<>(_entries);
+        if (_unresolved > 0) {
+            entries.values().removeIf(e -> e.getType() == SideStore.POINTER_TYPE);
+        }
+        if (_transient != null) {
+            entries.putAll(_transient);
+        }
+        if (_hasExpiring) {
+            entries.values().removeIf(MetadataEntry::isExpired);
+        }
+        if (_counters != null) {
+            for (Map.Entry<String, MetadataCounter> entry : _counters.entrySet()) {
+                if (entry.getValue().isDirty()) {
+                    String key = entry.getKey();
+                    entries.put(key, counterEntry(key, entry.getValue(), entries.get(key)));
+                }
+            }
+        }
+        return Collections.unmodifiableMap(entries);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return an immutable snapshot of all entries.
+     * 
+     * The snapshot is retained and returned again until the next change to
+     * the entries. Unpersisted counter values can change without a write, so
+     * snapshots including them are not retained. {@link #EMPTY}, which is
+     * shared and must not be modified, returns {@link MetadataSnapshot#EMPTY}.
+     * 
+     * @return the snapshot.
+     */
+    MetadataSnapshot snapshot() {
+        if (this == EMPTY) {
+            return MetadataSnapshot.EMPTY;
+        }
+
+        MetadataSnapshot snapshot = _snapshot;
+        if (snapshot != null && !hasDirtyCounters()) {
+            return snapshot;
+        }
+        snapshot = new MetadataSnapshot(getAllEntries());
+        if (!hasDirtyCounters()) {
+            _snapshot = snapshot;
+        }
+        return snapshot;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if any entry has been given an expiry time since this
+     * metadata was loaded.
+     * 
+     * @return true if any entry may expire.
+     */
+    boolean hasExpiringEntries() {
+        return _hasExpiring;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if there are any transient entries.
+     * 
+     * @return true if there are any transient entries.
+     */
+    boolean hasTransientEntries() {
+        return _transient != null && !_transient.isEmpty();
     }
 
     // ------------------------------------------------------------------------
@@ -98,11 +654,375 @@ class PerEntityMetadata {
      */
     public Map<String, MetadataEntry> getPluginEntries(String pluginName) {
         String prefix = pluginName + '.';
-        return _entries.entrySet().stream()
+        return getAllEntries().entrySet().stream()
         .filter(e -> e.getKey().startsWith(prefix))
         .collect(Collectors.toMap(e -> e.getKey(), e -> e.getValue()));
     }
 
+    // ------------------------------------------------------------------------
+    /**
+     * Return the counter for the specified key, if it exists.
+     * 
+     * This method can be called from any thread.
+     * 
+     * @param key the key, of the form plugin.name.
+     * @return the counter, or null if there is no counter for the key.
+     */
+    MetadataCounter getExistingCounter(String key) {
+        ConcurrentHashMap<String, MetadataCounter> counters = _counters;
+        return (counters != null) ? counters.get(key) : null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the counter for the specified key, creating it from the current
+     * value as necessary.
+     * 
+     * Creating a counter reads the current value, so this method must only be
+     * called from the main thread. Other threads must use
+     * {@link #getExistingCounter(String)}.
+     * 
+     * @param key the key, of the form plugin.name.
+     * @param floating if true, and there is no current value, create a
+     *        floating point counter; otherwise create an integral counter.
+     * @return the counter.
+     * @throws EntityMetadataException if the current value is not numeric.
+     */
+    MetadataCounter getCounter(String key, boolean floating) throws EntityMetadataException {
+        ConcurrentHashMap<String, MetadataCounter> counters = _counters;
+        if (counters == null) {
+            synchronized (this) {
+                if (_counters == null) {
+                    _counters = new ConcurrentHashMap<>();
+                }
+                counters = _counters;
+            }
+        }
+
+        MetadataCounter counter = counters.get(key);
+        if (counter == null) {
+            synchronized (this) {
+                counter = counters.get(key);
+                if (counter == null) {
+                    if (_transient != null && _transient.containsKey(key)) {
+                        throw new EntityMetadataException("transient values cannot be used as counters");
+                    }
+                    MetadataEntry entry = getResolved(key);
+                    if (entry == null || entry.isExpired()) {
+                        MetadataType type = MetadataTypeManager.INSTANCE.getTypeByClass(floating ? Double.class : Long.class);
+                        counter = new MetadataCounter(type, 0L);
+                    } else if (MetadataCounter.isNumeric(entry.getType())) {
+                        counter = new MetadataCounter(entry.getType(), (Number) entry.getValue());
+                    } else {
+                        throw new EntityMetadataException("metadata value is not numeric");
+                    }
+                    counters.put(key, counter);
+                }
+            }
+        }
+        return counter;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if any counter has changed since it was last persisted.
+     * 
+     * @return true if any counter has changed since it was last persisted.
+     */
+    boolean hasDirtyCounters() {
+        if (_counters != null) {
+            for (MetadataCounter counter : _counters.values()) {
+                if (counter.isDirty()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write the values of all changed counters to scoreboard tags.
+     * 
+     * This must only be called from the main thread.
+     * 
+     * @param entity the entity whose metadata is accessed.
+     */
+    void flushCounters(Entity entity) {
+        if (_counters == null) {
+            return;
+        }
+        for (Map.Entry<String, MetadataCounter> entry : _counters.entrySet()) {
+            MetadataCounter counter = entry.getValue();
+            if (counter.isDirty()) {
+                counter.clearDirty();
+                Object value = counter.getValue();
+                MetadataEntry oldEntry = _entries.get(entry.getKey());
+                long expiry = (oldEntry != null && !oldEntry.isExpired()) ? oldEntry.getExpiry() : 0;
+                boolean saved = false;
+                try {
+                    writeEntry(entity, entry.getKey(), value, counter.getType(), encode(entity, entry.getKey(), counter.getType(), value), expiry);
+                    saved = true;
+                } catch (EntityMetadataException ex) {
+                    EntityMeta.PLUGIN.getLogger().severe("Error saving counter " + entry.getKey() + " of " +
+                                                         entity.getType() + " " + entity.getUniqueId() + ": " + ex.getMessage());
+                } finally {
+                    if (!saved) {
+                        // Retry at the next flush.
+                        counter.markDirty();
+                    }
+                }
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a transient {@link MetadataEntry} describing the current value of
+     * a counter that has not yet been persisted.
+     * 
+     * @param key the key, of the form plugin.name.
+     * @param counter the counter.
+     * @param entry the persisted entry for the key, or null.
+     * @return the entry.
+     */
+    private static MetadataEntry counterEntry(String key, MetadataCounter counter, MetadataEntry entry) {
+        Object value = counter.getValue();
+        MetadataType type = counter.getType();
+        long expiry = (entry != null) ? entry.getExpiry() : 0;
+        return new MetadataEntry(value, type, formatTag(key, expiry, type, type.toString(value)), expiry);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the persistent entry with the specified key, reading its value
+     * from the {@link SideStore}, or decoding a tag that could not previously
+     * be decoded, if necessary.
+     * 
+     * @param key the key, of the form plugin.name.
+     * @return the entry, or null if not set or the value could not be read.
+     */
+    private MetadataEntry getResolved(String key) {
+        MetadataEntry entry = _entries.get(key);
+        if (entry == null || entry.getType() != SideStore.POINTER_TYPE) {
+            return entry;
+        }
+        if (!entry.isSideStored()) {
+            return decodeRaw(key, entry);
+        }
+
+        // Failed pointers are marked by a null value, to log only once.
+        String pointer = (String) entry.getValue();
+        if (pointer == null) {
+            return null;
+        }
+
+        SideStore sideStore = SideStore.getInstance();
+        MetadataType type = MetadataTypeManager.INSTANCE.getTypeByCode(pointer.charAt(0));
+        try {
+            long version = Long.parseLong(pointer.substring(1), 36);
+            String serialisedValue = (sideStore != null && type != null) ? sideStore.read(_uuid, key, version)
+                                                                         : null;
+            if (serialisedValue != null) {
+                MetadataEntry resolved = new MetadataEntry(type.fromString(serialisedValue), type,
+                                                           entry.getTag(), entry.getExpiry());
+                _entries.put(key, resolved);
+                --_unresolved;
+                return resolved;
+            }
+        } catch (IllegalArgumentException ex) {
+            // Logged below.
+        }
+
+        EntityMeta.PLUGIN.getLogger().severe("Error loading side-stored metadata of " + _uuid + ": " + entry.getTag());
+        _entries.put(key, new MetadataEntry(null, SideStore.POINTER_TYPE, entry.getTag(), entry.getExpiry()));
+        return null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Retry decoding a tag that could not be decoded when it was parsed,
+     * typically a struct whose schema had not yet been registered.
+     * 
+     * The failure was logged when parsing, so it is not logged again.
+     * 
+     * @param key the key, of the form plugin.name.
+     * @param entry the unresolved entry holding the tag.
+     * @return the decoded entry, or null if the tag still cannot be decoded.
+     */
+    private MetadataEntry decodeRaw(String key, MetadataEntry entry) {
+        Matcher matcher = TAG_PATTERN.matcher(entry.getTag());
+        if (matcher.matches()) {
+            MetadataType type = MetadataTypeManager.INSTANCE.getTypeByCode(matcher.group(3).charAt(0));
+            if (type != null) {
+                try {
+                    MetadataEntry resolved = new MetadataEntry(type.fromString(matcher.group(4)), type,
+                                                               entry.getTag(), entry.getExpiry());
+                    _entries.put(key, resolved);
+                    --_unresolved;
+                    return resolved;
+                } catch (IllegalArgumentException ex) {
+                    // Still undecodable.
+                }
+            }
+        }
+        return null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Format a scoreboard tag.
+     * 
+     * @param key the key, of the form plugin.name.
+     * @param expiry the system time in milliseconds when the value expires,
+     *        or 0 if it does not expire.
+     * @param type the type of the value.
+     * @param serialisedValue the value serialised by the type.
+     * @return the tag.
+     */
+    private static String formatTag(String key, long expiry, MetadataType type, String serialisedValue) {
+        return (expiry != 0) ? key + '@' + Long.toString(expiry, 36) + ':' + type.getCode() + ':' + serialisedValue
+                             : key + ':' + type.getCode() + ':' + serialisedValue;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Serialise a metadata value, logging the operation if it is slow,
+     * recording its latency if metrics are enabled and emitting a JFR event if
+     * recording.
+     * 
+     * @param entity the entity whose metadata is accessed.
+     * @param key the key, of the form plugin.name.
+     * @param type the type of the value.
+     * @param value the value.
+     * @return the value serialised by the type.
+     */
+    static String encode(Entity entity, String key, MetadataType type, Object value) {
+        long start = SlowOperationLog.INSTANCE.start();
+        long metricsStart = Metrics.INSTANCE.start();
+        Object event = MetadataEvents.INSTANCE.beginCodec();
+        String serialisedValue = type.toString(value);
+        MetadataEvents.INSTANCE.endCodec(event, true, type.getCode(), serialisedValue.length());
+        Metrics.INSTANCE.recordCodec(Metrics.ENCODE, type.getCode(), metricsStart);
+        SlowOperationLog.INSTANCE.check("Encode", entity, key, type.getCode(), serialisedValue.length(), start);
+        return serialisedValue;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the total length in bytes of the scoreboard tags holding this
+     * entity's metadata.
+     * 
+     * @return the total length of metadata tags in bytes.
+     */
+    public int getTagBytes() {
+        return _tagBytes;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the entries backed by this entity's scoreboard tags, without
+     * resolving side-stored values.
+     * 
+     * Side-stored values appear as pointer entries, whose tag bytes are those
+     * of the pointer tag. Transient values and unflushed counters are not
+     * included.
+     * 
+     * @return an unmodifiable view of the tag-backed entries.
+     */
+    Map<String, MetadataEntry> getTagEntries() {
+        return Collections.unmodifiableMap(_entries);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return an estimate of the heap memory retained by this metadata, in
+     * bytes.
+     * 
+     * @return the estimated size in bytes.
+     */
+    int estimateSize() {
+        int size = BASE_SIZE + _entries.estimateSize();
+        for (MetadataEntry entry : _entries.values()) {
+            size += entry.estimateSize();
+        }
+        if (_transient != null) {
+            for (MetadataEntry entry : _transient.values()) {
+                size += HASH_NODE_SIZE + entry.estimateSize();
+            }
+        }
+        if (_counters != null) {
+            size += COUNTER_SIZE * _counters.size();
+        }
+        return size;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Estimate the size of this metadata and record it as the weight by which
+     * the cache bounds it.
+     * 
+     * @return the estimated size in bytes.
+     */
+    int weigh() {
+        _weight = estimateSize();
+        return _weight;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the weight recorded by the last call to {@link #weigh()}.
+     * 
+     * @return the weight in bytes.
+     */
+    int getWeight() {
+        return _weight;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Forget the recorded weight when this metadata leaves the cache, so that
+     * it is counted in full if it is cached again.
+     */
+    void clearWeight() {
+        _weight = 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Check a new entry against the tag limits of the plugin that owns it.
+     * 
+     * @param entity the entity whose metadata is accessed.
+     * @param pluginName the name of the plugin that owns the entry.
+     * @param entry the new entry.
+     * @param oldEntry the entry it replaces, or null.
+     * @throws EntityMetadataException if a hard limit would be exceeded.
+     */
+    private void checkBudget(Entity entity, String pluginName, MetadataEntry entry, MetadataEntry oldEntry) throws EntityMetadataException {
+        String prefix = pluginName + '.';
+        int tags = 1;
+        int bytes = entry.getTagBytes();
+        for (Map.Entry<String, MetadataEntry> e : _entries.entrySet()) {
+            if (e.getValue() != oldEntry && e.getKey().startsWith(prefix)) {
+                ++tags;
+                bytes += e.getValue().getTagBytes();
+            }
+        }
+        TagBudget.INSTANCE.check(entity, pluginName, tags, bytes, entry.getTagBytes(), oldEntry != null);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the plugin name part of a key.
+     * 
+     * @param key the key, of the form plugin.name.
+     * @return the plugin name.
+     */
+    static String getPluginName(String key) {
+        int dot = key.indexOf('.');
+        return (dot < 0) ? key : key.substring(0, dot);
+    }
+
     // ------------------------------------------------------------------------
     /**
      * Parse and cache metadata from the scoreboard tags of the entity.
@@ -110,24 +1030,105 @@ class PerEntityMetadata {
      * @param entity the entity.
      */
     private void parseMetadata(Entity entity) {
+        long start = SlowOperationLog.INSTANCE.start();
+        long now = System.currentTimeMillis();
+        List<String> expiredTags = null;
+        int payload = 0;
         for (String tag : entity.getScoreboardTags()) {
             Matcher matcher = TAG_PATTERN.matcher(tag);
             if (matcher.matches()) {
+                payload += tag.length();
                 String key = matcher.group(1);
-                char code = matcher.group(2).charAt(0);
-                String serialisedValue = matcher.group(3);
+                String expiryString = matcher.group(2);
+                char code = matcher.group(3).charAt(0);
+                String serialisedValue = matcher.group(4);
+
+                long expiry = 0;
+                if (expiryString != null) {
+                    try {
+                        expiry = Long.parseLong(expiryString, 36);
+                    } catch (NumberFormatException ex) {
+                        EntityMeta.PLUGIN.getLogger().severe("Error loading " + entity.getType() + " " + entity.getUniqueId() + " metadata: " + tag);
+                        continue;
+                    }
+                    if (expiry <= now) {
+                        if (expiredTags == null) {
+                            expiredTags = new ArrayList<>();
+                        }
+                        expiredTags.add(tag);
+                        if (code == SideStore.POINTER_CODE && SideStore.getInstance() != null) {
+                            SideStore.getInstance().remove(entity.getUniqueId(), key);
+                        }
+                        continue;
+                    }
+                }
+
+                if (code == SideStore.POINTER_CODE) {
+                    // Side-stored values are read lazily.
+                    MetadataEntry entry = new MetadataEntry(serialisedValue, SideStore.POINTER_TYPE, tag, expiry);
+                    _entries.put(key, entry);
+                    _tagBytes += entry.getTagBytes();
+                    _hasExpiring |= (expiry != 0);
+                    _uuid = entity.getUniqueId();
+                    ++_unresolved;
+                    continue;
+                }
 
                 MetadataType type = MetadataTypeManager.INSTANCE.getTypeByCode(code);
-                if (type != null) {
+                if (type == null) {
+                    addRaw(key, tag, expiry);
+                } else {
                     try {
+                        long decodeStart = SlowOperationLog.INSTANCE.start();
+                        long metricsStart = Metrics.INSTANCE.start();
+                        Object event = MetadataEvents.INSTANCE.beginCodec();
                         Object value = type.fromString(serialisedValue);
-                        _entries.put(key, new MetadataEntry(value, type, tag));
+                        MetadataEvents.INSTANCE.endCodec(event, false, code, serialisedValue.length());
+                        Metrics.INSTANCE.recordCodec(Metrics.DECODE, code, metricsStart);
+                        SlowOperationLog.INSTANCE.check("Decode", entity, key, code, serialisedValue.length(), decodeStart);
+                        MetadataEntry entry = new MetadataEntry(value, type, tag, expiry);
+                        _entries.put(key, entry);
+                        _tagBytes += entry.getTagBytes();
+                        if (expiry != 0) {
+                            _hasExpiring = true;
+                        }
                     } catch (IllegalArgumentException ex) {
                         EntityMeta.PLUGIN.getLogger().severe("Error loading " + entity.getType() + " " + entity.getUniqueId() + " metadata: " + tag);
+                        addRaw(key, tag, expiry);
                     }
                 }
             }
         }
+
+        // Tags cannot be removed while iterating over them.
+        if (expiredTags != null) {
+            for (String tag : expiredTags) {
+                entity.removeScoreboardTag(tag);
+            }
+        }
+        SlowOperationLog.INSTANCE.check("Parse", entity, null, (char) 0, payload, start);
+        index(entity);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add an unresolved entry for a tag that could not be decoded, e.g. a
+     * struct whose schema is not registered yet.
+     * 
+     * Like an unread side store pointer, the entry keeps the tag, so that
+     * writing the key replaces the tag rather than adding a second one, and
+     * the value is decoded on access once that is possible.
+     * 
+     * @param key the key, of the form plugin.name.
+     * @param tag the tag.
+     * @param expiry the expiry time of the value, or 0.
+     */
+    private void addRaw(String key, String tag, long expiry) {
+        MetadataEntry entry = new MetadataEntry(null, SideStore.POINTER_TYPE, tag, expiry);
+        _entries.put(key, entry);
+        _tagBytes += entry.getTagBytes();
+        _hasExpiring |= (expiry != 0);
+        ++_unresolved;
     }
 
     // ------------------------------------------------------------------------
@@ -136,20 +1137,81 @@ class PerEntityMetadata {
      * to.
      * 
      * Note that the names of metadata values can only consist of hyphens and
-     * Java identifier characters, i.e. (-|\w)+.
+     * Java identifier characters, i.e. (-|\w)+. The optional expiry time
+     * is a base 36 number.
      * 
      * DOTALL mode is used to allow '.' to match the newlines in
      * ConfigurationSerializable strings.
      */
-    private static final Pattern TAG_PATTERN = Pattern.compile("^(\\w+.(?:-|\\w)+):(.):(.+)$", Pattern.DOTALL);
+    private static final Pattern TAG_PATTERN = Pattern.compile("^(\\w+.(?:-|\\w)+)(?:@([0-9a-z]+))?:(.):(.+)$", Pattern.DOTALL);
+
+    /**
+     * Estimated size in bytes of an instance, excluding its maps.
+     */
+    private static final int BASE_SIZE = 48;
+
+    /**
+     * Estimated size in bytes of a HashMap node and its share of the table.
+     */
+    private static final int HASH_NODE_SIZE = 40;
+
+    /**
+     * Estimated size in bytes of a counter and its map node.
+     */
+    private static final int COUNTER_SIZE = 96;
 
     /**
      * A map from key (<plugin>.<name>) to {@link MetadataEntry}, which includes
      * a complete formatted scoreboard tag value.
      * 
      * This is used to facilitate fast removal of a metadata value by storing
-     * it's current scoreboard tag representation in full.
+     * it's current scoreboard tag representation in full. Most entities have
+     * only a few entries, so a {@link CompactEntryMap} is used.
+     */
+    private final CompactEntryMap _entries = new CompactEntryMap();
+
+    /**
+     * Total length in bytes of the scoreboard tags in {@link #_entries}.
+     */
+    private int _tagBytes;
+
+    /**
+     * True if any entry has been given an expiry time since loading.
+     */
+    private boolean _hasExpiring;
+
+    /**
+     * Map from key to transient {@link MetadataEntry}, or null if no
+     * transient values have been set.
+     */
+    private HashMap<String, MetadataEntry> _transient;
+
+    /**
+     * Number of side-stored entries whose values have not been read
+     * successfully, and tags that could not be decoded.
+     */
+    private int _unresolved;
+
+    /**
+     * The UUID of the entity, recorded only if it has side-stored values.
+     */
+    private UUID _uuid;
+
+    /**
+     * The estimated size when last weighed by the cache.
+     */
+    private int _weight;
+
+    /**
+     * Map from key to counter, or null if no counters have been used. Counters
+     * can be updated from any thread.
+     */
+    private volatile ConcurrentHashMap<String, MetadataCounter> _counters;
+
+    /**
+     * The snapshot of the entries, or null if not taken since the last
+     * change.
      */
-    private final HashMap<String, MetadataEntry> _entries = new HashMap<>();
+    private MetadataSnapshot _snapshot;
 
 } // class PerEntityMetadata
\ No newline at end of file
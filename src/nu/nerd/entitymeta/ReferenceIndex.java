@@ -0,0 +1,315 @@
+package nu.nerd.entitymeta;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.bukkit.entity.Entity;
+
+// ----------------------------------------------------------------------------
+/**
+ * A reverse index from UUIDs to the metadata values of loaded entities that
+ * refer to them, i.e. values of type {@link UUID} or {@link UUIDList}.
+ * <p>
+ * 
+ * For example, if pets store their owner's UUID, the pets of a player are
+ * found in time proportional to their number, rather than by reading the
+ * metadata of every loaded entity.
+ * <p>
+ * 
+ * This class is not thread safe and must only be used from the main thread.
+ */
+final class ReferenceIndex {
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if a value refers to UUIDs, and should be indexed.
+     * 
+     * @param value the value.
+     * @return true if the value is a UUID or UUIDList.
+     */
+    static boolean isReference(Object value) {
+        return value instanceof UUID || value instanceof UUIDList;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set the value of an entity's key, replacing the references of any
+     * previous value.
+     * 
+     * @param entity the entity.
+     * @param key the key, of the form plugin.name.
+     * @param value the value, which is indexed only if it refers to UUIDs.
+     */
+    void put(Entity entity, String key, Object value) {
+        if (!isReference(value)) {
+            remove(entity, key);
+            return;
+        }
+
+        HashMap<String, Object> values = _values.get(entity);
+        if (values == null) {
+            values = new HashMap<>(4);
+            _values.put(entity, values);
+        }
+        Object oldValue = values.put(key, value);
+        if (value.equals(oldValue)) {
+            return;
+        }
+
+        Reference reference = new Reference(entity, key);
+        if (oldValue != null) {
+            unlink(reference, oldValue);
+        }
+        if (value instanceof UUID) {
+            link(reference, (UUID) value);
+        } else {
+            for (UUID uuid : (UUIDList) value) {
+                link(reference, uuid);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove the references of an entity's key.
+     * 
+     * @param entity the entity.
+     * @param key the key, of the form plugin.name.
+     */
+    void remove(Entity entity, String key) {
+        HashMap<String, Object> values = _values.get(entity);
+        if (values != null) {
+            Object oldValue = values.remove(key);
+            if (oldValue != null) {
+                unlink(new Reference(entity, key), oldValue);
+                if (values.isEmpty()) {
+                    _values.remove(entity);
+                }
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove all references of an entity.
+     * 
+     * @param entity the entity.
+     */
+    void removeEntity(Entity entity) {
+        HashMap<String, Object> values = _values.remove(entity);
+        if (values != null) {
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                unlink(new Reference(entity, entry.getKey()), entry.getValue());
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the loaded entities that refer to a UUID, and the keys of the
+     * values that refer to it.
+     * 
+     * Entities that are no longer valid are removed from the index and not
+     * returned.
+     * 
+     * @param uuid the UUID.
+     * @param key if not null, only references by values with this key are
+     *        returned.
+     * @return a map from entity to the keys of its values that refer to the
+     *         UUID.
+     */
+    Map<Entity, List<String>> find(UUID uuid, String key) {
+        HashSet<Reference> references = _references.get(uuid);
+        if (references == null) {
+            return Collections.emptyMap();
+        }
+
+        Map<Entity, List<String>> result = new LinkedHashMap<>();
+        List<Entity> invalid = null;
+        for (Reference reference : references) {
+            if (key == null || key.equals(reference._key)) {
+                if (reference._entity.isValid()) {
+                    result.computeIfAbsent(reference._entity, e -> new ArrayList<>(1)).add(reference._key);
+                } else {
+                    if (invalid == null) {
+                        invalid = new ArrayList<>();
+                    }
+                    invalid.add(reference._entity);
+                }
+            }
+        }
+        if (invalid != null) {
+            for (Entity entity : invalid) {
+                removeEntity(entity);
+            }
+        }
+        return result;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of values of valid entities that refer to a UUID.
+     * 
+     * Entities that are no longer valid are removed from the index.
+     * 
+     * @param uuid the UUID.
+     * @return the number of references.
+     */
+    int count(UUID uuid) {
+        HashSet<Reference> references = _references.get(uuid);
+        if (references == null) {
+            return 0;
+        }
+
+        int count = 0;
+        List<Entity> invalid = null;
+        for (Reference reference : references) {
+            if (reference._entity.isValid()) {
+                ++count;
+            } else {
+                if (invalid == null) {
+                    invalid = new ArrayList<>();
+                }
+                invalid.add(reference._entity);
+            }
+        }
+        if (invalid != null) {
+            for (Entity entity : invalid) {
+                removeEntity(entity);
+            }
+        }
+        return count;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove all entities that are no longer valid from the index.
+     * 
+     * Lookups only remove the invalid entities that they visit, so entities
+     * that were removed from the world without being unloaded would otherwise
+     * remain in the index.
+     */
+    void removeInvalid() {
+        for (Iterator<Map.Entry<Entity, HashMap<String, Object>>> it = _values.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Entity, HashMap<String, Object>> values = it.next();
+            Entity entity = values.getKey();
+            if (!entity.isValid()) {
+                for (Map.Entry<String, Object> entry : values.getValue().entrySet()) {
+                    unlink(new Reference(entity, entry.getKey()), entry.getValue());
+                }
+                it.remove();
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A reference to a UUID by an entity's value with a particular key.
+     */
+    private static final class Reference {
+        /**
+         * Constructor.
+         * 
+         * @param entity the entity.
+         * @param key the key.
+         */
+        Reference(Entity entity, String key) {
+            _entity = entity;
+            _key = key;
+        }
+
+        /**
+         * @see java.lang.Object#hashCode()
+         */
+        @Override
+        public int hashCode() {
+            return 31 * _entity.hashCode() + _key.hashCode();
+        }
+
+        /**
+         * @see java.lang.Object#equals(java.lang.Object)
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Reference)) {
+                return false;
+            }
+            Reference other = (Reference) o;
+            return _entity.equals(other._entity) && _key.equals(other._key);
+        }
+
+        /**
+         * The entity.
+         */
+        final Entity _entity;
+
+        /**
+         * The key.
+         */
+        final String _key;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add a reference to a UUID.
+     * 
+     * @param reference the reference.
+     * @param uuid the UUID.
+     */
+    private void link(Reference reference, UUID uuid) {
+        HashSet<Reference> references = _references.get(uuid);
+        if (references == null) {
+            references = new HashSet<>(4);
+            _references.put(uuid, references);
+        }
+        references.add(reference);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove a reference from all UUIDs referred to by a value.
+     * 
+     * @param reference the reference.
+     * @param value the value, a UUID or UUIDList.
+     */
+    private void unlink(Reference reference, Object value) {
+        if (value instanceof UUID) {
+            unlink(reference, (UUID) value);
+        } else {
+            for (UUID uuid : (UUIDList) value) {
+                unlink(reference, uuid);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove a reference to a UUID.
+     * 
+     * @param reference the reference.
+     * @param uuid the UUID.
+     */
+    private void unlink(Reference reference, UUID uuid) {
+        HashSet<Reference> references = _references.get(uuid);
+        if (references != null && references.remove(reference) && references.isEmpty()) {
+            _references.remove(uuid);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Map from UUID to the references to it.
+     */
+    private final HashMap<UUID, HashSet<Reference>> _references = new HashMap<>();
+
+    /**
+     * Map from entity to its indexed values, by key.
+     */
+    private final HashMap<Entity, HashMap<String, Object>> _values = new HashMap<>();
+} // class ReferenceIndex
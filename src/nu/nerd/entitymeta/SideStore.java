@@ -0,0 +1,723 @@
+package nu.nerd.entitymeta;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
+
+// ----------------------------------------------------------------------------
+/**
+ * An append-only log file holding serialised metadata values that are too
+ * large to store in scoreboard tags.
+ * <p>
+ * 
+ * Values larger than {@link Configuration#SIDE_STORE_THRESHOLD_BYTES} are
+ * written here, keyed by entity UUID and metadata key, and the scoreboard tag
+ * holds only a pointer of the form {@literal <key>:^:<type><version>}, where
+ * {@literal <type>} is the type code of the value and {@literal <version>} is
+ * a base 36 number identifying the record. A pointer whose version does not
+ * match the latest record (e.g. after a world rollback) is not resolved.
+ * <p>
+ * 
+ * Each record in the file is:
+ * 
+ * <pre>
+ * int length (of the remainder of the record)
+ * long uuid-most, long uuid-least
+ * UTF key
+ * long version
+ * int value-length (-1 for a deletion)
+ * byte[value-length] value (UTF-8)
+ * </pre>
+ * 
+ * On opening, the file is replayed to build an in-memory index from UUID and
+ * key to the offset of the latest value. Writes are appended on a background
+ * thread; until a value has been written, reads are served from memory. When
+ * the superseded records outweigh the live ones by
+ * {@link Configuration#SIDE_STORE_COMPACT_RATIO}, the background thread
+ * rewrites the file with only the live records.
+ * <p>
+ * 
+ * Index access is synchronised on this object. Reads are performed on the
+ * calling (main) thread and are cached by {@link PerEntityMetadata}. Loaded
+ * entities with stored values are tracked on the main thread, so that the
+ * values of entities that despawn or are removed can be purged.
+ */
+final class SideStore {
+    /**
+     * The type code of pointer tags.
+     */
+    static final char POINTER_CODE = '^';
+
+    /**
+     * The type of unresolved pointer entries, whose value is the pointer
+     * string ({@literal <type><version>}).
+     * 
+     * This type is not registered with the {@link MetadataTypeManager}.
+     */
+    static final MetadataType POINTER_TYPE = new MetadataType(POINTER_CODE, String.class) {
+        @Override
+        public Object fromString(String value) throws IllegalArgumentException {
+            return value;
+        }
+    };
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the open side store, or null if it is not in use.
+     * 
+     * @return the side store, or null.
+     */
+    static SideStore getInstance() {
+        return _instance;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Open the side store if it is enabled in the configuration or the file
+     * already exists (so that existing pointers remain readable).
+     * 
+     * @param file the log file.
+     * @param enabled true if new values can be written to the side store.
+     */
+    static void open(File file, boolean enabled) {
+        if (_instance != null || (!enabled && !file.exists())) {
+            return;
+        }
+        try {
+            _instance = new SideStore(file, enabled);
+        } catch (IOException ex) {
+            EntityMeta.PLUGIN.getLogger().log(Level.SEVERE, "Unable to open side store " + file, ex);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write all pending values and close the side store.
+     */
+    static void close() {
+        SideStore store = _instance;
+        if (store != null) {
+            _instance = null;
+            store.shutdown();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if a serialised value should be stored here rather than in
+     * a scoreboard tag.
+     * 
+     * @param serialisedValue the serialised value.
+     * @return true if the value should be stored here.
+     */
+    boolean accepts(String serialisedValue) {
+        int threshold = EntityMeta.CONFIG.SIDE_STORE_THRESHOLD_BYTES;
+        return _writable && serialisedValue.length() > threshold / 3 &&
+               TagBudget.byteLength(serialisedValue) > threshold;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Reserve a version number for a new value.
+     * 
+     * The value is stored with {@link #put(UUID, String, long, String)} once
+     * the pointer tag has been added to the entity.
+     * 
+     * @return the version number.
+     */
+    synchronized long nextVersion() {
+        return ++_lastVersion;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Store a value, superseding any previous value with the same UUID and
+     * key.
+     * 
+     * @param uuid the entity UUID.
+     * @param key the metadata key.
+     * @param version the version from {@link #nextVersion()}.
+     * @param serialisedValue the serialised value.
+     */
+    void put(UUID uuid, String key, long version, String serialisedValue) {
+        byte[] value = serialisedValue.getBytes(StandardCharsets.UTF_8);
+        Location location = new Location(version, value);
+        synchronized (this) {
+            Location old = _index.computeIfAbsent(uuid, k -> new HashMap<>()).put(key, location);
+            if (old != null) {
+                _garbageBytes += old._recordBytes;
+            }
+        }
+        _writer.execute(() -> append(uuid, key, location));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the serialised value with the specified UUID, key and version, or
+     * null if not found.
+     * 
+     * @param uuid the entity UUID.
+     * @param key the metadata key.
+     * @param version the version in the pointer tag.
+     * @return the serialised value, or null.
+     */
+    String read(UUID uuid, String key, long version) {
+        byte[] value;
+        synchronized (this) {
+            Map<String, Location> keys = _index.get(uuid);
+            Location location = (keys != null) ? keys.get(key) : null;
+            if (location == null || location._version != version) {
+                return null;
+            }
+            value = location._pending;
+            if (value == null) {
+                try {
+                    ByteBuffer buffer = ByteBuffer.allocate(location._valueLength);
+                    long position = location._valueOffset;
+                    while (buffer.hasRemaining()) {
+                        int count = _channel.read(buffer, position + buffer.position());
+                        if (count < 0) {
+                            throw new EOFException();
+                        }
+                    }
+                    value = buffer.array();
+                } catch (IOException ex) {
+                    EntityMeta.PLUGIN.getLogger().log(Level.SEVERE, "Error reading side store", ex);
+                    return null;
+                }
+            }
+        }
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove the value with the specified UUID and key.
+     * 
+     * @param uuid the entity UUID.
+     * @param key the metadata key.
+     */
+    void remove(UUID uuid, String key) {
+        synchronized (this) {
+            Map<String, Location> keys = _index.get(uuid);
+            Location old = (keys != null) ? keys.remove(key) : null;
+            if (old == null) {
+                return;
+            }
+            _garbageBytes += old._recordBytes;
+            if (keys.isEmpty()) {
+                _index.remove(uuid);
+            }
+        }
+        _writer.execute(() -> append(uuid, key, null));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove all values of the specified entity.
+     * 
+     * @param uuid the entity UUID.
+     */
+    void purge(UUID uuid) {
+        List<String> keys;
+        synchronized (this) {
+            Map<String, Location> locations = _index.get(uuid);
+            if (locations == null) {
+                return;
+            }
+            keys = new ArrayList<>(locations.keySet());
+        }
+        for (String key : keys) {
+            remove(uuid, key);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Note that a loaded entity may have values stored here, so that they can
+     * be purged if the entity is removed from the world.
+     * 
+     * This must only be called from the main thread.
+     * 
+     * @param entity the entity.
+     */
+    void track(Entity entity) {
+        boolean stored;
+        synchronized (this) {
+            stored = _index.containsKey(entity.getUniqueId());
+        }
+        if (stored) {
+            _loaded.add(entity);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop tracking an entity because it is being unloaded with its values
+     * intact.
+     * 
+     * This must only be called from the main thread.
+     * 
+     * @param entity the entity.
+     */
+    void untrack(Entity entity) {
+        _loaded.remove(entity);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Purge the values of tracked entities that are no longer valid.
+     * 
+     * Mobs that despawn or are removed by a plugin are not unloaded and do not
+     * die, so this is the only point at which their values are released.
+     * Players become invalid when they quit, and an entity that changes world
+     * is replaced by a new instance with the same UUID, so values are only
+     * purged when no entity with the UUID remains loaded.
+     * 
+     * This must only be called from the main thread.
+     */
+    void purgeInvalid() {
+        List<Entity> replacements = null;
+        for (Iterator<Entity> it = _loaded.iterator(); it.hasNext();) {
+            Entity entity = it.next();
+            if (entity.isValid()) {
+                continue;
+            }
+            it.remove();
+            if (entity instanceof Player) {
+                continue;
+            }
+
+            Entity replacement = Bukkit.getEntity(entity.getUniqueId());
+            if (replacement == null) {
+                purge(entity.getUniqueId());
+            } else if (replacement != entity) {
+                if (replacements == null) {
+                    replacements = new ArrayList<>();
+                }
+                replacements.add(replacement);
+            }
+        }
+        if (replacements != null) {
+            _loaded.addAll(replacements);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a summary of the side store for presentation.
+     * 
+     * @return the summary.
+     */
+    synchronized String describe() {
+        int values = 0;
+        for (Map<String, Location> keys : _index.values()) {
+            values += keys.size();
+        }
+        return _file.getName() + ": " + _index.size() + " entities, " + values + " values, " +
+               _fileBytes + " bytes (" + _garbageBytes + " superseded)";
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The location of the latest value for a UUID and key.
+     */
+    private static final class Location {
+        /**
+         * Constructor for a value that has not yet been written.
+         * 
+         * @param version the version.
+         * @param pending the value.
+         */
+        Location(long version, byte[] pending) {
+            _version = version;
+            _pending = pending;
+            _valueLength = pending.length;
+        }
+
+        /**
+         * Constructor for a value in the file.
+         * 
+         * @param version the version.
+         * @param valueOffset the file offset of the value bytes.
+         * @param valueLength the length of the value bytes.
+         * @param recordBytes the length of the whole record.
+         */
+        Location(long version, long valueOffset, int valueLength, int recordBytes) {
+            _version = version;
+            _valueOffset = valueOffset;
+            _valueLength = valueLength;
+            _recordBytes = recordBytes;
+        }
+
+        /**
+         * The version.
+         */
+        final long _version;
+
+        /**
+         * The value, until it has been written; afterwards null.
+         */
+        byte[] _pending;
+
+        /**
+         * The file offset of the value bytes.
+         */
+        long _valueOffset;
+
+        /**
+         * The length of the value in bytes.
+         */
+        final int _valueLength;
+
+        /**
+         * The length of the record in the file, including the header.
+         */
+        int _recordBytes;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     * 
+     * @param file the log file.
+     * @param writable true if new values can be stored.
+     * @throws IOException if the file cannot be opened or read.
+     */
+    private SideStore(File file, boolean writable) throws IOException {
+        _file = file;
+        _writable = writable;
+        file.getParentFile().mkdirs();
+        replay();
+        _channel = new RandomAccessFile(file, "rw").getChannel();
+        _channel.truncate(_fileBytes);
+        _writer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "EntityMeta side store");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Build the index by reading the log file from the start.
+     * 
+     * A truncated record at the end of the file (e.g. due to a crash) is
+     * discarded.
+     * 
+     * @throws IOException if the file cannot be read.
+     */
+    private void replay() throws IOException {
+        if (!_file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(_file)))) {
+            long offset = 0;
+            for (;;) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException ex) {
+                    break;
+                }
+
+                byte[] record = new byte[length];
+                try {
+                    in.readFully(record);
+                } catch (EOFException ex) {
+                    EntityMeta.PLUGIN.getLogger().warning("Discarding truncated side store record at " + offset);
+                    break;
+                }
+
+                DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+                UUID uuid = new UUID(recordIn.readLong(), recordIn.readLong());
+                String key = recordIn.readUTF();
+                long version = recordIn.readLong();
+                int valueLength = recordIn.readInt();
+                int recordBytes = 4 + length;
+
+                Map<String, Location> keys = _index.computeIfAbsent(uuid, k -> new HashMap<>());
+                Location old;
+                if (valueLength < 0) {
+                    old = keys.remove(key);
+                    _garbageBytes += recordBytes;
+                } else {
+                    long valueOffset = offset + recordBytes - valueLength;
+                    old = keys.put(key, new Location(version, valueOffset, valueLength, recordBytes));
+                }
+                if (old != null) {
+                    _garbageBytes += old._recordBytes;
+                }
+                if (keys.isEmpty()) {
+                    _index.remove(uuid);
+                }
+                _lastVersion = Math.max(_lastVersion, version);
+                offset += recordBytes;
+            }
+            _fileBytes = offset;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append a record to the file, on the writer thread.
+     * 
+     * @param uuid the entity UUID.
+     * @param key the metadata key.
+     * @param location the location of the value, or null for a deletion.
+     */
+    private void append(UUID uuid, String key, Location location) {
+        try {
+            byte[] value = (location != null) ? location._pending : null;
+            long version = (location != null) ? location._version : 0;
+            byte[] record = encodeRecord(uuid, key, version, value);
+            long offset = _fileBytes;
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            while (buffer.hasRemaining()) {
+                _channel.write(buffer, offset + buffer.position());
+            }
+            _fileBytes += record.length;
+
+            synchronized (this) {
+                if (location != null) {
+                    location._valueOffset = offset + record.length - value.length;
+                    location._recordBytes = record.length;
+                    location._pending = null;
+                }
+                if (location == null || !isCurrent(uuid, key, location)) {
+                    _garbageBytes += record.length;
+                }
+            }
+            compactIfNeeded();
+        } catch (IOException ex) {
+            EntityMeta.PLUGIN.getLogger().log(Level.SEVERE, "Error writing side store", ex);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Rewrite the file with only live records, if enough of it is garbage.
+     * 
+     * This runs on the writer thread, so no appends occur concurrently.
+     * 
+     * @throws IOException if the file cannot be written.
+     */
+    private void compactIfNeeded() throws IOException {
+        long liveBytes;
+        synchronized (this) {
+            liveBytes = _fileBytes - _garbageBytes;
+            if (_fileBytes < MIN_COMPACT_BYTES ||
+                _garbageBytes < liveBytes * EntityMeta.CONFIG.SIDE_STORE_COMPACT_RATIO) {
+                return;
+            }
+        }
+
+        // Snapshot the written values.
+        List<Object[]> live = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<UUID, Map<String, Location>> entity : _index.entrySet()) {
+                for (Map.Entry<String, Location> entry : entity.getValue().entrySet()) {
+                    if (entry.getValue()._pending == null) {
+                        live.add(new Object[] { entity.getKey(), entry.getKey(), entry.getValue() });
+                    }
+                }
+            }
+        }
+
+        File compactFile = new File(_file.getPath() + ".compact");
+        HashMap<Location, Long> newOffsets = new HashMap<>();
+        long offset = 0;
+        try (FileChannel out = new RandomAccessFile(compactFile, "rw").getChannel()) {
+            out.truncate(0);
+            for (Object[] item : live) {
+                Location location = (Location) item[2];
+                ByteBuffer value = ByteBuffer.allocate(location._valueLength);
+                while (value.hasRemaining()) {
+                    if (_channel.read(value, location._valueOffset + value.position()) < 0) {
+                        throw new EOFException();
+                    }
+                }
+                byte[] record = encodeRecord((UUID) item[0], (String) item[1], location._version, value.array());
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer, offset + buffer.position());
+                }
+                newOffsets.put(location, offset + record.length - location._valueLength);
+                offset += record.length;
+            }
+            out.force(true);
+        }
+
+        synchronized (this) {
+            _channel.close();
+            Files.move(compactFile.toPath(), _file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            _channel = new RandomAccessFile(_file, "rw").getChannel();
+            long garbage = 0;
+            for (Object[] item : live) {
+                Location location = (Location) item[2];
+                location._valueOffset = newOffsets.get(location);
+                if (!isCurrent((UUID) item[0], (String) item[1], location)) {
+                    // Superseded while compacting.
+                    garbage += location._recordBytes;
+                }
+            }
+            _fileBytes = offset;
+            _garbageBytes = garbage;
+        }
+        EntityMeta.PLUGIN.getLogger().info("Compacted side store to " + offset + " bytes.");
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the specified location holds the latest value for a UUID
+     * and key.
+     * 
+     * The caller must hold the lock on this object.
+     * 
+     * @param uuid the entity UUID.
+     * @param key the metadata key.
+     * @param location the location.
+     * @return true if the location is current.
+     */
+    private boolean isCurrent(UUID uuid, String key, Location location) {
+        Map<String, Location> keys = _index.get(uuid);
+        return keys != null && keys.get(key) == location;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Encode a record.
+     * 
+     * @param uuid the entity UUID.
+     * @param key the metadata key.
+     * @param version the version.
+     * @param value the value bytes, or null for a deletion.
+     * @return the record, including the length prefix.
+     * @throws IOException never, in practice.
+     */
+    private static byte[] encodeRecord(UUID uuid, String key, long version, byte[] value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + (value != null ? value.length : 0));
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+        out.writeUTF(key);
+        out.writeLong(version);
+        if (value != null) {
+            out.writeInt(value.length);
+            out.write(value);
+        } else {
+            out.writeInt(-1);
+        }
+        out.flush();
+
+        byte[] record = bytes.toByteArray();
+        ByteBuffer.wrap(record).putInt(0, record.length - 4);
+        return record;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Wait for pending writes and close the file.
+     */
+    private void shutdown() {
+        _writer.shutdown();
+        try {
+            if (!_writer.awaitTermination(30, TimeUnit.SECONDS)) {
+                EntityMeta.PLUGIN.getLogger().severe("Timed out writing side store.");
+            }
+            synchronized (this) {
+                _channel.force(true);
+                _channel.close();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ex) {
+            EntityMeta.PLUGIN.getLogger().log(Level.SEVERE, "Error closing side store", ex);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The file size below which compaction is not attempted.
+     */
+    private static final long MIN_COMPACT_BYTES = 1 << 20;
+
+    /**
+     * The open side store, or null.
+     */
+    private static volatile SideStore _instance;
+
+    /**
+     * The log file.
+     */
+    private final File _file;
+
+    /**
+     * True if new values can be stored.
+     */
+    private final boolean _writable;
+
+    /**
+     * Map from entity UUID to map from key to location of latest value.
+     */
+    private final HashMap<UUID, Map<String, Location>> _index = new HashMap<>();
+
+    /**
+     * Loaded entities that may have values stored here; only accessed on the
+     * main thread.
+     */
+    private final HashSet<Entity> _loaded = new HashSet<>();
+
+    /**
+     * Highest version number issued or read.
+     */
+    private long _lastVersion;
+
+    /**
+     * The length of the file; only modified on the writer thread.
+     */
+    private volatile long _fileBytes;
+
+    /**
+     * Total length of superseded and deletion records in the file.
+     */
+    private long _garbageBytes;
+
+    /**
+     * The channel used to read and write the file.
+     */
+    private FileChannel _channel;
+
+    /**
+     * The single thread that appends records and compacts the file.
+     */
+    private final ExecutorService _writer;
+} // class SideStore
@@ -0,0 +1,200 @@
+package nu.nerd.entitymeta;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.bukkit.entity.Entity;
+
+// ----------------------------------------------------------------------------
+/**
+ * Detects individual metadata operations (tag parsing, value encoding and
+ * decoding, and scoreboard tag writes) that take longer than a configured
+ * threshold and logs them with their context.
+ * <p>
+ * 
+ * Slow operations are recorded in a fixed-size ring buffer on the thread
+ * that performed them. The buffer is drained by an asynchronous task, which
+ * logs at most {@code slow-operations.max-logs-per-second} operations per
+ * second and counts the rest, so that a burst of slow operations neither
+ * floods the log nor adds logging I/O to the tick. The most recent slow
+ * operations are also shown by {@code /entitymeta-stats slow}.
+ */
+final class SlowOperationLog {
+    /**
+     * The single instance of this class.
+     */
+    static final SlowOperationLog INSTANCE = new SlowOperationLog();
+
+    /**
+     * The capacity of the ring buffer.
+     */
+    static final int CAPACITY = 64;
+
+    // ------------------------------------------------------------------------
+    /**
+     * A slow operation, with its context.
+     */
+    static final class SlowOperation {
+        /**
+         * Constructor.
+         * 
+         * @param operation a short description of the operation.
+         * @param entity the entity.
+         * @param key the key of the metadata value, or null if the operation
+         *        concerns all of the entity's metadata.
+         * @param code the type code, or 0 if not applicable.
+         * @param payload the size of the serialised value(s) in characters.
+         * @param nanos the elapsed time in nanoseconds.
+         */
+        SlowOperation(String operation, Entity entity, String key, char code, int payload, long nanos) {
+            _operation = operation;
+            _entity = entity.getType() + " " + entity.getUniqueId();
+            _key = key;
+            _code = code;
+            _payload = payload;
+            _nanos = nanos;
+        }
+
+        /**
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return String.format("%s of %s%s%s, %d chars: %.3f ms", _operation, _entity,
+                                 (_key != null) ? " key " + _key : "",
+                                 (_code != 0) ? " type " + _code : "",
+                                 _payload, _nanos / 1e6);
+        }
+
+        /**
+         * A short description of the operation.
+         */
+        final String _operation;
+
+        /**
+         * The type and UUID of the entity.
+         */
+        final String _entity;
+
+        /**
+         * The key, or null.
+         */
+        final String _key;
+
+        /**
+         * The type code, or 0.
+         */
+        final char _code;
+
+        /**
+         * The size of the serialised value(s) in characters.
+         */
+        final int _payload;
+
+        /**
+         * The elapsed time in nanoseconds.
+         */
+        final long _nanos;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the start time of an operation to be checked, or 0 if detection
+     * is disabled.
+     * 
+     * @return the value of {@link System#nanoTime()}, or 0.
+     */
+    long start() {
+        return (EntityMeta.CONFIG.SLOW_OPERATION_MICROS > 0) ? System.nanoTime() : 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record an operation if it was slow.
+     * 
+     * @param operation a short description of the operation.
+     * @param entity the entity.
+     * @param key the key of the metadata value, or null.
+     * @param code the type code, or 0.
+     * @param payload the size of the serialised value(s) in characters.
+     * @param start the value returned by {@link #start()} before the
+     *        operation.
+     */
+    void check(String operation, Entity entity, String key, char code, int payload, long start) {
+        if (start == 0) {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        if (nanos >= EntityMeta.CONFIG.SLOW_OPERATION_MICROS * 1000L) {
+            SlowOperation slow = new SlowOperation(operation, entity, key, code, payload, nanos);
+            synchronized (this) {
+                _ring[(int) (_recorded % CAPACITY)] = slow;
+                ++_recorded;
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the most recent slow operations, oldest first.
+     * 
+     * @return the most recent slow operations.
+     */
+    synchronized List<SlowOperation> getRecent() {
+        List<SlowOperation> recent = new ArrayList<>();
+        for (long i = Math.max(0, _recorded - CAPACITY); i < _recorded; ++i) {
+            recent.add(_ring[(int) (i % CAPACITY)]);
+        }
+        return recent;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Log slow operations recorded since the last call, subject to the rate
+     * limit.
+     * 
+     * This is called periodically from an asynchronous task.
+     * 
+     * @param logger the logger.
+     * @param seconds the number of seconds since the last call.
+     */
+    void drain(Logger logger, int seconds) {
+        List<SlowOperation> pending = new ArrayList<>();
+        long dropped;
+        synchronized (this) {
+            // Operations overwritten before they could be logged are dropped.
+            long first = Math.max(_logged, _recorded - CAPACITY);
+            dropped = first - _logged;
+            for (long i = first; i < _recorded; ++i) {
+                pending.add(_ring[(int) (i % CAPACITY)]);
+            }
+            _logged = _recorded;
+        }
+
+        int limit = EntityMeta.CONFIG.SLOW_OPERATION_MAX_LOGS_PER_SECOND * seconds;
+        for (int i = 0; i < pending.size() && i < limit; ++i) {
+            logger.warning("Slow " + pending.get(i));
+        }
+        long suppressed = dropped + Math.max(0, pending.size() - limit);
+        if (suppressed > 0) {
+            logger.warning(suppressed + " more slow operations were not logged.");
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Recent slow operations, indexed by sequence number modulo CAPACITY.
+     */
+    private final SlowOperation[] _ring = new SlowOperation[CAPACITY];
+
+    /**
+     * The number of slow operations recorded.
+     */
+    private long _recorded;
+
+    /**
+     * The number of slow operations logged or skipped by drain().
+     */
+    private long _logged;
+} // class SlowOperationLog
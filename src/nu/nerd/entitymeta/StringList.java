@@ -0,0 +1,73 @@
+package nu.nerd.entitymeta;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+// ----------------------------------------------------------------------------
+/**
+ * An immutable list of Strings, held as an array.
+ * <p>
+ * 
+ * Any {@code List<String>} can be stored as metadata; it is converted to this
+ * class when stored, and this is the class of the value that is subsequently
+ * retrieved. Elements are appended or removed with
+ * {@link EntityMetaAPI#append(org.bukkit.entity.Entity, String, String, Object)}
+ * and
+ * {@link EntityMetaAPI#remove(org.bukkit.entity.Entity, String, String, Object)}.
+ */
+public final class StringList extends AbstractList<String> implements RandomAccess {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     * 
+     * @param strings the strings to copy; must not contain nulls.
+     */
+    public StringList(Collection<String> strings) {
+        _strings = strings.toArray(new String[strings.size()]);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see java.util.AbstractList#get(int)
+     */
+    @Override
+    public String get(int index) {
+        return _strings[index];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see java.util.AbstractCollection#size()
+     */
+    @Override
+    public int size() {
+        return _strings.length;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     * 
+     * @param strings the strings; not copied.
+     */
+    StringList(String[] strings) {
+        _strings = strings;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the strings; must not be modified.
+     * 
+     * @return the strings.
+     */
+    String[] getStrings() {
+        return _strings;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The strings.
+     */
+    private final String[] _strings;
+} // class StringList
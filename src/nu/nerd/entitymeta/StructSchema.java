@@ -0,0 +1,255 @@
+package nu.nerd.entitymeta;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.regex.Pattern;
+
+// ----------------------------------------------------------------------------
+/**
+ * Declares the ordered, named primitive fields of a {@link MetadataStruct}.
+ * <p>
+ * 
+ * A struct packs many small values into a single scoreboard tag, which is much
+ * cheaper to load and store than one tag per value. For example:
+ * 
+ * <pre class="brush:java">
+ * // In onEnable():
+ * StructSchema MOB_STATS = new StructSchema("MobLevels.stats")
+ * .addField("level", int.class)
+ * .addField("xp", long.class)
+ * .addField("spawner", int.class)
+ * .addField("boss", boolean.class);
+ * MetadataTypeManager.INSTANCE.addSchema(MOB_STATS);
+ * 
+ * // Store a struct.
+ * EntityMeta.api().set(entity, myPlugin, "stats", MOB_STATS.newStruct().with("level", 5).with("boss", true));
+ * 
+ * // Read and update one field.
+ * MetadataStruct stats = (MetadataStruct) EntityMeta.api().get(entity, myPlugin, "stats");
+ * int level = stats.getInt("level");
+ * EntityMeta.api().set(entity, myPlugin, "stats", stats.with("level", level + 1));
+ * </pre>
+ * 
+ * Fields can be of any primitive type (or the corresponding boxed class).
+ * Fields can be appended to a schema in later versions of a plugin: fields
+ * missing from previously stored structs read as zero (or false). Fields must
+ * not be removed or reordered once structs have been stored.
+ * <p>
+ * 
+ * A schema must be registered with
+ * {@link MetadataTypeManager#addSchema(StructSchema)} before any entity
+ * carrying structs of that schema is loaded, and can no longer be modified
+ * after registration.
+ */
+public final class StructSchema {
+    /**
+     * A regular expression describing valid schema names.
+     */
+    public static final Pattern NAME_PATTERN = Pattern.compile("^(?:\\.|-|\\w)+$");
+
+    /**
+     * The maximum number of fields in a schema.
+     */
+    public static final int MAX_FIELDS = 64;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     * 
+     * @param name the name of the schema, which is stored in every tag; it
+     *        should be short, but unique across all plugins, e.g.
+     *        {@code "<plugin>.<struct>"}. It can only contain letters,
+     *        digits, underscores, hyphens and dots.
+     * @throws EntityMetadataException if the name is null or invalid.
+     */
+    public StructSchema(String name) throws EntityMetadataException {
+        if (name == null || !NAME_PATTERN.matcher(name).matches()) {
+            throw new EntityMetadataException("invalid schema name");
+        }
+        _name = name;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append a field to this schema.
+     * 
+     * @param fieldName the name of the field.
+     * @param clazz the primitive (or boxed primitive) class of the field.
+     * @return this schema, to allow chaining.
+     * @throws EntityMetadataException if the schema is already registered,
+     *         the name is a duplicate, the class is not primitive or there
+     *         are too many fields.
+     */
+    public StructSchema addField(String fieldName, Class<?> clazz) throws EntityMetadataException {
+        if (_registered) {
+            throw new EntityMetadataException("schema " + _name + " is already registered");
+        }
+        if (fieldName == null || _fieldIndices.containsKey(fieldName)) {
+            throw new EntityMetadataException("null or duplicate field name");
+        }
+        if (_fieldNames.size() >= MAX_FIELDS) {
+            throw new EntityMetadataException("too many fields in schema " + _name);
+        }
+
+        char code = getFieldCode(clazz);
+        if (code == 0) {
+            throw new EntityMetadataException("unsupported field type " + clazz);
+        }
+        _fieldIndices.put(fieldName, _fieldNames.size());
+        _fieldNames.add(fieldName);
+        _fieldCodes.append(code);
+        return this;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the name of this schema.
+     * 
+     * @return the name of this schema.
+     */
+    public String getName() {
+        return _name;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of fields.
+     * 
+     * @return the number of fields.
+     */
+    public int getFieldCount() {
+        return _fieldNames.size();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the name of the field at the specified index.
+     * 
+     * @param index the index of the field.
+     * @return the name of the field.
+     */
+    public String getFieldName(int index) {
+        return _fieldNames.get(index);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the {@link MetadataType} code of the field at the specified
+     * index.
+     * 
+     * @param index the index of the field.
+     * @return the type code of the field.
+     */
+    public char getFieldCode(int index) {
+        return _fieldCodes.charAt(index);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the index of the named field.
+     * 
+     * Looking up the index once and using the index-based accessors of
+     * {@link MetadataStruct} avoids a hash lookup per access.
+     * 
+     * @param fieldName the name of the field.
+     * @return the index of the field.
+     * @throws IllegalArgumentException if there is no such field.
+     */
+    public int getFieldIndex(String fieldName) throws IllegalArgumentException {
+        Integer index = _fieldIndices.get(fieldName);
+        if (index == null) {
+            throw new IllegalArgumentException("no field " + fieldName + " in schema " + _name);
+        }
+        return index;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a new struct with all fields set to zero (or false).
+     * 
+     * @return a new struct.
+     */
+    public MetadataStruct newStruct() {
+        StringBuilder encoded = new StringBuilder();
+        for (int i = 0; i < getFieldCount(); ++i) {
+            if (i > 0) {
+                encoded.append(MetadataStruct.SEPARATOR);
+            }
+            encoded.append(MetadataStruct.encodeField(getFieldCode(i), 0));
+        }
+        return new MetadataStruct(this, encoded.toString());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return _name + _fieldNames;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Mark this schema as registered, preventing further changes.
+     */
+    void setRegistered() {
+        _registered = true;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the type code of the specified primitive class, or 0 if not
+     * supported.
+     * 
+     * @param clazz the class.
+     * @return the type code, or 0.
+     */
+    private static char getFieldCode(Class<?> clazz) {
+        if (clazz == boolean.class || clazz == Boolean.class) {
+            return 'b';
+        } else if (clazz == byte.class || clazz == Byte.class) {
+            return 'B';
+        } else if (clazz == char.class || clazz == Character.class) {
+            return 'c';
+        } else if (clazz == short.class || clazz == Short.class) {
+            return 's';
+        } else if (clazz == int.class || clazz == Integer.class) {
+            return 'i';
+        } else if (clazz == long.class || clazz == Long.class) {
+            return 'l';
+        } else if (clazz == float.class || clazz == Float.class) {
+            return 'f';
+        } else if (clazz == double.class || clazz == Double.class) {
+            return 'd';
+        } else {
+            return 0;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The name of the schema.
+     */
+    private final String _name;
+
+    /**
+     * Field names in order.
+     */
+    private final ArrayList<String> _fieldNames = new ArrayList<>();
+
+    /**
+     * Type codes of fields in order.
+     */
+    private final StringBuilder _fieldCodes = new StringBuilder();
+
+    /**
+     * Map from field name to index.
+     */
+    private final HashMap<String, Integer> _fieldIndices = new HashMap<>();
+
+    /**
+     * True once registered with the {@link MetadataTypeManager}.
+     */
+    private boolean _registered;
+} // class StructSchema
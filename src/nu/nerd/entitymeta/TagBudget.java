@@ -0,0 +1,238 @@
+package nu.nerd.entitymeta;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bukkit.ChatColor;
+import org.bukkit.entity.Entity;
+
+// ----------------------------------------------------------------------------
+/**
+ * Enforces per-plugin limits on the scoreboard tags stored on each entity, and
+ * counts limit violations and failed tag writes.
+ * <p>
+ * 
+ * Vanilla Minecraft refuses to add more than 1024 scoreboard tags to an entity
+ * and NBT strings are limited to 65535 bytes, so besides the configurable
+ * {@link TagLimits}, writes that would add a tag beyond the server's limit, or
+ * a tag too long to save, are rejected here too.
+ */
+final class TagBudget {
+    /**
+     * The single instance of this class.
+     */
+    static final TagBudget INSTANCE = new TagBudget();
+
+    /**
+     * Maximum length of an NBT string, in modified UTF-8 bytes.
+     */
+    static final int MAX_TAG_BYTES = 65535;
+
+    /**
+     * Maximum number of scoreboard tags that the server allows on an entity.
+     */
+    static final int MAX_TAGS = 1024;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Counts of limit violations and failed writes for one plugin.
+     */
+    static final class Counters {
+        /**
+         * Number of writes that exceeded a soft limit.
+         */
+        final AtomicLong _softExceeded = new AtomicLong();
+
+        /**
+         * Number of writes rejected because they would exceed a hard limit.
+         */
+        final AtomicLong _hardRejected = new AtomicLong();
+
+        /**
+         * Number of writes refused by the server.
+         */
+        final AtomicLong _writeFailures = new AtomicLong();
+
+        /**
+         * System time in milliseconds when a soft limit warning was last
+         * logged.
+         */
+        volatile long _lastWarningTime;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the length of a scoreboard tag in bytes, as written to NBT in
+     * modified UTF-8.
+     * 
+     * @param tag the tag.
+     * @return the length in bytes.
+     */
+    static int byteLength(String tag) {
+        int length = tag.length();
+        int bytes = length;
+        for (int i = 0; i < length; ++i) {
+            char c = tag.charAt(i);
+            if (c >= 0x80 || c == 0) {
+                bytes += (c >= 0x800) ? 2 : 1;
+            }
+        }
+        return bytes;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Check that a plugin may store the specified number of tags and bytes on
+     * an entity, counting and logging soft limit violations.
+     * 
+     * @param entity the entity.
+     * @param pluginName the name of the plugin that owns the tags.
+     * @param tags the number of tags the plugin would have after the write.
+     * @param bytes the total tag bytes the plugin would have after the write.
+     * @param tagBytes the length of the tag being written.
+     * @param replacing true if the tag being written replaces one of the
+     *        plugin's existing tags, rather than adding to the entity's tags.
+     * 
+     * @throws EntityMetadataException if the write would exceed a hard limit.
+     */
+    void check(Entity entity, String pluginName, int tags, int bytes, int tagBytes, boolean replacing) throws EntityMetadataException {
+        if (tagBytes > MAX_TAG_BYTES) {
+            getCounters(pluginName)._hardRejected.incrementAndGet();
+            throw new EntityMetadataException("scoreboard tag too long (" + tagBytes + " bytes)");
+        }
+        if (!replacing && entity.getScoreboardTags().size() >= MAX_TAGS) {
+            getCounters(pluginName)._hardRejected.incrementAndGet();
+            throw new EntityMetadataException(entity.getType() + " " + entity.getUniqueId() + " already has " +
+                                              MAX_TAGS + " scoreboard tags");
+        }
+
+        TagLimits limits = EntityMeta.CONFIG.getTagLimits(pluginName);
+        if ((limits.HARD_TAGS > 0 && tags > limits.HARD_TAGS) ||
+            (limits.HARD_BYTES > 0 && bytes > limits.HARD_BYTES)) {
+            getCounters(pluginName)._hardRejected.incrementAndGet();
+            throw new EntityMetadataException("hard tag limit exceeded for " + pluginName +
+                                              " (" + tags + " tags, " + bytes + " bytes)");
+        }
+
+        if ((limits.SOFT_TAGS > 0 && tags > limits.SOFT_TAGS) ||
+            (limits.SOFT_BYTES > 0 && bytes > limits.SOFT_BYTES)) {
+            Counters counters = getCounters(pluginName);
+            counters._softExceeded.incrementAndGet();
+
+            long now = System.currentTimeMillis();
+            if (now - counters._lastWarningTime >= WARNING_INTERVAL_MILLIS) {
+                counters._lastWarningTime = now;
+                EntityMeta.PLUGIN.getLogger().warning(pluginName + " exceeded its soft tag limit on " +
+                                                      entity.getType() + " " + entity.getUniqueId() +
+                                                      " (" + tags + " tags, " + bytes + " bytes).");
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Count a scoreboard tag write refused by the server.
+     * 
+     * @param pluginName the name of the plugin that owns the tag.
+     */
+    void writeFailed(String pluginName) {
+        getCounters(pluginName)._writeFailures.incrementAndGet();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the counters for the specified plugin, creating them as
+     * necessary.
+     * 
+     * @param pluginName the plugin name.
+     * @return the counters.
+     */
+    Counters getCounters(String pluginName) {
+        return _counters.computeIfAbsent(pluginName, k -> new Counters());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Format a report of the entities and keys with the largest cached tags,
+     * and of limit violations by plugin.
+     * 
+     * Only entities whose metadata is currently cached are included, and only
+     * the tags themselves are measured: side-stored values are not read and
+     * transient values are not counted.
+     * 
+     * @param cached a map from entity to cached metadata.
+     * @param count the maximum number of entities and keys to list.
+     * @return the lines of the report, including Bukkit colour codes.
+     */
+    List<String> formatReport(Map<Entity, PerEntityMetadata> cached, int count) {
+        List<Map.Entry<Entity, PerEntityMetadata>> entities = new ArrayList<>(cached.entrySet());
+        HashMap<String, long[]> keyTotals = new HashMap<>();
+        long totalBytes = 0;
+        for (Map.Entry<Entity, PerEntityMetadata> entry : entities) {
+            totalBytes += entry.getValue().getTagBytes();
+            for (Map.Entry<String, MetadataEntry> meta : entry.getValue().getTagEntries().entrySet()) {
+                long[] totals = keyTotals.computeIfAbsent(meta.getKey(), k -> new long[2]);
+                ++totals[0];
+                totals[1] += meta.getValue().getTagBytes();
+            }
+        }
+
+        List<String> lines = new ArrayList<>();
+        lines.add(ChatColor.GOLD + "Cached entities: " + ChatColor.YELLOW + entities.size() +
+                  ChatColor.GOLD + ", total tag bytes: " + ChatColor.YELLOW + totalBytes);
+
+        lines.add(ChatColor.GOLD + "Heaviest entities:");
+        entities.sort(Comparator.comparingInt((Map.Entry<Entity, PerEntityMetadata> e) -> e.getValue().getTagBytes()).reversed());
+        for (Map.Entry<Entity, PerEntityMetadata> entry : entities.subList(0, Math.min(count, entities.size()))) {
+            Entity entity = entry.getKey();
+            PerEntityMetadata meta = entry.getValue();
+            lines.add(ChatColor.YELLOW + String.valueOf(entity.getType()) + " " + ChatColor.GOLD + entity.getUniqueId() +
+                      ChatColor.WHITE + ": " + ChatColor.YELLOW + meta.getTagEntries().size() +
+                      ChatColor.WHITE + " tags, " + ChatColor.YELLOW + meta.getTagBytes() + ChatColor.WHITE + " bytes");
+        }
+
+        lines.add(ChatColor.GOLD + "Heaviest keys:");
+        List<Map.Entry<String, long[]>> keys = new ArrayList<>(keyTotals.entrySet());
+        keys.sort(Comparator.comparingLong((Map.Entry<String, long[]> e) -> e.getValue()[1]).reversed());
+        for (Map.Entry<String, long[]> entry : keys.subList(0, Math.min(count, keys.size()))) {
+            long[] totals = entry.getValue();
+            lines.add(ChatColor.YELLOW + entry.getKey() + ChatColor.WHITE + ": " +
+                      ChatColor.YELLOW + totals[0] + ChatColor.WHITE + " entities, " +
+                      ChatColor.YELLOW + totals[1] + ChatColor.WHITE + " bytes");
+        }
+
+        SideStore sideStore = SideStore.getInstance();
+        if (sideStore != null) {
+            lines.add(ChatColor.GOLD + "Side store: " + ChatColor.YELLOW + sideStore.describe());
+        }
+
+        if (!_counters.isEmpty()) {
+            lines.add(ChatColor.GOLD + "Limit violations (soft, hard, refused):");
+            for (Map.Entry<String, Counters> entry : new TreeMap<>(_counters).entrySet()) {
+                Counters counters = entry.getValue();
+                lines.add(ChatColor.YELLOW + entry.getKey() + ChatColor.WHITE + ": " +
+                          ChatColor.YELLOW + counters._softExceeded.get() + ChatColor.WHITE + ", " +
+                          ChatColor.YELLOW + counters._hardRejected.get() + ChatColor.WHITE + ", " +
+                          ChatColor.YELLOW + counters._writeFailures.get());
+            }
+        }
+        return lines;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Minimum interval between soft limit warnings for the same plugin.
+     */
+    private static final long WARNING_INTERVAL_MILLIS = 60_000;
+
+    /**
+     * Map from plugin name to counters.
+     */
+    private final ConcurrentHashMap<String, Counters> _counters = new ConcurrentHashMap<>();
+} // class TagBudget
@@ -0,0 +1,80 @@
+package nu.nerd.entitymeta;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+// ----------------------------------------------------------------------------
+/**
+ * Soft and hard limits on the number of scoreboard tags and total serialised
+ * bytes of metadata that one plugin can store on a single entity.
+ * <p>
+ * 
+ * Exceeding a soft limit is logged and counted; a write that would exceed a
+ * hard limit is rejected with an {@link EntityMetadataException}. A limit of 0
+ * is unlimited.
+ */
+final class TagLimits {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     * 
+     * @param softTags the soft limit on the number of tags.
+     * @param hardTags the hard limit on the number of tags.
+     * @param softBytes the soft limit on total tag bytes.
+     * @param hardBytes the hard limit on total tag bytes.
+     */
+    TagLimits(int softTags, int hardTags, int softBytes, int hardBytes) {
+        SOFT_TAGS = softTags;
+        HARD_TAGS = hardTags;
+        SOFT_BYTES = softBytes;
+        HARD_BYTES = hardBytes;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Load limits from a configuration section, taking missing values from
+     * the specified defaults.
+     * 
+     * @param section the section; may be null.
+     * @param defaults supplies values not set in the section.
+     * @return the limits.
+     */
+    static TagLimits load(ConfigurationSection section, TagLimits defaults) {
+        if (section == null) {
+            return defaults;
+        }
+        return new TagLimits(section.getInt("soft-tags", defaults.SOFT_TAGS),
+            section.getInt("hard-tags", defaults.HARD_TAGS),
+            section.getInt("soft-bytes", defaults.SOFT_BYTES),
+            section.getInt("hard-bytes", defaults.HARD_BYTES));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "tags " + SOFT_TAGS + "/" + HARD_TAGS + ", bytes " + SOFT_BYTES + "/" + HARD_BYTES;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Soft limit on the number of tags per entity.
+     */
+    final int SOFT_TAGS;
+
+    /**
+     * Hard limit on the number of tags per entity.
+     */
+    final int HARD_TAGS;
+
+    /**
+     * Soft limit on the total bytes of tags per entity.
+     */
+    final int SOFT_BYTES;
+
+    /**
+     * Hard limit on the total bytes of tags per entity.
+     */
+    final int HARD_BYTES;
+} // class TagLimits
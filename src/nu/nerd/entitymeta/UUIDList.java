@@ -0,0 +1,124 @@
+package nu.nerd.entitymeta;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.RandomAccess;
+import java.util.UUID;
+
+// ----------------------------------------------------------------------------
+/**
+ * An immutable list of {@link UUID}s, held as a primitive array of their bits
+ * rather than as UUID objects.
+ * <p>
+ * 
+ * Any {@code List<UUID>} can be stored as metadata; it is converted to this
+ * class when stored, and this is the class of the value that is subsequently
+ * retrieved. Elements are appended or removed with
+ * {@link EntityMetaAPI#append(org.bukkit.entity.Entity, String, String, Object)}
+ * and
+ * {@link EntityMetaAPI#remove(org.bukkit.entity.Entity, String, String, Object)}.
+ */
+public final class UUIDList extends AbstractList<UUID> implements RandomAccess {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     * 
+     * @param uuids the UUIDs to copy; must not contain nulls.
+     */
+    public UUIDList(Collection<UUID> uuids) {
+        _bits = new long[2 * uuids.size()];
+        int i = 0;
+        for (UUID uuid : uuids) {
+            _bits[i++] = uuid.getMostSignificantBits();
+            _bits[i++] = uuid.getLeastSignificantBits();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see java.util.AbstractList#get(int)
+     */
+    @Override
+    public UUID get(int index) {
+        return new UUID(getMostSignificantBits(index), getLeastSignificantBits(index));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see java.util.AbstractCollection#size()
+     */
+    @Override
+    public int size() {
+        return _bits.length / 2;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Search for a UUID without allocating.
+     * 
+     * @see java.util.AbstractList#indexOf(java.lang.Object)
+     */
+    @Override
+    public int indexOf(Object o) {
+        if (o instanceof UUID) {
+            UUID uuid = (UUID) o;
+            long most = uuid.getMostSignificantBits();
+            long least = uuid.getLeastSignificantBits();
+            for (int i = 0; i < _bits.length; i += 2) {
+                if (_bits[i] == most && _bits[i + 1] == least) {
+                    return i / 2;
+                }
+            }
+        }
+        return -1;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the most significant 64 bits of the UUID at the specified index.
+     * 
+     * @param index the index.
+     * @return the most significant bits.
+     */
+    public long getMostSignificantBits(int index) {
+        return _bits[2 * index];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the least significant 64 bits of the UUID at the specified index.
+     * 
+     * @param index the index.
+     * @return the least significant bits.
+     */
+    public long getLeastSignificantBits(int index) {
+        return _bits[2 * index + 1];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     * 
+     * @param bits the most and least significant bits of each UUID, in
+     *        alternation; not copied.
+     */
+    UUIDList(long[] bits) {
+        _bits = bits;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the bits of all UUIDs; must not be modified.
+     * 
+     * @return the most and least significant bits of each UUID.
+     */
+    long[] getBits() {
+        return _bits;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The most and least significant bits of each UUID, in alternation.
+     */
+    private final long[] _bits;
+} // class UUIDList
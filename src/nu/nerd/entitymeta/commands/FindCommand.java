@@ -20,6 +20,7 @@ import org.bukkit.entity.Player;
 
 import nu.nerd.entitymeta.EntityMeta;
 import nu.nerd.entitymeta.EntityMetaAPI;
+import nu.nerd.entitymeta.MetadataEntry;
 import nu.nerd.entitymeta.MetadataType;
 import nu.nerd.entitymeta.MetadataTypeManager;
 
@@ -140,10 +141,14 @@ public class FindCommand implements CommandExecutor {
             Collection<Entity> nearbyEntities = world.getNearbyEntities(loc, radius, radius, radius);
             double radiusSquared = radius * radius;
             List<Entity> sortedFilteredEntities = nearbyEntities.stream()
-            .filter(e -> entityTypes.contains(e.getType()) &&
-                         e.getLocation().distanceSquared(loc) <= radiusSquared &&
-                         ((value == null && EntityMeta.api().getEntry(e, pluginName, name) != null) ||
-                          (value != null && value.equals(EntityMeta.api().get(e, pluginName, name)))))
+            .filter(e -> {
+                if (!entityTypes.contains(e.getType()) || e.getLocation().distanceSquared(loc) > radiusSquared) {
+                    return false;
+                }
+                // Peek, so that scanning doesn't displace cached metadata.
+                MetadataEntry entry = EntityMeta.api().peekEntry(e, pluginName, name);
+                return entry != null && (value == null || value.equals(entry.getValue()));
+            })
             .sorted(Comparator.comparingDouble(e -> e.getLocation().distanceSquared(loc)))
             .collect(Collectors.toList());
 
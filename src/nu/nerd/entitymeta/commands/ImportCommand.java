@@ -0,0 +1,97 @@
+package nu.nerd.entitymeta.commands;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.bukkit.ChatColor;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandExecutor;
+import org.bukkit.command.CommandSender;
+
+import nu.nerd.entitymeta.EntityMeta;
+import nu.nerd.entitymeta.EntityMetadataException;
+import nu.nerd.entitymeta.MetadataImport;
+
+// ----------------------------------------------------------------------------
+/**
+ * Handles {@code /entitymeta-import <file> [dry-run] [resume]},
+ * {@code /entitymeta-import status} and {@code /entitymeta-import cancel}.
+ */
+public class ImportCommand implements CommandExecutor {
+    // ------------------------------------------------------------------------
+    /**
+     * @see org.bukkit.command.CommandExecutor#onCommand(org.bukkit.command.CommandSender,
+     *      org.bukkit.command.Command, java.lang.String, java.lang.String[])
+     */
+    @Override
+    public boolean onCommand(CommandSender sender, Command command, String alias, String[] args) {
+        if (args.length == 0 || (args.length == 1 && args[0].equalsIgnoreCase("help"))) {
+            return false;
+        }
+
+        if (args.length == 1 && args[0].equalsIgnoreCase("status")) {
+            if (_import == null) {
+                sender.sendMessage(ChatColor.GOLD + "No import has been started.");
+            } else {
+                sender.sendMessage(_import.formatProgress());
+            }
+            return true;
+        }
+
+        if (args.length == 1 && args[0].equalsIgnoreCase("cancel")) {
+            if (_import == null || _import.isFinished()) {
+                sender.sendMessage(ChatColor.GOLD + "There is no import in progress.");
+            } else {
+                _import.cancel();
+            }
+            return true;
+        }
+
+        if (_import != null && !_import.isFinished()) {
+            sender.sendMessage(ChatColor.RED + "An import is already in progress. Try /" + command.getName() + " status.");
+            return true;
+        }
+
+        boolean dryRun = false;
+        boolean resume = false;
+        for (int i = 1; i < args.length; ++i) {
+            if (args[i].equalsIgnoreCase("dry-run")) {
+                dryRun = true;
+            } else if (args[i].equalsIgnoreCase("resume")) {
+                resume = true;
+            } else {
+                sender.sendMessage(ChatColor.RED + "Invalid arguments. Try /" + command.getName() + " help.");
+                return true;
+            }
+        }
+
+        File dataFolder = EntityMeta.PLUGIN.getDataFolder();
+        File file = new File(dataFolder, args[0]);
+        try {
+            if (!file.getCanonicalPath().startsWith(dataFolder.getCanonicalPath() + File.separator)) {
+                sender.sendMessage(ChatColor.RED + "The file must be in " + dataFolder.getPath() + "!");
+                return true;
+            }
+        } catch (IOException ex) {
+            sender.sendMessage(ChatColor.RED + "Invalid file name: " + ex.getMessage());
+            return true;
+        }
+        if (!file.isFile()) {
+            sender.sendMessage(ChatColor.RED + file.getPath() + " is not a file!");
+            return true;
+        }
+
+        try {
+            _import = EntityMeta.api().importFile(file, dryRun, resume, sender);
+        } catch (EntityMetadataException ex) {
+            sender.sendMessage(ChatColor.RED + "Unable to start the import: " + ex.getMessage());
+        }
+        return true;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The most recently started import, or null if none.
+     */
+    private MetadataImport _import;
+} // class ImportCommand
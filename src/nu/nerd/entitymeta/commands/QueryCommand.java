@@ -0,0 +1,121 @@
+package nu.nerd.entitymeta.commands;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.bukkit.ChatColor;
+import org.bukkit.Location;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandExecutor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
+
+import nu.nerd.entitymeta.EntityMeta;
+import nu.nerd.entitymeta.EntityMetadataException;
+import nu.nerd.entitymeta.MetadataQuery;
+
+// ----------------------------------------------------------------------------
+/**
+ * Handles {@code /entitymeta-query <radius> <query>}, where the radius can
+ * be {@code *} to query all loaded entities.
+ */
+public class QueryCommand implements CommandExecutor {
+    // ------------------------------------------------------------------------
+    /**
+     * @see org.bukkit.command.CommandExecutor#onCommand(org.bukkit.command.CommandSender,
+     *      org.bukkit.command.Command, java.lang.String, java.lang.String[])
+     */
+    @Override
+    public boolean onCommand(CommandSender sender, Command command, String alias, String[] args) {
+        if (!(sender instanceof Player)) {
+            sender.sendMessage(ChatColor.RED + "You must be in game to use this command!");
+            return true;
+        }
+        Player player = (Player) sender;
+
+        if (args.length == 1 && args[0].equalsIgnoreCase("help")) {
+            return false;
+        } else if (args.length < 2) {
+            sender.sendMessage(ChatColor.RED + "Invalid arguments. Try /" + command.getName() + " help.");
+            return true;
+        }
+
+        String radiusArg = args[0];
+        double radius = 0;
+        if (!radiusArg.equals("*")) {
+            try {
+                radius = Double.parseDouble(radiusArg);
+            } catch (NumberFormatException ex) {
+                sender.sendMessage(ChatColor.RED + radiusArg + " is not a number!");
+                return true;
+            }
+            if (radius <= 0) {
+                sender.sendMessage(ChatColor.RED + "A negative radius isn't going to return any results!");
+                return true;
+            }
+        }
+
+        MetadataQuery query;
+        try {
+            query = EntityMeta.api().compileQuery(Arrays.stream(args, 1, args.length).collect(Collectors.joining(" ")));
+        } catch (EntityMetadataException ex) {
+            sender.sendMessage(ChatColor.RED + "Invalid query: " + ex.getMessage());
+            return true;
+        }
+
+        Location loc = player.getLocation();
+        MetadataQuery.Result result;
+        if (radiusArg.equals("*")) {
+            result = query.find();
+        } else {
+            double radiusSquared = radius * radius;
+            List<Entity> nearbyEntities = loc.getWorld().getNearbyEntities(loc, radius, radius, radius).stream()
+            .filter(e -> e.getLocation().distanceSquared(loc) <= radiusSquared)
+            .collect(Collectors.toList());
+            result = query.find(nearbyEntities);
+        }
+
+        sender.sendMessage(ChatColor.GOLD + "Plan: " + ChatColor.YELLOW + result.getPlan());
+        sender.sendMessage(ChatColor.GOLD + "Examined " + ChatColor.YELLOW + result.getExamined() +
+                           ChatColor.GOLD + " entities in " +
+                           ChatColor.YELLOW + String.format("%.3f", result.getNanos() / 1e6) +
+                           ChatColor.GOLD + " ms.");
+
+        // Entities in other worlds are listed after those in this world.
+        List<Entity> matches = result.getEntities().stream()
+        .sorted(Comparator.comparingDouble(e -> e.getWorld().equals(loc.getWorld()) ? e.getLocation().distanceSquared(loc)
+                                                                                   : Double.POSITIVE_INFINITY))
+        .collect(Collectors.toList());
+        if (matches.isEmpty()) {
+            sender.sendMessage(ChatColor.GOLD + "No matching entities found.");
+            return true;
+        }
+
+        final int MAX_RESULTS = 100;
+        if (matches.size() > MAX_RESULTS) {
+            sender.sendMessage(ChatColor.GOLD + "Showing the nearest " + MAX_RESULTS + " of " +
+                               matches.size() + " matching entities:");
+        } else {
+            sender.sendMessage(ChatColor.GOLD + "Showing matching entities, nearest first:");
+        }
+
+        StringBuilder message = new StringBuilder();
+        String sep = "";
+        for (int i = 0; i < matches.size() && i < MAX_RESULTS; ++i) {
+            Location entityLoc = matches.get(i).getLocation();
+            message.append(ChatColor.WHITE).append(sep);
+            sep = ", ";
+            message.append(ChatColor.WHITE).append('(').append(i + 1).append(") ");
+            message.append(ChatColor.YELLOW).append(matches.get(i).getType());
+            message.append(ChatColor.GOLD).append(" (").append(ChatColor.YELLOW).append(entityLoc.getBlockX());
+            message.append(ChatColor.GOLD).append(", ").append(ChatColor.YELLOW).append(entityLoc.getBlockY());
+            message.append(ChatColor.GOLD).append(", ").append(ChatColor.YELLOW).append(entityLoc.getBlockZ());
+            message.append(ChatColor.GOLD).append(")");
+        }
+        sender.sendMessage(message.toString());
+        return true;
+    }
+} // class QueryCommand
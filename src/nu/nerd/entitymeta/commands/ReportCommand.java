@@ -0,0 +1,49 @@
+package nu.nerd.entitymeta.commands;
+
+import org.bukkit.ChatColor;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandExecutor;
+import org.bukkit.command.CommandSender;
+
+import nu.nerd.entitymeta.EntityMeta;
+
+// ----------------------------------------------------------------------------
+/**
+ * Handles {@code /entitymeta-report [<count>]}.
+ */
+public class ReportCommand implements CommandExecutor {
+    // ------------------------------------------------------------------------
+    /**
+     * @see org.bukkit.command.CommandExecutor#onCommand(org.bukkit.command.CommandSender,
+     *      org.bukkit.command.Command, java.lang.String, java.lang.String[])
+     */
+    @Override
+    public boolean onCommand(CommandSender sender, Command command, String alias, String[] args) {
+        if (args.length == 1 && args[0].equalsIgnoreCase("help")) {
+            return false;
+        }
+
+        if (args.length > 1) {
+            sender.sendMessage(ChatColor.RED + "Invalid arguments. Try /" + command.getName() + " help.");
+            return true;
+        }
+
+        int count = 10;
+        if (args.length == 1) {
+            try {
+                count = Integer.parseInt(args[0]);
+            } catch (NumberFormatException ex) {
+                sender.sendMessage(ChatColor.RED + args[0] + " is not a number!");
+                return true;
+            }
+        }
+
+        for (String line : EntityMeta.api().getTagReport(Math.max(1, count))) {
+            sender.sendMessage(line);
+        }
+        for (String line : EntityMeta.api().getCacheReport()) {
+            sender.sendMessage(line);
+        }
+        return true;
+    }
+} // class ReportCommand
@@ -0,0 +1,127 @@
+package nu.nerd.entitymeta.commands;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bukkit.ChatColor;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandExecutor;
+import org.bukkit.command.CommandSender;
+
+import nu.nerd.entitymeta.ApiStatistics;
+import nu.nerd.entitymeta.ApiStatistics.Operation;
+import nu.nerd.entitymeta.EntityMeta;
+import nu.nerd.entitymeta.LatencyHistogram;
+
+// ----------------------------------------------------------------------------
+/**
+ * Handles {@code /entitymeta-stats [<plugin> | reset | slow]}.
+ */
+public class StatsCommand implements CommandExecutor {
+    // ------------------------------------------------------------------------
+    /**
+     * @see org.bukkit.command.CommandExecutor#onCommand(org.bukkit.command.CommandSender,
+     *      org.bukkit.command.Command, java.lang.String, java.lang.String[])
+     */
+    @Override
+    public boolean onCommand(CommandSender sender, Command command, String alias, String[] args) {
+        if (args.length == 1 && args[0].equalsIgnoreCase("help")) {
+            return false;
+        }
+
+        if (args.length > 1) {
+            sender.sendMessage(ChatColor.RED + "Invalid arguments. Try /" + command.getName() + " help.");
+            return true;
+        }
+
+        if (args.length == 1 && args[0].equalsIgnoreCase("slow")) {
+            if (EntityMeta.CONFIG.SLOW_OPERATION_MICROS <= 0) {
+                sender.sendMessage(ChatColor.GOLD + "Slow operation detection is disabled (slow-operations in config.yml).");
+            }
+            List<String> slowOperations = EntityMeta.api().getSlowOperations();
+            if (slowOperations.isEmpty()) {
+                sender.sendMessage(ChatColor.GOLD + "No slow operations have been recorded.");
+                return true;
+            }
+            sender.sendMessage(ChatColor.GOLD + "Recent slow operations (oldest first):");
+            for (String description : slowOperations) {
+                sender.sendMessage(ChatColor.YELLOW + description);
+            }
+            return true;
+        }
+
+        if (!EntityMeta.CONFIG.API_STATISTICS) {
+            sender.sendMessage(ChatColor.GOLD + "API statistics are disabled (api-statistics in config.yml).");
+        }
+
+        ApiStatistics stats = EntityMeta.api().getStatistics();
+        if (args.length == 1 && args[0].equalsIgnoreCase("reset")) {
+            stats.reset();
+            sender.sendMessage(ChatColor.GOLD + "API statistics reset.");
+            return true;
+        }
+
+        if (args.length == 0) {
+            List<String> pluginNames = new ArrayList<>(stats.getPluginNames());
+            if (pluginNames.isEmpty()) {
+                sender.sendMessage(ChatColor.GOLD + "No API calls have been recorded.");
+                return true;
+            }
+            pluginNames.sort(null);
+            sender.sendMessage(ChatColor.GOLD + "API calls by plugin (total time):");
+            for (String pluginName : pluginNames) {
+                long calls = 0;
+                long nanos = 0;
+                for (Operation operation : Operation.values()) {
+                    LatencyHistogram histogram = stats.getHistogram(pluginName, operation);
+                    if (histogram != null) {
+                        calls += histogram.getCount();
+                        nanos += histogram.getTotalNanos();
+                    }
+                }
+                sender.sendMessage(ChatColor.YELLOW + pluginName + ChatColor.WHITE + ": " +
+                                   ChatColor.YELLOW + calls + ChatColor.WHITE + " calls, " +
+                                   ChatColor.YELLOW + formatNanos(nanos));
+            }
+            return true;
+        }
+
+        String pluginName = args[0];
+        if (!stats.getPluginNames().contains(pluginName)) {
+            sender.sendMessage(ChatColor.RED + "No API calls have been recorded for " + pluginName + ".");
+            return true;
+        }
+
+        sender.sendMessage(ChatColor.GOLD + "API calls by " + ChatColor.YELLOW + pluginName +
+                           ChatColor.GOLD + " (count, mean, 50th, 99th percentile, max):");
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram histogram = stats.getHistogram(pluginName, operation);
+            if (histogram != null && histogram.getCount() != 0) {
+                sender.sendMessage(ChatColor.YELLOW + operation.name().toLowerCase() + ChatColor.WHITE + ": " +
+                                   ChatColor.YELLOW + histogram.getCount() + ChatColor.WHITE + ", " +
+                                   ChatColor.YELLOW + formatNanos(histogram.getMeanNanos()) + ChatColor.WHITE + ", " +
+                                   ChatColor.YELLOW + formatNanos(histogram.getPercentileNanos(50)) + ChatColor.WHITE + ", " +
+                                   ChatColor.YELLOW + formatNanos(histogram.getPercentileNanos(99)) + ChatColor.WHITE + ", " +
+                                   ChatColor.YELLOW + formatNanos(histogram.getMaxNanos()));
+            }
+        }
+        return true;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Format a duration in nanoseconds with a suitable unit.
+     * 
+     * @param nanos the duration in nanoseconds.
+     * @return the formatted duration.
+     */
+    private static String formatNanos(long nanos) {
+        if (nanos < 10_000) {
+            return nanos + "ns";
+        } else if (nanos < 10_000_000) {
+            return String.format("%.1fus", nanos / 1e3);
+        } else {
+            return String.format("%.1fms", nanos / 1e6);
+        }
+    }
+} // class StatsCommand
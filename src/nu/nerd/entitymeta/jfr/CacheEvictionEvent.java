@@ -0,0 +1,32 @@
+package nu.nerd.entitymeta.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// ----------------------------------------------------------------------------
+/**
+ * A JFR event recording the removal of an entity's metadata from the cache.
+ * 
+ * Field names form part of the recorded event schema, so they do not follow
+ * the usual underscore prefix convention.
+ */
+@Name("nu.nerd.entitymeta.CacheEviction")
+@Label("Cache Eviction")
+@Category("EntityMeta")
+@Description("Removal of an entity's metadata from the cache.")
+@StackTrace(false)
+class CacheEvictionEvent extends jdk.jfr.Event {
+    @Label("Entity Type")
+    @Description("The entity type, or null if the entity was garbage collected.")
+    String entityType;
+
+    @Label("Entity UUID")
+    String entityUuid;
+
+    @Label("Cause")
+    @Description("The removal cause reported by the cache: SIZE, EXPIRED, COLLECTED or EXPLICIT.")
+    String cause;
+} // class CacheEvictionEvent
@@ -0,0 +1,40 @@
+package nu.nerd.entitymeta.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+// ----------------------------------------------------------------------------
+/**
+ * A JFR event recording the parsing of an entity's scoreboard tags when its
+ * metadata is not cached.
+ * 
+ * Field names form part of the recorded event schema, so they do not follow
+ * the usual underscore prefix convention.
+ */
+@Name("nu.nerd.entitymeta.CacheLoad")
+@Label("Cache Load")
+@Category("EntityMeta")
+@Description("Parsing of an entity's scoreboard tags when its metadata is not cached.")
+@StackTrace(false)
+@Threshold("0 ns")
+class CacheLoadEvent extends jdk.jfr.Event {
+    @Label("Entity Type")
+    String entityType;
+
+    @Label("Entity UUID")
+    String entityUuid;
+
+    @Label("Tag Count")
+    @Description("The number of scoreboard tags of the entity, including those not holding metadata.")
+    int tagCount;
+
+    @Label("Tag Bytes")
+    @Description("The total length of the tags holding metadata.")
+    @DataAmount
+    int tagBytes;
+} // class CacheLoadEvent
@@ -0,0 +1,36 @@
+package nu.nerd.entitymeta.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+// ----------------------------------------------------------------------------
+/**
+ * A JFR event recording the encoding or decoding of a single metadata value.
+ * 
+ * Field names form part of the recorded event schema, so they do not follow
+ * the usual underscore prefix convention.
+ */
+@Name("nu.nerd.entitymeta.Codec")
+@Label("Codec")
+@Category("EntityMeta")
+@Description("Encoding or decoding of a single metadata value.")
+@StackTrace(false)
+@Threshold("20 us")
+class CodecEvent extends jdk.jfr.Event {
+    @Label("Encode")
+    @Description("True if the value was encoded, false if decoded.")
+    boolean encode;
+
+    @Label("Type Code")
+    char typeCode;
+
+    @Label("Bytes")
+    @Description("The length of the serialised value.")
+    @DataAmount
+    int bytes;
+} // class CodecEvent
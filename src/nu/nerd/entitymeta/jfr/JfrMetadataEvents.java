@@ -0,0 +1,215 @@
+package nu.nerd.entitymeta.jfr;
+
+import org.bukkit.entity.Entity;
+
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+// ----------------------------------------------------------------------------
+/**
+ * The {@link MetadataEvents} implementation that emits JFR events.
+ * <p>
+ * 
+ * This class is only loaded, reflectively, by
+ * {@link MetadataEvents#create()} once the {@code jdk.jfr} API is known to be
+ * present.
+ * <p>
+ * 
+ * JFR event objects are cheap, but not free, to construct when not recording.
+ * This class therefore tracks whether any recording is running, so that when
+ * none is, each begin...() call costs one volatile read.
+ */
+final class JfrMetadataEvents implements MetadataEvents, FlightRecorderListener {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     * 
+     * @throws IllegalStateException if the flight recorder is unavailable.
+     */
+    JfrMetadataEvents() {
+        if (!FlightRecorder.isAvailable()) {
+            throw new IllegalStateException("flight recorder unavailable");
+        }
+        FlightRecorder.addListener(this);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see jdk.jfr.FlightRecorderListener#recorderInitialized(jdk.jfr.FlightRecorder)
+     */
+    @Override
+    public void recorderInitialized(FlightRecorder recorder) {
+        update(recorder);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see jdk.jfr.FlightRecorderListener#recordingStateChanged(jdk.jfr.Recording)
+     */
+    @Override
+    public void recordingStateChanged(Recording recording) {
+        update(FlightRecorder.getFlightRecorder());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see nu.nerd.entitymeta.jfr.MetadataEvents#beginCacheLoad()
+     */
+    @Override
+    public Object beginCacheLoad() {
+        if (!_recording) {
+            return null;
+        }
+        CacheLoadEvent event = new CacheLoadEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see nu.nerd.entitymeta.jfr.MetadataEvents#endCacheLoad(java.lang.Object,
+     *      org.bukkit.entity.Entity, int, int)
+     */
+    @Override
+    public void endCacheLoad(Object token, Entity entity, int tagCount, int tagBytes) {
+        if (token != null) {
+            CacheLoadEvent event = (CacheLoadEvent) token;
+            event.end();
+            if (event.shouldCommit()) {
+                event.entityType = entity.getType().name();
+                event.entityUuid = entity.getUniqueId().toString();
+                event.tagCount = tagCount;
+                event.tagBytes = tagBytes;
+                event.commit();
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see nu.nerd.entitymeta.jfr.MetadataEvents#cacheEviction(org.bukkit.entity.Entity,
+     *      java.lang.String)
+     */
+    @Override
+    public void cacheEviction(Entity entity, String cause) {
+        if (_recording) {
+            CacheEvictionEvent event = new CacheEvictionEvent();
+            if (event.shouldCommit()) {
+                if (entity != null) {
+                    event.entityType = entity.getType().name();
+                    event.entityUuid = entity.getUniqueId().toString();
+                }
+                event.cause = cause;
+                event.commit();
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see nu.nerd.entitymeta.jfr.MetadataEvents#beginCodec()
+     */
+    @Override
+    public Object beginCodec() {
+        if (!_recording) {
+            return null;
+        }
+        CodecEvent event = new CodecEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see nu.nerd.entitymeta.jfr.MetadataEvents#endCodec(java.lang.Object,
+     *      boolean, char, int)
+     */
+    @Override
+    public void endCodec(Object token, boolean encode, char typeCode, int bytes) {
+        if (token != null) {
+            CodecEvent event = (CodecEvent) token;
+            event.end();
+            if (event.shouldCommit()) {
+                event.encode = encode;
+                event.typeCode = typeCode;
+                event.bytes = bytes;
+                event.commit();
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see nu.nerd.entitymeta.jfr.MetadataEvents#beginTagWrite()
+     */
+    @Override
+    public Object beginTagWrite() {
+        if (!_recording) {
+            return null;
+        }
+        TagWriteEvent event = new TagWriteEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see nu.nerd.entitymeta.jfr.MetadataEvents#endTagWrite(java.lang.Object,
+     *      org.bukkit.entity.Entity, java.lang.String, int)
+     */
+    @Override
+    public void endTagWrite(Object token, Entity entity, String key, int bytes) {
+        if (token != null) {
+            TagWriteEvent event = (TagWriteEvent) token;
+            event.end();
+            if (event.shouldCommit()) {
+                event.entityType = entity.getType().name();
+                event.entityUuid = entity.getUniqueId().toString();
+                event.key = key;
+                event.bytes = bytes;
+                event.commit();
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see nu.nerd.entitymeta.jfr.MetadataEvents#close()
+     */
+    @Override
+    public void close() {
+        FlightRecorder.removeListener(this);
+        _recording = false;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Update the flag recording whether any recording is running.
+     * 
+     * @param recorder the flight recorder.
+     */
+    private void update(FlightRecorder recorder) {
+        boolean running = false;
+        for (Recording recording : recorder.getRecordings()) {
+            running |= (recording.getState() == RecordingState.RUNNING);
+        }
+        _recording = running;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * True if any recording is running.
+     */
+    private volatile boolean _recording;
+} // class JfrMetadataEvents
@@ -0,0 +1,167 @@
+package nu.nerd.entitymeta.jfr;
+
+import org.bukkit.entity.Entity;
+
+// ----------------------------------------------------------------------------
+/**
+ * Emits Java Flight Recorder events describing cache loads, cache evictions,
+ * value encoding and decoding, and scoreboard tag writes.
+ * <p>
+ * 
+ * The {@link #INSTANCE} emits JFR events when the JVM provides the
+ * {@code jdk.jfr} API (Java 11 and later, and OpenJDK 8u272 and later). On
+ * other JVMs it does nothing, and this interface is the only class of this
+ * package that is loaded, so the classes referring to {@code jdk.jfr} are
+ * never linked.
+ * <p>
+ * 
+ * Durational events are begun with a {@code begin...()} method, which returns
+ * a token to be passed to the corresponding {@code end...()} method. The
+ * token is null, and no event is allocated, unless a recording is in progress
+ * with the event enabled. Events are named
+ * {@code nu.nerd.entitymeta.<Event>} and their thresholds can be configured
+ * in a JFR settings (.jfc) file.
+ */
+public interface MetadataEvents {
+    /**
+     * An implementation that emits no events.
+     */
+    MetadataEvents NONE = new MetadataEvents() {
+        @Override
+        public Object beginCacheLoad() {
+            return null;
+        }
+
+        @Override
+        public void endCacheLoad(Object token, Entity entity, int tagCount, int tagBytes) {
+        }
+
+        @Override
+        public void cacheEviction(Entity entity, String cause) {
+        }
+
+        @Override
+        public Object beginCodec() {
+            return null;
+        }
+
+        @Override
+        public void endCodec(Object token, boolean encode, char typeCode, int bytes) {
+        }
+
+        @Override
+        public Object beginTagWrite() {
+            return null;
+        }
+
+        @Override
+        public void endTagWrite(Object token, Entity entity, String key, int bytes) {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    /**
+     * The implementation used by EntityMeta: JFR events if available,
+     * otherwise {@link #NONE}.
+     */
+    MetadataEvents INSTANCE = create();
+
+    // ------------------------------------------------------------------------
+    /**
+     * Begin timing the parsing of an entity's tags into the cache.
+     * 
+     * @return a token for {@link #endCacheLoad(Object, Entity, int, int)}, or
+     *         null.
+     */
+    Object beginCacheLoad();
+
+    // ------------------------------------------------------------------------
+    /**
+     * Finish timing the parsing of an entity's tags into the cache.
+     * 
+     * @param token the value returned by {@link #beginCacheLoad()}.
+     * @param entity the entity.
+     * @param tagCount the number of scoreboard tags of the entity.
+     * @param tagBytes the total length of the entity's metadata tags.
+     */
+    void endCacheLoad(Object token, Entity entity, int tagCount, int tagBytes);
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record the removal of an entity's metadata from the cache.
+     * 
+     * @param entity the entity, or null if it has been garbage collected.
+     * @param cause the cause of removal, as reported by the cache.
+     */
+    void cacheEviction(Entity entity, String cause);
+
+    // ------------------------------------------------------------------------
+    /**
+     * Begin timing the encoding or decoding of a metadata value.
+     * 
+     * @return a token for {@link #endCodec(Object, boolean, char, int)}, or
+     *         null.
+     */
+    Object beginCodec();
+
+    // ------------------------------------------------------------------------
+    /**
+     * Finish timing the encoding or decoding of a metadata value.
+     * 
+     * @param token the value returned by {@link #beginCodec()}.
+     * @param encode true if the value was encoded, false if decoded.
+     * @param typeCode the type code of the value.
+     * @param bytes the length of the serialised value.
+     */
+    void endCodec(Object token, boolean encode, char typeCode, int bytes);
+
+    // ------------------------------------------------------------------------
+    /**
+     * Begin timing a scoreboard tag write.
+     * 
+     * @return a token for {@link #endTagWrite(Object, Entity, String, int)},
+     *         or null.
+     */
+    Object beginTagWrite();
+
+    // ------------------------------------------------------------------------
+    /**
+     * Finish timing a scoreboard tag write.
+     * 
+     * @param token the value returned by {@link #beginTagWrite()}.
+     * @param entity the entity.
+     * @param key the metadata key.
+     * @param bytes the length of the tag.
+     */
+    void endTagWrite(Object token, Entity entity, String key, int bytes);
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop emitting events and release any JVM-wide registrations.
+     * 
+     * This must be called when the plugin is disabled, since the flight
+     * recorder would otherwise retain a listener, and through it the plugin's
+     * class loader, after a reload.
+     */
+    void close();
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the JFR implementation, if the JVM supports it, or
+     * {@link #NONE}.
+     * 
+     * @return the implementation.
+     */
+    static MetadataEvents create() {
+        try {
+            Class.forName("jdk.jfr.FlightRecorder");
+            return (MetadataEvents) Class.forName("nu.nerd.entitymeta.jfr.JfrMetadataEvents")
+                .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException ex) {
+            return NONE;
+        }
+    }
+} // class MetadataEvents
@@ -0,0 +1,39 @@
+package nu.nerd.entitymeta.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+// ----------------------------------------------------------------------------
+/**
+ * A JFR event recording the replacement of a scoreboard tag holding a
+ * metadata value.
+ * 
+ * Field names form part of the recorded event schema, so they do not follow
+ * the usual underscore prefix convention.
+ */
+@Name("nu.nerd.entitymeta.TagWrite")
+@Label("Tag Write")
+@Category("EntityMeta")
+@Description("Replacement of a scoreboard tag holding a metadata value.")
+@StackTrace(false)
+@Threshold("20 us")
+class TagWriteEvent extends jdk.jfr.Event {
+    @Label("Entity Type")
+    String entityType;
+
+    @Label("Entity UUID")
+    String entityUuid;
+
+    @Label("Key")
+    String key;
+
+    @Label("Bytes")
+    @Description("The length of the new tag.")
+    @DataAmount
+    int bytes;
+} // class TagWriteEvent